@@ -0,0 +1,193 @@
+/*
+ * jFCPlib - AbstractClientPutComplexDir.java - Copyright © 2008–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp;
+
+/**
+ * Base class for the “ClientPutComplexDir” messages, containing the fields
+ * that do not depend on how the files of the directory are added.
+ *
+ * @see ClientPutComplexDir
+ * @see StreamingClientPutComplexDir
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public abstract class AbstractClientPutComplexDir extends FcpMessage {
+
+	/**
+	 * Creates a new “ClientPutComplexDir” with the given identifier and URI.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @param uri
+	 *            The URI to insert the directory to
+	 */
+	protected AbstractClientPutComplexDir(String identifier, String uri) {
+		super("ClientPutComplexDir");
+		setField("Identifier", identifier);
+		setField("URI", uri);
+	}
+
+	/**
+	 * Sets the verbosity of the request.
+	 *
+	 * @param verbosity
+	 *            The verbosity of the request
+	 */
+	public void setVerbosity(Verbosity verbosity) {
+		setField("Verbosity", String.valueOf(verbosity));
+	}
+
+	/**
+	 * Sets the maximum number of retries for failed blocks.
+	 *
+	 * @param maxRetries
+	 *            The maximum number of retries for failed blocks, or
+	 *            <code>-1</code> to retry endlessly
+	 */
+	public void setMaxRetries(int maxRetries) {
+		setField("MaxRetries", String.valueOf(maxRetries));
+	}
+
+	/**
+	 * Sets the priority of the request.
+	 *
+	 * @param priority
+	 *            The priority of the request
+	 */
+	public void setPriority(Priority priority) {
+		setField("PriorityClass", String.valueOf(priority));
+	}
+
+	/**
+	 * Sets whether to generate the final URI only.
+	 *
+	 * @param getCHKOnly
+	 *            <code>true</code> to generate the final CHK only,
+	 *            <code>false</code> to complete the insert
+	 */
+	public void setGetCHKOnly(boolean getCHKOnly) {
+		setField("GetCHKOnly", String.valueOf(getCHKOnly));
+	}
+
+	/**
+	 * Sets whether an insert request should be forked when it is cached.
+	 *
+	 * @param forkOnCacheable
+	 *            {@code true} to fork the insert when it is cached,
+	 *            {@code false} otherwise
+	 */
+	public void setForkOnCacheable(boolean forkOnCacheable) {
+		setField("ForkOnCacheable", String.valueOf(forkOnCacheable));
+	}
+
+	/**
+	 * Sets the number of additional inserts of single blocks.
+	 *
+	 * @param extraInsertsSingleBlock
+	 *            The number of additional inserts
+	 */
+	public void setExtraInsertsSingleBlock(int extraInsertsSingleBlock) {
+		setField("ExtraInsertsSingleBlock", String.valueOf(extraInsertsSingleBlock));
+	}
+
+	/**
+	 * Sets the number of additional inserts of splitfile header blocks.
+	 *
+	 * @param extraInsertsSplitfileHeaderBlock
+	 *            The number of additional inserts
+	 */
+	public void setExtraInsertsSplitfileHeaderBlock(int extraInsertsSplitfileHeaderBlock) {
+		setField("ExtraInsertsSplitfileHeaderBlock", String.valueOf(extraInsertsSplitfileHeaderBlock));
+	}
+
+	/**
+	 * Sets whether the request is on the global queue.
+	 *
+	 * @param global
+	 *            <code>true</code> to put the request on the global queue,
+	 *            <code>false</code> to put it on the client-local queue
+	 */
+	public void setGlobal(boolean global) {
+		setField("Global", String.valueOf(global));
+	}
+
+	/**
+	 * Sets whether the node should not try to compress the data.
+	 *
+	 * @param dontCompress
+	 *            <code>true</code> to skip compression of the data,
+	 *            <code>false</code> to try and compress the data
+	 */
+	public void setDontCompress(boolean dontCompress) {
+		setField("DontCompress", String.valueOf(dontCompress));
+	}
+
+	/**
+	 * Sets the client token of the request.
+	 *
+	 * @param clientToken
+	 *            The client token of the request
+	 */
+	public void setClientToken(String clientToken) {
+		setField("ClientToken", clientToken);
+	}
+
+	/**
+	 * Sets the persistence of the request.
+	 *
+	 * @param persistence
+	 *            The persistence of the request
+	 */
+	public void setPersistence(Persistence persistence) {
+		setField("Persistence", String.valueOf(persistence));
+	}
+
+	/**
+	 * Sets the target filename of the request. This is useful for inserts that
+	 * go to “CHK@” only and creates a manifest with a single file.
+	 *
+	 * @param targetFilename
+	 *            The target filename
+	 */
+	public void setTargetFilename(String targetFilename) {
+		setField("TargetFilename", targetFilename);
+	}
+
+	/**
+	 * Sets whether to encode the complete data early to generate the
+	 * {@link URIGenerated} message early.
+	 *
+	 * @param earlyEncode
+	 *            <code>true</code> to encode the complete data early,
+	 *            <code>false</code> otherwise
+	 */
+	public void setEarlyEncode(boolean earlyEncode) {
+		setField("EarlyEncode", String.valueOf(earlyEncode));
+	}
+
+	/**
+	 * Sets the default name. This is the name of the file that should be shown
+	 * if no file was specified.
+	 *
+	 * @param defaultName
+	 *            The default name
+	 */
+	public void setDefaultName(String defaultName) {
+		setField("DefaultName", defaultName);
+	}
+
+}
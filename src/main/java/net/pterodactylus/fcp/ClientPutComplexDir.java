@@ -36,7 +36,7 @@ import net.pterodactylus.fcp.FileEntry.DirectFileEntry;
  * @see FileEntry
  * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
  */
-public class ClientPutComplexDir extends FcpMessage {
+public class ClientPutComplexDir extends AbstractClientPutComplexDir {
 
 	/** The index for added file entries. */
 	private int fileIndex = 0;
@@ -44,6 +44,9 @@ public class ClientPutComplexDir extends FcpMessage {
 	/** The input streams from {@link DirectFileEntry}s. */
 	private final List<InputStream> directFileInputStreams = new ArrayList<InputStream>();
 
+	/** The number of buffers to read ahead, or {@code 0} to not read ahead. */
+	private int readAheadBuffers = 0;
+
 	/**
 	 * Creates a new “ClientPutComplexDir” with the given identifier and URI.
 	 *
@@ -53,158 +56,23 @@ public class ClientPutComplexDir extends FcpMessage {
 	 *            The URI to insert the directory to
 	 */
 	public ClientPutComplexDir(String identifier, String uri) {
-		super("ClientPutComplexDir");
-		setField("Identifier", identifier);
-		setField("URI", uri);
-	}
-
-	/**
-	 * Sets the verbosity of the request.
-	 *
-	 * @param verbosity
-	 *            The verbosity of the request
-	 */
-	public void setVerbosity(Verbosity verbosity) {
-		setField("Verbosity", String.valueOf(verbosity));
-	}
-
-	/**
-	 * Sets the maximum number of retries for failed blocks.
-	 *
-	 * @param maxRetries
-	 *            The maximum number of retries for failed blocks, or
-	 *            <code>-1</code> to retry endlessly
-	 */
-	public void setMaxRetries(int maxRetries) {
-		setField("MaxRetries", String.valueOf(maxRetries));
+		super(identifier, uri);
 	}
 
 	/**
-	 * Sets the priority of the request.
+	 * Sets the number of buffers of {@link DirectFileEntry} data that are read
+	 * ahead while the payload is written. If read-ahead is enabled, the input
+	 * streams of the file entries are read on a background thread (see
+	 * {@link ReadAheadInputStream}) so that writing to the node does not wait
+	 * for the next file to be read, and they are closed once they have been
+	 * written.
 	 *
-	 * @param priority
-	 *            The priority of the request
+	 * @param readAheadBuffers
+	 *            The number of buffers to read ahead, or {@code 0} to read the
+	 *            input streams while writing
 	 */
-	public void setPriority(Priority priority) {
-		setField("PriorityClass", String.valueOf(priority));
-	}
-
-	/**
-	 * Sets whether to generate the final URI only.
-	 *
-	 * @param getCHKOnly
-	 *            <code>true</code> to generate the final CHK only,
-	 *            <code>false</code> to complete the insert
-	 */
-	public void setGetCHKOnly(boolean getCHKOnly) {
-		setField("GetCHKOnly", String.valueOf(getCHKOnly));
-	}
-
-	/**
-	 * Sets whether an insert request should be forked when it is cached.
-	 *
-	 * @param forkOnCacheable
-	 *            {@code true} to fork the insert when it is cached,
-	 *            {@code false} otherwise
-	 */
-	public void setForkOnCacheable(boolean forkOnCacheable) {
-		setField("ForkOnCacheable", String.valueOf(forkOnCacheable));
-	}
-
-	/**
-	 * Sets the number of additional inserts of single blocks.
-	 *
-	 * @param extraInsertsSingleBlock
-	 *            The number of additional inserts
-	 */
-	public void setExtraInsertsSingleBlock(int extraInsertsSingleBlock) {
-		setField("ExtraInsertsSingleBlock", String.valueOf(extraInsertsSingleBlock));
-	}
-
-	/**
-	 * Sets the number of additional inserts of splitfile header blocks.
-	 *
-	 * @param extraInsertsSplitfileHeaderBlock
-	 *            The number of additional inserts
-	 */
-	public void setExtraInsertsSplitfileHeaderBlock(int extraInsertsSplitfileHeaderBlock) {
-		setField("ExtraInsertsSplitfileHeaderBlock", String.valueOf(extraInsertsSplitfileHeaderBlock));
-	}
-
-	/**
-	 * Sets whether the request is on the global queue.
-	 *
-	 * @param global
-	 *            <code>true</code> to put the request on the global queue,
-	 *            <code>false</code> to put it on the client-local queue
-	 */
-	public void setGlobal(boolean global) {
-		setField("Global", String.valueOf(global));
-	}
-
-	/**
-	 * Sets whether the node should not try to compress the data.
-	 *
-	 * @param dontCompress
-	 *            <code>true</code> to skip compression of the data,
-	 *            <code>false</code> to try and compress the data
-	 */
-	public void setDontCompress(boolean dontCompress) {
-		setField("DontCompress", String.valueOf(dontCompress));
-	}
-
-	/**
-	 * Sets the client token of the request.
-	 *
-	 * @param clientToken
-	 *            The client token of the request
-	 */
-	public void setClientToken(String clientToken) {
-		setField("ClientToken", clientToken);
-	}
-
-	/**
-	 * Sets the persistence of the request.
-	 *
-	 * @param persistence
-	 *            The persistence of the request
-	 */
-	public void setPersistence(Persistence persistence) {
-		setField("Persistence", String.valueOf(persistence));
-	}
-
-	/**
-	 * Sets the target filename of the request. This is useful for inserts that
-	 * go to “CHK@” only and creates a manifest with a single file.
-	 *
-	 * @param targetFilename
-	 *            The target filename
-	 */
-	public void setTargetFilename(String targetFilename) {
-		setField("TargetFilename", targetFilename);
-	}
-
-	/**
-	 * Sets whether to encode the complete data early to generate the
-	 * {@link URIGenerated} message early.
-	 *
-	 * @param earlyEncode
-	 *            <code>true</code> to encode the complete data early,
-	 *            <code>false</code> otherwise
-	 */
-	public void setEarlyEncode(boolean earlyEncode) {
-		setField("EarlyEncode", String.valueOf(earlyEncode));
-	}
-
-	/**
-	 * Sets the default name. This is the name of the file that should be shown
-	 * if no file was specified.
-	 *
-	 * @param defaultName
-	 *            The default name
-	 */
-	public void setDefaultName(String defaultName) {
-		setField("DefaultName", defaultName);
+	public void setReadAheadBuffers(int readAheadBuffers) {
+		this.readAheadBuffers = readAheadBuffers;
 	}
 
 	/**
@@ -241,10 +109,24 @@ public class ClientPutComplexDir extends FcpMessage {
 	 */
 	@Override
 	public void write(OutputStream outputStream) throws IOException {
-		/* create payload stream. */
-		setPayloadInputStream(new SequenceInputStream(Collections.enumeration(directFileInputStreams)));
-		/* write out all the fields. */
-		super.write(outputStream);
+		if (directFileInputStreams.isEmpty()) {
+			super.write(outputStream);
+			return;
+		}
+		if (readAheadBuffers <= 0) {
+			/* create payload stream. */
+			super.setPayloadInputStream(new SequenceInputStream(Collections.enumeration(directFileInputStreams)));
+			/* write out all the fields. */
+			super.write(outputStream);
+			return;
+		}
+		ReadAheadInputStream payloadInputStream = new ReadAheadInputStream(directFileInputStreams, readAheadBuffers, ReadAheadInputStream.DEFAULT_BUFFER_SIZE);
+		try {
+			super.setPayloadInputStream(payloadInputStream);
+			super.write(outputStream);
+		} finally {
+			payloadInputStream.close();
+		}
 	}
 
 }
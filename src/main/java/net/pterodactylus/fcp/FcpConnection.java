@@ -17,7 +17,11 @@
 
 package net.pterodactylus.fcp;
 
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -28,6 +32,7 @@ import java.net.UnknownHostException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.pterodactylus.fcp.FcpUtils.TempInputStream;
@@ -66,6 +71,9 @@ public class FcpConnection implements Closeable {
 	/** The connection handler. */
 	private FcpConnectionHandler connectionHandler;
 
+	/** The files to write payloads to, by identifier of the request. */
+	private final Map<String, File> payloadFiles = Collections.synchronizedMap(new HashMap<String, File>());
+
 	/** Incoming message statistics. */
 	private static final Map<String, Integer> incomingMessageStatistics = Collections.synchronizedMap(new HashMap<String, Integer>());
 
@@ -184,6 +192,28 @@ public class FcpConnection implements Closeable {
 		new Thread(connectionHandler = new FcpConnectionHandler(this, remoteInputStream)).start();
 	}
 
+	/**
+	 * Sets the file the payload of the “AllData” message for the request with
+	 * the given identifier is written to. The payload is then written to the
+	 * file while it is read from the node instead of being buffered, and the
+	 * {@link AllData} message handed to the listeners carries an empty
+	 * payload. If the file can not be written, the payload is discarded, and
+	 * the length of the file will not match the length of the data.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @param payloadFile
+	 *            The file to write the payload to, or {@code null} to buffer
+	 *            the payload as usual
+	 */
+	public void setPayloadFile(String identifier, File payloadFile) {
+		if (payloadFile == null) {
+			payloadFiles.remove(identifier);
+		} else {
+			payloadFiles.put(identifier, payloadFile);
+		}
+	}
+
 	/**
 	 * Disconnects from the node. If there is no connection to the node, this
 	 * method does nothing.
@@ -271,7 +301,15 @@ public class FcpConnection implements Closeable {
 		} else if ("IdentifierCollision".equals(messageName)) {
 			fcpListenerManager.fireReceivedIdentifierCollision(new IdentifierCollision(fcpMessage));
 		} else if ("AllData".equals(messageName)) {
-			InputStream payloadInputStream = getInputStream(FcpUtils.safeParseLong(fcpMessage.getField("DataLength")));
+			long dataLength = FcpUtils.safeParseLong(fcpMessage.getField("DataLength"));
+			File payloadFile = payloadFiles.remove(String.valueOf(fcpMessage.getField("Identifier")));
+			InputStream payloadInputStream;
+			if (payloadFile != null) {
+				writePayload(payloadFile, dataLength);
+				payloadInputStream = new ByteArrayInputStream(new byte[0]);
+			} else {
+				payloadInputStream = getInputStream(dataLength);
+			}
 			fcpListenerManager.fireReceivedAllData(new AllData(fcpMessage, payloadInputStream));
 		} else if ("EndListPeerNotes".equals(messageName)) {
 			fcpListenerManager.fireReceivedEndListPeerNotes(new EndListPeerNotes(fcpMessage));
@@ -325,14 +363,56 @@ public class FcpConnection implements Closeable {
 	 *            <code>null</code> if there was no exception
 	 */
 	synchronized void handleDisconnect(Throwable throwable) {
+		if (dropConnection()) {
+			fcpListenerManager.fireConnectionClosed(throwable);
+		}
+	}
+
+	/**
+	 * Handles a disconnect detected by the given connection handler. If the
+	 * handler is not the current connection handler (because the connection
+	 * has been closed and opened again in the meantime), the disconnect is
+	 * ignored.
+	 *
+	 * @param fcpConnectionHandler
+	 *            The connection handler that detected the disconnect
+	 * @param throwable
+	 *            The exception that caused the disconnect, or
+	 *            <code>null</code> if there was no exception
+	 */
+	synchronized void handleDisconnect(FcpConnectionHandler fcpConnectionHandler, Throwable throwable) {
+		if (fcpConnectionHandler == connectionHandler) {
+			handleDisconnect(throwable);
+		}
+	}
+
+	/**
+	 * Closes the socket and stops the connection handler without notifying
+	 * any listeners.
+	 *
+	 * @return {@code true} if the connection was open, {@code false} otherwise
+	 */
+	synchronized boolean dropConnection() {
 		FcpUtils.close(remoteInputStream);
 		FcpUtils.close(remoteOutputStream);
 		FcpUtils.close(remoteSocket);
-		if (connectionHandler != null) {
-			connectionHandler.stop();
-			connectionHandler = null;
-			fcpListenerManager.fireConnectionClosed(throwable);
+		if (connectionHandler == null) {
+			return false;
 		}
+		connectionHandler.stop();
+		connectionHandler = null;
+		return true;
+	}
+
+	/**
+	 * Notifies all listeners that the connection was closed.
+	 *
+	 * @param throwable
+	 *            The exception that caused the disconnect, or
+	 *            <code>null</code> if there was no exception
+	 */
+	void fireConnectionClosed(Throwable throwable) {
+		fcpListenerManager.fireConnectionClosed(throwable);
 	}
 
 	//
@@ -359,4 +439,47 @@ public class FcpConnection implements Closeable {
 		return new TempInputStream(remoteInputStream, dataLength);
 	}
 
+	/**
+	 * Writes the next {@code dataLength} bytes from the node to the given
+	 * file. If the file can not be written, the remaining bytes are read and
+	 * discarded so that the connection stays usable.
+	 *
+	 * @param payloadFile
+	 *            The file to write the payload to
+	 * @param dataLength
+	 *            The length of the payload
+	 * @throws IOException
+	 *             if the payload can not be read from the node
+	 */
+	private synchronized void writePayload(File payloadFile, long dataLength) throws IOException {
+		OutputStream fileOutputStream = null;
+		try {
+			try {
+				fileOutputStream = new FileOutputStream(payloadFile);
+			} catch (IOException ioe1) {
+				logger.log(Level.WARNING, "Could not create payload file " + payloadFile + "!", ioe1);
+			}
+			byte[] buffer = new byte[65536];
+			long remaining = dataLength;
+			while (remaining > 0) {
+				int read = remoteInputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (read == -1) {
+					throw new EOFException("payload truncated, " + remaining + " bytes missing");
+				}
+				remaining -= read;
+				if (fileOutputStream != null) {
+					try {
+						fileOutputStream.write(buffer, 0, read);
+					} catch (IOException ioe1) {
+						logger.log(Level.WARNING, "Could not write payload file " + payloadFile + "!", ioe1);
+						FcpUtils.close(fileOutputStream);
+						fileOutputStream = null;
+					}
+				}
+			}
+		} finally {
+			FcpUtils.close(fileOutputStream);
+		}
+	}
+
 }
@@ -107,7 +107,7 @@ class FcpConnectionHandler implements Runnable {
 				break;
 			}
 		}
-		fcpConnection.handleDisconnect(throwable);
+		fcpConnection.handleDisconnect(this, throwable);
 	}
 
 	/**
@@ -194,7 +194,7 @@ public class FcpMessage implements Iterable<String> {
 	 * @throws IOException
 	 *             if an I/O error occurs
 	 */
-	private void writeLine(OutputStream outputStream, String line) throws IOException {
+	void writeLine(OutputStream outputStream, String line) throws IOException {
 		outputStream.write((line + LINEFEED).getBytes("UTF-8"));
 	}
 
@@ -0,0 +1,278 @@
+/*
+ * jFCPlib - ReadAheadInputStream.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * An input stream that concatenates a number of input streams, like a
+ * {@link java.io.SequenceInputStream}, but reads them on a background thread.
+ * The background thread fills a fixed pool of buffers ahead of the reader, so
+ * that while the reader is busy (e.g. writing the data to a socket) the next
+ * data is already being read from the source streams.
+ * <p>
+ * The source streams are closed by the background thread once they have been
+ * read completely, or when this stream is closed.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class ReadAheadInputStream extends InputStream {
+
+	/** The default number of buffers. */
+	public static final int DEFAULT_BUFFER_COUNT = 8;
+
+	/** The default size of a buffer. */
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+	/** The chunk that marks the end of the data. */
+	private static final Chunk END = new Chunk(null, -1, null);
+
+	/** The buffers that can be filled. */
+	private final BlockingQueue<byte[]> freeBuffers;
+
+	/** The filled chunks, in order. */
+	private final BlockingQueue<Chunk> filledChunks = new LinkedBlockingQueue<Chunk>();
+
+	/** The thread that reads the source streams. */
+	private final Thread readerThread;
+
+	/** The chunk that is currently being read. */
+	private Chunk currentChunk;
+
+	/** The offset of the next byte in the current chunk. */
+	private int currentOffset;
+
+	/**
+	 * Creates a new read-ahead input stream that uses the default number and
+	 * size of buffers.
+	 *
+	 * @param inputStreams
+	 *            The input streams to concatenate
+	 */
+	public ReadAheadInputStream(List<InputStream> inputStreams) {
+		this(inputStreams, DEFAULT_BUFFER_COUNT, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates a new read-ahead input stream.
+	 *
+	 * @param inputStreams
+	 *            The input streams to concatenate
+	 * @param bufferCount
+	 *            The number of buffers to read ahead
+	 * @param bufferSize
+	 *            The size of a buffer
+	 */
+	public ReadAheadInputStream(List<InputStream> inputStreams, int bufferCount, int bufferSize) {
+		freeBuffers = new ArrayBlockingQueue<byte[]>(Math.max(1, bufferCount));
+		for (int bufferIndex = 0; bufferIndex < Math.max(1, bufferCount); bufferIndex++) {
+			freeBuffers.add(new byte[Math.max(1, bufferSize)]);
+		}
+		readerThread = new Thread(new Reader(new ArrayList<InputStream>(inputStreams)), "Read-Ahead Reader");
+		readerThread.setDaemon(true);
+		readerThread.start();
+	}
+
+	//
+	// INPUTSTREAM METHODS
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int read() throws IOException {
+		byte[] buffer = new byte[1];
+		int read = read(buffer, 0, 1);
+		return (read == -1) ? -1 : (buffer[0] & 0xff);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		if ((currentChunk == null) || ((currentChunk != END) && (currentOffset == currentChunk.length))) {
+			if (currentChunk != null) {
+				freeBuffers.offer(currentChunk.buffer);
+			}
+			try {
+				currentChunk = filledChunks.take();
+			} catch (InterruptedException ie1) {
+				currentChunk = null;
+				throw new InterruptedIOException("interrupted while waiting for data");
+			}
+			currentOffset = 0;
+		}
+		if (currentChunk.exception != null) {
+			throw currentChunk.exception;
+		}
+		if (currentChunk == END) {
+			return -1;
+		}
+		int read = Math.min(length, currentChunk.length - currentOffset);
+		System.arraycopy(currentChunk.buffer, currentOffset, buffer, offset, read);
+		currentOffset += read;
+		return read;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int available() {
+		return ((currentChunk == null) || (currentChunk == END)) ? 0 : (currentChunk.length - currentOffset);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Stops the background thread, which closes the source streams.
+	 */
+	@Override
+	public void close() {
+		readerThread.interrupt();
+	}
+
+	/**
+	 * A filled buffer, or the exception that occured while filling it.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private static class Chunk {
+
+		/** The buffer. */
+		final byte[] buffer;
+
+		/** The number of bytes in the buffer. */
+		final int length;
+
+		/** The exception that occured, or {@code null}. */
+		final IOException exception;
+
+		/**
+		 * Creates a new chunk.
+		 *
+		 * @param buffer
+		 *            The buffer
+		 * @param length
+		 *            The number of bytes in the buffer
+		 * @param exception
+		 *            The exception that occured, or {@code null}
+		 */
+		Chunk(byte[] buffer, int length, IOException exception) {
+			this.buffer = buffer;
+			this.length = length;
+			this.exception = exception;
+		}
+
+	}
+
+	/**
+	 * Reads the source streams into the free buffers.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private class Reader implements Runnable {
+
+		/** The input streams to read. */
+		private final List<InputStream> inputStreams;
+
+		/**
+		 * Creates a new reader.
+		 *
+		 * @param inputStreams
+		 *            The input streams to read
+		 */
+		public Reader(List<InputStream> inputStreams) {
+			this.inputStreams = inputStreams;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void run() {
+			int streamIndex = 0;
+			try {
+				for (; streamIndex < inputStreams.size(); streamIndex++) {
+					InputStream inputStream = inputStreams.get(streamIndex);
+					while (true) {
+						byte[] buffer = freeBuffers.take();
+						int length = fill(inputStream, buffer);
+						if (length == 0) {
+							freeBuffers.offer(buffer);
+							break;
+						}
+						filledChunks.put(new Chunk(buffer, length, null));
+						if (length < buffer.length) {
+							break;
+						}
+					}
+					FcpUtils.close(inputStream);
+				}
+				filledChunks.put(END);
+			} catch (IOException ioe1) {
+				filledChunks.offer(new Chunk(null, -1, ioe1));
+			} catch (InterruptedException ie1) {
+				/* stream has been closed. */
+			} finally {
+				for (; streamIndex < inputStreams.size(); streamIndex++) {
+					FcpUtils.close(inputStreams.get(streamIndex));
+				}
+			}
+		}
+
+		/**
+		 * Reads from the given input stream until the buffer is full or the
+		 * end of the stream is reached.
+		 *
+		 * @param inputStream
+		 *            The input stream to read
+		 * @param buffer
+		 *            The buffer to fill
+		 * @return The number of bytes read
+		 * @throws IOException
+		 *             if an I/O error occurs
+		 */
+		private int fill(InputStream inputStream, byte[] buffer) throws IOException {
+			int length = 0;
+			while (length < buffer.length) {
+				int read = inputStream.read(buffer, length, buffer.length - length);
+				if (read == -1) {
+					break;
+				}
+				length += read;
+			}
+			return length;
+		}
+
+	}
+
+}
@@ -0,0 +1,53 @@
+/*
+ * jFCPlib - ReconnectListener.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp;
+
+import java.util.EventListener;
+
+/**
+ * Interface for objects that want to be notified when a
+ * {@link ReconnectingFcpConnection} loses and regains its connection to the
+ * node.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public interface ReconnectListener extends EventListener {
+
+	/**
+	 * Notifies a listener that the connection to the node was lost and will be
+	 * restored.
+	 *
+	 * @param fcpConnection
+	 *            The connection that was interrupted
+	 * @param throwable
+	 *            The exception that caused the interruption, or {@code null}
+	 */
+	public void connectionInterrupted(FcpConnection fcpConnection, Throwable throwable);
+
+	/**
+	 * Notifies a listener that the connection to the node was restored. The
+	 * client has already been identified, the global queue is watched again
+	 * (if it was before), and the status of all persistent requests has been
+	 * requested.
+	 *
+	 * @param fcpConnection
+	 *            The connection that was restored
+	 */
+	public void connectionRestored(FcpConnection fcpConnection);
+
+}
@@ -0,0 +1,439 @@
+/*
+ * jFCPlib - ReconnectingFcpConnection.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An FCP connection that survives transient disconnects. If the connection to
+ * the node is lost without {@link #close()} having been called, the
+ * {@link FcpListener}s are not notified; instead the connection is reopened
+ * with exponential backoff. After reconnecting, the last “ClientHello” and
+ * “WatchGlobal” messages are sent again, and a “GetRequestStatus” message is
+ * sent for every persistent request of this client that has not finished
+ * yet, so that the node reports their current state on the new connection.
+ * Requests on the global queue that were started by other clients are not
+ * tracked; if the global queue is watched, a single “ListPersistentRequests”
+ * message is sent instead, which makes the node report all requests of this
+ * client and of the global queue at once. Only if the
+ * connection can not be restored within the maximum number of attempts are
+ * the listeners notified that the connection was closed.
+ * <p>
+ * Requests with {@link Persistence#connection} persistence are lost with the
+ * connection; {@link ReconnectListener}s are notified when the connection is
+ * restored so that they can be sent again.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class ReconnectingFcpConnection extends FcpConnection {
+
+	/** The logger. */
+	private static final Logger logger = Logger.getLogger(ReconnectingFcpConnection.class.getName());
+
+	/** Object used for synchronization. */
+	private final Object syncObject = new Object();
+
+	/** The executor to reconnect on. */
+	private final ScheduledExecutorService executorService;
+
+	/** The delay before the first reconnect attempt (in milliseconds). */
+	private final long initialDelay;
+
+	/** The maximum delay between reconnect attempts (in milliseconds). */
+	private final long maximumDelay;
+
+	/** The maximum number of reconnect attempts, or {@code 0}. */
+	private final int maximumAttempts;
+
+	/** The reconnect listeners. */
+	private final List<ReconnectListener> reconnectListeners = new CopyOnWriteArrayList<ReconnectListener>();
+
+	/** The unfinished persistent requests, mapped to whether they are global. */
+	private final Map<String, Boolean> persistentRequests = new HashMap<String, Boolean>();
+
+	/** The last “ClientHello” message. */
+	private FcpMessage clientHello;
+
+	/** The last “WatchGlobal” message. */
+	private FcpMessage watchGlobal;
+
+	/** Whether the connection was closed by the client. */
+	private boolean closed = true;
+
+	/** The next reconnect attempt, if one is scheduled. */
+	private ScheduledFuture<?> reconnectFuture;
+
+	/**
+	 * Creates a new reconnecting FCP connection.
+	 *
+	 * @param address
+	 *            The address of the Freenet node
+	 * @param port
+	 *            The port number of the node’s FCP port
+	 * @param executorService
+	 *            The executor to reconnect on
+	 * @param initialDelay
+	 *            The delay before the first reconnect attempt
+	 * @param maximumDelay
+	 *            The maximum delay between reconnect attempts
+	 * @param timeUnit
+	 *            The unit of the delays
+	 * @param maximumAttempts
+	 *            The maximum number of reconnect attempts, or {@code 0} to try
+	 *            forever
+	 */
+	public ReconnectingFcpConnection(InetAddress address, int port, ScheduledExecutorService executorService, long initialDelay, long maximumDelay, TimeUnit timeUnit, int maximumAttempts) {
+		super(address, port);
+		this.executorService = executorService;
+		this.initialDelay = Math.max(1, timeUnit.toMillis(initialDelay));
+		this.maximumDelay = Math.max(this.initialDelay, timeUnit.toMillis(maximumDelay));
+		this.maximumAttempts = maximumAttempts;
+		addFcpListener(new PersistentRequestTracker());
+	}
+
+	//
+	// LISTENER MANAGEMENT
+	//
+
+	/**
+	 * Adds the given listener to the list of listeners.
+	 *
+	 * @param reconnectListener
+	 *            The listener to add
+	 */
+	public void addReconnectListener(ReconnectListener reconnectListener) {
+		reconnectListeners.add(reconnectListener);
+	}
+
+	/**
+	 * Removes the given listener from the list of listeners.
+	 *
+	 * @param reconnectListener
+	 *            The listener to remove
+	 */
+	public void removeReconnectListener(ReconnectListener reconnectListener) {
+		reconnectListeners.remove(reconnectListener);
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns whether the connection is currently being restored.
+	 *
+	 * @return {@code true} if a reconnect is pending, {@code false} otherwise
+	 */
+	public synchronized boolean isReconnecting() {
+		return reconnectFuture != null;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void connect() throws IOException, IllegalStateException {
+		super.connect();
+		closed = false;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		if (reconnectFuture != null) {
+			reconnectFuture.cancel(false);
+			reconnectFuture = null;
+			/* the connection has already been dropped. */
+			fireConnectionClosed(null);
+		}
+		super.close();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * “ClientHello” and “WatchGlobal” messages and persistent requests are
+	 * remembered so that they can be restored after a reconnect.
+	 */
+	@Override
+	public synchronized void sendMessage(FcpMessage fcpMessage) throws IOException {
+		String messageName = fcpMessage.getName();
+		if ("ClientHello".equals(messageName)) {
+			clientHello = fcpMessage;
+		} else if ("WatchGlobal".equals(messageName)) {
+			watchGlobal = fcpMessage;
+		} else if (isPersistentRequest(fcpMessage)) {
+			synchronized (syncObject) {
+				persistentRequests.put(fcpMessage.getField("Identifier"), Boolean.valueOf(fcpMessage.getField("Global")));
+			}
+		}
+		super.sendMessage(fcpMessage);
+	}
+
+	//
+	// PACKAGE-PRIVATE METHODS
+	//
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Unless the connection was closed by the client, the listeners are not
+	 * notified and a reconnect is scheduled instead.
+	 */
+	@Override
+	synchronized void handleDisconnect(Throwable throwable) {
+		if (closed) {
+			super.handleDisconnect(throwable);
+			return;
+		}
+		if (!dropConnection()) {
+			return;
+		}
+		logger.log(Level.WARNING, "Connection interrupted, reconnecting…", throwable);
+		for (ReconnectListener reconnectListener : reconnectListeners) {
+			reconnectListener.connectionInterrupted(this, throwable);
+		}
+		scheduleReconnect(1, throwable);
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Schedules the given reconnect attempt.
+	 *
+	 * @param attempt
+	 *            The number of the attempt, starting at {@code 1}
+	 * @param throwable
+	 *            The exception that caused the disconnect, or {@code null}
+	 */
+	private synchronized void scheduleReconnect(final int attempt, final Throwable throwable) {
+		long delay = initialDelay << Math.min(attempt - 1, 30);
+		reconnectFuture = executorService.schedule(new Runnable() {
+
+			@Override
+			@SuppressWarnings("synthetic-access")
+			public void run() {
+				reconnect(attempt, throwable);
+			}
+		}, Math.min(delay, maximumDelay), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Tries to restore the connection and the state of the client.
+	 *
+	 * @param attempt
+	 *            The number of the attempt, starting at {@code 1}
+	 * @param throwable
+	 *            The exception that caused the disconnect, or {@code null}
+	 */
+	private void reconnect(int attempt, Throwable throwable) {
+		synchronized (this) {
+			if (closed || (reconnectFuture == null)) {
+				return;
+			}
+			reconnectFuture = null;
+			try {
+				super.connect();
+				if (clientHello != null) {
+					super.sendMessage(clientHello);
+				}
+				if (watchGlobal != null) {
+					super.sendMessage(watchGlobal);
+				}
+				Map<String, Boolean> requests;
+				synchronized (syncObject) {
+					requests = new HashMap<String, Boolean>(persistentRequests);
+				}
+				if ((watchGlobal != null) && Boolean.parseBoolean(watchGlobal.getField("Enabled"))) {
+					requests.clear();
+					super.sendMessage(new ListPersistentRequests());
+				}
+				for (Entry<String, Boolean> request : requests.entrySet()) {
+					GetRequestStatus getRequestStatus = new GetRequestStatus(request.getKey());
+					getRequestStatus.setGlobal(request.getValue());
+					super.sendMessage(getRequestStatus);
+				}
+			} catch (IOException ioe1) {
+				dropConnection();
+				if ((maximumAttempts > 0) && (attempt >= maximumAttempts)) {
+					logger.log(Level.WARNING, "Could not reconnect after " + attempt + " attempts!", ioe1);
+					closed = true;
+					fireConnectionClosed(throwable);
+				} else {
+					scheduleReconnect(attempt + 1, throwable);
+				}
+				return;
+			}
+		}
+		for (ReconnectListener reconnectListener : reconnectListeners) {
+			reconnectListener.connectionRestored(this);
+		}
+	}
+
+	/**
+	 * Tracks the persistent request with the given identifier if it belongs
+	 * to this client. Requests on the global queue are only tracked if they
+	 * were sent over this connection.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @param global
+	 *            {@code true} if the request is on the global queue,
+	 *            {@code false} otherwise
+	 */
+	private void trackPersistentRequest(String identifier, boolean global) {
+		if (global) {
+			return;
+		}
+		synchronized (syncObject) {
+			persistentRequests.put(identifier, false);
+		}
+	}
+
+	/**
+	 * Stops tracking the persistent request with the given identifier.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 */
+	private void forgetPersistentRequest(String identifier) {
+		synchronized (syncObject) {
+			persistentRequests.remove(identifier);
+		}
+	}
+
+	/**
+	 * Returns whether the given message starts a persistent request.
+	 *
+	 * @param fcpMessage
+	 *            The message to check
+	 * @return {@code true} if the message starts a persistent request,
+	 *         {@code false} otherwise
+	 */
+	private static boolean isPersistentRequest(FcpMessage fcpMessage) {
+		String messageName = fcpMessage.getName();
+		if (!"ClientGet".equals(messageName) && !"ClientPut".equals(messageName) && !"ClientPutDiskDir".equals(messageName) && !"ClientPutComplexDir".equals(messageName)) {
+			return false;
+		}
+		String persistence = fcpMessage.getField("Persistence");
+		return (persistence != null) && !String.valueOf(Persistence.connection).equals(persistence) && (fcpMessage.getField("Identifier") != null);
+	}
+
+	/**
+	 * Tracks persistent requests of this client reported by the node and
+	 * forgets them when they finish or are removed.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private class PersistentRequestTracker extends FcpAdapter {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPersistentGet(FcpConnection fcpConnection, PersistentGet persistentGet) {
+			trackPersistentRequest(persistentGet.getIdentifier(), persistentGet.isGlobal());
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPersistentPut(FcpConnection fcpConnection, PersistentPut persistentPut) {
+			trackPersistentRequest(persistentPut.getIdentifier(), persistentPut.isGlobal());
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPersistentPutDir(FcpConnection fcpConnection, PersistentPutDir persistentPutDir) {
+			trackPersistentRequest(persistentPutDir.getIdentifier(), persistentPutDir.isGlobal());
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedDataFound(FcpConnection fcpConnection, DataFound dataFound) {
+			forgetPersistentRequest(dataFound.getIdentifier());
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedGetFailed(FcpConnection fcpConnection, GetFailed getFailed) {
+			forgetPersistentRequest(getFailed.getIdentifier());
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPutSuccessful(FcpConnection fcpConnection, PutSuccessful putSuccessful) {
+			forgetPersistentRequest(putSuccessful.getIdentifier());
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPutFailed(FcpConnection fcpConnection, PutFailed putFailed) {
+			forgetPersistentRequest(putFailed.getIdentifier());
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPersistentRequestRemoved(FcpConnection fcpConnection, PersistentRequestRemoved persistentRequestRemoved) {
+			forgetPersistentRequest(persistentRequestRemoved.getIdentifier());
+		}
+
+	}
+
+}
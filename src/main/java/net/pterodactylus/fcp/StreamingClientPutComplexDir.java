@@ -0,0 +1,428 @@
+/*
+ * jFCPlib - StreamingClientPutComplexDir.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map.Entry;
+
+/**
+ * A “ClientPutComplexDir” that inserts all files below a directory without
+ * collecting them in memory first. Instead of storing a “Files.N.*” field for
+ * every file, the directory is walked while the message is written: the
+ * first walk writes the fields of every file, and for uploads from
+ * {@link UploadFrom#direct} a second walk in the same order writes the
+ * payload, opening every file only while its data is written. Apart from the
+ * length and a hash of the path of every file the memory and the number of
+ * open files used do not depend on the number of files.
+ * <p>
+ * Files are added in the order of their paths, using “/” as separator; only
+ * regular files are added. If the files change between the two walks, the
+ * payload is still written with exactly the announced lengths (cutting off
+ * or padding with zeroes), so that the connection stays usable, and
+ * {@link #write(OutputStream)} throws a {@link ChangedFilesException}
+ * afterwards. The node has then received wrong data for the request, and the
+ * request should be removed.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class StreamingClientPutComplexDir extends AbstractClientPutComplexDir {
+
+	/** The directory to insert. */
+	private final File directory;
+
+	/** Where the node reads the files from. */
+	private final UploadFrom uploadFrom;
+
+	/**
+	 * Creates a new streaming “ClientPutComplexDir”.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @param uri
+	 *            The URI to insert the directory to
+	 * @param directory
+	 *            The directory to insert
+	 * @param uploadFrom
+	 *            Where the node reads the files from, either
+	 *            {@link UploadFrom#direct} or {@link UploadFrom#disk}
+	 * @throws IllegalArgumentException
+	 *             if {@code uploadFrom} is {@link UploadFrom#redirect}
+	 */
+	public StreamingClientPutComplexDir(String identifier, String uri, File directory, UploadFrom uploadFrom) throws IllegalArgumentException {
+		super(identifier, uri);
+		if (uploadFrom == UploadFrom.redirect) {
+			throw new IllegalArgumentException("uploadFrom must be direct or disk");
+		}
+		this.directory = directory;
+		this.uploadFrom = uploadFrom;
+	}
+
+	/**
+	 * Returns where the node reads the files from.
+	 *
+	 * @return {@link UploadFrom#direct} or {@link UploadFrom#disk}
+	 */
+	public UploadFrom getUploadFrom() {
+		return uploadFrom;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The payload of this message is always created from its directory.
+	 */
+	@Override
+	public void setPayloadInputStream(InputStream payloadInputStream) {
+		/* do nothing. */
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @throws ChangedFilesException
+	 *             if the files have changed between the two walks; the
+	 *             complete message has been written nevertheless
+	 */
+	@Override
+	public void write(OutputStream outputStream) throws IOException, ChangedFilesException {
+		OutputStream bufferedOutputStream = new BufferedOutputStream(outputStream, 1 << 16);
+		writeLine(bufferedOutputStream, getName());
+		for (Entry<String, String> fieldEntry : getFields().entrySet()) {
+			writeLine(bufferedOutputStream, fieldEntry.getKey() + "=" + fieldEntry.getValue());
+		}
+		FieldWriter fieldWriter = new FieldWriter(bufferedOutputStream);
+		walk(directory, "", fieldWriter);
+		if ((uploadFrom != UploadFrom.direct) || (fieldWriter.fileCount == 0)) {
+			writeLine(bufferedOutputStream, "EndMessage");
+			bufferedOutputStream.flush();
+			return;
+		}
+		writeLine(bufferedOutputStream, "Data");
+		bufferedOutputStream.flush();
+		PayloadWriter payloadWriter = new PayloadWriter(bufferedOutputStream, fieldWriter);
+		walk(directory, "", payloadWriter);
+		payloadWriter.finish();
+		bufferedOutputStream.flush();
+		if (payloadWriter.changedPath != null) {
+			throw new ChangedFilesException(payloadWriter.changedPath + " in " + directory + " has changed while writing");
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Walks all regular files below the given directory in the order of their
+	 * paths.
+	 *
+	 * @param directory
+	 *            The directory to walk
+	 * @param prefix
+	 *            The path of the directory
+	 * @param fileVisitor
+	 *            The visitor to call for every file
+	 * @throws IOException
+	 *             if a directory can not be listed, or the visitor throws an
+	 *             exception
+	 */
+	private static void walk(File directory, String prefix, FileVisitor fileVisitor) throws IOException {
+		File[] directoryFiles = directory.listFiles();
+		if (directoryFiles == null) {
+			throw new IOException("Could not list " + directory);
+		}
+		Arrays.sort(directoryFiles);
+		for (File file : directoryFiles) {
+			if (file.isDirectory()) {
+				walk(file, prefix + file.getName() + "/", fileVisitor);
+			} else if (file.isFile()) {
+				fileVisitor.visitFile(prefix + file.getName(), file);
+			}
+		}
+	}
+
+	/**
+	 * Exception that signals that the files of the directory have changed
+	 * while the message was written. When this exception is thrown, the
+	 * complete message has been written, and the connection can still be
+	 * used.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	public static class ChangedFilesException extends IOException {
+
+		/** The serial version UID. */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Creates a new changed-files exception.
+		 *
+		 * @param message
+		 *            The message of the exception
+		 */
+		public ChangedFilesException(String message) {
+			super(message);
+		}
+
+	}
+
+	/**
+	 * Interface for the visitors of {@link StreamingClientPutComplexDir#walk(File, String, FileVisitor)}.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private interface FileVisitor {
+
+		/**
+		 * Visits the given file.
+		 *
+		 * @param path
+		 *            The path of the file
+		 * @param file
+		 *            The file
+		 * @throws IOException
+		 *             if an I/O error occurs
+		 */
+		void visitFile(String path, File file) throws IOException;
+
+	}
+
+	/**
+	 * Writes the “Files.N.*” fields of every file and remembers the lengths
+	 * and the hashes of the paths of the files.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private class FieldWriter implements FileVisitor {
+
+		/** The output stream to write to. */
+		private final OutputStream outputStream;
+
+		/** The number of visited files. */
+		int fileCount;
+
+		/** The lengths of the visited files. */
+		long[] lengths = new long[64];
+
+		/** The hashes of the paths of the visited files. */
+		int[] pathHashes = new int[64];
+
+		/**
+		 * Creates a new field writer.
+		 *
+		 * @param outputStream
+		 *            The output stream to write to
+		 */
+		public FieldWriter(OutputStream outputStream) {
+			this.outputStream = outputStream;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void visitFile(String path, File file) throws IOException {
+			long length = file.length();
+			FileEntry fileEntry = (uploadFrom == UploadFrom.disk) ? FileEntry.createDiskFileEntry(path, file.getAbsolutePath(), null, length) : FileEntry.createDirectFileEntry(path, null, length, null);
+			for (Entry<String, String> fieldEntry : fileEntry.getFields().entrySet()) {
+				writeLine(outputStream, "Files." + fileCount + "." + fieldEntry.getKey() + "=" + fieldEntry.getValue());
+			}
+			if (fileCount == lengths.length) {
+				lengths = Arrays.copyOf(lengths, lengths.length * 2);
+				pathHashes = Arrays.copyOf(pathHashes, pathHashes.length * 2);
+			}
+			lengths[fileCount] = length;
+			pathHashes[fileCount] = path.hashCode();
+			fileCount++;
+		}
+
+	}
+
+	/**
+	 * Writes the data of every file, opening every file only while its data
+	 * is written. Exactly the announced number of bytes is written for every
+	 * announced file, no matter what the files contain now.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private class PayloadWriter implements FileVisitor {
+
+		/** The output stream to write to. */
+		private final OutputStream outputStream;
+
+		/** The fields written in the first walk. */
+		private final FieldWriter fieldWriter;
+
+		/** The buffer for copying. */
+		private final byte[] buffer = new byte[1 << 16];
+
+		/** The index of the next file. */
+		private int fileIndex;
+
+		/** The path of the first changed file, or {@code null}. */
+		String changedPath;
+
+		/**
+		 * Creates a new payload writer.
+		 *
+		 * @param outputStream
+		 *            The output stream to write to
+		 * @param fieldWriter
+		 *            The fields written in the first walk
+		 */
+		public PayloadWriter(OutputStream outputStream, FieldWriter fieldWriter) {
+			this.outputStream = outputStream;
+			this.fieldWriter = fieldWriter;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void visitFile(String path, File file) throws IOException {
+			if (fileIndex == fieldWriter.fileCount) {
+				markChanged(path);
+				return;
+			}
+			long length = fieldWriter.lengths[fileIndex];
+			if ((path.hashCode() != fieldWriter.pathHashes[fileIndex]) || (file.length() != length)) {
+				markChanged(path);
+			}
+			long written = 0;
+			InputStream fileInputStream = null;
+			try {
+				fileInputStream = openFile(file);
+				while (written < length) {
+					int read = readFile(fileInputStream, path, (int) Math.min(buffer.length, length - written));
+					if (read == -1) {
+						break;
+					}
+					outputStream.write(buffer, 0, read);
+					written += read;
+				}
+			} finally {
+				FcpUtils.close(fileInputStream);
+			}
+			if (written < length) {
+				markChanged(path);
+				writeZeroes(length - written);
+			}
+			fileIndex++;
+		}
+
+		/**
+		 * Writes zeroes for all announced files that were not found in the
+		 * second walk.
+		 *
+		 * @throws IOException
+		 *             if an I/O error occurs
+		 */
+		@SuppressWarnings("synthetic-access")
+		public void finish() throws IOException {
+			while (fileIndex < fieldWriter.fileCount) {
+				markChanged("file " + fileIndex);
+				writeZeroes(fieldWriter.lengths[fileIndex++]);
+			}
+		}
+
+		/**
+		 * Opens the given file.
+		 *
+		 * @param file
+		 *            The file to open
+		 * @return The input stream of the file, or {@code null} if the file
+		 *         can not be opened
+		 */
+		private InputStream openFile(File file) {
+			try {
+				return new FileInputStream(file);
+			} catch (IOException ioe1) {
+				return null;
+			}
+		}
+
+		/**
+		 * Reads up to the given number of bytes from the given file into the
+		 * buffer. Errors reading the file are treated like the end of the
+		 * file so that they can not be mistaken for errors writing to the
+		 * node.
+		 *
+		 * @param fileInputStream
+		 *            The input stream of the file, or {@code null} if the file
+		 *            could not be opened
+		 * @param path
+		 *            The path of the file
+		 * @param length
+		 *            The maximum number of bytes to read
+		 * @return The number of bytes read, or {@code -1} if no more bytes can
+		 *         be read
+		 */
+		private int readFile(InputStream fileInputStream, String path, int length) {
+			if (fileInputStream == null) {
+				return -1;
+			}
+			try {
+				return fileInputStream.read(buffer, 0, length);
+			} catch (IOException ioe1) {
+				markChanged(path);
+				return -1;
+			}
+		}
+
+		/**
+		 * Remembers the given path as changed, unless a changed path has
+		 * already been found.
+		 *
+		 * @param path
+		 *            The path of the changed file
+		 */
+		private void markChanged(String path) {
+			if (changedPath == null) {
+				changedPath = path;
+			}
+		}
+
+		/**
+		 * Writes the given number of zeroes.
+		 *
+		 * @param count
+		 *            The number of zeroes to write
+		 * @throws IOException
+		 *             if an I/O error occurs
+		 */
+		private void writeZeroes(long count) throws IOException {
+			Arrays.fill(buffer, (byte) 0);
+			long remaining = count;
+			while (remaining > 0) {
+				int length = (int) Math.min(buffer.length, remaining);
+				outputStream.write(buffer, 0, length);
+				remaining -= length;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,218 @@
+/*
+ * jFCPlib - AimdLimiter.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive concurrency limit using additive increase, multiplicative
+ * decrease (AIMD). The limiter is fed with the latency of every completed
+ * request and keeps an exponentially weighted moving average of it. As long
+ * as the average stays below a tolerated multiple of the lowest latency
+ * observed recently, the limit grows by roughly one per limit’s worth of
+ * samples; once the average exceeds it, the node’s queues are assumed to fill
+ * up and the limit is multiplied by a backoff ratio. After a decrease, no
+ * further decrease happens for a limit’s worth of samples so that the
+ * requests that were already in flight do not shrink the limit again.
+ * <p>
+ * The lowest latency is taken over a window of the last
+ * {@value #MINIMUM_WINDOW} to 2×{@value #MINIMUM_WINDOW} samples so that a
+ * single unusually fast request can not keep the limit at its minimum
+ * forever. Only requests that actually went to the network should be fed
+ * into the limiter; failures and datastore hits distort the latency.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class AimdLimiter {
+
+	/** The weight of a new sample in the moving average. */
+	private static final double SMOOTHING = 0.1;
+
+	/** The number of samples per window of the minimum latency. */
+	public static final int MINIMUM_WINDOW = 256;
+
+	/** The lowest possible limit. */
+	private final int minimumLimit;
+
+	/** The highest possible limit. */
+	private final int maximumLimit;
+
+	/** The factor the limit is multiplied with on congestion. */
+	private final double backoffRatio;
+
+	/** The tolerated ratio of average latency to minimum latency. */
+	private final double tolerance;
+
+	/** The current limit. */
+	private double limit;
+
+	/** The moving average of the latency (in nanoseconds), or {@code -1}. */
+	private double averageLatency = -1;
+
+	/** The lowest latency of the current window (in nanoseconds), or {@code -1}. */
+	private long currentMinimumLatency = -1;
+
+	/** The lowest latency of the previous window (in nanoseconds), or {@code -1}. */
+	private long previousMinimumLatency = -1;
+
+	/** The number of samples in the current window. */
+	private int windowSamples;
+
+	/** The number of samples to skip before the next decrease. */
+	private int samplesUntilDecrease;
+
+	/**
+	 * Creates a new limiter with a backoff ratio of {@code 0.9} and a
+	 * tolerance of {@code 2}.
+	 *
+	 * @param initialLimit
+	 *            The initial limit
+	 * @param minimumLimit
+	 *            The lowest possible limit
+	 * @param maximumLimit
+	 *            The highest possible limit
+	 */
+	public AimdLimiter(int initialLimit, int minimumLimit, int maximumLimit) {
+		this(initialLimit, minimumLimit, maximumLimit, 0.9, 2);
+	}
+
+	/**
+	 * Creates a new limiter.
+	 *
+	 * @param initialLimit
+	 *            The initial limit
+	 * @param minimumLimit
+	 *            The lowest possible limit
+	 * @param maximumLimit
+	 *            The highest possible limit
+	 * @param backoffRatio
+	 *            The factor the limit is multiplied with on congestion
+	 *            (between {@code 0} and {@code 1})
+	 * @param tolerance
+	 *            The ratio of average latency to minimum latency above which
+	 *            congestion is assumed (greater than {@code 1})
+	 */
+	public AimdLimiter(int initialLimit, int minimumLimit, int maximumLimit, double backoffRatio, double tolerance) {
+		if ((minimumLimit < 1) || (maximumLimit < minimumLimit) || (initialLimit < minimumLimit) || (initialLimit > maximumLimit)) {
+			throw new IllegalArgumentException("limits must satisfy 1 <= minimum <= initial <= maximum");
+		}
+		if ((backoffRatio <= 0) || (backoffRatio >= 1)) {
+			throw new IllegalArgumentException("backoffRatio must be between 0 and 1");
+		}
+		if (tolerance <= 1) {
+			throw new IllegalArgumentException("tolerance must be greater than 1");
+		}
+		this.minimumLimit = minimumLimit;
+		this.maximumLimit = maximumLimit;
+		this.backoffRatio = backoffRatio;
+		this.tolerance = tolerance;
+		this.limit = initialLimit;
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the current limit.
+	 *
+	 * @return The current limit
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * Returns the moving average of the latency.
+	 *
+	 * @param timeUnit
+	 *            The unit of the returned latency
+	 * @return The average latency, or {@link Double#NaN} if there were no
+	 *         samples yet
+	 */
+	public synchronized double getAverageLatency(TimeUnit timeUnit) {
+		return (averageLatency < 0) ? Double.NaN : (averageLatency / TimeUnit.NANOSECONDS.convert(1, timeUnit));
+	}
+
+	/**
+	 * Returns the lowest recently observed latency.
+	 *
+	 * @param timeUnit
+	 *            The unit of the returned latency
+	 * @return The lowest latency, or {@code -1} if there were no samples yet
+	 */
+	public synchronized long getMinimumLatency(TimeUnit timeUnit) {
+		long minimumLatency = getMinimumLatency();
+		return (minimumLatency < 0) ? -1 : timeUnit.convert(minimumLatency, TimeUnit.NANOSECONDS);
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Adds the latency of a completed request and adjusts the limit.
+	 *
+	 * @param latency
+	 *            The latency of the request (in nanoseconds)
+	 * @param inFlight
+	 *            The number of requests that were in flight when the request
+	 *            completed, including the completed request; the limit is only
+	 *            increased if at least half of it is used
+	 */
+	public synchronized void addSample(long latency, int inFlight) {
+		averageLatency = (averageLatency < 0) ? latency : ((1 - SMOOTHING) * averageLatency + SMOOTHING * latency);
+		if (windowSamples == MINIMUM_WINDOW) {
+			previousMinimumLatency = currentMinimumLatency;
+			currentMinimumLatency = -1;
+			windowSamples = 0;
+		}
+		currentMinimumLatency = (currentMinimumLatency < 0) ? latency : Math.min(currentMinimumLatency, latency);
+		windowSamples++;
+		long minimumLatency = getMinimumLatency();
+		if (samplesUntilDecrease > 0) {
+			samplesUntilDecrease--;
+		}
+		if (averageLatency > (minimumLatency * tolerance)) {
+			if (samplesUntilDecrease == 0) {
+				limit = Math.max(minimumLimit, limit * backoffRatio);
+				samplesUntilDecrease = (int) limit;
+			}
+		} else if ((inFlight * 2) >= limit) {
+			limit = Math.min(maximumLimit, limit + (1 / limit));
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Returns the lowest latency of the current and the previous window.
+	 *
+	 * @return The lowest latency (in nanoseconds), or {@code -1} if there
+	 *         were no samples yet
+	 */
+	private long getMinimumLatency() {
+		if (previousMinimumLatency < 0) {
+			return currentMinimumLatency;
+		}
+		return Math.min(previousMinimumLatency, currentMinimumLatency);
+	}
+
+}
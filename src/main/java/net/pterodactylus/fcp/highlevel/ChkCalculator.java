@@ -0,0 +1,411 @@
+/*
+ * jFCPlib - ChkCalculator.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.pterodactylus.fcp.ClientPut;
+import net.pterodactylus.fcp.FcpAdapter;
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.FcpMessage;
+import net.pterodactylus.fcp.FcpUtils;
+import net.pterodactylus.fcp.ProtocolError;
+import net.pterodactylus.fcp.PutFailed;
+import net.pterodactylus.fcp.PutSuccessful;
+import net.pterodactylus.fcp.UploadFrom;
+
+/**
+ * Calculates the CHKs of many files without inserting them. Every file is
+ * sent to the node as a “ClientPut” with
+ * {@link ClientPut#setGetCHKOnly(boolean) GetCHKOnly} set; up to a maximum
+ * number of requests are pipelined, and the results are reported to a
+ * {@link ChkListener} as they arrive. The requests can be spread over several
+ * connections by using a {@link ConnectionPool} (or an {@link FcpClient} with
+ * bulk lanes).
+ * <p>
+ * Files are sent in the payload of the requests unless a {@link DdaManager}
+ * is set and the node is allowed to read the directory of a file; then the
+ * node reads the file from disk. Every file is inserted with its name as
+ * target filename, so the calculated CHKs match the CHKs of single-file
+ * inserts made by {@link SiteInserter}.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class ChkCalculator {
+
+	/** The logger. */
+	private static final Logger logger = Logger.getLogger(ChkCalculator.class.getName());
+
+	/** The FCP client to use, or {@code null}. */
+	private final FcpClient fcpClient;
+
+	/** The connection pool to use, or {@code null}. */
+	private final ConnectionPool connectionPool;
+
+	/** The maximum number of concurrent requests. */
+	private final int maxConcurrentRequests;
+
+	/** The DDA manager of the FCP client, or {@code null}. */
+	private volatile DdaManager ddaManager;
+
+	/**
+	 * Creates a new CHK calculator that uses a single FCP client.
+	 *
+	 * @param fcpClient
+	 *            The FCP client to use
+	 * @param maxConcurrentRequests
+	 *            The maximum number of concurrent requests
+	 */
+	public ChkCalculator(FcpClient fcpClient, int maxConcurrentRequests) {
+		this(fcpClient, null, maxConcurrentRequests);
+	}
+
+	/**
+	 * Creates a new CHK calculator that spreads its requests over the
+	 * connections of the given pool.
+	 *
+	 * @param connectionPool
+	 *            The connection pool to use
+	 * @param maxConcurrentRequests
+	 *            The maximum number of concurrent requests
+	 */
+	public ChkCalculator(ConnectionPool connectionPool, int maxConcurrentRequests) {
+		this(null, connectionPool, maxConcurrentRequests);
+	}
+
+	/**
+	 * Creates a new CHK calculator.
+	 *
+	 * @param fcpClient
+	 *            The FCP client to use, or {@code null}
+	 * @param connectionPool
+	 *            The connection pool to use, or {@code null}
+	 * @param maxConcurrentRequests
+	 *            The maximum number of concurrent requests
+	 */
+	private ChkCalculator(FcpClient fcpClient, ConnectionPool connectionPool, int maxConcurrentRequests) {
+		this.fcpClient = fcpClient;
+		this.connectionPool = connectionPool;
+		this.maxConcurrentRequests = Math.max(1, maxConcurrentRequests);
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Sets the DDA manager that decides whether the node can read a file from
+	 * disk. Because the node only grants disk access for the connection the
+	 * handshake was performed on, the manager is only used if this calculator
+	 * uses a single {@link FcpClient}, and it has to manage that client.
+	 *
+	 * @param ddaManager
+	 *            The DDA manager of the FCP client, or {@code null} to always
+	 *            send the files to the node
+	 */
+	public void setDdaManager(DdaManager ddaManager) {
+		this.ddaManager = ddaManager;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Calculates the CHKs of the given files, waiting until all CHKs have
+	 * been calculated. Files whose CHK can not be calculated are reported to
+	 * the listener and are not contained in the returned map.
+	 *
+	 * @param files
+	 *            The files, by path
+	 * @param chkListener
+	 *            The listener to notify about every result, or {@code null}
+	 * @return The calculated CHKs, by path
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws FcpException
+	 *             if the connection to the node is closed, or if the
+	 *             {@link DdaManager} can not determine whether the node may
+	 *             read the directory of a file
+	 */
+	public Map<String, String> calculateChks(Map<String, File> files, ChkListener chkListener) throws IOException, FcpException {
+		DdaManager ddaManager = (fcpClient != null) ? this.ddaManager : null;
+		Batch batch = new Batch(chkListener);
+		addFcpListener(batch);
+		try {
+			for (Entry<String, File> file : files.entrySet()) {
+				batch.waitForSlot();
+				boolean diskAccess = (ddaManager != null) && ddaManager.canRead(file.getValue().getAbsoluteFile().getParentFile());
+				String identifier = FcpClient.createIdentifier("chk");
+				ClientPut clientPut = new ClientPut("CHK@", identifier, diskAccess ? UploadFrom.disk : UploadFrom.direct);
+				clientPut.setGetCHKOnly(true);
+				clientPut.setTargetFilename(file.getValue().getName());
+				batch.started(identifier, file.getKey());
+				if (diskAccess) {
+					clientPut.setFilename(file.getValue().getAbsolutePath());
+					sendMessage(clientPut);
+					continue;
+				}
+				clientPut.setDataLength(file.getValue().length());
+				InputStream fileInputStream = new FileInputStream(file.getValue());
+				try {
+					clientPut.setPayloadInputStream(fileInputStream);
+					sendMessage(clientPut);
+				} finally {
+					FcpUtils.close(fileInputStream);
+				}
+			}
+			return batch.waitForCompletion();
+		} finally {
+			removeFcpListener(batch);
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Adds the given listener to the client or the pool.
+	 *
+	 * @param fcpListener
+	 *            The listener to add
+	 */
+	private void addFcpListener(FcpListener fcpListener) {
+		if (fcpClient != null) {
+			fcpClient.addFcpListener(fcpListener);
+		} else {
+			connectionPool.addFcpListener(fcpListener);
+		}
+	}
+
+	/**
+	 * Removes the given listener from the client or the pool.
+	 *
+	 * @param fcpListener
+	 *            The listener to remove
+	 */
+	private void removeFcpListener(FcpListener fcpListener) {
+		if (fcpClient != null) {
+			fcpClient.removeFcpListener(fcpListener);
+		} else {
+			connectionPool.removeFcpListener(fcpListener);
+		}
+	}
+
+	/**
+	 * Sends the given message using the client or the pool.
+	 *
+	 * @param fcpMessage
+	 *            The message to send
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private void sendMessage(FcpMessage fcpMessage) throws IOException {
+		if (fcpClient != null) {
+			fcpClient.sendMessage(fcpMessage);
+		} else {
+			connectionPool.sendMessage(fcpMessage);
+		}
+	}
+
+	/**
+	 * The state of a single call to
+	 * {@link ChkCalculator#calculateChks(Map, ChkListener)}.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private class Batch extends FcpAdapter {
+
+		/** The listener to notify, or {@code null}. */
+		private final ChkListener chkListener;
+
+		/** The paths of the running requests, by identifier. */
+		private final Map<String, String> runningRequests = new HashMap<String, String>();
+
+		/** The calculated CHKs, by path. */
+		private final Map<String, String> chks = new HashMap<String, String>();
+
+		/** The number of results that are being reported to the listener. */
+		private int reportingRequests;
+
+		/** The failure that aborted the batch. */
+		private FcpException failure;
+
+		/**
+		 * Creates a new batch.
+		 *
+		 * @param chkListener
+		 *            The listener to notify, or {@code null}
+		 */
+		public Batch(ChkListener chkListener) {
+			this.chkListener = chkListener;
+		}
+
+		/**
+		 * Waits until another request may be started.
+		 *
+		 * @throws FcpException
+		 *             if the batch has been aborted
+		 */
+		public synchronized void waitForSlot() throws FcpException {
+			while ((runningRequests.size() >= maxConcurrentRequests) && (failure == null)) {
+				waitForChange();
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+
+		/**
+		 * Records that the request for the given path has been started.
+		 *
+		 * @param identifier
+		 *            The identifier of the request
+		 * @param path
+		 *            The path of the file
+		 */
+		public synchronized void started(String identifier, String path) {
+			runningRequests.put(identifier, path);
+		}
+
+		/**
+		 * Waits until all requests have finished and their results have been
+		 * reported to the listener.
+		 *
+		 * @return The calculated CHKs, by path
+		 * @throws FcpException
+		 *             if the batch has been aborted
+		 */
+		public synchronized Map<String, String> waitForCompletion() throws FcpException {
+			while ((!runningRequests.isEmpty() || (reportingRequests > 0)) && (failure == null)) {
+				waitForChange();
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			return new HashMap<String, String>(chks);
+		}
+
+		/**
+		 * Waits for a request to finish. This method has to be called while
+		 * holding the lock on this batch.
+		 */
+		private void waitForChange() {
+			try {
+				wait();
+			} catch (InterruptedException ie1) {
+				/* ignore, the caller will loop. */
+			}
+		}
+
+		/**
+		 * Records the result of the request with the given identifier and
+		 * notifies the listener.
+		 *
+		 * @param identifier
+		 *            The identifier of the request
+		 * @param chk
+		 *            The calculated CHK, or {@code null} if the request failed
+		 * @param reason
+		 *            The reason of the failure, or {@code null}
+		 */
+		private void finished(String identifier, String chk, String reason) {
+			String path;
+			synchronized (this) {
+				path = runningRequests.remove(identifier);
+				if (path == null) {
+					return;
+				}
+				if (chk != null) {
+					chks.put(path, chk);
+				}
+				reportingRequests++;
+				notifyAll();
+			}
+			try {
+				if (chkListener == null) {
+					return;
+				}
+				if (chk != null) {
+					chkListener.chkCalculated(path, chk);
+				} else {
+					chkListener.chkFailed(path, reason);
+				}
+			} catch (RuntimeException re1) {
+				logger.log(Level.WARNING, "Listener threw exception!", re1);
+			} finally {
+				synchronized (this) {
+					reportingRequests--;
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPutSuccessful(FcpConnection fcpConnection, PutSuccessful putSuccessful) {
+			finished(putSuccessful.getIdentifier(), putSuccessful.getURI(), null);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPutFailed(FcpConnection fcpConnection, PutFailed putFailed) {
+			finished(putFailed.getIdentifier(), null, putFailed.getCodeDescription());
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedProtocolError(FcpConnection fcpConnection, ProtocolError protocolError) {
+			if (protocolError.getIdentifier() != null) {
+				finished(protocolError.getIdentifier(), null, protocolError.getCodeDescription());
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public synchronized void connectionClosed(FcpConnection fcpConnection, Throwable throwable) {
+			if (failure == null) {
+				failure = new FcpException("Connection closed", throwable);
+			}
+			notifyAll();
+		}
+
+	}
+
+}
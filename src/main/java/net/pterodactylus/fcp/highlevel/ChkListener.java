@@ -0,0 +1,50 @@
+/*
+ * jFCPlib - ChkListener.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.util.EventListener;
+
+/**
+ * Interface for objects that want to be notified about the CHKs calculated by
+ * a {@link ChkCalculator} as soon as they are known.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public interface ChkListener extends EventListener {
+
+	/**
+	 * Notifies a listener that the CHK of a file has been calculated.
+	 *
+	 * @param path
+	 *            The path of the file
+	 * @param chk
+	 *            The CHK of the file
+	 */
+	public void chkCalculated(String path, String chk);
+
+	/**
+	 * Notifies a listener that the CHK of a file could not be calculated.
+	 *
+	 * @param path
+	 *            The path of the file
+	 * @param reason
+	 *            The reason of the failure
+	 */
+	public void chkFailed(String path, String reason);
+
+}
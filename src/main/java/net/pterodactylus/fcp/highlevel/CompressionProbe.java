@@ -0,0 +1,297 @@
+/*
+ * jFCPlib - CompressionProbe.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import net.pterodactylus.fcp.FcpUtils;
+
+/**
+ * Probes how well files compress before they are inserted. The node
+ * compresses every insert itself, one insert at a time; files that do not
+ * compress (such as images, archives, or videos) only waste the node’s time
+ * and can be inserted with {@link net.pterodactylus.fcp.ClientPut#setDontCompress(boolean)
+ * DontCompress} set instead. This probe compresses (the beginning of) every
+ * file with GZIP’s deflate algorithm, spreading the files over the threads of
+ * an executor, and reports the files whose compression ratio exceeds a
+ * maximum ratio.
+ * <p>
+ * FCP does not allow to hand the node data that has already been compressed,
+ * so files that do compress are still compressed by the node.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class CompressionProbe {
+
+	/** The default maximum compression ratio of compressible files. */
+	public static final double DEFAULT_MAXIMUM_RATIO = 0.95;
+
+	/** The default number of bytes to compress per file. */
+	public static final long DEFAULT_SAMPLE_LENGTH = 1024 * 1024;
+
+	/** The executor to compress the files on. */
+	private final ExecutorService executorService;
+
+	/** The maximum compression ratio of compressible files. */
+	private final double maximumRatio;
+
+	/** The number of bytes to compress per file. */
+	private final long sampleLength;
+
+	/** The number of probed files. */
+	private long probedFiles;
+
+	/** The number of incompressible files. */
+	private long incompressibleFiles;
+
+	/** The number of bytes that were compressed. */
+	private long originalBytes;
+
+	/** The number of compressed bytes. */
+	private long compressedBytes;
+
+	/** The accumulated compression time (in nanoseconds). */
+	private long compressionTime;
+
+	/**
+	 * Creates a new compression probe that uses the default maximum ratio and
+	 * sample length.
+	 *
+	 * @param executorService
+	 *            The executor to compress the files on
+	 */
+	public CompressionProbe(ExecutorService executorService) {
+		this(executorService, DEFAULT_MAXIMUM_RATIO, DEFAULT_SAMPLE_LENGTH);
+	}
+
+	/**
+	 * Creates a new compression probe.
+	 *
+	 * @param executorService
+	 *            The executor to compress the files on
+	 * @param maximumRatio
+	 *            The maximum ratio of compressed length to original length of
+	 *            files that are considered compressible
+	 * @param sampleLength
+	 *            The number of bytes to compress from the beginning of every
+	 *            file
+	 */
+	public CompressionProbe(ExecutorService executorService, double maximumRatio, long sampleLength) {
+		this.executorService = executorService;
+		this.maximumRatio = maximumRatio;
+		this.sampleLength = sampleLength;
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the number of files that have been probed.
+	 *
+	 * @return The number of probed files
+	 */
+	public synchronized long getProbedFiles() {
+		return probedFiles;
+	}
+
+	/**
+	 * Returns the number of probed files that did not compress.
+	 *
+	 * @return The number of incompressible files
+	 */
+	public synchronized long getIncompressibleFiles() {
+		return incompressibleFiles;
+	}
+
+	/**
+	 * Returns the ratio of compressed length to original length over all
+	 * probed files.
+	 *
+	 * @return The compression ratio, or {@link Double#NaN} if no data has
+	 *         been probed
+	 */
+	public synchronized double getCompressionRatio() {
+		return (originalBytes == 0) ? Double.NaN : ((double) compressedBytes / originalBytes);
+	}
+
+	/**
+	 * Returns the time spent compressing all probed files.
+	 *
+	 * @param timeUnit
+	 *            The unit of the returned time
+	 * @return The accumulated compression time
+	 */
+	public synchronized long getCompressionTime(TimeUnit timeUnit) {
+		return timeUnit.convert(compressionTime, TimeUnit.NANOSECONDS);
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Probes the given files in parallel and returns the paths of the files
+	 * that do not compress.
+	 *
+	 * @param files
+	 *            The files to probe, by path
+	 * @return The paths of the incompressible files
+	 * @throws IOException
+	 *             if a file can not be read
+	 */
+	public Set<String> findIncompressibleFiles(Map<String, File> files) throws IOException {
+		Map<String, Future<Boolean>> results = new HashMap<String, Future<Boolean>>();
+		for (Entry<String, File> file : files.entrySet()) {
+			final File probedFile = file.getValue();
+			results.put(file.getKey(), executorService.submit(new Callable<Boolean>() {
+
+				/**
+				 * {@inheritDoc}
+				 */
+				@Override
+				public Boolean call() throws IOException {
+					return isCompressible(probedFile);
+				}
+			}));
+		}
+		Set<String> incompressibleFiles = new HashSet<String>();
+		for (Entry<String, Future<Boolean>> result : results.entrySet()) {
+			if (!getResult(result.getValue())) {
+				incompressibleFiles.add(result.getKey());
+			}
+		}
+		return incompressibleFiles;
+	}
+
+	/**
+	 * Probes the given file.
+	 *
+	 * @param file
+	 *            The file to probe
+	 * @return {@code true} if the file compresses, {@code false} otherwise
+	 * @throws IOException
+	 *             if the file can not be read
+	 */
+	public boolean isCompressible(File file) throws IOException {
+		long startTime = System.nanoTime();
+		long[] lengths;
+		InputStream fileInputStream = new FileInputStream(file);
+		try {
+			lengths = compress(fileInputStream, sampleLength);
+		} finally {
+			FcpUtils.close(fileInputStream);
+		}
+		long elapsedTime = System.nanoTime() - startTime;
+		boolean compressible = (lengths[0] == 0) || (((double) lengths[1] / lengths[0]) <= maximumRatio);
+		synchronized (this) {
+			probedFiles++;
+			if (!compressible) {
+				incompressibleFiles++;
+			}
+			originalBytes += lengths[0];
+			compressedBytes += lengths[1];
+			compressionTime += elapsedTime;
+		}
+		return compressible;
+	}
+
+	//
+	// STATIC METHODS
+	//
+
+	/**
+	 * Compresses up to {@code maximumLength} bytes of the given input stream.
+	 *
+	 * @param inputStream
+	 *            The input stream to compress
+	 * @param maximumLength
+	 *            The maximum number of bytes to compress
+	 * @return The number of bytes read at index 0, and the number of
+	 *         compressed bytes at index 1
+	 * @throws IOException
+	 *             if the input stream can not be read
+	 */
+	static long[] compress(InputStream inputStream, long maximumLength) throws IOException {
+		Deflater deflater = new Deflater();
+		try {
+			byte[] buffer = new byte[65536];
+			byte[] output = new byte[65536];
+			long originalLength = 0;
+			long compressedLength = 0;
+			int read;
+			while ((originalLength < maximumLength) && ((read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, maximumLength - originalLength))) != -1)) {
+				originalLength += read;
+				deflater.setInput(buffer, 0, read);
+				while (!deflater.needsInput()) {
+					compressedLength += deflater.deflate(output);
+				}
+			}
+			deflater.finish();
+			while (!deflater.finished()) {
+				compressedLength += deflater.deflate(output);
+			}
+			return new long[] { originalLength, compressedLength };
+		} finally {
+			deflater.end();
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Waits for the given result, unwrapping the exception of a failed probe.
+	 *
+	 * @param result
+	 *            The result to wait for
+	 * @return {@code true} if the file compresses, {@code false} otherwise
+	 * @throws IOException
+	 *             if the file could not be read
+	 */
+	private static boolean getResult(Future<Boolean> result) throws IOException {
+		while (true) {
+			try {
+				return result.get();
+			} catch (InterruptedException ie1) {
+				/* ignore, we’ll loop. */
+			} catch (ExecutionException ee1) {
+				if (ee1.getCause() instanceof IOException) {
+					throw (IOException) ee1.getCause();
+				}
+				throw new IOException("Could not probe file!", ee1.getCause());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,618 @@
+/*
+ * jFCPlib - ConnectionPool.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.pterodactylus.fcp.AllData;
+import net.pterodactylus.fcp.DataFound;
+import net.pterodactylus.fcp.FcpAdapter;
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.FcpMessage;
+import net.pterodactylus.fcp.GetFailed;
+import net.pterodactylus.fcp.IdentifierCollision;
+import net.pterodactylus.fcp.Persistence;
+import net.pterodactylus.fcp.PersistentRequestRemoved;
+import net.pterodactylus.fcp.PutFailed;
+import net.pterodactylus.fcp.PutSuccessful;
+import net.pterodactylus.fcp.WatchGlobal;
+
+/**
+ * Pool of FCP connections to one or more Freenet nodes. Every connection has
+ * its own {@link FcpClient} and its own client name, which is the pool’s
+ * client name followed by the number of the connection.
+ * <p>
+ * {@link #sendMessage(FcpMessage) Sent messages} are routed by their
+ * identifier: a message with an identifier the pool has not seen yet (or no
+ * identifier at all) is sent over the connection with the fewest outstanding
+ * requests, and all later messages with the same identifier are sent over the
+ * same connection, so that follow-up messages always reach the node that owns
+ * the request. Identifiers are forgotten when the request finishes or, for
+ * persistent requests, when the request is removed.
+ * <p>
+ * When a connection is closed, it is replaced by a new connection to the same
+ * node with the same client name after a delay, so that persistent requests
+ * of that connection stay reachable. Non-persistent requests of the closed
+ * connection are lost. Only the first connection to each node watches the
+ * global queue so that global events are not delivered more than once.
+ * <p>
+ * {@link FcpListener}s added to the pool are added to all connections,
+ * including replacement connections.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class ConnectionPool implements Closeable {
+
+	/** The logger. */
+	private static final Logger logger = Logger.getLogger(ConnectionPool.class.getName());
+
+	/** Object used for synchronization. */
+	private final Object syncObject = new Object();
+
+	/** The client name of the pool. */
+	private final String clientName;
+
+	/** The executor to schedule replacement connections on. */
+	private final ScheduledExecutorService executorService;
+
+	/** The delay before a closed connection is replaced (in milliseconds). */
+	private final long reconnectDelay;
+
+	/** The connection slots of the pool. */
+	private final List<Slot> slots = new ArrayList<Slot>();
+
+	/** The owners of all known identifiers. */
+	private final Map<String, Ownership> ownerships = new HashMap<String, Ownership>();
+
+	/** The listeners added to all connections. */
+	private final List<FcpListener> fcpListeners = new CopyOnWriteArrayList<FcpListener>();
+
+	/** Whether the pool has been closed. */
+	private boolean closed;
+
+	/**
+	 * Creates a new connection pool.
+	 *
+	 * @param clientName
+	 *            The client name of the pool
+	 * @param executorService
+	 *            The executor to schedule replacement connections on
+	 * @param reconnectDelay
+	 *            The delay before a closed connection is replaced
+	 * @param timeUnit
+	 *            The unit of the delay
+	 */
+	public ConnectionPool(String clientName, ScheduledExecutorService executorService, long reconnectDelay, TimeUnit timeUnit) {
+		this.clientName = clientName;
+		this.executorService = executorService;
+		this.reconnectDelay = timeUnit.toMillis(reconnectDelay);
+	}
+
+	//
+	// LISTENER MANAGEMENT
+	//
+
+	/**
+	 * Adds the given listener to all connections of this pool.
+	 *
+	 * @param fcpListener
+	 *            The listener to add
+	 */
+	public void addFcpListener(FcpListener fcpListener) {
+		synchronized (syncObject) {
+			fcpListeners.add(fcpListener);
+			for (Slot slot : slots) {
+				if (slot.fcpClient != null) {
+					slot.fcpClient.addFcpListener(fcpListener);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the given listener from all connections of this pool.
+	 *
+	 * @param fcpListener
+	 *            The listener to remove
+	 */
+	public void removeFcpListener(FcpListener fcpListener) {
+		synchronized (syncObject) {
+			fcpListeners.remove(fcpListener);
+			for (Slot slot : slots) {
+				if (slot.fcpClient != null) {
+					slot.fcpClient.removeFcpListener(fcpListener);
+				}
+			}
+		}
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the number of connections of this pool, including connections
+	 * that are currently being replaced.
+	 *
+	 * @return The number of connections
+	 */
+	public int size() {
+		synchronized (syncObject) {
+			return slots.size();
+		}
+	}
+
+	/**
+	 * Returns the number of requests that have been sent and not yet
+	 * finished, over all connections.
+	 *
+	 * @return The number of outstanding requests
+	 */
+	public int getOutstandingRequests() {
+		synchronized (syncObject) {
+			int outstandingRequests = 0;
+			for (Slot slot : slots) {
+				outstandingRequests += slot.outstandingRequests;
+			}
+			return outstandingRequests;
+		}
+	}
+
+	/**
+	 * Returns the client that owns the request with the given identifier.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @return The client that owns the request, or {@code null} if the
+	 *         identifier is not known or its connection is being replaced
+	 */
+	public FcpClient getFcpClient(String identifier) {
+		synchronized (syncObject) {
+			Ownership ownership = ownerships.get(identifier);
+			return (ownership == null) ? null : ownership.slot.fcpClient;
+		}
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Adds connections to the given node to this pool and connects them. Every
+	 * connection is opened independently; a connection that can not be opened
+	 * is retried in the background like a closed connection. Once all
+	 * connections have been tried, the exception of the first failed
+	 * connection is rethrown.
+	 *
+	 * @param host
+	 *            The host address of the node
+	 * @param port
+	 *            The FCP port of the node
+	 * @param connections
+	 *            The number of connections to open
+	 * @throws IOException
+	 *             if an I/O error occurs while opening a connection
+	 * @throws FcpException
+	 *             if an FCP error occurs while opening a connection
+	 */
+	public void addNode(InetAddress host, int port, int connections) throws IOException, FcpException {
+		IOException ioException = null;
+		FcpException fcpException = null;
+		for (int connection = 0; connection < connections; connection++) {
+			Slot slot;
+			synchronized (syncObject) {
+				slot = new Slot(host, port, clientName + "-" + slots.size(), connection == 0);
+				slots.add(slot);
+			}
+			try {
+				connect(slot);
+			} catch (IOException ioe1) {
+				logger.log(Level.WARNING, "Could not connect " + slot.name + "!", ioe1);
+				scheduleReconnect(slot);
+				if ((ioException == null) && (fcpException == null)) {
+					ioException = ioe1;
+				}
+			} catch (FcpException fe1) {
+				logger.log(Level.WARNING, "Could not connect " + slot.name + "!", fe1);
+				scheduleReconnect(slot);
+				if ((ioException == null) && (fcpException == null)) {
+					fcpException = fe1;
+				}
+			}
+		}
+		if (ioException != null) {
+			throw ioException;
+		}
+		if (fcpException != null) {
+			throw fcpException;
+		}
+	}
+
+	/**
+	 * Sends the given message over the connection that owns its identifier,
+	 * or over the connection with the fewest outstanding requests if the
+	 * identifier is not known.
+	 *
+	 * @param fcpMessage
+	 *            The message to send
+	 * @throws IOException
+	 *             if no connection is available or an I/O error occurs
+	 */
+	public void sendMessage(FcpMessage fcpMessage) throws IOException {
+		String identifier = fcpMessage.getField("Identifier");
+		FcpClient fcpClient;
+		synchronized (syncObject) {
+			Ownership ownership = (identifier == null) ? null : ownerships.get(identifier);
+			if (ownership == null) {
+				Slot slot = getLeastLoadedSlot();
+				if (slot == null) {
+					throw new IOException("No connection available.");
+				}
+				if (identifier != null) {
+					String persistence = fcpMessage.getField("Persistence");
+					ownership = new Ownership(slot, (persistence != null) && !persistence.equals(String.valueOf(Persistence.connection)));
+					ownerships.put(identifier, ownership);
+					slot.outstandingRequests++;
+				}
+				fcpClient = slot.fcpClient;
+			} else {
+				fcpClient = ownership.slot.fcpClient;
+				if (fcpClient == null) {
+					throw new IOException("Connection for " + identifier + " is being replaced.");
+				}
+			}
+		}
+		fcpClient.sendMessage(fcpMessage);
+	}
+
+	/**
+	 * Closes all connections of this pool. Closed connections are not
+	 * replaced anymore.
+	 */
+	@Override
+	public void close() {
+		List<FcpClient> fcpClients = new ArrayList<FcpClient>();
+		synchronized (syncObject) {
+			closed = true;
+			for (Slot slot : slots) {
+				if (slot.fcpClient != null) {
+					fcpClients.add(slot.fcpClient);
+				}
+			}
+		}
+		for (FcpClient fcpClient : fcpClients) {
+			fcpClient.close();
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Returns the connected slot with the fewest outstanding requests.
+	 *
+	 * @return The least loaded slot, or {@code null} if no slot is connected
+	 */
+	private Slot getLeastLoadedSlot() {
+		Slot leastLoadedSlot = null;
+		for (Slot slot : slots) {
+			if ((slot.fcpClient != null) && ((leastLoadedSlot == null) || (slot.outstandingRequests < leastLoadedSlot.outstandingRequests))) {
+				leastLoadedSlot = slot;
+			}
+		}
+		return leastLoadedSlot;
+	}
+
+	/**
+	 * Opens a new connection for the given slot.
+	 *
+	 * @param slot
+	 *            The slot to connect
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws FcpException
+	 *             if an FCP error occurs
+	 */
+	private void connect(final Slot slot) throws IOException, FcpException {
+		final FcpClient fcpClient = new FcpClient(slot.host, slot.port);
+		fcpClient.connect(slot.name);
+		if (!slot.watchGlobal) {
+			fcpClient.getConnection().sendMessage(new WatchGlobal(false));
+		}
+		fcpClient.addFcpListener(new OwnershipListener(slot));
+		fcpClient.addFcpClientListener(new FcpClientListener() {
+
+			@Override
+			@SuppressWarnings("synthetic-access")
+			public void fcpClientDisconnected(FcpClient disconnectedClient) {
+				connectionClosed(slot, disconnectedClient);
+			}
+		});
+		synchronized (syncObject) {
+			if (closed) {
+				fcpClient.close();
+				return;
+			}
+			for (FcpListener fcpListener : fcpListeners) {
+				fcpClient.addFcpListener(fcpListener);
+			}
+			slot.fcpClient = fcpClient;
+		}
+	}
+
+	/**
+	 * Handles a closed connection by forgetting its non-persistent requests
+	 * and scheduling a replacement connection.
+	 *
+	 * @param slot
+	 *            The slot of the closed connection
+	 * @param fcpClient
+	 *            The client of the closed connection
+	 */
+	private void connectionClosed(Slot slot, FcpClient fcpClient) {
+		synchronized (syncObject) {
+			if (slot.fcpClient != fcpClient) {
+				return;
+			}
+			slot.fcpClient = null;
+			for (Iterator<Entry<String, Ownership>> ownershipEntries = ownerships.entrySet().iterator(); ownershipEntries.hasNext();) {
+				Ownership ownership = ownershipEntries.next().getValue();
+				if ((ownership.slot == slot) && !ownership.persistent) {
+					ownershipEntries.remove();
+					slot.outstandingRequests--;
+				}
+			}
+			if (closed) {
+				return;
+			}
+		}
+		scheduleReconnect(slot);
+	}
+
+	/**
+	 * Schedules a replacement connection for the given slot. If the
+	 * connection can not be opened, it is tried again after the same delay.
+	 *
+	 * @param slot
+	 *            The slot to reconnect
+	 */
+	private void scheduleReconnect(final Slot slot) {
+		executorService.schedule(new Runnable() {
+
+			@Override
+			@SuppressWarnings("synthetic-access")
+			public void run() {
+				try {
+					connect(slot);
+				} catch (IOException ioe1) {
+					logger.log(Level.WARNING, "Could not reconnect " + slot.name + "!", ioe1);
+					scheduleReconnect(slot);
+				} catch (FcpException fe1) {
+					logger.log(Level.WARNING, "Could not reconnect " + slot.name + "!", fe1);
+					scheduleReconnect(slot);
+				}
+			}
+		}, reconnectDelay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Handles the end of a request.
+	 *
+	 * @param slot
+	 *            The slot the end was reported on
+	 * @param identifier
+	 *            The identifier of the request
+	 * @param removed
+	 *            {@code true} if the request was removed from the node,
+	 *            {@code false} if it only finished
+	 */
+	private void requestFinished(Slot slot, String identifier, boolean removed) {
+		synchronized (syncObject) {
+			Ownership ownership = ownerships.get(identifier);
+			if ((ownership == null) || (ownership.slot != slot)) {
+				return;
+			}
+			if (!ownership.finished) {
+				ownership.finished = true;
+				slot.outstandingRequests--;
+			}
+			if (removed || !ownership.persistent) {
+				ownerships.remove(identifier);
+			}
+		}
+	}
+
+	/**
+	 * A connection of the pool. The slot outlives the connection so that a
+	 * replacement connection takes over the requests of the slot.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private static class Slot {
+
+		/** The host address of the node. */
+		final InetAddress host;
+
+		/** The FCP port of the node. */
+		final int port;
+
+		/** The client name of the connection. */
+		final String name;
+
+		/** Whether the connection watches the global queue. */
+		final boolean watchGlobal;
+
+		/** The client of the connection, or {@code null} while reconnecting. */
+		FcpClient fcpClient;
+
+		/** The number of outstanding requests of the connection. */
+		int outstandingRequests;
+
+		/**
+		 * Creates a new slot.
+		 *
+		 * @param host
+		 *            The host address of the node
+		 * @param port
+		 *            The FCP port of the node
+		 * @param name
+		 *            The client name of the connection
+		 * @param watchGlobal
+		 *            Whether the connection watches the global queue
+		 */
+		Slot(InetAddress host, int port, String name, boolean watchGlobal) {
+			this.host = host;
+			this.port = port;
+			this.name = name;
+			this.watchGlobal = watchGlobal;
+		}
+
+	}
+
+	/**
+	 * The owner of an identifier.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private static class Ownership {
+
+		/** The slot owning the identifier. */
+		final Slot slot;
+
+		/** Whether the request is persistent. */
+		final boolean persistent;
+
+		/** Whether the request has finished. */
+		boolean finished;
+
+		/**
+		 * Creates a new ownership.
+		 *
+		 * @param slot
+		 *            The slot owning the identifier
+		 * @param persistent
+		 *            Whether the request is persistent
+		 */
+		Ownership(Slot slot, boolean persistent) {
+			this.slot = slot;
+			this.persistent = persistent;
+		}
+
+	}
+
+	/**
+	 * Listener that tracks the end of the requests of a slot.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private class OwnershipListener extends FcpAdapter {
+
+		/** The slot of the listener. */
+		private final Slot slot;
+
+		/**
+		 * Creates a new ownership listener.
+		 *
+		 * @param slot
+		 *            The slot of the listener
+		 */
+		public OwnershipListener(Slot slot) {
+			this.slot = slot;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedDataFound(FcpConnection fcpConnection, DataFound dataFound) {
+			requestFinished(slot, dataFound.getIdentifier(), false);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedAllData(FcpConnection fcpConnection, AllData allData) {
+			requestFinished(slot, allData.getIdentifier(), false);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedGetFailed(FcpConnection fcpConnection, GetFailed getFailed) {
+			requestFinished(slot, getFailed.getIdentifier(), false);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPutSuccessful(FcpConnection fcpConnection, PutSuccessful putSuccessful) {
+			requestFinished(slot, putSuccessful.getIdentifier(), false);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPutFailed(FcpConnection fcpConnection, PutFailed putFailed) {
+			requestFinished(slot, putFailed.getIdentifier(), false);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedIdentifierCollision(FcpConnection fcpConnection, IdentifierCollision identifierCollision) {
+			requestFinished(slot, identifierCollision.getIdentifier(), true);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPersistentRequestRemoved(FcpConnection fcpConnection, PersistentRequestRemoved persistentRequestRemoved) {
+			requestFinished(slot, persistentRequestRemoved.getIdentifier(), true);
+		}
+
+	}
+
+}
@@ -0,0 +1,308 @@
+/*
+ * jFCPlib - ContentIndex.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.pterodactylus.fcp.FcpMessage;
+import net.pterodactylus.fcp.FcpUtils;
+
+/**
+ * Local content-addressed index of inserted data. The index maps the SHA-256
+ * hash of a payload, combined with the insert parameters that change the
+ * resulting CHK, to the URI the node generated for it, so that identical
+ * content does not have to be uploaded again but can be redirected to.
+ * <p>
+ * The index is stored in a file to which every new mapping is appended; the
+ * file is rewritten without duplicates whenever the index is opened.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class ContentIndex implements Closeable {
+
+	/** The logger. */
+	private static final Logger logger = Logger.getLogger(ContentIndex.class.getName());
+
+	/**
+	 * The fields of an insert message that change the CHK of the inserted
+	 * data: compression, the crypto key, the compatibility mode, and the
+	 * metadata that is stored with the data.
+	 */
+	private static final String[] KEY_FIELDS = { "DontCompress", "Codecs", "CompatibilityMode", "OverrideSplitfileCryptoKey", "Metadata.ContentType", "TargetFilename" };
+
+	/** Object used for synchronization. */
+	private final Object syncObject = new Object();
+
+	/** The file that stores the index. */
+	private final File indexFile;
+
+	/** The URIs of the indexed content, by key. */
+	private final Map<String, String> uris = new HashMap<String, String>();
+
+	/** The writer for new mappings, if the index is open. */
+	private Writer indexWriter;
+
+	/** The number of lookups that found a URI. */
+	private long hits;
+
+	/** The number of lookups that did not find a URI. */
+	private long misses;
+
+	/**
+	 * Creates a new content index.
+	 *
+	 * @param indexFile
+	 *            The file that stores the index
+	 */
+	public ContentIndex(File indexFile) {
+		this.indexFile = indexFile;
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the URI of previously inserted content that is identical to the
+	 * content that would be inserted by the given message.
+	 *
+	 * @param hash
+	 *            The SHA-256 hash of the payload (see {@link #hash(File)})
+	 * @param insertMessage
+	 *            The message that would insert the payload
+	 * @return The URI of the identical content, or {@code null} if no
+	 *         identical content has been indexed
+	 */
+	public String getUri(String hash, FcpMessage insertMessage) {
+		synchronized (syncObject) {
+			String uri = uris.get(getKey(hash, insertMessage));
+			if (uri == null) {
+				misses++;
+			} else {
+				hits++;
+			}
+			return uri;
+		}
+	}
+
+	/**
+	 * Returns the number of indexed payloads.
+	 *
+	 * @return The number of indexed payloads
+	 */
+	public int size() {
+		synchronized (syncObject) {
+			return uris.size();
+		}
+	}
+
+	/**
+	 * Returns the number of lookups that found a URI.
+	 *
+	 * @return The number of hits
+	 */
+	public long getHits() {
+		synchronized (syncObject) {
+			return hits;
+		}
+	}
+
+	/**
+	 * Returns the number of lookups that did not find a URI.
+	 *
+	 * @return The number of misses
+	 */
+	public long getMisses() {
+		synchronized (syncObject) {
+			return misses;
+		}
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Loads the index file, if it exists, and rewrites it without duplicate
+	 * mappings.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void open() throws IOException {
+		synchronized (syncObject) {
+			if (indexWriter != null) {
+				return;
+			}
+			if (indexFile.exists()) {
+				load();
+			}
+			File temporaryFile = new File(indexFile.getPath() + ".tmp");
+			Writer writer = new OutputStreamWriter(new FileOutputStream(temporaryFile), "UTF-8");
+			try {
+				for (Entry<String, String> uri : uris.entrySet()) {
+					writer.write(uri.getKey() + "\t" + uri.getValue() + "\n");
+				}
+			} finally {
+				FcpUtils.close(writer);
+			}
+			if (!temporaryFile.renameTo(indexFile)) {
+				indexFile.delete();
+				if (!temporaryFile.renameTo(indexFile)) {
+					throw new IOException("Could not rename " + temporaryFile + " to " + indexFile);
+				}
+			}
+			indexWriter = new OutputStreamWriter(new FileOutputStream(indexFile, true), "UTF-8");
+		}
+	}
+
+	/**
+	 * Stores the URI that the node generated for the payload inserted by the
+	 * given message.
+	 *
+	 * @param hash
+	 *            The SHA-256 hash of the payload (see {@link #hash(File)})
+	 * @param insertMessage
+	 *            The message that inserted the payload
+	 * @param uri
+	 *            The URI generated by the node
+	 */
+	public void putUri(String hash, FcpMessage insertMessage, String uri) {
+		String key = getKey(hash, insertMessage);
+		synchronized (syncObject) {
+			if (uri.equals(uris.put(key, uri)) || (indexWriter == null)) {
+				return;
+			}
+			try {
+				indexWriter.write(key + "\t" + uri + "\n");
+				indexWriter.flush();
+			} catch (IOException ioe1) {
+				logger.log(Level.WARNING, "Could not write index!", ioe1);
+			}
+		}
+	}
+
+	/**
+	 * Closes the index file.
+	 */
+	@Override
+	public void close() {
+		synchronized (syncObject) {
+			FcpUtils.close(indexWriter);
+			indexWriter = null;
+		}
+	}
+
+	//
+	// STATIC METHODS
+	//
+
+	/**
+	 * Calculates the SHA-256 hash of the given file.
+	 *
+	 * @param file
+	 *            The file to hash
+	 * @return The hash of the file, as hexadecimal string
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public static String hash(File file) throws IOException {
+		MessageDigest messageDigest;
+		try {
+			messageDigest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException nsae1) {
+			throw new IllegalStateException("SHA-256 is not available!", nsae1);
+		}
+		InputStream fileInputStream = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[65536];
+			int read;
+			while ((read = fileInputStream.read(buffer)) != -1) {
+				messageDigest.update(buffer, 0, read);
+			}
+		} finally {
+			FcpUtils.close(fileInputStream);
+		}
+		StringBuilder hash = new StringBuilder();
+		for (byte digestByte : messageDigest.digest()) {
+			hash.append(String.format("%02x", digestByte & 0xff));
+		}
+		return hash.toString();
+	}
+
+	/**
+	 * Returns the key of the given payload hash and insert message.
+	 *
+	 * @param hash
+	 *            The SHA-256 hash of the payload
+	 * @param insertMessage
+	 *            The insert message
+	 * @return The key of the content
+	 */
+	static String getKey(String hash, FcpMessage insertMessage) {
+		StringBuilder key = new StringBuilder(hash);
+		for (String keyField : KEY_FIELDS) {
+			String value = insertMessage.getField(keyField);
+			key.append('|').append((value == null) ? "" : value.replace('\t', ' ').replace('\n', ' '));
+		}
+		return key.toString();
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Loads all mappings from the index file.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private void load() throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.lastIndexOf('\t');
+				if ((tab == -1) || (tab == line.length() - 1)) {
+					continue;
+				}
+				uris.put(line.substring(0, tab), line.substring(tab + 1));
+			}
+		} finally {
+			FcpUtils.close(reader);
+		}
+	}
+
+}
@@ -0,0 +1,213 @@
+/*
+ * jFCPlib - DdaManager.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.ReconnectListener;
+import net.pterodactylus.fcp.ReconnectingFcpConnection;
+import net.pterodactylus.fcp.TestDDAComplete;
+
+/**
+ * Manages the direct disk access (DDA) permissions of an {@link FcpClient}.
+ * Before the node may read a file from or write a file to a directory, the
+ * “TestDDA” handshake has to be performed for the directory; this manager
+ * performs the handshake once per directory and caches the granted
+ * permissions. Because the node only grants permissions for a single
+ * connection, the cache is cleared whenever the client is disconnected or
+ * its connection is interrupted.
+ * <p>
+ * The handshake only succeeds if the node and the client share the file
+ * system, so the permissions can be used to decide whether to transfer files
+ * using the disk instead of the FCP connection.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class DdaManager {
+
+	/** Object used for synchronization. */
+	private final Object syncObject = new Object();
+
+	/** Object used to serialize handshakes. */
+	private final Object handshakeLock = new Object();
+
+	/** The FCP client to use. */
+	private final FcpClient fcpClient;
+
+	/** The tested permissions, by directory. */
+	private final Map<String, Permissions> permissions = new HashMap<String, Permissions>();
+
+	/**
+	 * Creates a new DDA manager.
+	 *
+	 * @param fcpClient
+	 *            The FCP client to manage the permissions of
+	 */
+	public DdaManager(FcpClient fcpClient) {
+		this.fcpClient = fcpClient;
+		fcpClient.addFcpClientListener(new FcpClientListener() {
+
+			/**
+			 * {@inheritDoc}
+			 */
+			@Override
+			public void fcpClientDisconnected(FcpClient fcpClient) {
+				clear();
+			}
+		});
+		if (fcpClient.getConnection() instanceof ReconnectingFcpConnection) {
+			((ReconnectingFcpConnection) fcpClient.getConnection()).addReconnectListener(new ReconnectListener() {
+
+				/**
+				 * {@inheritDoc}
+				 */
+				@Override
+				public void connectionInterrupted(FcpConnection fcpConnection, Throwable throwable) {
+					clear();
+				}
+
+				/**
+				 * {@inheritDoc}
+				 */
+				@Override
+				public void connectionRestored(FcpConnection fcpConnection) {
+					/* permissions are tested again when needed. */
+				}
+			});
+		}
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns whether the node may read files from the given directory,
+	 * performing the handshake if the permission has not been tested yet.
+	 *
+	 * @param directory
+	 *            The directory
+	 * @return {@code true} if the node may read files from the directory,
+	 *         {@code false} otherwise
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws FcpException
+	 *             if an FCP error occurs
+	 */
+	public boolean canRead(File directory) throws IOException, FcpException {
+		return getPermissions(directory).readAllowed;
+	}
+
+	/**
+	 * Returns whether the node may write files to the given directory,
+	 * performing the handshake if the permission has not been tested yet.
+	 *
+	 * @param directory
+	 *            The directory
+	 * @return {@code true} if the node may write files to the directory,
+	 *         {@code false} otherwise
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws FcpException
+	 *             if an FCP error occurs
+	 */
+	public boolean canWrite(File directory) throws IOException, FcpException {
+		return getPermissions(directory).writeAllowed;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Forgets all tested permissions.
+	 */
+	public void clear() {
+		synchronized (syncObject) {
+			permissions.clear();
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Returns the permissions of the given directory, performing the handshake
+	 * for both reading and writing if the directory has not been tested yet.
+	 * Directories that do not exist are never accessible.
+	 *
+	 * @param directory
+	 *            The directory
+	 * @return The permissions of the directory
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws FcpException
+	 *             if an FCP error occurs
+	 */
+	private Permissions getPermissions(File directory) throws IOException, FcpException {
+		String directoryName = directory.getAbsolutePath();
+		if (!directory.isDirectory()) {
+			return new Permissions();
+		}
+		Permissions cachedPermissions;
+		synchronized (syncObject) {
+			cachedPermissions = permissions.get(directoryName);
+		}
+		if (cachedPermissions != null) {
+			return cachedPermissions;
+		}
+		synchronized (handshakeLock) {
+			/* another thread may have tested the directory in the meantime. */
+			synchronized (syncObject) {
+				cachedPermissions = permissions.get(directoryName);
+			}
+			if (cachedPermissions != null) {
+				return cachedPermissions;
+			}
+			TestDDAComplete testDDAComplete = fcpClient.testDDA(directory, true, true);
+			Permissions testedPermissions = new Permissions();
+			testedPermissions.readAllowed = testDDAComplete.isReadDirectoryAllowed();
+			testedPermissions.writeAllowed = testDDAComplete.isWriteDirectoryAllowed();
+			synchronized (syncObject) {
+				permissions.put(directoryName, testedPermissions);
+			}
+			return testedPermissions;
+		}
+	}
+
+	/**
+	 * The tested permissions of a single directory.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private static class Permissions {
+
+		/** Whether the node may read files from the directory. */
+		boolean readAllowed;
+
+		/** Whether the node may write files to the directory. */
+		boolean writeAllowed;
+
+	}
+
+}
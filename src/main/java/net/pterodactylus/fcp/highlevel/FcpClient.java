@@ -20,15 +20,24 @@ package net.pterodactylus.fcp.highlevel;
 import static com.google.common.collect.FluentIterable.from;
 
 import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -49,6 +58,8 @@ import net.pterodactylus.fcp.FCPPluginReply;
 import net.pterodactylus.fcp.FcpAdapter;
 import net.pterodactylus.fcp.FcpConnection;
 import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.FcpMessage;
+import net.pterodactylus.fcp.FcpUtils;
 import net.pterodactylus.fcp.GenerateSSK;
 import net.pterodactylus.fcp.GetFailed;
 import net.pterodactylus.fcp.GetNode;
@@ -64,11 +75,25 @@ import net.pterodactylus.fcp.Peer;
 import net.pterodactylus.fcp.PeerNote;
 import net.pterodactylus.fcp.PeerRemoved;
 import net.pterodactylus.fcp.PersistentGet;
+import net.pterodactylus.fcp.Persistence;
 import net.pterodactylus.fcp.PersistentPut;
+import net.pterodactylus.fcp.PersistentRequestRemoved;
+import net.pterodactylus.fcp.Priority;
 import net.pterodactylus.fcp.ProtocolError;
+import net.pterodactylus.fcp.PutFailed;
+import net.pterodactylus.fcp.PutSuccessful;
+import net.pterodactylus.fcp.ReconnectListener;
+import net.pterodactylus.fcp.ReconnectingFcpConnection;
 import net.pterodactylus.fcp.RemovePeer;
+import net.pterodactylus.fcp.ReturnType;
 import net.pterodactylus.fcp.SSKKeypair;
 import net.pterodactylus.fcp.SimpleProgress;
+import net.pterodactylus.fcp.StreamingClientPutComplexDir;
+import net.pterodactylus.fcp.TestDDAComplete;
+import net.pterodactylus.fcp.TestDDAReply;
+import net.pterodactylus.fcp.TestDDARequest;
+import net.pterodactylus.fcp.TestDDAResponse;
+import net.pterodactylus.fcp.UploadFrom;
 import net.pterodactylus.fcp.WatchGlobal;
 
 import com.google.common.base.Predicate;
@@ -81,6 +106,9 @@ import com.google.common.base.Predicate;
  */
 public class FcpClient implements Closeable {
 
+	/** The payload size from which messages are sent over a bulk lane. */
+	private static final long BULK_PAYLOAD_SIZE = 65536;
+
 	/** Object used for synchronization. */
 	private final Object syncObject = new Object();
 
@@ -90,6 +118,30 @@ public class FcpClient implements Closeable {
 	/** The underlying FCP connection. */
 	private final FcpConnection fcpConnection;
 
+	/** The connections for bulk transfers. */
+	private final List<FcpConnection> bulkConnections = new ArrayList<FcpConnection>();
+
+	/** The bulk connections of the requests sent over them, by identifier. */
+	private final Map<String, FcpConnection> bulkRequests = new HashMap<String, FcpConnection>();
+
+	/** The identifiers of unfinished requests sent over bulk connections. */
+	private final Set<String> unfinishedBulkRequests = new HashSet<String>();
+
+	/** The identifiers of persistent requests sent over bulk connections. */
+	private final Set<String> persistentBulkRequests = new HashSet<String>();
+
+	/** The identifiers of bulk requests that return their data directly. */
+	private final Set<String> directBulkRequests = new HashSet<String>();
+
+	/** The number of unfinished requests, by bulk connection. */
+	private final Map<FcpConnection, Integer> bulkConnectionLoads = new HashMap<FcpConnection, Integer>();
+
+	/** Whether a bulk connection has been closed since the last connect. */
+	private boolean bulkLaneFailed;
+
+	/** The listener for the bulk connections. */
+	private final FcpListener bulkConnectionListener = new BulkConnectionListener();
+
 	/** The {@link NodeHello} data sent by the node on connection. */
 	private volatile NodeHello nodeHello;
 
@@ -99,6 +151,9 @@ public class FcpClient implements Closeable {
 	/** The listener for “connection closed” events. */
 	private FcpListener connectionClosedListener;
 
+	/** The statistics of data store first fetches. */
+	private final TieredFetchStatistics tieredFetchStatistics = new TieredFetchStatistics();
+
 	/**
 	 * Creates an FCP client with the given name.
 	 *
@@ -157,6 +212,30 @@ public class FcpClient implements Closeable {
 		this(new FcpConnection(host, port), false);
 	}
 
+	/**
+	 * Creates an FCP client that uses separate connections for control
+	 * traffic and bulk transfers. Messages sent using
+	 * {@link #sendMessage(FcpMessage)} are sent over a bulk connection if they
+	 * carry a large payload or request a large amount of data, so that they
+	 * do not delay the control connection.
+	 *
+	 * @param host
+	 *            The host address of the Freenet node
+	 * @param port
+	 *            The Freenet node’s FCP port
+	 * @param bulkLanes
+	 *            The number of connections for bulk transfers
+	 */
+	public FcpClient(InetAddress host, int port, int bulkLanes) {
+		this(host, port);
+		for (int bulkLane = 0; bulkLane < bulkLanes; bulkLane++) {
+			FcpConnection bulkConnection = new FcpConnection(host, port);
+			bulkConnection.addFcpListener(bulkConnectionListener);
+			bulkConnections.add(bulkConnection);
+			bulkConnectionLoads.put(bulkConnection, 0);
+		}
+	}
+
 	/**
 	 * Creates a new high-level FCP client that will use the given connection.
 	 * This constructor will assume that the FCP connection is already
@@ -200,23 +279,31 @@ public class FcpClient implements Closeable {
 	//
 
 	/**
-	 * Adds an FCP listener to the underlying connection.
+	 * Adds an FCP listener to the underlying connection and to all bulk
+	 * connections.
 	 *
 	 * @param fcpListener
 	 *            The FCP listener to add
 	 */
 	public void addFcpListener(FcpListener fcpListener) {
 		fcpConnection.addFcpListener(fcpListener);
+		for (FcpConnection bulkConnection : bulkConnections) {
+			bulkConnection.addFcpListener(fcpListener);
+		}
 	}
 
 	/**
-	 * Removes an FCP listener from the underlying connection.
+	 * Removes an FCP listener from the underlying connection and from all bulk
+	 * connections.
 	 *
 	 * @param fcpListener
 	 *            The FCP listener to remove
 	 */
 	public void removeFcpListener(FcpListener fcpListener) {
 		fcpConnection.removeFcpListener(fcpListener);
+		for (FcpConnection bulkConnection : bulkConnections) {
+			bulkConnection.removeFcpListener(fcpListener);
+		}
 	}
 
 	/**
@@ -262,12 +349,23 @@ public class FcpClient implements Closeable {
 		return fcpConnection;
 	}
 
+	/**
+	 * Returns the number of connections for bulk transfers.
+	 *
+	 * @return The number of bulk connections
+	 */
+	public int getBulkLanes() {
+		return bulkConnections.size();
+	}
+
 	//
 	// ACTIONS
 	//
 
 	/**
-	 * Connects the FCP client.
+	 * Connects the FCP client. Bulk connections are connected using the given
+	 * name followed by “-bulk-” and the number of the connection; they do not
+	 * watch the global queue.
 	 *
 	 * @param name
 	 *            The name of the client
@@ -303,7 +401,86 @@ public class FcpClient implements Closeable {
 				FcpClient.this.nodeHello = nodeHello;
 				completionLatch.countDown();
 			}
+
+			/**
+			 * {@inheritDoc}
+			 */
+			@Override
+			public void connectionRestored(FcpConnection fcpConnection) {
+				/* the connection sends the “ClientHello” again itself. */
+			}
 		}.execute();
+		synchronized (syncObject) {
+			bulkLaneFailed = false;
+		}
+		for (int bulkLane = 0; bulkLane < bulkConnections.size(); bulkLane++) {
+			FcpConnection bulkConnection = bulkConnections.get(bulkLane);
+			bulkConnection.connect();
+			bulkConnection.sendMessage(new ClientHello(name + "-bulk-" + bulkLane));
+		}
+	}
+
+	/**
+	 * Sends the given message. Messages for requests that have been sent over
+	 * a bulk connection are sent over the same connection. New messages are
+	 * sent over the least loaded bulk connection if they are a
+	 * “ClientPutComplexDir” message, carry a payload of at least 64 KiB, or
+	 * are a “ClientGet” that returns its data directly with bulk priority;
+	 * all other messages are sent over the control connection. The requests
+	 * of this client’s own methods, e.g. {@link #getURI(String)}, are sent
+	 * the same way.
+	 * <p>
+	 * Every bulk connection is a separate client of the node, and the node
+	 * only shows persistent requests to the client that started them, or to
+	 * clients watching the global queue. Persistent requests that are not on
+	 * the global queue are therefore always sent over the control connection
+	 * so that they can be listed, queried and mirrored; persistent requests
+	 * on the global queue are seen by the control connection because it
+	 * watches the global queue. Requests that let the node read or write files
+	 * itself (“UploadFrom=disk” or “ReturnType=disk”) are sent over the control
+	 * connection, too, because the node only grants direct disk access to the
+	 * connection that ran the “TestDDA” handshake.
+	 *
+	 * @param fcpMessage
+	 *            The message to send
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void sendMessage(FcpMessage fcpMessage) throws IOException {
+		selectConnection(fcpMessage).sendMessage(fcpMessage);
+	}
+
+	/**
+	 * Returns the connection the given message has to be sent over, as
+	 * described in {@link #sendMessage(FcpMessage)}. If a bulk connection is
+	 * chosen for a new request, the request is assigned to it.
+	 *
+	 * @param fcpMessage
+	 *            The message to send
+	 * @return The connection to send the message over
+	 */
+	FcpConnection selectConnection(FcpMessage fcpMessage) {
+		String identifier = fcpMessage.getField("Identifier");
+		FcpConnection connection = fcpConnection;
+		synchronized (syncObject) {
+			FcpConnection bulkConnection = (identifier == null) ? null : bulkRequests.get(identifier);
+			if (bulkConnection != null) {
+				connection = bulkConnection;
+			} else if (!bulkConnections.isEmpty() && (identifier != null) && isBulkMessage(fcpMessage)) {
+				connection = getLeastLoadedBulkConnection();
+				bulkRequests.put(identifier, connection);
+				unfinishedBulkRequests.add(identifier);
+				bulkConnectionLoads.put(connection, bulkConnectionLoads.get(connection) + 1);
+				String persistence = fcpMessage.getField("Persistence");
+				if ((persistence != null) && !persistence.equals(String.valueOf(Persistence.connection))) {
+					persistentBulkRequests.add(identifier);
+				}
+				if ("ClientGet".equals(fcpMessage.getName()) && isDirect(fcpMessage)) {
+					directBulkRequests.add(identifier);
+				}
+			}
+		}
+		return connection;
 	}
 
 	/**
@@ -337,54 +514,212 @@ public class FcpClient implements Closeable {
 	 *             if an FCP error occurs
 	 */
 	public GetResult getURI(final String uri, final boolean filterData) throws IOException, FcpException {
+		return getURI(uri, filterData, false, null, null, false);
+	}
+
+	/**
+	 * Downloads the file with the given URI to the given target file. If the
+	 * given DDA manager reports that the node may write to the directory of
+	 * the target file, the node writes the file itself (using
+	 * {@link ReturnType#disk}) and only reports completion; otherwise the data
+	 * is written to the target file while it is being received, without being
+	 * buffered. In both cases the {@link GetResult#getInputStream() input
+	 * stream} of the result is {@code null}.
+	 *
+	 * @param uri
+	 *            The URI to get
+	 * @param filterData
+	 *            {@code true} to filter the retrieved data, {@code false}
+	 *            otherwise
+	 * @param targetFile
+	 *            The file to download to
+	 * @param ddaManager
+	 *            The DDA manager of this client, or {@code null} to always
+	 *            transfer the data over the connection
+	 * @return The result of the get request
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws FcpException
+	 *             if an FCP error occurs
+	 */
+	public GetResult getURI(String uri, boolean filterData, File targetFile, DdaManager ddaManager) throws IOException, FcpException {
+		File absoluteTargetFile = targetFile.getAbsoluteFile();
+		boolean diskAccess = (ddaManager != null) && ddaManager.canWrite(absoluteTargetFile.getParentFile());
+		return getURI(uri, filterData, false, null, absoluteTargetFile, diskAccess);
+	}
+
+	/**
+	 * Returns the file with the given URI, trying the local data store first.
+	 * The file is first requested from the node’s data store only, at maximum
+	 * priority; only if the file is not found there it is requested from the
+	 * network. Other failures, e.g. an invalid URI or a file that is too big,
+	 * are returned as they are. The outcome and the latency of both tiers are
+	 * recorded in the {@link #getTieredFetchStatistics() tiered fetch
+	 * statistics}.
+	 *
+	 * @param uri
+	 *            The URI to get
+	 * @param filterData
+	 *            {@code true} to filter the retrieved data, {@code false}
+	 *            otherwise
+	 * @return The result of the get request
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws FcpException
+	 *             if an FCP error occurs
+	 */
+	public GetResult getURIFromDataStoreFirst(String uri, boolean filterData) throws IOException, FcpException {
+		long startTime = System.nanoTime();
+		GetResult getResult = getURI(uri, filterData, true, Priority.maximum, null, false);
+		tieredFetchStatistics.addDataStoreFetch(getResult.isSuccess(), System.nanoTime() - startTime);
+		if (getResult.isSuccess() || (getResult.getException() != null) || !isNotFound(getResult.getErrorCode())) {
+			return getResult.fromDataStore(getResult.isSuccess());
+		}
+		startTime = System.nanoTime();
+		getResult = getURI(uri, filterData, false, null, null, false);
+		tieredFetchStatistics.addNetworkFetch(getResult.isSuccess(), System.nanoTime() - startTime);
+		return getResult;
+	}
+
+	/**
+	 * Returns the statistics of the fetches made using
+	 * {@link #getURIFromDataStoreFirst(String, boolean)}.
+	 *
+	 * @return The tiered fetch statistics
+	 */
+	public TieredFetchStatistics getTieredFetchStatistics() {
+		return tieredFetchStatistics;
+	}
+
+	/**
+	 * Returns the file with the given URI.
+	 *
+	 * @param uri
+	 *            The URI to get
+	 * @param filterData
+	 *            {@code true} to filter the retrieved data, {@code false}
+	 *            otherwise
+	 * @param dataStoreOnly
+	 *            {@code true} to only search the node’s data store,
+	 *            {@code false} to search the network, too
+	 * @param priority
+	 *            The priority of the request, or {@code null} to use the
+	 *            node’s default priority
+	 * @param targetFile
+	 *            The file to write the data to, or {@code null} to return the
+	 *            data in the result
+	 * @param diskAccess
+	 *            {@code true} to let the node write the target file itself,
+	 *            {@code false} to transfer the data over the connection
+	 * @return The result of the get request
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws FcpException
+	 *             if an FCP error occurs
+	 */
+	private GetResult getURI(final String uri, final boolean filterData, final boolean dataStoreOnly, final Priority priority, final File targetFile, final boolean diskAccess) throws IOException, FcpException {
 		checkConnected(true);
 		final GetResult getResult = new GetResult();
-		new ExtendedFcpAdapter() {
-
-			@SuppressWarnings("synthetic-access")
-			private final String identifier = createIdentifier("client-get");
+		final String identifier = createIdentifier("client-get");
+		try {
+			new ExtendedFcpAdapter(true) {
+
+				@Override
+				@SuppressWarnings("synthetic-access")
+				public void run() throws IOException {
+					sendClientGet(createClientGet(uri));
+				}
 
-			@Override
-			@SuppressWarnings("synthetic-access")
-			public void run() throws IOException {
-				ClientGet clientGet = new ClientGet(uri, identifier);
-				clientGet.setFilterData(filterData);
-				fcpConnection.sendMessage(clientGet);
-			}
+				/**
+				 * Sends the given get request, over the connection that
+				 * {@link FcpClient#selectConnection(FcpMessage)} chooses.
+				 *
+				 * @param clientGet
+				 *            The get request to send
+				 * @throws IOException
+				 *             if an I/O error occurs
+				 */
+				@SuppressWarnings("synthetic-access")
+				private void sendClientGet(ClientGet clientGet) throws IOException {
+					FcpConnection connection = selectConnection(clientGet);
+					if ((targetFile != null) && !diskAccess) {
+						connection.setPayloadFile(identifier, targetFile);
+					}
+					connection.sendMessage(clientGet);
+				}
 
-			@Override
-			public void receivedGetFailed(FcpConnection fcpConnection, GetFailed getFailed) {
-				if (!getFailed.getIdentifier().equals(identifier)) {
-					return;
+				/**
+				 * Creates the get request for the given URI.
+				 *
+				 * @param requestUri
+				 *            The URI to request
+				 * @return The get request
+				 */
+				private ClientGet createClientGet(String requestUri) {
+					ClientGet clientGet = new ClientGet(requestUri, identifier, diskAccess ? ReturnType.disk : ReturnType.direct);
+					if (diskAccess) {
+						clientGet.setFilename(targetFile.getPath());
+						clientGet.setTempFilename(targetFile.getPath() + ".freenet-tmp");
+					}
+					clientGet.setFilterData(filterData);
+					if (dataStoreOnly) {
+						clientGet.setDataStoreOnly(true);
+					}
+					if (priority != null) {
+						clientGet.setPriority(priority);
+					}
+					return clientGet;
 				}
-				if ((getFailed.getCode() == 27) || (getFailed.getCode() == 24)) {
-					/* redirect! */
-					String newUri = getFailed.getRedirectURI();
-					getResult.realUri(newUri);
-					try {
-						ClientGet clientGet = new ClientGet(newUri, identifier);
-						clientGet.setFilterData(filterData);
-						fcpConnection.sendMessage(clientGet);
-					} catch (IOException ioe1) {
-						getResult.success(false).exception(ioe1);
+
+				@Override
+				public void receivedGetFailed(FcpConnection fcpConnection, GetFailed getFailed) {
+					if (!getFailed.getIdentifier().equals(identifier)) {
+						return;
+					}
+					if ((getFailed.getCode() == 27) || (getFailed.getCode() == 24)) {
+						/* redirect! */
+						String newUri = getFailed.getRedirectURI();
+						getResult.realUri(newUri);
+						try {
+							sendClientGet(createClientGet(newUri));
+						} catch (IOException ioe1) {
+							getResult.success(false).exception(ioe1);
+							completionLatch.countDown();
+						}
+					} else {
+						getResult.success(false).errorCode(getFailed.getCode());
 						completionLatch.countDown();
 					}
-				} else {
-					getResult.success(false).errorCode(getFailed.getCode());
+				}
+
+				@Override
+				public void receivedDataFound(FcpConnection fcpConnection, DataFound dataFound) {
+					if (!diskAccess || !dataFound.getIdentifier().equals(identifier)) {
+						return;
+					}
+					getResult.success(true).contentType(dataFound.getMetadataContentType()).contentLength(dataFound.getDataLength());
 					completionLatch.countDown();
 				}
-			}
 
-			@Override
-			public void receivedAllData(FcpConnection fcpConnection, AllData allData) {
-				if (!allData.getIdentifier().equals(identifier)) {
-					return;
+				@Override
+				public void receivedAllData(FcpConnection fcpConnection, AllData allData) {
+					if (!allData.getIdentifier().equals(identifier)) {
+						return;
+					}
+					if (targetFile == null) {
+						getResult.success(true).contentType(allData.getContentType()).contentLength(allData.getDataLength()).inputStream(allData.getPayloadInputStream());
+					} else if (targetFile.length() == allData.getDataLength()) {
+						getResult.success(true).contentType(allData.getContentType()).contentLength(allData.getDataLength());
+					} else {
+						getResult.success(false).exception(new IOException("could not write " + targetFile));
+					}
+					completionLatch.countDown();
 				}
-				getResult.success(true).contentType(allData.getContentType()).contentLength(allData.getDataLength()).inputStream(allData.getPayloadInputStream());
-				completionLatch.countDown();
-			}
 
-		}.execute();
+			}.execute();
+		} finally {
+			fcpConnection.setPayloadFile(identifier, null);
+		}
 		return getResult;
 	}
 
@@ -392,10 +727,16 @@ public class FcpClient implements Closeable {
 	 * Disconnects the FCP client.
 	 */
 	public void disconnect() {
+		List<FcpConnection> connections;
 		synchronized (syncObject) {
-			fcpConnection.close();
+			connections = new ArrayList<FcpConnection>(bulkConnections);
 			syncObject.notifyAll();
 		}
+		/* close outside of any lock, closing needs the connection’s lock. */
+		for (FcpConnection bulkConnection : connections) {
+			bulkConnection.close();
+		}
+		fcpConnection.close();
 	}
 
 	/**
@@ -442,7 +783,7 @@ public class FcpClient implements Closeable {
 	 */
 	public Collection<Peer> getPeers(final boolean withMetadata, final boolean withVolatile) throws IOException, FcpException {
 		final Set<Peer> peers = Collections.synchronizedSet(new HashSet<Peer>());
-		new ExtendedFcpAdapter() {
+		new ExtendedFcpAdapter(true) {
 
 			/** The ID of the “ListPeers” request. */
 			@SuppressWarnings("synthetic-access")
@@ -454,7 +795,7 @@ public class FcpClient implements Closeable {
 			@Override
 			@SuppressWarnings("synthetic-access")
 			public void run() throws IOException {
-				fcpConnection.sendMessage(new ListPeers(identifier, withMetadata, withVolatile));
+				sendMessage(new ListPeers(identifier, withMetadata, withVolatile));
 			}
 
 			/**
@@ -632,7 +973,7 @@ public class FcpClient implements Closeable {
 			@Override
 			@SuppressWarnings("synthetic-access")
 			public void run() throws IOException {
-				fcpConnection.sendMessage(addPeer);
+				sendMessage(addPeer);
 			}
 
 			/**
@@ -675,7 +1016,7 @@ public class FcpClient implements Closeable {
 			@Override
 			@SuppressWarnings("synthetic-access")
 			public void run() throws IOException {
-				fcpConnection.sendMessage(new ModifyPeer(peer.getIdentity(), allowLocalAddresses, disabled, listenOnly));
+				sendMessage(new ModifyPeer(peer.getIdentity(), allowLocalAddresses, disabled, listenOnly));
 			}
 
 			/**
@@ -707,7 +1048,7 @@ public class FcpClient implements Closeable {
 			@Override
 			@SuppressWarnings("synthetic-access")
 			public void run() throws IOException {
-				fcpConnection.sendMessage(new RemovePeer(peer.getIdentity()));
+				sendMessage(new RemovePeer(peer.getIdentity()));
 			}
 
 			/**
@@ -737,7 +1078,7 @@ public class FcpClient implements Closeable {
 	 */
 	public PeerNote getPeerNote(final Peer peer) throws IOException, FcpException {
 		final AtomicReference<PeerNote> objectWrapper = new AtomicReference<PeerNote>();
-		new ExtendedFcpAdapter() {
+		new ExtendedFcpAdapter(true) {
 
 			/**
 			 * {@inheritDoc}
@@ -745,7 +1086,7 @@ public class FcpClient implements Closeable {
 			@Override
 			@SuppressWarnings("synthetic-access")
 			public void run() throws IOException {
-				fcpConnection.sendMessage(new ListPeerNotes(peer.getIdentity()));
+				sendMessage(new ListPeerNotes(peer.getIdentity()));
 			}
 
 			/**
@@ -793,7 +1134,7 @@ public class FcpClient implements Closeable {
 			@Override
 			@SuppressWarnings("synthetic-access")
 			public void run() throws IOException {
-				fcpConnection.sendMessage(new ModifyPeerNote(peer.getIdentity(), noteText, noteType));
+				sendMessage(new ModifyPeerNote(peer.getIdentity(), noteText, noteType));
 			}
 
 			/**
@@ -823,7 +1164,7 @@ public class FcpClient implements Closeable {
 	 */
 	public SSKKeypair generateKeyPair() throws IOException, FcpException {
 		final AtomicReference<SSKKeypair> sskKeypairWrapper = new AtomicReference<SSKKeypair>();
-		new ExtendedFcpAdapter() {
+		new ExtendedFcpAdapter(true) {
 
 			/**
 			 * {@inheritDoc}
@@ -831,7 +1172,7 @@ public class FcpClient implements Closeable {
 			@Override
 			@SuppressWarnings("synthetic-access")
 			public void run() throws IOException {
-				fcpConnection.sendMessage(new GenerateSSK());
+				sendMessage(new GenerateSSK());
 			}
 
 			/**
@@ -909,7 +1250,7 @@ public class FcpClient implements Closeable {
 	 */
 	public Collection<Request> getRequests(final boolean global) throws IOException, FcpException {
 		final Map<String, Request> requests = Collections.synchronizedMap(new HashMap<String, Request>());
-		new ExtendedFcpAdapter() {
+		new ExtendedFcpAdapter(true) {
 
 			/**
 			 * {@inheritDoc}
@@ -917,7 +1258,7 @@ public class FcpClient implements Closeable {
 			@Override
 			@SuppressWarnings("synthetic-access")
 			public void run() throws IOException {
-				fcpConnection.sendMessage(new ListPersistentRequests());
+				sendMessage(new ListPersistentRequests());
 			}
 
 			/**
@@ -1011,6 +1352,38 @@ public class FcpClient implements Closeable {
 		return requests.values();
 	}
 
+	/**
+	 * Requests a listing of all persistent requests from the node and waits
+	 * until the listing is complete. The listed requests are only delivered
+	 * to the FCP listeners that have been added to this client.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws FcpException
+	 *             if an FCP error occurs
+	 */
+	void listPersistentRequests() throws IOException, FcpException {
+		new ExtendedFcpAdapter(true) {
+
+			/**
+			 * {@inheritDoc}
+			 */
+			@Override
+			@SuppressWarnings("synthetic-access")
+			public void run() throws IOException {
+				sendMessage(new ListPersistentRequests());
+			}
+
+			/**
+			 * {@inheritDoc}
+			 */
+			@Override
+			public void receivedEndListPersistentRequests(FcpConnection fcpConnection, EndListPersistentRequests endListPersistentRequests) {
+				completionLatch.countDown();
+			}
+		}.execute();
+	}
+
 	/**
 	 * Sends a message to a plugin and waits for the response.
 	 *
@@ -1066,7 +1439,7 @@ public class FcpClient implements Closeable {
 					fcpPluginMessage.setDataLength(dataLength);
 					fcpPluginMessage.setPayloadInputStream(dataInputStream);
 				}
-				fcpConnection.sendMessage(fcpPluginMessage);
+				sendMessage(fcpPluginMessage);
 			}
 
 			/**
@@ -1106,13 +1479,13 @@ public class FcpClient implements Closeable {
 	 */
 	public NodeData getNodeInformation(final Boolean giveOpennetRef, final Boolean withPrivate, final Boolean withVolatile) throws IOException, FcpException {
 		final AtomicReference<NodeData> nodeDataWrapper = new AtomicReference<NodeData>();
-		new ExtendedFcpAdapter() {
+		new ExtendedFcpAdapter(true) {
 
 			@Override
 			@SuppressWarnings("synthetic-access")
 			public void run() throws IOException {
 				GetNode getNodeMessage = new GetNode(giveOpennetRef, withPrivate, withVolatile);
-				fcpConnection.sendMessage(getNodeMessage);
+				sendMessage(getNodeMessage);
 			}
 
 			/**
@@ -1127,10 +1500,176 @@ public class FcpClient implements Closeable {
 		return nodeDataWrapper.get();
 	}
 
+	//
+	// DIRECT DISK ACCESS
+	//
+
+	/**
+	 * Performs the “TestDDA” handshake for the given directory. To show that
+	 * the node can write to the directory, the client reads the file the node
+	 * has written (“ReadFilename”) and sends its content back; to let the node
+	 * show that it can read from the directory, the client writes the file
+	 * (“WriteFilename”) the node then reads. Files the node names outside of
+	 * the directory are neither read nor written. The granted access is only
+	 * valid for the current connection.
+	 *
+	 * @param directory
+	 *            The directory to test
+	 * @param wantReadDirectory
+	 *            {@code true} to request that the node may read files from the
+	 *            directory
+	 * @param wantWriteDirectory
+	 *            {@code true} to request that the node may write files to the
+	 *            directory
+	 * @return The result of the handshake
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws FcpException
+	 *             if an FCP error occurs
+	 */
+	public TestDDAComplete testDDA(File directory, final boolean wantReadDirectory, final boolean wantWriteDirectory) throws IOException, FcpException {
+		final String directoryName = directory.getAbsolutePath();
+		final File canonicalDirectory = directory.getCanonicalFile();
+		final AtomicReference<TestDDAComplete> testDDACompleteWrapper = new AtomicReference<TestDDAComplete>();
+		final AtomicReference<String> writtenFilename = new AtomicReference<String>();
+		try {
+			new ExtendedFcpAdapter() {
+
+				/**
+				 * {@inheritDoc}
+				 */
+				@Override
+				@SuppressWarnings("synthetic-access")
+				public void run() throws IOException {
+					/* disk access is granted per connection, keep it on control. */
+					fcpConnection.sendMessage(new TestDDARequest(directoryName, wantReadDirectory, wantWriteDirectory));
+				}
+
+				/**
+				 * {@inheritDoc}
+				 */
+				@Override
+				@SuppressWarnings("synthetic-access")
+				public void receivedTestDDAReply(FcpConnection fcpConnection, TestDDAReply testDDAReply) {
+					if (!directoryName.equals(testDDAReply.getDirectory())) {
+						return;
+					}
+					/* local failures are answered, the node then denies access. */
+					String readContent = null;
+					File readFile = getFileInDirectory(canonicalDirectory, testDDAReply.getReadFilename());
+					if (readFile != null) {
+						try {
+							readContent = readFile(readFile);
+						} catch (IOException ioe1) {
+							/* leave the content empty. */
+						}
+					}
+					File writeFile = getFileInDirectory(canonicalDirectory, testDDAReply.getWriteFilename());
+					if (writeFile != null) {
+						writtenFilename.set(writeFile.getPath());
+						try {
+							writeFile(writeFile, testDDAReply.getContentToWrite());
+						} catch (IOException ioe1) {
+							/* the node will not find the content. */
+						}
+					}
+					try {
+						fcpConnection.sendMessage(new TestDDAResponse(directoryName, readContent));
+					} catch (IOException ioe1) {
+						fcpException = new FcpException("Could not send TestDDA response", ioe1);
+						completionLatch.countDown();
+					}
+				}
+
+				/**
+				 * {@inheritDoc}
+				 */
+				@Override
+				public void receivedTestDDAComplete(FcpConnection fcpConnection, TestDDAComplete testDDAComplete) {
+					if (directoryName.equals(testDDAComplete.getDirectory())) {
+						testDDACompleteWrapper.set(testDDAComplete);
+						completionLatch.countDown();
+					}
+				}
+			}.execute();
+		} finally {
+			if (writtenFilename.get() != null) {
+				new File(writtenFilename.get()).delete();
+			}
+		}
+		return testDDACompleteWrapper.get();
+	}
+
 	//
 	// PRIVATE METHODS
 	//
 
+	/**
+	 * Returns the file with the given name if it is located directly in the
+	 * given directory.
+	 *
+	 * @param canonicalDirectory
+	 *            The canonical directory
+	 * @param filename
+	 *            The name of the file (may be {@code null})
+	 * @return The canonical file, or {@code null} if the filename is
+	 *         {@code null} or the file is not located in the directory
+	 */
+	static File getFileInDirectory(File canonicalDirectory, String filename) {
+		if (filename == null) {
+			return null;
+		}
+		try {
+			File canonicalFile = new File(filename).getCanonicalFile();
+			return canonicalDirectory.equals(canonicalFile.getParentFile()) ? canonicalFile : null;
+		} catch (IOException ioe1) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the content of the given file as UTF-8 text.
+	 *
+	 * @param file
+	 *            The file to read
+	 * @return The content of the file
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private static String readFile(File file) throws IOException {
+		Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try {
+			StringBuilder content = new StringBuilder();
+			char[] buffer = new char[1024];
+			int read;
+			while ((read = reader.read(buffer)) != -1) {
+				content.append(buffer, 0, read);
+			}
+			return content.toString();
+		} finally {
+			FcpUtils.close(reader);
+		}
+	}
+
+	/**
+	 * Writes the given content to the given file as UTF-8 text.
+	 *
+	 * @param file
+	 *            The file to write
+	 * @param content
+	 *            The content to write
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private static void writeFile(File file, String content) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			writer.write((content == null) ? "" : content);
+		} finally {
+			FcpUtils.close(writer);
+		}
+	}
+
 	/**
 	 * Creates a unique request identifier.
 	 *
@@ -1138,10 +1677,136 @@ public class FcpClient implements Closeable {
 	 *            The basename of the request
 	 * @return The created request identifier
 	 */
-	private String createIdentifier(String basename) {
+	static String createIdentifier(String basename) {
 		return basename + "-" + System.currentTimeMillis() + "-" + (int) (Math.random() * Integer.MAX_VALUE);
 	}
 
+	/**
+	 * Returns whether the given “GetFailed” code means that the data could
+	 * not be found.
+	 *
+	 * @param code
+	 *            The code of the failure
+	 * @return {@code true} if the code means that the data was not found,
+	 *         {@code false} otherwise
+	 */
+	private static boolean isNotFound(int code) {
+		/* DataNotFound, RouteNotFound, AllDataNotFound, RecentlyFailed. */
+		return (code == 13) || (code == 14) || (code == 28) || (code == 30);
+	}
+
+	/**
+	 * Returns whether the given message should be sent over a bulk connection.
+	 *
+	 * @param fcpMessage
+	 *            The message to check
+	 * @return {@code true} if the message is a bulk message, {@code false}
+	 *         otherwise
+	 */
+	private static boolean isBulkMessage(FcpMessage fcpMessage) {
+		String persistence = fcpMessage.getField("Persistence");
+		if ((persistence != null) && !persistence.equals(String.valueOf(Persistence.connection)) && !Boolean.parseBoolean(fcpMessage.getField("Global"))) {
+			/* only the control connection can see its own persistent requests. */
+			return false;
+		}
+		if (usesDiskAccess(fcpMessage)) {
+			/* only the control connection ran the “TestDDA” handshake. */
+			return false;
+		}
+		if ("ClientPutComplexDir".equals(fcpMessage.getName())) {
+			return true;
+		}
+		if (FcpUtils.safeParseLong(fcpMessage.getField("DataLength"), 0) >= BULK_PAYLOAD_SIZE) {
+			return true;
+		}
+		if ("ClientGet".equals(fcpMessage.getName())) {
+			int priority = FcpUtils.safeParseInt(fcpMessage.getField("PriorityClass"), Priority.bulkSplitfile.ordinal());
+			return isDirect(fcpMessage) && (priority >= Priority.bulkSplitfile.ordinal());
+		}
+		return false;
+	}
+
+	/**
+	 * Returns whether the given message lets the node read or write files on
+	 * the disk itself.
+	 *
+	 * @param fcpMessage
+	 *            The message to check
+	 * @return {@code true} if the node accesses the disk for the message,
+	 *         {@code false} otherwise
+	 */
+	private static boolean usesDiskAccess(FcpMessage fcpMessage) {
+		if ("ClientPutDiskDir".equals(fcpMessage.getName()) || String.valueOf(ReturnType.disk).equals(fcpMessage.getField("ReturnType"))) {
+			return true;
+		}
+		if (fcpMessage instanceof StreamingClientPutComplexDir) {
+			return ((StreamingClientPutComplexDir) fcpMessage).getUploadFrom() == UploadFrom.disk;
+		}
+		for (Entry<String, String> field : fcpMessage.getFields().entrySet()) {
+			if ((field.getKey().equals("UploadFrom") || field.getKey().endsWith(".UploadFrom")) && String.valueOf(UploadFrom.disk).equals(field.getValue())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns whether the given message requests its data to be returned
+	 * directly over the connection.
+	 *
+	 * @param fcpMessage
+	 *            The message to check
+	 * @return {@code true} if the data is returned directly, {@code false}
+	 *         otherwise
+	 */
+	private static boolean isDirect(FcpMessage fcpMessage) {
+		String returnType = fcpMessage.getField("ReturnType");
+		return (returnType == null) || "direct".equals(returnType);
+	}
+
+	/**
+	 * Returns the bulk connection with the fewest unfinished requests.
+	 *
+	 * @return The least loaded bulk connection
+	 */
+	private FcpConnection getLeastLoadedBulkConnection() {
+		FcpConnection leastLoadedConnection = null;
+		for (FcpConnection bulkConnection : bulkConnections) {
+			if ((leastLoadedConnection == null) || (bulkConnectionLoads.get(bulkConnection) < bulkConnectionLoads.get(leastLoadedConnection))) {
+				leastLoadedConnection = bulkConnection;
+			}
+		}
+		return leastLoadedConnection;
+	}
+
+	/**
+	 * Handles the end of a request that was sent over a bulk connection.
+	 * Non-persistent requests are forgotten when they finish, persistent
+	 * requests when they are removed.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @param removed
+	 *            {@code true} if the request was removed, {@code false} if it
+	 *            finished
+	 */
+	private void bulkRequestFinished(String identifier, boolean removed) {
+		synchronized (syncObject) {
+			FcpConnection bulkConnection = bulkRequests.get(identifier);
+			if (bulkConnection == null) {
+				return;
+			}
+			if (unfinishedBulkRequests.remove(identifier)) {
+				bulkConnectionLoads.put(bulkConnection, bulkConnectionLoads.get(bulkConnection) - 1);
+			}
+			directBulkRequests.remove(identifier);
+			if (removed || !persistentBulkRequests.contains(identifier)) {
+				bulkRequests.remove(identifier);
+				persistentBulkRequests.remove(identifier);
+			}
+		}
+	}
+
 	/**
 	 * Checks whether the connection is in the required state.
 	 *
@@ -1170,19 +1835,37 @@ public class FcpClient implements Closeable {
 	 *
 	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
 	 */
-	private abstract class ExtendedFcpAdapter extends FcpAdapter {
+	private abstract class ExtendedFcpAdapter extends FcpAdapter implements ReconnectListener {
 
 		/** The count down latch used to wait for completion. */
 		protected final CountDownLatch completionLatch = new CountDownLatch(1);
 
+		/** Whether the commands may be sent again after a reconnect. */
+		private final boolean replayable;
+
 		/** The FCP exception, if any. */
 		protected FcpException fcpException;
 
+		/** Whether the commands were interrupted by a reconnect. */
+		private boolean interrupted;
+
 		/**
-		 * Creates a new extended FCP adapter.
+		 * Creates a new extended FCP adapter whose commands are not sent again
+		 * after a reconnect.
 		 */
 		public ExtendedFcpAdapter() {
-			/* do nothing. */
+			this(false);
+		}
+
+		/**
+		 * Creates a new extended FCP adapter.
+		 *
+		 * @param replayable
+		 *            {@code true} if the commands only read state from the node
+		 *            or can safely be executed twice, {@code false} otherwise
+		 */
+		public ExtendedFcpAdapter(boolean replayable) {
+			this.replayable = replayable;
 		}
 
 		/**
@@ -1197,7 +1880,10 @@ public class FcpClient implements Closeable {
 		@SuppressWarnings("synthetic-access")
 		public void execute() throws IOException, FcpException {
 			checkConnected(true);
-			fcpConnection.addFcpListener(this);
+			addFcpListener(this);
+			if (fcpConnection instanceof ReconnectingFcpConnection) {
+				((ReconnectingFcpConnection) fcpConnection).addReconnectListener(this);
+			}
 			try {
 				run();
 				while (true) {
@@ -1212,10 +1898,15 @@ public class FcpClient implements Closeable {
 				setDisconnected();
 				throw ioe1;
 			} finally {
-				fcpConnection.removeFcpListener(this);
+				removeFcpListener(this);
+				if (fcpConnection instanceof ReconnectingFcpConnection) {
+					((ReconnectingFcpConnection) fcpConnection).removeReconnectListener(this);
+				}
 			}
 			if (fcpException != null) {
-				setDisconnected();
+				if (!interrupted) {
+					setDisconnected();
+				}
 				throw fcpException;
 			}
 		}
@@ -1228,6 +1919,38 @@ public class FcpClient implements Closeable {
 		 */
 		public abstract void run() throws IOException;
 
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void connectionInterrupted(FcpConnection fcpConnection, Throwable throwable) {
+			/* wait for the connection to be restored. */
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * <p>
+		 * The node has forgotten all non-persistent requests of the old
+		 * connection. Replayable commands are sent again; all other commands
+		 * may or may not have been executed by the node, so they fail and the
+		 * caller has to decide whether to send them again.
+		 */
+		@Override
+		public void connectionRestored(FcpConnection fcpConnection) {
+			if (!replayable) {
+				interrupted = true;
+				fcpException = new FcpException("Connection was interrupted, request may not have been executed");
+				completionLatch.countDown();
+				return;
+			}
+			try {
+				run();
+			} catch (IOException ioe1) {
+				fcpException = new FcpException("Could not resend request", ioe1);
+				completionLatch.countDown();
+			}
+		}
+
 		/**
 		 * {@inheritDoc}
 		 */
@@ -1257,4 +1980,107 @@ public class FcpClient implements Closeable {
 
 	}
 
+	/**
+	 * Listener for the bulk connections that releases finished requests and
+	 * disconnects the client if a bulk connection is closed.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private class BulkConnectionListener extends FcpAdapter {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedAllData(FcpConnection fcpConnection, AllData allData) {
+			bulkRequestFinished(allData.getIdentifier(), false);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedDataFound(FcpConnection fcpConnection, DataFound dataFound) {
+			boolean direct;
+			synchronized (syncObject) {
+				direct = directBulkRequests.contains(dataFound.getIdentifier());
+			}
+			/* direct gets are finished only by their AllData message. */
+			if (!direct) {
+				bulkRequestFinished(dataFound.getIdentifier(), false);
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedGetFailed(FcpConnection fcpConnection, GetFailed getFailed) {
+			bulkRequestFinished(getFailed.getIdentifier(), false);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPutSuccessful(FcpConnection fcpConnection, PutSuccessful putSuccessful) {
+			bulkRequestFinished(putSuccessful.getIdentifier(), false);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPutFailed(FcpConnection fcpConnection, PutFailed putFailed) {
+			bulkRequestFinished(putFailed.getIdentifier(), false);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPersistentRequestRemoved(FcpConnection fcpConnection, PersistentRequestRemoved persistentRequestRemoved) {
+			bulkRequestFinished(persistentRequestRemoved.getIdentifier(), true);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void connectionClosed(FcpConnection fcpConnection, Throwable throwable) {
+			synchronized (syncObject) {
+				if (bulkLaneFailed) {
+					return;
+				}
+				bulkLaneFailed = true;
+			}
+			setDisconnected();
+			/*
+			 * this runs while the closed connection is locked, so closing the
+			 * other connections from here could deadlock with another lane
+			 * that is closed at the same time.
+			 */
+			Thread disconnectThread = new Thread(new Runnable() {
+
+				/**
+				 * {@inheritDoc}
+				 */
+				@Override
+				public void run() {
+					disconnect();
+				}
+			}, "FcpClient Disconnect");
+			disconnectThread.setDaemon(true);
+			disconnectThread.start();
+		}
+
+	}
+
 }
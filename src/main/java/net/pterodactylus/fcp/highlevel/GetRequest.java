@@ -34,6 +34,22 @@ public class GetRequest extends Request {
 	 */
 	GetRequest(PersistentGet persistentGet) {
 		super(persistentGet.getIdentifier(), persistentGet.getClientToken(), persistentGet.isGlobal());
+		setPriority(persistentGet.getPriority());
+	}
+
+	/**
+	 * Creates a new get request.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @param clientToken
+	 *            The client token of the request
+	 * @param global
+	 *            <code>true</code> if the request is on the global queue,
+	 *            <code>false</code> otherwise
+	 */
+	GetRequest(String identifier, String clientToken, boolean global) {
+		super(identifier, clientToken, global);
 	}
 
 }
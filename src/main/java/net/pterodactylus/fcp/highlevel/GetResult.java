@@ -51,6 +51,9 @@ public class GetResult {
 	/** An input stream containing the data of the file. */
 	private InputStream inputStream;
 
+	/** Whether the file was found in the node’s data store. */
+	private boolean fromDataStore;
+
 	/**
 	 * Returns whether the request was successful.
 	 *
@@ -204,6 +207,31 @@ public class GetResult {
 		return this;
 	}
 
+	/**
+	 * Returns whether the file was retrieved from the node’s data store only.
+	 * This is only ever {@code true} for results of
+	 * {@link FcpClient#getURIFromDataStoreFirst(String, boolean)}.
+	 *
+	 * @return {@code true} if the file was found in the data store,
+	 *         {@code false} otherwise
+	 */
+	public boolean isFromDataStore() {
+		return fromDataStore;
+	}
+
+	/**
+	 * Sets whether the file was retrieved from the node’s data store only.
+	 *
+	 * @param fromDataStore
+	 *            {@code true} if the file was found in the data store,
+	 *            {@code false} otherwise
+	 * @return This result, to allow method chaining
+	 */
+	GetResult fromDataStore(boolean fromDataStore) {
+		this.fromDataStore = fromDataStore;
+		return this;
+	}
+
 	//
 	// OBJECT METHODS
 	//
@@ -213,7 +241,7 @@ public class GetResult {
 	 */
 	@Override
 	public String toString() {
-		return getClass().getName() + "[success=" + success + ",errorCode=" + errorCode + ",exception=" + exception + ",realUri=" + realUri + ",contentType=" + contentType + ",contentLength=" + contentLength + ",inputStream=" + inputStream + "]";
+		return getClass().getName() + "[success=" + success + ",errorCode=" + errorCode + ",exception=" + exception + ",realUri=" + realUri + ",contentType=" + contentType + ",contentLength=" + contentLength + ",inputStream=" + inputStream + ",fromDataStore=" + fromDataStore + "]";
 	}
 
 }
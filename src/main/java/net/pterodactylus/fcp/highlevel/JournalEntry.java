@@ -0,0 +1,225 @@
+/*
+ * jFCPlib - JournalEntry.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+/**
+ * The state of a single persistent request as recorded by a
+ * {@link RequestJournal}.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class JournalEntry {
+
+	/** The identifier of the request. */
+	private final String identifier;
+
+	/** The URI of the request. */
+	private final String uri;
+
+	/** The client token of the request. */
+	private final String clientToken;
+
+	/** Whether the request is on the global queue. */
+	private final boolean global;
+
+	/** Whether the request is a download. */
+	private final boolean download;
+
+	/** The total number of blocks. */
+	private final int totalBlocks;
+
+	/** The number of required blocks. */
+	private final int requiredBlocks;
+
+	/** The number of succeeded blocks. */
+	private final int succeededBlocks;
+
+	/** Whether the total number of blocks is finalized. */
+	private final boolean finalizedTotal;
+
+	/** Whether the request is complete. */
+	private final boolean complete;
+
+	/** Whether the request has failed. */
+	private final boolean failed;
+
+	/** The error code in case of failure. */
+	private final int errorCode;
+
+	/**
+	 * Creates a new journal entry.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @param uri
+	 *            The URI of the request
+	 * @param clientToken
+	 *            The client token of the request, or {@code null}
+	 * @param global
+	 *            Whether the request is on the global queue
+	 * @param download
+	 *            {@code true} if the request is a download, {@code false} if
+	 *            it is an upload
+	 * @param totalBlocks
+	 *            The total number of blocks
+	 * @param requiredBlocks
+	 *            The number of required blocks
+	 * @param succeededBlocks
+	 *            The number of succeeded blocks
+	 * @param finalizedTotal
+	 *            Whether the total number of blocks is finalized
+	 * @param complete
+	 *            Whether the request is complete
+	 * @param failed
+	 *            Whether the request has failed
+	 * @param errorCode
+	 *            The error code in case of failure
+	 */
+	public JournalEntry(String identifier, String uri, String clientToken, boolean global, boolean download, int totalBlocks, int requiredBlocks, int succeededBlocks, boolean finalizedTotal, boolean complete, boolean failed, int errorCode) {
+		this.identifier = identifier;
+		this.uri = uri;
+		this.clientToken = clientToken;
+		this.global = global;
+		this.download = download;
+		this.totalBlocks = totalBlocks;
+		this.requiredBlocks = requiredBlocks;
+		this.succeededBlocks = succeededBlocks;
+		this.finalizedTotal = finalizedTotal;
+		this.complete = complete;
+		this.failed = failed;
+		this.errorCode = errorCode;
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the identifier of the request.
+	 *
+	 * @return The identifier of the request
+	 */
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	/**
+	 * Returns the URI of the request.
+	 *
+	 * @return The URI of the request
+	 */
+	public String getUri() {
+		return uri;
+	}
+
+	/**
+	 * Returns the client token of the request.
+	 *
+	 * @return The client token of the request, or {@code null}
+	 */
+	public String getClientToken() {
+		return clientToken;
+	}
+
+	/**
+	 * Returns whether the request is on the global queue.
+	 *
+	 * @return {@code true} if the request is on the global queue,
+	 *         {@code false} otherwise
+	 */
+	public boolean isGlobal() {
+		return global;
+	}
+
+	/**
+	 * Returns whether the request is a download.
+	 *
+	 * @return {@code true} if the request is a download, {@code false} if it
+	 *         is an upload
+	 */
+	public boolean isDownload() {
+		return download;
+	}
+
+	/**
+	 * Returns the total number of blocks.
+	 *
+	 * @return The total number of blocks
+	 */
+	public int getTotalBlocks() {
+		return totalBlocks;
+	}
+
+	/**
+	 * Returns the number of required blocks.
+	 *
+	 * @return The number of required blocks
+	 */
+	public int getRequiredBlocks() {
+		return requiredBlocks;
+	}
+
+	/**
+	 * Returns the number of succeeded blocks.
+	 *
+	 * @return The number of succeeded blocks
+	 */
+	public int getSucceededBlocks() {
+		return succeededBlocks;
+	}
+
+	/**
+	 * Returns whether the total number of blocks is finalized.
+	 *
+	 * @return {@code true} if the total number of blocks is finalized,
+	 *         {@code false} otherwise
+	 */
+	public boolean isFinalizedTotal() {
+		return finalizedTotal;
+	}
+
+	/**
+	 * Returns whether the request is complete, i.e. has either succeeded or
+	 * failed.
+	 *
+	 * @return {@code true} if the request is complete, {@code false}
+	 *         otherwise
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Returns whether the request has failed.
+	 *
+	 * @return {@code true} if the request has failed, {@code false} otherwise
+	 */
+	public boolean hasFailed() {
+		return failed;
+	}
+
+	/**
+	 * Returns the error code of the failure.
+	 *
+	 * @return The error code, or {@code 0} if the request has not failed
+	 */
+	public int getErrorCode() {
+		return errorCode;
+	}
+
+}
@@ -0,0 +1,411 @@
+/*
+ * jFCPlib - PeerTable.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.pterodactylus.fcp.FcpAdapter;
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.FcpMessage;
+import net.pterodactylus.fcp.Peer;
+import net.pterodactylus.fcp.PeerRemoved;
+
+/**
+ * Table of the node’s peers that is populated once and then kept up-to-date
+ * from the {@link Peer} and {@link PeerRemoved} messages the node sends, e.g.
+ * in response to {@link FcpClient#addPeer(Peer)} or
+ * {@link FcpClient#modifyPeer(Peer, Boolean, Boolean, Boolean)}. Volatile
+ * peer data can additionally be refreshed periodically using
+ * {@link #startRefresh(long, TimeUnit)}.
+ * <p>
+ * The peers are kept in separate maps for darknet, opennet, and seed peers
+ * so that the category views do not require any communication with the node
+ * or any filtering.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class PeerTable {
+
+	/** The logger. */
+	private static final Logger logger = Logger.getLogger(PeerTable.class.getName());
+
+	/** Object used for synchronization. */
+	private final Object syncObject = new Object();
+
+	/** The FCP client to use. */
+	private final FcpClient fcpClient;
+
+	/** The executor for the periodic refresh. */
+	private final ScheduledExecutorService executorService;
+
+	/** Whether to request peer metadata. */
+	private final boolean withMetadata;
+
+	/** Whether to request volatile peer data. */
+	private final boolean withVolatile;
+
+	/** All peers, by identity. */
+	private final Map<String, Peer> peers = new ConcurrentHashMap<String, Peer>();
+
+	/** Darknet peers, by identity. */
+	private final Map<String, Peer> darknetPeers = new ConcurrentHashMap<String, Peer>();
+
+	/** Opennet peers, by identity. */
+	private final Map<String, Peer> opennetPeers = new ConcurrentHashMap<String, Peer>();
+
+	/** Seed peers, by identity. */
+	private final Map<String, Peer> seedPeers = new ConcurrentHashMap<String, Peer>();
+
+	/** The listener that applies the node’s events to this table. */
+	private final FcpListener eventListener = new PeerEventListener();
+
+	/** Object used to serialize loads. */
+	private final Object loadLock = new Object();
+
+	/** Whether the event listener is currently attached. */
+	private boolean attached;
+
+	/**
+	 * The identities of the peers that were changed by an event while a load
+	 * was in progress, or {@code null} if no load is in progress.
+	 */
+	private Set<String> changedIdentities;
+
+	/** The periodic refresh, if it is running. */
+	private ScheduledFuture<?> refreshFuture;
+
+	/**
+	 * Creates a new peer table.
+	 *
+	 * @param fcpClient
+	 *            The FCP client to use
+	 * @param executorService
+	 *            The executor to run periodic refreshes on
+	 * @param withMetadata
+	 *            <code>true</code> to include peer metadata
+	 * @param withVolatile
+	 *            <code>true</code> to include volatile peer data
+	 */
+	public PeerTable(FcpClient fcpClient, ScheduledExecutorService executorService, boolean withMetadata, boolean withVolatile) {
+		this.fcpClient = fcpClient;
+		this.executorService = executorService;
+		this.withMetadata = withMetadata;
+		this.withVolatile = withVolatile;
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the peer with the given identity.
+	 *
+	 * @param identity
+	 *            The identity of the peer
+	 * @return The peer, or {@code null} if there is no such peer
+	 */
+	public Peer getPeer(String identity) {
+		return peers.get(identity);
+	}
+
+	/**
+	 * Returns all peers. The returned collection is a live view of this table.
+	 *
+	 * @return All peers
+	 */
+	public Collection<Peer> getPeers() {
+		return Collections.unmodifiableCollection(peers.values());
+	}
+
+	/**
+	 * Returns all darknet peers. The returned collection is a live view of
+	 * this table.
+	 *
+	 * @return All darknet peers
+	 */
+	public Collection<Peer> getDarknetPeers() {
+		return Collections.unmodifiableCollection(darknetPeers.values());
+	}
+
+	/**
+	 * Returns all opennet peers. The returned collection is a live view of
+	 * this table.
+	 *
+	 * @return All opennet peers
+	 */
+	public Collection<Peer> getOpennetPeers() {
+		return Collections.unmodifiableCollection(opennetPeers.values());
+	}
+
+	/**
+	 * Returns all seed peers. The returned collection is a live view of this
+	 * table.
+	 *
+	 * @return All seed peers
+	 */
+	public Collection<Peer> getSeedPeers() {
+		return Collections.unmodifiableCollection(seedPeers.values());
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Attaches this table to the FCP client and loads all peers from the node.
+	 * Calling this method again reloads all peers, removing peers the node
+	 * does not know anymore. Peers that are added, changed, or removed by an
+	 * event while the peers are loaded keep the state of the event.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws FcpException
+	 *             if an FCP error occurs
+	 */
+	public void load() throws IOException, FcpException {
+		synchronized (loadLock) {
+			Set<String> unlistedIdentities;
+			synchronized (syncObject) {
+				if (!attached) {
+					fcpClient.addFcpListener(eventListener);
+					attached = true;
+				}
+				unlistedIdentities = new HashSet<String>(peers.keySet());
+				changedIdentities = new HashSet<String>();
+			}
+			try {
+				Collection<Peer> currentPeers = fcpClient.getPeers(withMetadata, withVolatile);
+				synchronized (syncObject) {
+					for (Peer peer : currentPeers) {
+						unlistedIdentities.remove(peer.getIdentity());
+						/* events are newer than the listing. */
+						if (!changedIdentities.contains(peer.getIdentity())) {
+							store(peer);
+						}
+					}
+					for (String identity : unlistedIdentities) {
+						if (!changedIdentities.contains(identity)) {
+							remove(identity);
+						}
+					}
+				}
+			} finally {
+				synchronized (syncObject) {
+					changedIdentities = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts reloading all peers periodically, which keeps volatile peer data
+	 * current. A running refresh is stopped first.
+	 *
+	 * @param interval
+	 *            The interval between refreshes
+	 * @param timeUnit
+	 *            The unit of the interval
+	 */
+	public void startRefresh(long interval, TimeUnit timeUnit) {
+		synchronized (syncObject) {
+			stopRefresh();
+			refreshFuture = executorService.scheduleWithFixedDelay(new Runnable() {
+
+				@Override
+				@SuppressWarnings("synthetic-access")
+				public void run() {
+					try {
+						load();
+					} catch (IOException ioe1) {
+						logger.log(Level.WARNING, "Could not refresh peers!", ioe1);
+					} catch (FcpException fe1) {
+						logger.log(Level.WARNING, "Could not refresh peers!", fe1);
+					}
+				}
+			}, interval, interval, timeUnit);
+		}
+	}
+
+	/**
+	 * Stops the periodic refresh. If no refresh is running, this method does
+	 * nothing.
+	 */
+	public void stopRefresh() {
+		synchronized (syncObject) {
+			if (refreshFuture != null) {
+				refreshFuture.cancel(false);
+				refreshFuture = null;
+			}
+		}
+	}
+
+	/**
+	 * Stops the periodic refresh and detaches this table from the FCP client.
+	 * The table will not be updated anymore but its current content is still
+	 * available.
+	 */
+	public void detach() {
+		synchronized (syncObject) {
+			stopRefresh();
+			fcpClient.removeFcpListener(eventListener);
+			attached = false;
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Stores the given peer. If the new peer does not contain metadata or
+	 * volatile data but the stored peer does, the data of the stored peer is
+	 * kept.
+	 *
+	 * @param peer
+	 *            The peer to store
+	 */
+	private void store(Peer peer) {
+		synchronized (syncObject) {
+			String identity = peer.getIdentity();
+			Peer storedPeer = merge(peers.get(identity), peer);
+			peers.put(identity, storedPeer);
+			Map<String, Peer> categoryPeers = storedPeer.isSeed() ? seedPeers : (storedPeer.isOpennet() ? opennetPeers : darknetPeers);
+			categoryPeers.put(identity, storedPeer);
+			if (categoryPeers != darknetPeers) {
+				darknetPeers.remove(identity);
+			}
+			if (categoryPeers != opennetPeers) {
+				opennetPeers.remove(identity);
+			}
+			if (categoryPeers != seedPeers) {
+				seedPeers.remove(identity);
+			}
+		}
+	}
+
+	/**
+	 * Records that the peer with the given identity was changed by an event,
+	 * if a load is in progress.
+	 *
+	 * @param identity
+	 *            The identity of the peer
+	 */
+	private void markChanged(String identity) {
+		synchronized (syncObject) {
+			if (changedIdentities != null) {
+				changedIdentities.add(identity);
+			}
+		}
+	}
+
+	/**
+	 * Removes the peer with the given identity.
+	 *
+	 * @param identity
+	 *            The identity of the peer
+	 */
+	private void remove(String identity) {
+		synchronized (syncObject) {
+			peers.remove(identity);
+			darknetPeers.remove(identity);
+			opennetPeers.remove(identity);
+			seedPeers.remove(identity);
+		}
+	}
+
+	/**
+	 * Merges the metadata and volatile data of the old peer into the new peer,
+	 * if the new peer does not have any.
+	 *
+	 * @param oldPeer
+	 *            The old peer, may be {@code null}
+	 * @param newPeer
+	 *            The new peer
+	 * @return The merged peer
+	 */
+	private static Peer merge(Peer oldPeer, Peer newPeer) {
+		if (oldPeer == null) {
+			return newPeer;
+		}
+		boolean keepMetadata = newPeer.getMetadataFields().isEmpty() && !oldPeer.getMetadataFields().isEmpty();
+		boolean keepVolatile = newPeer.getVolatileFields().isEmpty() && !oldPeer.getVolatileFields().isEmpty();
+		if (!keepMetadata && !keepVolatile) {
+			return newPeer;
+		}
+		FcpMessage mergedMessage = new FcpMessage(newPeer.getName());
+		for (Entry<String, String> field : newPeer.getFields().entrySet()) {
+			mergedMessage.setField(field.getKey(), field.getValue());
+		}
+		if (keepMetadata) {
+			for (Entry<String, String> field : oldPeer.getMetadataFields().entrySet()) {
+				mergedMessage.setField(field.getKey(), field.getValue());
+			}
+		}
+		if (keepVolatile) {
+			for (Entry<String, String> field : oldPeer.getVolatileFields().entrySet()) {
+				mergedMessage.setField(field.getKey(), field.getValue());
+			}
+		}
+		return new Peer(mergedMessage);
+	}
+
+	/**
+	 * Listener that applies the events sent by the node to the table.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private class PeerEventListener extends FcpAdapter {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPeer(FcpConnection fcpConnection, Peer peer) {
+			if (peer.getIdentity() != null) {
+				markChanged(peer.getIdentity());
+				store(peer);
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPeerRemoved(FcpConnection fcpConnection, PeerRemoved peerRemoved) {
+			markChanged(peerRemoved.getIdentity());
+			remove(peerRemoved.getIdentity());
+		}
+
+	}
+
+}
@@ -0,0 +1,204 @@
+/*
+ * jFCPlib - PersistentRequestAdapter.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import net.pterodactylus.fcp.DataFound;
+import net.pterodactylus.fcp.FcpAdapter;
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.GetFailed;
+import net.pterodactylus.fcp.PersistentGet;
+import net.pterodactylus.fcp.PersistentPut;
+import net.pterodactylus.fcp.PersistentRequestModified;
+import net.pterodactylus.fcp.PersistentRequestRemoved;
+import net.pterodactylus.fcp.Priority;
+import net.pterodactylus.fcp.PutFailed;
+import net.pterodactylus.fcp.PutSuccessful;
+import net.pterodactylus.fcp.SimpleProgress;
+
+/**
+ * Adapter that translates the events the node sends for persistent requests
+ * into changes of the requests’ state. Stores of persistent requests, such as
+ * {@link RequestMirror} and {@link RequestTable}, only have to apply the
+ * changes.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+abstract class PersistentRequestAdapter extends FcpAdapter {
+
+	/**
+	 * Notifies the adapter that the node reported a request.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @param put
+	 *            {@code true} for a put request, {@code false} for a get
+	 *            request
+	 * @param clientToken
+	 *            The client token of the request
+	 * @param global
+	 *            {@code true} if the request is on the global queue
+	 * @param priority
+	 *            The priority of the request
+	 */
+	protected abstract void requestReported(String identifier, boolean put, String clientToken, boolean global, Priority priority);
+
+	/**
+	 * Notifies the adapter that the progress of a request has changed.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @param totalBlocks
+	 *            The total number of blocks
+	 * @param requiredBlocks
+	 *            The number of required blocks
+	 * @param succeededBlocks
+	 *            The number of succeeded blocks
+	 * @param failedBlocks
+	 *            The number of failed blocks
+	 * @param fatallyFailedBlocks
+	 *            The number of fatally failed blocks
+	 * @param finalizedTotal
+	 *            {@code true} if the number of blocks is finalized
+	 */
+	protected abstract void progressChanged(String identifier, int totalBlocks, int requiredBlocks, int succeededBlocks, int failedBlocks, int fatallyFailedBlocks, boolean finalizedTotal);
+
+	/**
+	 * Notifies the adapter that a request has succeeded.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @param dataFound
+	 *            {@code true} if data of a get request was found,
+	 *            {@code false} if a put request succeeded
+	 * @param length
+	 *            The length of the found data
+	 * @param contentType
+	 *            The content type of the found data
+	 */
+	protected abstract void requestSucceeded(String identifier, boolean dataFound, long length, String contentType);
+
+	/**
+	 * Notifies the adapter that a request has failed.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @param fatal
+	 *            {@code true} if the request failed fatally
+	 * @param errorCode
+	 *            The error code
+	 */
+	protected abstract void requestFailed(String identifier, boolean fatal, int errorCode);
+
+	/**
+	 * Notifies the adapter that a request was modified.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @param clientToken
+	 *            The new client token, or {@code null} if it was not changed
+	 * @param priority
+	 *            The new priority, or {@code null} if it was not changed
+	 */
+	protected abstract void requestModified(String identifier, String clientToken, Priority priority);
+
+	/**
+	 * Notifies the adapter that a request was removed.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 */
+	protected abstract void requestRemoved(String identifier);
+
+	//
+	// FCPLISTENER METHODS
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void receivedPersistentGet(FcpConnection fcpConnection, PersistentGet persistentGet) {
+		requestReported(persistentGet.getIdentifier(), false, persistentGet.getClientToken(), persistentGet.isGlobal(), persistentGet.getPriority());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void receivedPersistentPut(FcpConnection fcpConnection, PersistentPut persistentPut) {
+		requestReported(persistentPut.getIdentifier(), true, persistentPut.getClientToken(), persistentPut.isGlobal(), persistentPut.getPriority());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void receivedSimpleProgress(FcpConnection fcpConnection, SimpleProgress simpleProgress) {
+		progressChanged(simpleProgress.getIdentifier(), simpleProgress.getTotal(), simpleProgress.getRequired(), simpleProgress.getSucceeded(), simpleProgress.getFailed(), simpleProgress.getFatallyFailed(), simpleProgress.isFinalizedTotal());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void receivedDataFound(FcpConnection fcpConnection, DataFound dataFound) {
+		requestSucceeded(dataFound.getIdentifier(), true, dataFound.getDataLength(), dataFound.getMetadataContentType());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void receivedGetFailed(FcpConnection fcpConnection, GetFailed getFailed) {
+		requestFailed(getFailed.getIdentifier(), getFailed.isFatal(), getFailed.getCode());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void receivedPutSuccessful(FcpConnection fcpConnection, PutSuccessful putSuccessful) {
+		requestSucceeded(putSuccessful.getIdentifier(), false, 0, null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void receivedPutFailed(FcpConnection fcpConnection, PutFailed putFailed) {
+		requestFailed(putFailed.getIdentifier(), putFailed.isFatal(), putFailed.getCode());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void receivedPersistentRequestModified(FcpConnection fcpConnection, PersistentRequestModified persistentRequestModified) {
+		Priority priority = persistentRequestModified.getPriority();
+		requestModified(persistentRequestModified.getIdentifier(), persistentRequestModified.getClientToken(), (priority != Priority.unknown) ? priority : null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void receivedPersistentRequestRemoved(FcpConnection fcpConnection, PersistentRequestRemoved persistentRequestRemoved) {
+		requestRemoved(persistentRequestRemoved.getIdentifier());
+	}
+
+}
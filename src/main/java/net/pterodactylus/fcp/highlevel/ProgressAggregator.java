@@ -0,0 +1,395 @@
+/*
+ * jFCPlib - ProgressAggregator.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.pterodactylus.fcp.DataFound;
+import net.pterodactylus.fcp.FcpAdapter;
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.GetFailed;
+import net.pterodactylus.fcp.PersistentRequestRemoved;
+import net.pterodactylus.fcp.PutFailed;
+import net.pterodactylus.fcp.PutSuccessful;
+import net.pterodactylus.fcp.SimpleProgress;
+
+/**
+ * Consolidates the {@link SimpleProgress} messages the node sends for
+ * requests with {@link net.pterodactylus.fcp.Verbosity#PROGRESS} verbosity.
+ * Only the block counts of the latest message per request are kept, and at
+ * most one {@link RequestProgress} event per request is emitted to the
+ * {@link ProgressListener}s per interval, and only if the request has made
+ * progress since the last event. Each event carries a smoothed rate of
+ * succeeded blocks and an estimated time until completion.
+ * <p>
+ * Requests are forgotten once they succeed, fail, or are removed. If a
+ * request that succeeds or fails has made progress since its last event, that
+ * progress is emitted before the request is forgotten, so the last event of a
+ * request always shows its final block counts.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class ProgressAggregator {
+
+	/** The logger. */
+	private static final Logger logger = Logger.getLogger(ProgressAggregator.class.getName());
+
+	/** The weight of a new rate in the smoothed rate. */
+	private static final double SMOOTHING = 0.3;
+
+	/** Object used for synchronization. */
+	private final Object syncObject = new Object();
+
+	/** The FCP client to use. */
+	private final FcpClient fcpClient;
+
+	/** The executor to emit events on. */
+	private final ScheduledExecutorService executorService;
+
+	/** The progress of all requests, by identifier. */
+	private final Map<String, ProgressEntry> progressEntries = new HashMap<String, ProgressEntry>();
+
+	/** The progress listeners. */
+	private final List<ProgressListener> progressListeners = new CopyOnWriteArrayList<ProgressListener>();
+
+	/** The listener for progress messages. */
+	private final FcpListener progressMessageListener = new ProgressMessageListener();
+
+	/** The emitting task, if it is running. */
+	private ScheduledFuture<?> emitFuture;
+
+	/**
+	 * Creates a new progress aggregator.
+	 *
+	 * @param fcpClient
+	 *            The FCP client to use
+	 * @param executorService
+	 *            The executor to emit events on
+	 */
+	public ProgressAggregator(FcpClient fcpClient, ScheduledExecutorService executorService) {
+		this.fcpClient = fcpClient;
+		this.executorService = executorService;
+	}
+
+	//
+	// LISTENER MANAGEMENT
+	//
+
+	/**
+	 * Adds the given listener to the list of listeners.
+	 *
+	 * @param progressListener
+	 *            The listener to add
+	 */
+	public void addProgressListener(ProgressListener progressListener) {
+		progressListeners.add(progressListener);
+	}
+
+	/**
+	 * Removes the given listener from the list of listeners.
+	 *
+	 * @param progressListener
+	 *            The listener to remove
+	 */
+	public void removeProgressListener(ProgressListener progressListener) {
+		progressListeners.remove(progressListener);
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the number of requests whose progress is tracked.
+	 *
+	 * @return The number of tracked requests
+	 */
+	public int size() {
+		synchronized (syncObject) {
+			return progressEntries.size();
+		}
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Attaches this aggregator to the FCP client and starts emitting events at
+	 * the given interval. A running aggregator is stopped first.
+	 *
+	 * @param interval
+	 *            The minimum interval between two events for the same request
+	 * @param timeUnit
+	 *            The unit of the interval
+	 */
+	public void start(long interval, TimeUnit timeUnit) {
+		synchronized (syncObject) {
+			stop();
+			fcpClient.addFcpListener(progressMessageListener);
+			emitFuture = executorService.scheduleAtFixedRate(new Runnable() {
+
+				@Override
+				@SuppressWarnings("synthetic-access")
+				public void run() {
+					emitProgress();
+				}
+			}, interval, interval, timeUnit);
+		}
+	}
+
+	/**
+	 * Stops emitting events and detaches this aggregator from the FCP client.
+	 * If the aggregator is not running, this method does nothing.
+	 */
+	public void stop() {
+		synchronized (syncObject) {
+			if (emitFuture != null) {
+				emitFuture.cancel(false);
+				emitFuture = null;
+			}
+			fcpClient.removeFcpListener(progressMessageListener);
+			progressEntries.clear();
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Stores the block counts of the given progress message.
+	 *
+	 * @param simpleProgress
+	 *            The progress message
+	 */
+	private void updateProgress(SimpleProgress simpleProgress) {
+		synchronized (syncObject) {
+			ProgressEntry progressEntry = progressEntries.get(simpleProgress.getIdentifier());
+			if (progressEntry == null) {
+				progressEntry = new ProgressEntry();
+				progressEntry.lastEmitTime = System.currentTimeMillis();
+				progressEntry.lastSucceeded = simpleProgress.getSucceeded();
+				progressEntries.put(simpleProgress.getIdentifier(), progressEntry);
+			}
+			progressEntry.total = simpleProgress.getTotal();
+			progressEntry.required = simpleProgress.getRequired();
+			progressEntry.failed = simpleProgress.getFailed();
+			progressEntry.fatallyFailed = simpleProgress.getFatallyFailed();
+			progressEntry.succeeded = simpleProgress.getSucceeded();
+			progressEntry.finalizedTotal = simpleProgress.isFinalizedTotal();
+			progressEntry.changed = true;
+		}
+	}
+
+	/**
+	 * Forgets the request with the given identifier.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @param flush
+	 *            {@code true} to emit progress the request has made since its
+	 *            last event, {@code false} to discard it
+	 */
+	private void removeProgress(String identifier, boolean flush) {
+		RequestProgress requestProgress = null;
+		synchronized (syncObject) {
+			ProgressEntry progressEntry = progressEntries.remove(identifier);
+			if (flush && (progressEntry != null) && progressEntry.changed) {
+				requestProgress = createProgress(identifier, progressEntry, System.currentTimeMillis());
+			}
+		}
+		if (requestProgress != null) {
+			fireProgressUpdated(requestProgress);
+		}
+	}
+
+	/**
+	 * Emits an event for every request that has made progress since its last
+	 * event.
+	 */
+	private void emitProgress() {
+		List<RequestProgress> requestProgresses = new ArrayList<RequestProgress>();
+		long now = System.currentTimeMillis();
+		synchronized (syncObject) {
+			for (Map.Entry<String, ProgressEntry> entry : progressEntries.entrySet()) {
+				ProgressEntry progressEntry = entry.getValue();
+				if (!progressEntry.changed) {
+					continue;
+				}
+				requestProgresses.add(createProgress(entry.getKey(), progressEntry, now));
+			}
+		}
+		for (RequestProgress requestProgress : requestProgresses) {
+			fireProgressUpdated(requestProgress);
+		}
+	}
+
+	/**
+	 * Creates the event for the current progress of the given request and
+	 * updates its rate.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @param progressEntry
+	 *            The progress of the request
+	 * @param now
+	 *            The current time
+	 * @return The event for the request
+	 */
+	private static RequestProgress createProgress(String identifier, ProgressEntry progressEntry, long now) {
+		long elapsed = Math.max(1, now - progressEntry.lastEmitTime);
+		double currentRate = (progressEntry.succeeded - progressEntry.lastSucceeded) * 1000.0 / elapsed;
+		progressEntry.rate = (progressEntry.rate < 0) ? currentRate : ((1 - SMOOTHING) * progressEntry.rate + SMOOTHING * currentRate);
+		progressEntry.lastSucceeded = progressEntry.succeeded;
+		progressEntry.lastEmitTime = now;
+		progressEntry.changed = false;
+		int remaining = Math.max(0, progressEntry.required - progressEntry.succeeded);
+		long eta = (remaining == 0) ? 0 : ((progressEntry.rate > 0) ? (long) (remaining * 1000 / progressEntry.rate) : -1);
+		return new RequestProgress(identifier, progressEntry.total, progressEntry.required, progressEntry.failed, progressEntry.fatallyFailed, progressEntry.succeeded, progressEntry.finalizedTotal, progressEntry.rate, eta);
+	}
+
+	/**
+	 * Notifies all listeners about the given progress.
+	 *
+	 * @param requestProgress
+	 *            The progress of a request
+	 */
+	private void fireProgressUpdated(RequestProgress requestProgress) {
+		for (ProgressListener progressListener : progressListeners) {
+			try {
+				progressListener.progressUpdated(requestProgress);
+			} catch (RuntimeException re1) {
+				logger.log(Level.WARNING, "Listener threw exception!", re1);
+			}
+		}
+	}
+
+	/**
+	 * The latest block counts of a single request.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private static class ProgressEntry {
+
+		/** The total number of blocks. */
+		int total;
+
+		/** The number of required blocks. */
+		int required;
+
+		/** The number of failed blocks. */
+		int failed;
+
+		/** The number of fatally failed blocks. */
+		int fatallyFailed;
+
+		/** The number of succeeded blocks. */
+		int succeeded;
+
+		/** Whether the total number of blocks is finalized. */
+		boolean finalizedTotal;
+
+		/** Whether the request has made progress since the last event. */
+		boolean changed;
+
+		/** The number of succeeded blocks at the time of the last event. */
+		int lastSucceeded;
+
+		/** The time of the last event. */
+		long lastEmitTime;
+
+		/** The smoothed rate of succeeded blocks, or {@code -1}. */
+		double rate = -1;
+
+	}
+
+	/**
+	 * Listener for progress messages and finished requests.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private class ProgressMessageListener extends FcpAdapter {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedSimpleProgress(FcpConnection fcpConnection, SimpleProgress simpleProgress) {
+			updateProgress(simpleProgress);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedDataFound(FcpConnection fcpConnection, DataFound dataFound) {
+			removeProgress(dataFound.getIdentifier(), true);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedGetFailed(FcpConnection fcpConnection, GetFailed getFailed) {
+			removeProgress(getFailed.getIdentifier(), true);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPutSuccessful(FcpConnection fcpConnection, PutSuccessful putSuccessful) {
+			removeProgress(putSuccessful.getIdentifier(), true);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPutFailed(FcpConnection fcpConnection, PutFailed putFailed) {
+			removeProgress(putFailed.getIdentifier(), true);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPersistentRequestRemoved(FcpConnection fcpConnection, PersistentRequestRemoved persistentRequestRemoved) {
+			removeProgress(persistentRequestRemoved.getIdentifier(), false);
+		}
+
+	}
+
+}
@@ -0,0 +1,39 @@
+/*
+ * jFCPlib - ProgressListener.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.util.EventListener;
+
+/**
+ * Listener for consolidated progress events emitted by a
+ * {@link ProgressAggregator}.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public interface ProgressListener extends EventListener {
+
+	/**
+	 * Notifies a listener that a request has made progress since the last
+	 * event for the request.
+	 *
+	 * @param requestProgress
+	 *            The current progress of the request
+	 */
+	public void progressUpdated(RequestProgress requestProgress);
+
+}
@@ -34,6 +34,22 @@ public class PutRequest extends Request {
 	 */
 	PutRequest(PersistentPut persistentPut) {
 		super(persistentPut.getIdentifier(), persistentPut.getClientToken(), persistentPut.isGlobal());
+		setPriority(persistentPut.getPriority());
+	}
+
+	/**
+	 * Creates a new put request.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @param clientToken
+	 *            The client token of the request
+	 * @param global
+	 *            <code>true</code> if the request is on the global queue,
+	 *            <code>false</code> otherwise
+	 */
+	PutRequest(String identifier, String clientToken, boolean global) {
+		super(identifier, clientToken, global);
 	}
 
 }
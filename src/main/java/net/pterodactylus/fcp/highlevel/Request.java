@@ -19,6 +19,7 @@ package net.pterodactylus.fcp.highlevel;
 
 import net.pterodactylus.fcp.PersistentGet;
 import net.pterodactylus.fcp.PersistentPut;
+import net.pterodactylus.fcp.Priority;
 
 /**
  * Wrapper class around request responses from the node, such as
@@ -37,6 +38,9 @@ public abstract class Request {
 	/** Whether the request is on the global queue. */
 	private final boolean global;
 
+	/** The priority of the request. */
+	private Priority priority = Priority.unknown;
+
 	/** Whether the get request is complete. */
 	private boolean complete;
 
@@ -118,6 +122,26 @@ public abstract class Request {
 		return global;
 	}
 
+	/**
+	 * Returns the priority of the request.
+	 *
+	 * @return The request’s priority, or {@link Priority#unknown} if the
+	 *         priority is not known
+	 */
+	public Priority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Sets the priority of the request.
+	 *
+	 * @param priority
+	 *            The request’s priority
+	 */
+	void setPriority(Priority priority) {
+		this.priority = priority;
+	}
+
 	/**
 	 * Returns whether this request is complete.
 	 *
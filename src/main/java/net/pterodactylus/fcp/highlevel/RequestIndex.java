@@ -0,0 +1,390 @@
+/*
+ * jFCPlib - RequestIndex.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.util.Collections;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import net.pterodactylus.fcp.Priority;
+
+import com.google.common.base.Objects;
+
+/**
+ * Secondary indexes over the requests of a {@link RequestMirror}. The indexes
+ * only store request identifiers; they are modified by the mirror while it
+ * holds its lock but can be read concurrently, and iterating over them never
+ * copies an index.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+class RequestIndex {
+
+	/**
+	 * The completion state of a request.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	enum State {
+
+		/** The request is still running. */
+		running,
+
+		/** The request has finished successfully. */
+		succeeded,
+
+		/** The request has failed. */
+		failed;
+
+		/**
+		 * Returns the state of the given request.
+		 *
+		 * @param request
+		 *            The request to get the state of
+		 * @return The state of the request
+		 */
+		static State of(Request request) {
+			if (!request.isComplete()) {
+				return running;
+			}
+			return request.hasFailed() ? failed : succeeded;
+		}
+
+	}
+
+	/** Identifiers by request type. */
+	private final Index<Boolean> byType = new Index<Boolean>();
+
+	/** Identifiers by completion state. */
+	private final Index<State> byState = new Index<State>();
+
+	/** Identifiers of failed requests by error code. */
+	private final Index<Integer> byErrorCode = new Index<Integer>();
+
+	/** Identifiers by priority. */
+	private final Index<Priority> byPriority = new Index<Priority>();
+
+	/** Identifiers by global flag. */
+	private final Index<Boolean> byGlobal = new Index<Boolean>();
+
+	/** Identifiers by client token. */
+	private final Index<String> byClientToken = new Index<String>();
+
+	/** Identifiers ordered by progress. */
+	private final NavigableSet<ProgressEntry> byProgress = new ConcurrentSkipListSet<ProgressEntry>();
+
+	/**
+	 * Updates the indexes after a request has been replaced.
+	 *
+	 * @param oldRequest
+	 *            The replaced request, or {@code null} if the request was
+	 *            added
+	 * @param newRequest
+	 *            The new request, or {@code null} if the request was removed
+	 */
+	void update(Request oldRequest, Request newRequest) {
+		byType.update(oldRequest, (oldRequest != null) ? (Boolean) (oldRequest instanceof GetRequest) : null, newRequest, (newRequest != null) ? (Boolean) (newRequest instanceof GetRequest) : null);
+		byState.update(oldRequest, (oldRequest != null) ? State.of(oldRequest) : null, newRequest, (newRequest != null) ? State.of(newRequest) : null);
+		byErrorCode.update(oldRequest, errorCode(oldRequest), newRequest, errorCode(newRequest));
+		byPriority.update(oldRequest, (oldRequest != null) ? oldRequest.getPriority() : null, newRequest, (newRequest != null) ? newRequest.getPriority() : null);
+		byGlobal.update(oldRequest, (oldRequest != null) ? (Boolean) oldRequest.isGlobal() : null, newRequest, (newRequest != null) ? (Boolean) newRequest.isGlobal() : null);
+		byClientToken.update(oldRequest, (oldRequest != null) ? oldRequest.getClientToken() : null, newRequest, (newRequest != null) ? newRequest.getClientToken() : null);
+		ProgressEntry oldProgress = (oldRequest != null) ? new ProgressEntry(oldRequest) : null;
+		ProgressEntry newProgress = (newRequest != null) ? new ProgressEntry(newRequest) : null;
+		if (!Objects.equal(oldProgress, newProgress)) {
+			if (oldProgress != null) {
+				byProgress.remove(oldProgress);
+			}
+			if (newProgress != null) {
+				byProgress.add(newProgress);
+			}
+		}
+	}
+
+	/**
+	 * Returns the identifiers of all get requests or all put requests.
+	 *
+	 * @param getRequests
+	 *            {@code true} to return the identifiers of get requests,
+	 *            {@code false} to return the identifiers of put requests
+	 * @return The identifiers of the requests
+	 */
+	Set<String> getByType(boolean getRequests) {
+		return byType.get(getRequests);
+	}
+
+	/**
+	 * Returns the identifiers of all requests in the given state.
+	 *
+	 * @param state
+	 *            The state of the requests
+	 * @return The identifiers of the requests
+	 */
+	Set<String> getByState(State state) {
+		return byState.get(state);
+	}
+
+	/**
+	 * Returns the identifiers of all failed requests with the given error
+	 * code.
+	 *
+	 * @param errorCode
+	 *            The error code of the requests
+	 * @return The identifiers of the requests
+	 */
+	Set<String> getByErrorCode(int errorCode) {
+		return byErrorCode.get(errorCode);
+	}
+
+	/**
+	 * Returns the identifiers of all requests with the given priority.
+	 *
+	 * @param priority
+	 *            The priority of the requests
+	 * @return The identifiers of the requests
+	 */
+	Set<String> getByPriority(Priority priority) {
+		return byPriority.get(priority);
+	}
+
+	/**
+	 * Returns the identifiers of all requests on the global or on the
+	 * client-local queue.
+	 *
+	 * @param global
+	 *            {@code true} to return the requests on the global queue,
+	 *            {@code false} to return the requests on the client-local
+	 *            queue
+	 * @return The identifiers of the requests
+	 */
+	Set<String> getByGlobal(boolean global) {
+		return byGlobal.get(global);
+	}
+
+	/**
+	 * Returns the identifiers of all requests with the given client token.
+	 *
+	 * @param clientToken
+	 *            The client token of the requests
+	 * @return The identifiers of the requests
+	 */
+	Set<String> getByClientToken(String clientToken) {
+		return byClientToken.get(clientToken);
+	}
+
+	/**
+	 * Returns the progress of all requests, ordered by ascending progress.
+	 *
+	 * @return The progress entries of all requests
+	 */
+	NavigableSet<ProgressEntry> getByProgress() {
+		return byProgress;
+	}
+
+	/**
+	 * Returns the progress of all requests whose progress is within the given
+	 * range, ordered by ascending progress. The returned set is a view of the
+	 * index; only the entries within the range are visited.
+	 *
+	 * @param minimumProgress
+	 *            The minimum progress (inclusive)
+	 * @param maximumProgress
+	 *            The maximum progress (inclusive)
+	 * @return The progress entries of the requests within the range
+	 */
+	NavigableSet<ProgressEntry> getByProgress(double minimumProgress, double maximumProgress) {
+		/* the empty identifier sorts before all identifiers of a progress. */
+		ProgressEntry lowerBound = new ProgressEntry(minimumProgress, "");
+		ProgressEntry upperBound = (maximumProgress < minimumProgress) ? lowerBound : new ProgressEntry(Math.nextUp(maximumProgress), "");
+		return byProgress.subSet(lowerBound, true, upperBound, false);
+	}
+
+	/**
+	 * Returns the progress of the given request as fraction of its required
+	 * blocks.
+	 *
+	 * @param request
+	 *            The request
+	 * @return The progress of the request, between {@code 0} and {@code 1}
+	 */
+	static double getProgress(Request request) {
+		if (request.getRequiredBlocks() <= 0) {
+			return 0;
+		}
+		return Math.min(1, request.getSucceededBlocks() / (double) request.getRequiredBlocks());
+	}
+
+	/**
+	 * Returns the error code of the given request if it failed.
+	 *
+	 * @param request
+	 *            The request, may be {@code null}
+	 * @return The error code of the request, or {@code null} if the request
+	 *         is {@code null} or has not failed
+	 */
+	private static Integer errorCode(Request request) {
+		if ((request == null) || (State.of(request) != State.failed)) {
+			return null;
+		}
+		return request.getErrorCode();
+	}
+
+	/**
+	 * A single index that maps an attribute value to the identifiers of the
+	 * requests with that value.
+	 *
+	 * @param <K>
+	 *            The type of the attribute
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private static class Index<K> {
+
+		/** The identifiers by attribute value. */
+		private final ConcurrentMap<K, Set<String>> identifiers = new ConcurrentHashMap<K, Set<String>>();
+
+		/**
+		 * Returns the identifiers of all requests with the given attribute
+		 * value.
+		 *
+		 * @param key
+		 *            The attribute value
+		 * @return The identifiers of the requests
+		 */
+		Set<String> get(K key) {
+			Set<String> keyIdentifiers = identifiers.get(key);
+			return (keyIdentifiers != null) ? Collections.unmodifiableSet(keyIdentifiers) : Collections.<String> emptySet();
+		}
+
+		/**
+		 * Moves a request from the old to the new attribute value.
+		 *
+		 * @param oldRequest
+		 *            The old request, may be {@code null}
+		 * @param oldKey
+		 *            The attribute value of the old request, may be
+		 *            {@code null}
+		 * @param newRequest
+		 *            The new request, may be {@code null}
+		 * @param newKey
+		 *            The attribute value of the new request, may be
+		 *            {@code null}
+		 */
+		void update(Request oldRequest, K oldKey, Request newRequest, K newKey) {
+			if (Objects.equal(oldKey, newKey)) {
+				return;
+			}
+			if (oldKey != null) {
+				Set<String> keyIdentifiers = identifiers.get(oldKey);
+				if (keyIdentifiers != null) {
+					keyIdentifiers.remove(oldRequest.getIdentifier());
+					if (keyIdentifiers.isEmpty()) {
+						identifiers.remove(oldKey);
+					}
+				}
+			}
+			if (newKey != null) {
+				Set<String> keyIdentifiers = identifiers.get(newKey);
+				if (keyIdentifiers == null) {
+					keyIdentifiers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+					identifiers.put(newKey, keyIdentifiers);
+				}
+				keyIdentifiers.add(newRequest.getIdentifier());
+			}
+		}
+
+	}
+
+	/**
+	 * Entry of the progress index.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	static class ProgressEntry implements Comparable<ProgressEntry> {
+
+		/** The progress of the request. */
+		private final double progress;
+
+		/** The identifier of the request. */
+		private final String identifier;
+
+		/**
+		 * Creates a new progress entry for the given request.
+		 *
+		 * @param request
+		 *            The request
+		 */
+		ProgressEntry(Request request) {
+			this(getProgress(request), request.getIdentifier());
+		}
+
+		/**
+		 * Creates a new progress entry.
+		 *
+		 * @param progress
+		 *            The progress of the request
+		 * @param identifier
+		 *            The identifier of the request
+		 */
+		ProgressEntry(double progress, String identifier) {
+			this.progress = progress;
+			this.identifier = identifier;
+		}
+
+		/**
+		 * Returns the identifier of the request.
+		 *
+		 * @return The identifier of the request
+		 */
+		String getIdentifier() {
+			return identifier;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int compareTo(ProgressEntry progressEntry) {
+			int result = Double.compare(progress, progressEntry.progress);
+			return (result != 0) ? result : identifier.compareTo(progressEntry.identifier);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof ProgressEntry)) {
+				return false;
+			}
+			return compareTo((ProgressEntry) object) == 0;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(progress, identifier);
+		}
+
+	}
+
+}
@@ -0,0 +1,644 @@
+/*
+ * jFCPlib - RequestJournal.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.pterodactylus.fcp.DataFound;
+import net.pterodactylus.fcp.FcpAdapter;
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.FcpUtils;
+import net.pterodactylus.fcp.GetFailed;
+import net.pterodactylus.fcp.GetRequestStatus;
+import net.pterodactylus.fcp.Persistence;
+import net.pterodactylus.fcp.PersistentGet;
+import net.pterodactylus.fcp.PersistentPut;
+import net.pterodactylus.fcp.PersistentPutDir;
+import net.pterodactylus.fcp.PersistentRequestModified;
+import net.pterodactylus.fcp.PersistentRequestRemoved;
+import net.pterodactylus.fcp.ProtocolError;
+import net.pterodactylus.fcp.PutFailed;
+import net.pterodactylus.fcp.PutSuccessful;
+import net.pterodactylus.fcp.SimpleProgress;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Append-only journal of the persistent requests of a client that allows a
+ * restarted client to resume without listing all persistent requests of the
+ * node. Every event the node sends for a persistent request (the request
+ * itself, its progress, its completion or failure, a changed client token,
+ * and its removal) is appended to the journal as a single line. Once the
+ * journal contains considerably more lines than requests, it is compacted by
+ * writing the current state of every request to a new file that then
+ * replaces the journal.
+ * <p>
+ * When the journal is {@link #open() opened}, it is replayed and compacted.
+ * {@link #reconcile()} then asks the node for the status of every request
+ * that had not finished yet; requests that finished while the client was not
+ * running are updated from the node’s answers, and requests that the node
+ * does not know anymore are removed from the journal. Requests that were
+ * started by other clients while this client was not running are not
+ * discovered this way.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class RequestJournal implements Closeable {
+
+	/** The logger. */
+	private static final Logger logger = Logger.getLogger(RequestJournal.class.getName());
+
+	/** The code of the protocol error for an unknown identifier. */
+	private static final int NO_SUCH_IDENTIFIER = 15;
+
+	/** The minimum number of lines before the journal is compacted. */
+	private static final int MINIMUM_COMPACTION_LINES = 10000;
+
+	/** The ratio of lines to requests above which the journal is compacted. */
+	private static final int COMPACTION_RATIO = 4;
+
+	/** The number of fields of every type of line. */
+	private static final Map<String, Integer> FIELD_COUNTS = ImmutableMap.<String, Integer> builder().put("R", 6).put("P", 6).put("C", 2).put("F", 3).put("T", 3).put("X", 2).build();
+
+	/** Object used for synchronization. */
+	private final Object syncObject = new Object();
+
+	/** The FCP client to use. */
+	private final FcpClient fcpClient;
+
+	/** The journal file. */
+	private final File file;
+
+	/** The journaled requests, by identifier. */
+	private final Map<String, Record> records = new LinkedHashMap<String, Record>();
+
+	/** The listener that journals the node’s events. */
+	private final FcpListener eventListener = new JournalEventListener();
+
+	/** The writer for the journal, if it is open. */
+	private Writer journalWriter;
+
+	/** The number of lines in the journal. */
+	private int journalLines;
+
+	/**
+	 * Creates a new request journal.
+	 *
+	 * @param fcpClient
+	 *            The FCP client to journal the requests of
+	 * @param file
+	 *            The journal file
+	 */
+	public RequestJournal(FcpClient fcpClient, File file) {
+		this.fcpClient = fcpClient;
+		this.file = file;
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the journaled request with the given identifier.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @return The request, or {@code null} if there is no such request
+	 */
+	public JournalEntry getEntry(String identifier) {
+		synchronized (syncObject) {
+			Record record = records.get(identifier);
+			return (record == null) ? null : record.toEntry(identifier);
+		}
+	}
+
+	/**
+	 * Returns all journaled requests.
+	 *
+	 * @return All journaled requests, by identifier
+	 */
+	public Map<String, JournalEntry> getEntries() {
+		Map<String, JournalEntry> entries = new HashMap<String, JournalEntry>();
+		synchronized (syncObject) {
+			for (Map.Entry<String, Record> record : records.entrySet()) {
+				entries.put(record.getKey(), record.getValue().toEntry(record.getKey()));
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Returns the number of journaled requests.
+	 *
+	 * @return The number of journaled requests
+	 */
+	public int size() {
+		synchronized (syncObject) {
+			return records.size();
+		}
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Replays and compacts the journal file, if it exists, and starts
+	 * journaling the events of the FCP client.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void open() throws IOException {
+		synchronized (syncObject) {
+			if (journalWriter != null) {
+				return;
+			}
+			if (file.exists()) {
+				replay();
+			}
+			compact();
+		}
+		fcpClient.addFcpListener(eventListener);
+	}
+
+	/**
+	 * Asks the node for the status of every journaled request that has not
+	 * finished yet. The answers are journaled as they arrive.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void reconcile() throws IOException {
+		List<GetRequestStatus> getRequestStatuses = new ArrayList<GetRequestStatus>();
+		synchronized (syncObject) {
+			for (Map.Entry<String, Record> record : records.entrySet()) {
+				if (!record.getValue().complete) {
+					GetRequestStatus getRequestStatus = new GetRequestStatus(record.getKey());
+					getRequestStatus.setGlobal(record.getValue().global);
+					getRequestStatuses.add(getRequestStatus);
+				}
+			}
+		}
+		for (GetRequestStatus getRequestStatus : getRequestStatuses) {
+			fcpClient.sendMessage(getRequestStatus);
+		}
+	}
+
+	/**
+	 * Rewrites the journal so that it only contains the current state of every
+	 * request.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void compact() throws IOException {
+		synchronized (syncObject) {
+			FcpUtils.close(journalWriter);
+			journalWriter = null;
+			File temporaryFile = new File(file.getPath() + ".tmp");
+			Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporaryFile), "UTF-8"));
+			int lines = 0;
+			try {
+				for (Map.Entry<String, Record> record : records.entrySet()) {
+					for (String[] fields : record.getValue().toFields(record.getKey())) {
+						writeLine(writer, fields);
+						lines++;
+					}
+				}
+			} finally {
+				FcpUtils.close(writer);
+			}
+			if (!temporaryFile.renameTo(file)) {
+				file.delete();
+				if (!temporaryFile.renameTo(file)) {
+					throw new IOException("Could not rename " + temporaryFile + " to " + file);
+				}
+			}
+			journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+			journalLines = lines;
+		}
+	}
+
+	/**
+	 * Writes all buffered progress lines to the journal. All other lines are
+	 * written immediately.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void flush() throws IOException {
+		synchronized (syncObject) {
+			if (journalWriter != null) {
+				journalWriter.flush();
+			}
+		}
+	}
+
+	/**
+	 * Stops journaling the events of the FCP client and closes the journal.
+	 */
+	@Override
+	public void close() {
+		fcpClient.removeFcpListener(eventListener);
+		synchronized (syncObject) {
+			FcpUtils.close(journalWriter);
+			journalWriter = null;
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Applies all lines of the journal file. Lines that can not be parsed,
+	 * such as a partially written last line, are ignored.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private void replay() throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				for (int index = 0; index < fields.length; index++) {
+					fields[index] = unescape(fields[index]);
+				}
+				try {
+					apply(fields);
+				} catch (RuntimeException re1) {
+					logger.log(Level.WARNING, "Invalid journal line: " + line);
+				}
+			}
+		} finally {
+			FcpUtils.close(reader);
+		}
+	}
+
+	/**
+	 * Applies the given line to the journaled requests and appends it to the
+	 * journal. If the journal has grown too large, it is compacted.
+	 *
+	 * @param fields
+	 *            The fields of the line
+	 */
+	private void journal(String... fields) {
+		synchronized (syncObject) {
+			if (!apply(fields) || (journalWriter == null)) {
+				return;
+			}
+			try {
+				writeLine(journalWriter, fields);
+				if (!"P".equals(fields[0])) {
+					journalWriter.flush();
+				}
+				if (++journalLines > Math.max(MINIMUM_COMPACTION_LINES, records.size() * COMPACTION_RATIO)) {
+					compact();
+				}
+			} catch (IOException ioe1) {
+				logger.log(Level.WARNING, "Could not write journal!", ioe1);
+			}
+		}
+	}
+
+	/**
+	 * Applies the given line to the journaled requests.
+	 *
+	 * @param fields
+	 *            The fields of the line
+	 * @return {@code true} if the line changed a request, {@code false} if
+	 *         the line refers to an unknown request
+	 */
+	private boolean apply(String[] fields) {
+		String type = fields[0];
+		Integer fieldCount = FIELD_COUNTS.get(type);
+		if ((fieldCount == null) || (fields.length != fieldCount)) {
+			throw new IllegalArgumentException("invalid line: " + Arrays.toString(fields));
+		}
+		String identifier = fields[1];
+		if ("R".equals(type)) {
+			Record record = records.get(identifier);
+			if (record == null) {
+				record = new Record();
+				records.put(identifier, record);
+			}
+			record.uri = fields[2];
+			record.clientToken = (fields[3].length() == 0) ? null : fields[3];
+			record.global = Boolean.parseBoolean(fields[4]);
+			record.download = Boolean.parseBoolean(fields[5]);
+			return true;
+		}
+		if ("X".equals(type)) {
+			return records.remove(identifier) != null;
+		}
+		Record record = records.get(identifier);
+		if (record == null) {
+			return false;
+		}
+		if ("P".equals(type)) {
+			record.totalBlocks = Integer.parseInt(fields[2]);
+			record.requiredBlocks = Integer.parseInt(fields[3]);
+			record.succeededBlocks = Integer.parseInt(fields[4]);
+			record.finalizedTotal = Boolean.parseBoolean(fields[5]);
+		} else if ("C".equals(type)) {
+			record.complete = true;
+		} else if ("F".equals(type)) {
+			record.complete = true;
+			record.failed = true;
+			record.errorCode = Integer.parseInt(fields[2]);
+		} else if ("T".equals(type)) {
+			record.clientToken = (fields[2].length() == 0) ? null : fields[2];
+		}
+		return true;
+	}
+
+	//
+	// STATIC METHODS
+	//
+
+	/**
+	 * Writes the given fields as a single line.
+	 *
+	 * @param writer
+	 *            The writer to write to
+	 * @param fields
+	 *            The fields to write
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private static void writeLine(Writer writer, String[] fields) throws IOException {
+		StringBuilder line = new StringBuilder();
+		for (String field : fields) {
+			if (line.length() > 0) {
+				line.append('\t');
+			}
+			line.append(escape(field));
+		}
+		writer.write(line.append('\n').toString());
+	}
+
+	/**
+	 * Escapes backslashes, tabs, and line breaks in the given field.
+	 *
+	 * @param field
+	 *            The field to escape
+	 * @return The escaped field
+	 */
+	private static String escape(String field) {
+		if (field == null) {
+			return "";
+		}
+		return field.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	/**
+	 * Reverts the escaping of {@link #escape(String)}.
+	 *
+	 * @param field
+	 *            The escaped field
+	 * @return The unescaped field
+	 */
+	private static String unescape(String field) {
+		if (field.indexOf('\\') == -1) {
+			return field;
+		}
+		StringBuilder unescaped = new StringBuilder();
+		for (int index = 0; index < field.length(); index++) {
+			char character = field.charAt(index);
+			if ((character == '\\') && (index + 1 < field.length())) {
+				char escaped = field.charAt(++index);
+				unescaped.append((escaped == 't') ? '\t' : (escaped == 'n') ? '\n' : (escaped == 'r') ? '\r' : escaped);
+			} else {
+				unescaped.append(character);
+			}
+		}
+		return unescaped.toString();
+	}
+
+	/**
+	 * The mutable state of a journaled request.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private static class Record {
+
+		/** The URI of the request. */
+		String uri;
+
+		/** The client token of the request. */
+		String clientToken;
+
+		/** Whether the request is on the global queue. */
+		boolean global;
+
+		/** Whether the request is a download. */
+		boolean download;
+
+		/** The total number of blocks. */
+		int totalBlocks;
+
+		/** The number of required blocks. */
+		int requiredBlocks;
+
+		/** The number of succeeded blocks. */
+		int succeededBlocks;
+
+		/** Whether the total number of blocks is finalized. */
+		boolean finalizedTotal;
+
+		/** Whether the request is complete. */
+		boolean complete;
+
+		/** Whether the request has failed. */
+		boolean failed;
+
+		/** The error code in case of failure. */
+		int errorCode;
+
+		/**
+		 * Creates a journal entry from this record.
+		 *
+		 * @param identifier
+		 *            The identifier of the request
+		 * @return The journal entry
+		 */
+		JournalEntry toEntry(String identifier) {
+			return new JournalEntry(identifier, uri, clientToken, global, download, totalBlocks, requiredBlocks, succeededBlocks, finalizedTotal, complete, failed, errorCode);
+		}
+
+		/**
+		 * Returns the lines that restore this record.
+		 *
+		 * @param identifier
+		 *            The identifier of the request
+		 * @return The fields of the lines that restore this record
+		 */
+		List<String[]> toFields(String identifier) {
+			List<String[]> lines = new ArrayList<String[]>();
+			lines.add(new String[] { "R", identifier, uri, clientToken, String.valueOf(global), String.valueOf(download) });
+			if (totalBlocks > 0) {
+				lines.add(new String[] { "P", identifier, String.valueOf(totalBlocks), String.valueOf(requiredBlocks), String.valueOf(succeededBlocks), String.valueOf(finalizedTotal) });
+			}
+			if (failed) {
+				lines.add(new String[] { "F", identifier, String.valueOf(errorCode) });
+			} else if (complete) {
+				lines.add(new String[] { "C", identifier });
+			}
+			return lines;
+		}
+
+	}
+
+	/**
+	 * Listener that journals the events sent by the node.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private class JournalEventListener extends FcpAdapter {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPersistentGet(FcpConnection fcpConnection, PersistentGet persistentGet) {
+			if (persistentGet.getPersistence() != Persistence.connection) {
+				journal("R", persistentGet.getIdentifier(), persistentGet.getURI(), persistentGet.getClientToken(), String.valueOf(persistentGet.isGlobal()), "true");
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPersistentPut(FcpConnection fcpConnection, PersistentPut persistentPut) {
+			if (persistentPut.getPersistence() != Persistence.connection) {
+				journal("R", persistentPut.getIdentifier(), persistentPut.getURI(), persistentPut.getClientToken(), String.valueOf(persistentPut.isGlobal()), "false");
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPersistentPutDir(FcpConnection fcpConnection, PersistentPutDir persistentPutDir) {
+			journal("R", persistentPutDir.getIdentifier(), persistentPutDir.getURI(), persistentPutDir.getField("ClientToken"), String.valueOf(persistentPutDir.isGlobal()), "false");
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedSimpleProgress(FcpConnection fcpConnection, SimpleProgress simpleProgress) {
+			journal("P", simpleProgress.getIdentifier(), String.valueOf(simpleProgress.getTotal()), String.valueOf(simpleProgress.getRequired()), String.valueOf(simpleProgress.getSucceeded()), String.valueOf(simpleProgress.isFinalizedTotal()));
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedDataFound(FcpConnection fcpConnection, DataFound dataFound) {
+			journal("C", dataFound.getIdentifier());
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedGetFailed(FcpConnection fcpConnection, GetFailed getFailed) {
+			journal("F", getFailed.getIdentifier(), String.valueOf(getFailed.getCode()));
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPutSuccessful(FcpConnection fcpConnection, PutSuccessful putSuccessful) {
+			journal("C", putSuccessful.getIdentifier());
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPutFailed(FcpConnection fcpConnection, PutFailed putFailed) {
+			journal("F", putFailed.getIdentifier(), String.valueOf(putFailed.getCode()));
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPersistentRequestModified(FcpConnection fcpConnection, PersistentRequestModified persistentRequestModified) {
+			if (persistentRequestModified.getClientToken() != null) {
+				journal("T", persistentRequestModified.getIdentifier(), persistentRequestModified.getClientToken());
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPersistentRequestRemoved(FcpConnection fcpConnection, PersistentRequestRemoved persistentRequestRemoved) {
+			journal("X", persistentRequestRemoved.getIdentifier());
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedProtocolError(FcpConnection fcpConnection, ProtocolError protocolError) {
+			if ((protocolError.getCode() == NO_SUCH_IDENTIFIER) && (protocolError.getIdentifier() != null)) {
+				journal("X", protocolError.getIdentifier());
+			}
+		}
+
+	}
+
+}
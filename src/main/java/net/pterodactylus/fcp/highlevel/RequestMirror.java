@@ -0,0 +1,583 @@
+/*
+ * jFCPlib - RequestMirror.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.ListPersistentRequests;
+import net.pterodactylus.fcp.Priority;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+
+/**
+ * Mirror of the node’s persistent requests that is loaded once using
+ * {@link ListPersistentRequests} and is then kept up-to-date from the events
+ * the node sends for watched requests (see
+ * {@link FcpClient#connect(String)}).
+ * <p>
+ * {@link Request} objects stored in the mirror are never modified once they
+ * have been stored; every event replaces the affected request with an updated
+ * copy. Requests returned by this mirror and snapshots created by
+ * {@link #getSnapshot()} are therefore consistent and can be used without
+ * further synchronization. Snapshots are made of a fixed number of immutable
+ * segments, and only the segments that contain changed requests are copied
+ * when a new snapshot is created, so that a steady stream of progress events
+ * does not make every snapshot copy the whole mirror.
+ * <p>
+ * The mirror maintains secondary indexes over the requests that are used by
+ * {@link RequestQuery queries}.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class RequestMirror {
+
+	/** The number of snapshot segments, a power of two. */
+	private static final int SEGMENT_COUNT = 256;
+
+	/** Object used for synchronization of modifications. */
+	private final Object syncObject = new Object();
+
+	/** The FCP client to use. */
+	private final FcpClient fcpClient;
+
+	/** The mirrored requests, by identifier. */
+	private final Map<String, Request> requests = new ConcurrentHashMap<String, Request>();
+
+	/** The secondary indexes. */
+	private final RequestIndex requestIndex = new RequestIndex();
+
+	/** The segments of the last created snapshot. */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final ImmutableMap<String, Request>[] segments = new ImmutableMap[SEGMENT_COUNT];
+
+	/**
+	 * The identifiers of the requests that changed since the last snapshot was
+	 * created, by segment; {@code null} for unchanged segments.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final Set<String>[] changedIdentifiers = new Set[SEGMENT_COUNT];
+
+	/** The last created snapshot, or {@code null} if it is outdated. */
+	private Snapshot snapshot;
+
+	/**
+	 * The identifiers of the requests that have not been reported by the node
+	 * during the current {@link #load()}, or {@code null} if no load is in
+	 * progress.
+	 */
+	private Set<String> unreportedIdentifiers;
+
+	/** Object used to serialize loads. */
+	private final Object loadLock = new Object();
+
+	/** The listener that applies the node’s events to this mirror. */
+	private final FcpListener eventListener = new RequestEventListener();
+
+	/** Whether the event listener is currently attached. */
+	private boolean attached;
+
+	/**
+	 * Creates a new request mirror.
+	 *
+	 * @param fcpClient
+	 *            The FCP client to mirror the requests of
+	 */
+	public RequestMirror(FcpClient fcpClient) {
+		this.fcpClient = fcpClient;
+		Arrays.fill(segments, ImmutableMap.<String, Request> of());
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the request with the given identifier.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @return The request with the given identifier, or {@code null} if there
+	 *         is no such request
+	 */
+	public Request getRequest(String identifier) {
+		return requests.get(identifier);
+	}
+
+	/**
+	 * Returns the number of mirrored requests.
+	 *
+	 * @return The number of mirrored requests
+	 */
+	public int size() {
+		return requests.size();
+	}
+
+	/**
+	 * Returns a consistent, unmodifiable snapshot of all mirrored requests.
+	 * The snapshot is only recreated if the mirror has changed since the last
+	 * snapshot was created, and only the segments of the snapshot that
+	 * contain changed requests are copied.
+	 *
+	 * @return A snapshot of all mirrored requests, by identifier
+	 */
+	public Map<String, Request> getSnapshot() {
+		synchronized (syncObject) {
+			if (snapshot == null) {
+				for (int segment = 0; segment < SEGMENT_COUNT; segment++) {
+					if (changedIdentifiers[segment] != null) {
+						segments[segment] = updateSegment(segments[segment], changedIdentifiers[segment]);
+						changedIdentifiers[segment] = null;
+					}
+				}
+				snapshot = new Snapshot(segments.clone(), requests.size());
+			}
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Returns all mirrored requests.
+	 *
+	 * @return All mirrored requests
+	 */
+	public Collection<Request> getRequests() {
+		return getSnapshot().values();
+	}
+
+	/**
+	 * Creates a new query over the mirrored requests.
+	 *
+	 * @return A new query that matches all requests
+	 */
+	public RequestQuery query() {
+		return new RequestQuery(this, requestIndex);
+	}
+
+	/**
+	 * Returns the identifiers of all mirrored requests. The returned set is a
+	 * live view of the mirror.
+	 *
+	 * @return The identifiers of all mirrored requests
+	 */
+	Set<String> getIdentifiers() {
+		return Collections.unmodifiableSet(requests.keySet());
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Attaches this mirror to the FCP client and loads all persistent
+	 * requests from the node. Afterwards the mirror is only updated from the
+	 * events the node sends. Calling this method again reloads all requests;
+	 * requests that were mirrored before the reload but are not reported by
+	 * the node anymore are removed, and the progress of requests that are
+	 * reported again is kept.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws FcpException
+	 *             if an FCP error occurs
+	 */
+	public void load() throws IOException, FcpException {
+		synchronized (loadLock) {
+			synchronized (syncObject) {
+				if (!attached) {
+					fcpClient.addFcpListener(eventListener);
+					attached = true;
+				}
+				unreportedIdentifiers = new HashSet<String>(requests.keySet());
+			}
+			try {
+				fcpClient.listPersistentRequests();
+				synchronized (syncObject) {
+					for (String identifier : unreportedIdentifiers) {
+						remove(identifier);
+					}
+				}
+			} finally {
+				synchronized (syncObject) {
+					unreportedIdentifiers = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Detaches this mirror from the FCP client. The mirror will not be updated
+	 * anymore but its current content is still available.
+	 */
+	public void detach() {
+		synchronized (syncObject) {
+			fcpClient.removeFcpListener(eventListener);
+			attached = false;
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Stores the given request, replacing a request with the same identifier.
+	 *
+	 * @param request
+	 *            The request to store
+	 */
+	private void store(Request request) {
+		synchronized (syncObject) {
+			Request oldRequest = requests.put(request.getIdentifier(), request);
+			requestIndex.update(oldRequest, request);
+			markChanged(request.getIdentifier());
+		}
+	}
+
+	/**
+	 * Removes the request with the given identifier.
+	 *
+	 * @param identifier
+	 *            The identifier of the request to remove
+	 */
+	private void remove(String identifier) {
+		synchronized (syncObject) {
+			Request oldRequest = requests.remove(identifier);
+			if (oldRequest != null) {
+				requestIndex.update(oldRequest, null);
+				markChanged(identifier);
+			}
+		}
+	}
+
+	/**
+	 * Marks the request with the given identifier as changed since the last
+	 * snapshot. The caller has to hold the lock on {@link #syncObject}.
+	 *
+	 * @param identifier
+	 *            The identifier of the changed request
+	 */
+	private void markChanged(String identifier) {
+		int segment = getSegment(identifier);
+		if (changedIdentifiers[segment] == null) {
+			changedIdentifiers[segment] = new HashSet<String>();
+		}
+		changedIdentifiers[segment].add(identifier);
+		snapshot = null;
+	}
+
+	/**
+	 * Creates a copy of the given snapshot segment with the current state of
+	 * the given changed requests.
+	 *
+	 * @param segment
+	 *            The segment of the last snapshot
+	 * @param changedIdentifiers
+	 *            The identifiers of the requests of the segment that changed
+	 * @return The updated segment
+	 */
+	private ImmutableMap<String, Request> updateSegment(ImmutableMap<String, Request> segment, Set<String> changedIdentifiers) {
+		ImmutableMap.Builder<String, Request> segmentBuilder = ImmutableMap.builder();
+		for (Map.Entry<String, Request> request : segment.entrySet()) {
+			if (!changedIdentifiers.contains(request.getKey())) {
+				segmentBuilder.put(request);
+			}
+		}
+		for (String identifier : changedIdentifiers) {
+			Request request = requests.get(identifier);
+			if (request != null) {
+				segmentBuilder.put(identifier, request);
+			}
+		}
+		return segmentBuilder.build();
+	}
+
+	/**
+	 * Returns the snapshot segment of the request with the given identifier.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @return The segment of the request
+	 */
+	private static int getSegment(Object identifier) {
+		int hash = identifier.hashCode();
+		return (hash ^ (hash >>> 16)) & (SEGMENT_COUNT - 1);
+	}
+
+	/**
+	 * Creates a copy of the given request.
+	 *
+	 * @param request
+	 *            The request to copy
+	 * @param clientToken
+	 *            The client token of the copy
+	 * @return The copied request
+	 */
+	private static Request copy(Request request, String clientToken) {
+		Request copy;
+		if (request instanceof GetRequest) {
+			copy = new GetRequest(request.getIdentifier(), clientToken, request.isGlobal());
+		} else {
+			copy = new PutRequest(request.getIdentifier(), clientToken, request.isGlobal());
+		}
+		copy.setPriority(request.getPriority());
+		copy.setComplete(request.isComplete());
+		copy.setFailed(request.hasFailed());
+		copy.setLength(request.getLength());
+		copy.setContentType(request.getContentType());
+		copy.setErrorCode(request.getErrorCode());
+		copy.setFatal(request.isFatal());
+		copy.setTotalBlocks(request.getTotalBlocks());
+		copy.setRequiredBlocks(request.getRequiredBlocks());
+		copy.setSucceededBlocks(request.getSucceededBlocks());
+		copy.setFailedBlocks(request.getFailedBlocks());
+		copy.setFatallyFailedBlocks(request.getFatallyFailedBlocks());
+		copy.setFinalizedTotal(request.isFinalizedTotal());
+		return copy;
+	}
+
+	/**
+	 * Returns a copy of the request with the given identifier that can be
+	 * modified and then {@link #store(Request) stored}.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @return A copy of the request, or {@code null} if there is no request
+	 *         with the given identifier
+	 */
+	private Request copy(String identifier) {
+		Request request = requests.get(identifier);
+		if (request == null) {
+			return null;
+		}
+		return copy(request, request.getClientToken());
+	}
+
+	/**
+	 * Unmodifiable snapshot of the mirror that is made of immutable segments.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private static class Snapshot extends AbstractMap<String, Request> {
+
+		/** The segments of the snapshot. */
+		private final ImmutableMap<String, Request>[] segments;
+
+		/** The number of requests in the snapshot. */
+		private final int size;
+
+		/** The entries of the snapshot. */
+		private final Set<Map.Entry<String, Request>> entrySet = new AbstractSet<Map.Entry<String, Request>>() {
+
+			@Override
+			public Iterator<Map.Entry<String, Request>> iterator() {
+				List<Iterator<Map.Entry<String, Request>>> segmentIterators = new ArrayList<Iterator<Map.Entry<String, Request>>>(segments.length);
+				for (ImmutableMap<String, Request> segment : segments) {
+					segmentIterators.add(segment.entrySet().iterator());
+				}
+				return Iterators.unmodifiableIterator(Iterators.concat(segmentIterators.iterator()));
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+
+		/**
+		 * Creates a new snapshot.
+		 *
+		 * @param segments
+		 *            The segments of the snapshot
+		 * @param size
+		 *            The number of requests in the snapshot
+		 */
+		Snapshot(ImmutableMap<String, Request>[] segments, int size) {
+			this.segments = segments;
+			this.size = size;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public Request get(Object identifier) {
+			return (identifier == null) ? null : segments[getSegment(identifier)].get(identifier);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public boolean containsKey(Object identifier) {
+			return get(identifier) != null;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Set<Map.Entry<String, Request>> entrySet() {
+			return entrySet;
+		}
+
+	}
+
+	/**
+	 * Listener that applies the events sent by the node to the mirror.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private class RequestEventListener extends PersistentRequestAdapter {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		protected void requestReported(String identifier, boolean put, String clientToken, boolean global, Priority priority) {
+			synchronized (syncObject) {
+				if (unreportedIdentifiers != null) {
+					unreportedIdentifiers.remove(identifier);
+				}
+				Request oldRequest = requests.get(identifier);
+				Request request;
+				if ((oldRequest != null) && ((oldRequest instanceof PutRequest) == put) && (oldRequest.isGlobal() == global)) {
+					/* keep the progress that has already been applied. */
+					request = copy(oldRequest, clientToken);
+				} else {
+					request = put ? new PutRequest(identifier, clientToken, global) : new GetRequest(identifier, clientToken, global);
+				}
+				request.setPriority(priority);
+				store(request);
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		protected void progressChanged(String identifier, int totalBlocks, int requiredBlocks, int succeededBlocks, int failedBlocks, int fatallyFailedBlocks, boolean finalizedTotal) {
+			synchronized (syncObject) {
+				Request request = copy(identifier);
+				if (request == null) {
+					return;
+				}
+				request.setTotalBlocks(totalBlocks);
+				request.setRequiredBlocks(requiredBlocks);
+				request.setSucceededBlocks(succeededBlocks);
+				request.setFailedBlocks(failedBlocks);
+				request.setFatallyFailedBlocks(fatallyFailedBlocks);
+				request.setFinalizedTotal(finalizedTotal);
+				store(request);
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		protected void requestSucceeded(String identifier, boolean dataFound, long length, String contentType) {
+			synchronized (syncObject) {
+				Request request = copy(identifier);
+				if (request == null) {
+					return;
+				}
+				request.setComplete(true);
+				if (dataFound) {
+					request.setLength(length);
+					request.setContentType(contentType);
+				}
+				store(request);
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		protected void requestFailed(String identifier, boolean fatal, int errorCode) {
+			synchronized (syncObject) {
+				Request request = copy(identifier);
+				if (request == null) {
+					return;
+				}
+				request.setComplete(true);
+				request.setFailed(true);
+				request.setFatal(fatal);
+				request.setErrorCode(errorCode);
+				store(request);
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		protected void requestModified(String identifier, String clientToken, Priority priority) {
+			synchronized (syncObject) {
+				Request request = requests.get(identifier);
+				if (request == null) {
+					return;
+				}
+				Request modifiedRequest = copy(request, (clientToken != null) ? clientToken : request.getClientToken());
+				if (priority != null) {
+					modifiedRequest.setPriority(priority);
+				}
+				store(modifiedRequest);
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		protected void requestRemoved(String identifier) {
+			remove(identifier);
+		}
+
+	}
+
+}
@@ -0,0 +1,194 @@
+/*
+ * jFCPlib - RequestProgress.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+/**
+ * The progress of a single request, as reported by a
+ * {@link ProgressAggregator}. In addition to the block counts of the latest
+ * {@link net.pterodactylus.fcp.SimpleProgress} message, a progress contains
+ * the rate at which blocks have recently succeeded and the estimated time
+ * until the request is complete.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class RequestProgress {
+
+	/** The identifier of the request. */
+	private final String identifier;
+
+	/** The total number of blocks. */
+	private final int total;
+
+	/** The number of required blocks. */
+	private final int required;
+
+	/** The number of failed blocks. */
+	private final int failed;
+
+	/** The number of fatally failed blocks. */
+	private final int fatallyFailed;
+
+	/** The number of succeeded blocks. */
+	private final int succeeded;
+
+	/** Whether the total number of blocks is finalized. */
+	private final boolean finalizedTotal;
+
+	/** The rate of succeeded blocks (in blocks per second). */
+	private final double rate;
+
+	/** The estimated time until completion (in milliseconds). */
+	private final long eta;
+
+	/**
+	 * Creates a new request progress.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @param total
+	 *            The total number of blocks
+	 * @param required
+	 *            The number of required blocks
+	 * @param failed
+	 *            The number of failed blocks
+	 * @param fatallyFailed
+	 *            The number of fatally failed blocks
+	 * @param succeeded
+	 *            The number of succeeded blocks
+	 * @param finalizedTotal
+	 *            Whether the total number of blocks is finalized
+	 * @param rate
+	 *            The rate of succeeded blocks (in blocks per second)
+	 * @param eta
+	 *            The estimated time until completion (in milliseconds), or
+	 *            {@code -1} if it is unknown
+	 */
+	RequestProgress(String identifier, int total, int required, int failed, int fatallyFailed, int succeeded, boolean finalizedTotal, double rate, long eta) {
+		this.identifier = identifier;
+		this.total = total;
+		this.required = required;
+		this.failed = failed;
+		this.fatallyFailed = fatallyFailed;
+		this.succeeded = succeeded;
+		this.finalizedTotal = finalizedTotal;
+		this.rate = rate;
+		this.eta = eta;
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the identifier of the request.
+	 *
+	 * @return The identifier of the request
+	 */
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	/**
+	 * Returns the total number of blocks.
+	 *
+	 * @return The total number of blocks
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * Returns the number of blocks required to complete the request.
+	 *
+	 * @return The number of required blocks
+	 */
+	public int getRequired() {
+		return required;
+	}
+
+	/**
+	 * Returns the number of failed blocks.
+	 *
+	 * @return The number of failed blocks
+	 */
+	public int getFailed() {
+		return failed;
+	}
+
+	/**
+	 * Returns the number of fatally failed blocks.
+	 *
+	 * @return The number of fatally failed blocks
+	 */
+	public int getFatallyFailed() {
+		return fatallyFailed;
+	}
+
+	/**
+	 * Returns the number of succeeded blocks.
+	 *
+	 * @return The number of succeeded blocks
+	 */
+	public int getSucceeded() {
+		return succeeded;
+	}
+
+	/**
+	 * Returns whether the total number of blocks is finalized. If it is not,
+	 * the {@link #getEta() ETA} is likely too optimistic.
+	 *
+	 * @return {@code true} if the total number of blocks is finalized,
+	 *         {@code false} otherwise
+	 */
+	public boolean isFinalizedTotal() {
+		return finalizedTotal;
+	}
+
+	/**
+	 * Returns the rate at which blocks have recently succeeded.
+	 *
+	 * @return The rate of succeeded blocks (in blocks per second)
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * Returns the estimated time until the request is complete, based on the
+	 * {@link #getRate() rate}.
+	 *
+	 * @return The estimated time until completion (in milliseconds), or
+	 *         {@code -1} if no blocks have succeeded recently
+	 */
+	public long getEta() {
+		return eta;
+	}
+
+	//
+	// OBJECT METHODS
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return getClass().getName() + "[identifier=" + identifier + ",succeeded=" + succeeded + ",required=" + required + ",total=" + total + ",rate=" + rate + ",eta=" + eta + "]";
+	}
+
+}
@@ -0,0 +1,386 @@
+/*
+ * jFCPlib - RequestQuery.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import static com.google.common.collect.FluentIterable.from;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import net.pterodactylus.fcp.Priority;
+import net.pterodactylus.fcp.highlevel.RequestIndex.ProgressEntry;
+import net.pterodactylus.fcp.highlevel.RequestIndex.State;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+
+/**
+ * Query over the requests of a {@link RequestMirror}. A query is created using
+ * {@link RequestMirror#query()} and narrowed down using the filter methods.
+ * Results are never collected into a collection; {@link #iterable()} uses the
+ * most selective index and looks up and filters the requests while they are
+ * iterated, and {@link #getSlowest(int)} and {@link #getFastest(int)} walk the
+ * progress index only as far as necessary. A progress range is applied to the
+ * progress index directly, so requests outside of the range are not visited.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class RequestQuery {
+
+	/** The mirror to query. */
+	private final RequestMirror requestMirror;
+
+	/** The indexes of the mirror. */
+	private final RequestIndex requestIndex;
+
+	/** Whether to return get requests, put requests, or both. */
+	private Boolean getRequests;
+
+	/** The state of the requests to return. */
+	private State state;
+
+	/** The error code of the requests to return. */
+	private Integer errorCode;
+
+	/** The priority of the requests to return. */
+	private Priority priority;
+
+	/** Whether to return global requests, client-local requests, or both. */
+	private Boolean global;
+
+	/** The client token of the requests to return. */
+	private String clientToken;
+
+	/** The minimum progress of the requests to return. */
+	private double minimumProgress = 0;
+
+	/** The maximum progress of the requests to return. */
+	private double maximumProgress = 1;
+
+	/**
+	 * Creates a new query.
+	 *
+	 * @param requestMirror
+	 *            The mirror to query
+	 * @param requestIndex
+	 *            The indexes of the mirror
+	 */
+	RequestQuery(RequestMirror requestMirror, RequestIndex requestIndex) {
+		this.requestMirror = requestMirror;
+		this.requestIndex = requestIndex;
+	}
+
+	//
+	// FILTERS
+	//
+
+	/**
+	 * Restricts this query to get requests.
+	 *
+	 * @return This query
+	 */
+	public RequestQuery getRequests() {
+		getRequests = true;
+		return this;
+	}
+
+	/**
+	 * Restricts this query to put requests.
+	 *
+	 * @return This query
+	 */
+	public RequestQuery putRequests() {
+		getRequests = false;
+		return this;
+	}
+
+	/**
+	 * Restricts this query to requests that are still running.
+	 *
+	 * @return This query
+	 */
+	public RequestQuery running() {
+		state = State.running;
+		return this;
+	}
+
+	/**
+	 * Restricts this query to requests that have finished successfully.
+	 *
+	 * @return This query
+	 */
+	public RequestQuery succeeded() {
+		state = State.succeeded;
+		return this;
+	}
+
+	/**
+	 * Restricts this query to requests that have failed.
+	 *
+	 * @return This query
+	 */
+	public RequestQuery failed() {
+		state = State.failed;
+		return this;
+	}
+
+	/**
+	 * Restricts this query to requests that have failed with the given error
+	 * code.
+	 *
+	 * @param errorCode
+	 *            The error code of the requests
+	 * @return This query
+	 */
+	public RequestQuery errorCode(int errorCode) {
+		state = State.failed;
+		this.errorCode = errorCode;
+		return this;
+	}
+
+	/**
+	 * Restricts this query to requests with the given priority.
+	 *
+	 * @param priority
+	 *            The priority of the requests
+	 * @return This query
+	 */
+	public RequestQuery priority(Priority priority) {
+		this.priority = priority;
+		return this;
+	}
+
+	/**
+	 * Restricts this query to requests on the global or on the client-local
+	 * queue.
+	 *
+	 * @param global
+	 *            {@code true} to only return requests on the global queue,
+	 *            {@code false} to only return requests on the client-local
+	 *            queue
+	 * @return This query
+	 */
+	public RequestQuery global(boolean global) {
+		this.global = global;
+		return this;
+	}
+
+	/**
+	 * Restricts this query to requests with the given client token.
+	 *
+	 * @param clientToken
+	 *            The client token of the requests
+	 * @return This query
+	 */
+	public RequestQuery clientToken(String clientToken) {
+		this.clientToken = clientToken;
+		return this;
+	}
+
+	/**
+	 * Restricts this query to requests whose progress, as fraction of their
+	 * required blocks, is within the given range.
+	 *
+	 * @param minimumProgress
+	 *            The minimum progress (inclusive)
+	 * @param maximumProgress
+	 *            The maximum progress (inclusive)
+	 * @return This query
+	 */
+	public RequestQuery progress(double minimumProgress, double maximumProgress) {
+		this.minimumProgress = minimumProgress;
+		this.maximumProgress = maximumProgress;
+		return this;
+	}
+
+	//
+	// RESULTS
+	//
+
+	/**
+	 * Returns the requests matching this query. The requests are looked up
+	 * lazily while the returned iterable is iterated, reflecting the state of
+	 * the mirror at that time.
+	 *
+	 * @return The matching requests
+	 */
+	public Iterable<Request> iterable() {
+		return from(getCandidates()).transform(new Function<String, Request>() {
+
+			@Override
+			@SuppressWarnings("synthetic-access")
+			public Request apply(String identifier) {
+				return requestMirror.getRequest(identifier);
+			}
+		}).filter(Predicates.and(Predicates.notNull(), createFilter()));
+	}
+
+	/**
+	 * Counts the requests matching this query.
+	 *
+	 * @return The number of matching requests
+	 */
+	public int count() {
+		int count = 0;
+		for (Iterator<Request> requests = iterable().iterator(); requests.hasNext(); requests.next()) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the matching requests that have made the least progress.
+	 *
+	 * @param count
+	 *            The maximum number of requests to return
+	 * @return The slowest matching requests, slowest first
+	 */
+	public List<Request> getSlowest(int count) {
+		return getTop(requestIndex.getByProgress(minimumProgress, maximumProgress).iterator(), count);
+	}
+
+	/**
+	 * Returns the matching requests that have made the most progress.
+	 *
+	 * @param count
+	 *            The maximum number of requests to return
+	 * @return The fastest matching requests, fastest first
+	 */
+	public List<Request> getFastest(int count) {
+		return getTop(requestIndex.getByProgress(minimumProgress, maximumProgress).descendingIterator(), count);
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Returns the first matching requests from the given progress entries.
+	 *
+	 * @param progressEntries
+	 *            The progress entries to check
+	 * @param count
+	 *            The maximum number of requests to return
+	 * @return The first matching requests
+	 */
+	private List<Request> getTop(Iterator<ProgressEntry> progressEntries, int count) {
+		Predicate<Request> filter = createFilter();
+		List<Request> requests = new ArrayList<Request>(Math.min(count, 1024));
+		while (progressEntries.hasNext() && (requests.size() < count)) {
+			Request request = requestMirror.getRequest(progressEntries.next().getIdentifier());
+			if ((request != null) && filter.apply(request)) {
+				requests.add(request);
+			}
+		}
+		return requests;
+	}
+
+	/**
+	 * Returns the smallest set of identifiers from the indexes that can
+	 * satisfy this query. If only the progress is restricted, the identifiers
+	 * are taken from the progress range.
+	 *
+	 * @return The identifiers of the candidate requests
+	 */
+	private Iterable<String> getCandidates() {
+		List<Set<String>> candidates = new ArrayList<Set<String>>();
+		if (getRequests != null) {
+			candidates.add(requestIndex.getByType(getRequests));
+		}
+		if (errorCode != null) {
+			candidates.add(requestIndex.getByErrorCode(errorCode));
+		} else if (state != null) {
+			candidates.add(requestIndex.getByState(state));
+		}
+		if (priority != null) {
+			candidates.add(requestIndex.getByPriority(priority));
+		}
+		if (global != null) {
+			candidates.add(requestIndex.getByGlobal(global));
+		}
+		if (clientToken != null) {
+			candidates.add(requestIndex.getByClientToken(clientToken));
+		}
+		if (candidates.isEmpty()) {
+			if ((minimumProgress > 0) || (maximumProgress < 1)) {
+				return from(requestIndex.getByProgress(minimumProgress, maximumProgress)).transform(new Function<ProgressEntry, String>() {
+
+					@Override
+					public String apply(ProgressEntry progressEntry) {
+						return progressEntry.getIdentifier();
+					}
+				});
+			}
+			return requestMirror.getIdentifiers();
+		}
+		Set<String> smallestCandidates = candidates.get(0);
+		for (Set<String> identifiers : candidates) {
+			if (identifiers.size() < smallestCandidates.size()) {
+				smallestCandidates = identifiers;
+			}
+		}
+		return smallestCandidates;
+	}
+
+	/**
+	 * Creates a predicate that checks all filters of this query.
+	 *
+	 * @return A predicate for this query
+	 */
+	private Predicate<Request> createFilter() {
+		final Boolean getRequests = this.getRequests;
+		final State state = this.state;
+		final Integer errorCode = this.errorCode;
+		final Priority priority = this.priority;
+		final Boolean global = this.global;
+		final String clientToken = this.clientToken;
+		final double minimumProgress = this.minimumProgress;
+		final double maximumProgress = this.maximumProgress;
+		return new Predicate<Request>() {
+
+			@Override
+			public boolean apply(Request request) {
+				if ((getRequests != null) && (getRequests != (request instanceof GetRequest))) {
+					return false;
+				}
+				if ((state != null) && (state != State.of(request))) {
+					return false;
+				}
+				if ((errorCode != null) && (errorCode != request.getErrorCode())) {
+					return false;
+				}
+				if ((priority != null) && (priority != request.getPriority())) {
+					return false;
+				}
+				if ((global != null) && (global != request.isGlobal())) {
+					return false;
+				}
+				if ((clientToken != null) && !Objects.equal(clientToken, request.getClientToken())) {
+					return false;
+				}
+				double progress = RequestIndex.getProgress(request);
+				return (progress >= minimumProgress) && (progress <= maximumProgress);
+			}
+		};
+	}
+
+}
@@ -0,0 +1,216 @@
+/*
+ * jFCPlib - RequestRow.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import net.pterodactylus.fcp.Priority;
+
+/**
+ * Read-only view of a single row of a {@link RequestTable}. A view only stores
+ * the table, the row, and the identifier of its request; all other attributes
+ * are read from the table, so a view always reflects the current content of
+ * the table. Once its request has been removed, a view returns empty values,
+ * even if the row has been reused for another request.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class RequestRow {
+
+	/** The table of the request. */
+	private final RequestTable requestTable;
+
+	/** The row of the request. */
+	private final int row;
+
+	/** The identifier of the request. */
+	private final String identifier;
+
+	/**
+	 * Creates a new view of a row of the given table.
+	 *
+	 * @param requestTable
+	 *            The table that stores the request
+	 * @param row
+	 *            The row of the request
+	 * @param identifier
+	 *            The identifier of the request
+	 */
+	RequestRow(RequestTable requestTable, int row, String identifier) {
+		this.requestTable = requestTable;
+		this.row = row;
+		this.identifier = identifier;
+	}
+
+	/**
+	 * Returns the identifier of the request.
+	 *
+	 * @return The request’s identifier
+	 */
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	/**
+	 * Returns whether the request is a put request.
+	 *
+	 * @return {@code true} if the request is a put request, {@code false} if
+	 *         it is a get request or has been removed
+	 */
+	public boolean isPut() {
+		return requestTable.hasFlag(row, identifier, RequestTable.FLAG_PUT);
+	}
+
+	/**
+	 * Returns the client token of the request.
+	 *
+	 * @return The request’s client token
+	 */
+	public String getClientToken() {
+		return requestTable.getClientToken(row, identifier);
+	}
+
+	/**
+	 * Returns whether the request is on the global queue.
+	 *
+	 * @return {@code true} if the request is on the global queue,
+	 *         {@code false} otherwise
+	 */
+	public boolean isGlobal() {
+		return requestTable.hasFlag(row, identifier, RequestTable.FLAG_GLOBAL);
+	}
+
+	/**
+	 * Returns the priority of the request.
+	 *
+	 * @return The request’s priority, or {@link Priority#unknown} if the
+	 *         priority is not known
+	 */
+	public Priority getPriority() {
+		return requestTable.getPriority(row, identifier);
+	}
+
+	/**
+	 * Returns whether the request is complete.
+	 *
+	 * @return {@code true} if the request is complete, {@code false} otherwise
+	 */
+	public boolean isComplete() {
+		return requestTable.hasFlag(row, identifier, RequestTable.FLAG_COMPLETE);
+	}
+
+	/**
+	 * Returns whether the request has failed.
+	 *
+	 * @return {@code true} if the request has failed, {@code false} otherwise
+	 */
+	public boolean hasFailed() {
+		return requestTable.hasFlag(row, identifier, RequestTable.FLAG_FAILED);
+	}
+
+	/**
+	 * Returns the length of the data.
+	 *
+	 * @return The length of the data
+	 */
+	public long getLength() {
+		return requestTable.getLength(row, identifier);
+	}
+
+	/**
+	 * Returns the content type of the data.
+	 *
+	 * @return The content type of the data
+	 */
+	public String getContentType() {
+		return requestTable.getContentType(row, identifier);
+	}
+
+	/**
+	 * Returns the error code.
+	 *
+	 * @return The error code
+	 */
+	public int getErrorCode() {
+		return requestTable.getErrorCode(row, identifier);
+	}
+
+	/**
+	 * Returns whether the request has fatally failed.
+	 *
+	 * @return {@code true} if the request has fatally failed, {@code false}
+	 *         otherwise
+	 */
+	public boolean isFatal() {
+		return requestTable.hasFlag(row, identifier, RequestTable.FLAG_FATAL);
+	}
+
+	/**
+	 * Returns the total number of blocks of the request.
+	 *
+	 * @return The total number of blocks
+	 */
+	public int getTotalBlocks() {
+		return requestTable.getTotalBlocks(row, identifier);
+	}
+
+	/**
+	 * Returns the number of required blocks.
+	 *
+	 * @return The number of required blocks
+	 */
+	public int getRequiredBlocks() {
+		return requestTable.getRequiredBlocks(row, identifier);
+	}
+
+	/**
+	 * Returns the number of succeeded blocks.
+	 *
+	 * @return The number of succeeded blocks
+	 */
+	public int getSucceededBlocks() {
+		return requestTable.getSucceededBlocks(row, identifier);
+	}
+
+	/**
+	 * Returns the number of failed blocks.
+	 *
+	 * @return The number of failed blocks
+	 */
+	public int getFailedBlocks() {
+		return requestTable.getFailedBlocks(row, identifier);
+	}
+
+	/**
+	 * Returns the number of fatally failed blocks.
+	 *
+	 * @return The number of fatally failed blocks
+	 */
+	public int getFatallyFailedBlocks() {
+		return requestTable.getFatallyFailedBlocks(row, identifier);
+	}
+
+	/**
+	 * Returns whether the number of blocks has been finalized.
+	 *
+	 * @return {@code true} if the number of blocks is finalized, {@code false}
+	 *         otherwise
+	 */
+	public boolean isFinalizedTotal() {
+		return requestTable.hasFlag(row, identifier, RequestTable.FLAG_FINALIZED_TOTAL);
+	}
+
+}
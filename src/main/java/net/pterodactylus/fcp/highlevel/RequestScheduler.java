@@ -0,0 +1,582 @@
+/*
+ * jFCPlib - RequestScheduler.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.pterodactylus.fcp.AllData;
+import net.pterodactylus.fcp.DataFound;
+import net.pterodactylus.fcp.FcpAdapter;
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.FcpMessage;
+import net.pterodactylus.fcp.GetFailed;
+import net.pterodactylus.fcp.IdentifierCollision;
+import net.pterodactylus.fcp.PersistentRequestRemoved;
+import net.pterodactylus.fcp.Priority;
+import net.pterodactylus.fcp.ProtocolError;
+import net.pterodactylus.fcp.PutFailed;
+import net.pterodactylus.fcp.PutSuccessful;
+
+/**
+ * Client-side scheduler that holds requests (e.g. {@link net.pterodactylus.fcp.ClientGet}
+ * or {@link net.pterodactylus.fcp.ClientPut} messages) until the node has
+ * capacity for them, so that a node shared between several tenants is never
+ * flooded by a single tenant.
+ * <p>
+ * Pending requests are kept in one queue per tenant and {@link Priority}. At
+ * most a configurable number of requests is in flight at the node at any
+ * time. When a slot becomes free, requests with {@link Priority#maximum} or
+ * {@link Priority#interactive} priority are admitted first, regardless of
+ * their tenant. All other slots are distributed between the tenants with
+ * pending requests in proportion to the tenants’ weights (stride scheduling,
+ * a variant of weighted fair queuing); the priority of the other requests
+ * only decides which request of the chosen tenant is admitted, so that a
+ * tenant can not starve the other tenants by raising the priority of its
+ * requests.
+ * <p>
+ * A request counts as in flight from the moment it is sent until the node
+ * reports that it has finished, failed, or been removed. If the scheduler is
+ * created with an {@link AimdLimiter}, the latency of every successful
+ * request is fed into the limiter, and the limit on requests in flight
+ * follows the limiter’s limit. Failed requests and requests that only look
+ * at the datastore (“DSonly”) are not fed into the limiter because their
+ * latency does not show how busy the network is.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class RequestScheduler {
+
+	/** The logger. */
+	private static final Logger logger = Logger.getLogger(RequestScheduler.class.getName());
+
+	/** The stride of a tenant with weight 1. */
+	private static final long STRIDE = 1 << 20;
+
+	/** Object used for synchronization. */
+	private final Object syncObject = new Object();
+
+	/** The FCP client to use. */
+	private final FcpClient fcpClient;
+
+	/** All known tenants, by name. */
+	private final Map<String, Tenant> tenants = new HashMap<String, Tenant>();
+
+	/** The send times of all requests in flight, by identifier. */
+	private final Map<String, Long> inFlightRequests = new HashMap<String, Long>();
+
+	/** The identifiers of requests in flight that are not sampled. */
+	private final Set<String> unsampledRequests = new HashSet<String>();
+
+	/** The limiter that adjusts the maximum number of requests in flight. */
+	private final AimdLimiter limiter;
+
+	/** The listener for finished requests. */
+	private final FcpListener completionListener = new CompletionListener();
+
+	/** The maximum number of requests in flight. */
+	private int maxInFlight;
+
+	/** The number of queued requests. */
+	private int queuedRequests;
+
+	/** The pass of the tenant that was admitted last. */
+	private long globalPass;
+
+	/** Whether this scheduler has been stopped. */
+	private boolean stopped;
+
+	/**
+	 * Creates a new request scheduler.
+	 *
+	 * @param fcpClient
+	 *            The FCP client to send requests with
+	 * @param maxInFlight
+	 *            The maximum number of requests in flight
+	 */
+	public RequestScheduler(FcpClient fcpClient, int maxInFlight) {
+		this(fcpClient, maxInFlight, null);
+	}
+
+	/**
+	 * Creates a new request scheduler whose maximum number of requests in
+	 * flight is adjusted by the given limiter.
+	 *
+	 * @param fcpClient
+	 *            The FCP client to send requests with
+	 * @param limiter
+	 *            The limiter that adjusts the maximum number of requests in
+	 *            flight
+	 */
+	public RequestScheduler(FcpClient fcpClient, AimdLimiter limiter) {
+		this(fcpClient, limiter.getLimit(), limiter);
+	}
+
+	/**
+	 * Creates a new request scheduler.
+	 *
+	 * @param fcpClient
+	 *            The FCP client to send requests with
+	 * @param maxInFlight
+	 *            The initial maximum number of requests in flight
+	 * @param limiter
+	 *            The limiter that adjusts the maximum number of requests in
+	 *            flight (may be {@code null})
+	 */
+	private RequestScheduler(FcpClient fcpClient, int maxInFlight, AimdLimiter limiter) {
+		this.fcpClient = fcpClient;
+		this.limiter = limiter;
+		setMaxInFlight(maxInFlight);
+		fcpClient.addFcpListener(completionListener);
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the maximum number of requests in flight.
+	 *
+	 * @return The maximum number of requests in flight
+	 */
+	public int getMaxInFlight() {
+		synchronized (syncObject) {
+			return maxInFlight;
+		}
+	}
+
+	/**
+	 * Returns the limiter that adjusts the maximum number of requests in
+	 * flight.
+	 *
+	 * @return The limiter, or {@code null} if the maximum number of requests
+	 *         in flight is static
+	 */
+	public AimdLimiter getLimiter() {
+		return limiter;
+	}
+
+	/**
+	 * Sets the maximum number of requests in flight. If the limit is raised,
+	 * queued requests are admitted immediately. If this scheduler has a
+	 * limiter, the limit is replaced with the limiter’s limit when the next
+	 * request finishes.
+	 *
+	 * @param maxInFlight
+	 *            The maximum number of requests in flight
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be at least 1");
+		}
+		synchronized (syncObject) {
+			this.maxInFlight = maxInFlight;
+		}
+		admit();
+	}
+
+	/**
+	 * Sets the weight of the given tenant. A tenant with twice the weight of
+	 * another tenant gets twice as many requests admitted while both have
+	 * requests queued. The default weight is {@code 1}.
+	 *
+	 * @param tenantName
+	 *            The name of the tenant
+	 * @param weight
+	 *            The weight of the tenant
+	 */
+	public void setWeight(String tenantName, int weight) {
+		if (weight < 1) {
+			throw new IllegalArgumentException("weight must be at least 1");
+		}
+		synchronized (syncObject) {
+			getTenant(tenantName).weight = weight;
+		}
+	}
+
+	/**
+	 * Returns the number of requests in flight.
+	 *
+	 * @return The number of requests in flight
+	 */
+	public int getInFlightRequests() {
+		synchronized (syncObject) {
+			return inFlightRequests.size();
+		}
+	}
+
+	/**
+	 * Returns the number of queued requests.
+	 *
+	 * @return The number of queued requests
+	 */
+	public int getQueuedRequests() {
+		synchronized (syncObject) {
+			return queuedRequests;
+		}
+	}
+
+	/**
+	 * Returns the number of queued requests of the given tenant.
+	 *
+	 * @param tenantName
+	 *            The name of the tenant
+	 * @return The number of queued requests of the tenant
+	 */
+	public int getQueuedRequests(String tenantName) {
+		synchronized (syncObject) {
+			Tenant tenant = tenants.get(tenantName);
+			return (tenant == null) ? 0 : tenant.queuedRequests;
+		}
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Queues the given request. The request is sent as soon as the scheduler
+	 * admits it, which may be immediately. Requests submitted after the
+	 * scheduler has been {@link #stop() stopped} are ignored.
+	 *
+	 * @param tenantName
+	 *            The name of the tenant the request belongs to
+	 * @param priority
+	 *            The priority the request is scheduled with
+	 * @param request
+	 *            The request to send (must contain an identifier)
+	 */
+	public void submit(String tenantName, Priority priority, FcpMessage request) {
+		if (request.getField("Identifier") == null) {
+			throw new IllegalArgumentException("request must have an identifier");
+		}
+		synchronized (syncObject) {
+			if (stopped) {
+				return;
+			}
+			Tenant tenant = getTenant(tenantName);
+			if (tenant.queuedRequests == 0) {
+				/* idle tenants must not save up credit. */
+				tenant.pass = Math.max(tenant.pass, globalPass);
+			}
+			tenant.getQueue(priority).add(request);
+			tenant.queuedRequests++;
+			queuedRequests++;
+		}
+		admit();
+	}
+
+	/**
+	 * Removes a queued request from the scheduler. Requests that have already
+	 * been sent are not affected.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @return {@code true} if the request was removed, {@code false} if it
+	 *         was not queued
+	 */
+	public boolean cancel(String identifier) {
+		synchronized (syncObject) {
+			for (Tenant tenant : tenants.values()) {
+				for (Queue<FcpMessage> queue : tenant.queues) {
+					for (Iterator<FcpMessage> requests = queue.iterator(); requests.hasNext();) {
+						if (identifier.equals(requests.next().getField("Identifier"))) {
+							requests.remove();
+							tenant.queuedRequests--;
+							queuedRequests--;
+							return true;
+						}
+					}
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Detaches this scheduler from the FCP client. Queued requests are not
+	 * sent anymore, and requests submitted afterwards are ignored.
+	 */
+	public void stop() {
+		synchronized (syncObject) {
+			stopped = true;
+		}
+		fcpClient.removeFcpListener(completionListener);
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Returns the tenant with the given name, creating it if necessary.
+	 *
+	 * @param tenantName
+	 *            The name of the tenant
+	 * @return The tenant
+	 */
+	private Tenant getTenant(String tenantName) {
+		Tenant tenant = tenants.get(tenantName);
+		if (tenant == null) {
+			tenant = new Tenant(tenantName);
+			tenants.put(tenantName, tenant);
+		}
+		return tenant;
+	}
+
+	/**
+	 * Admits queued requests while there are free slots, and sends them.
+	 */
+	private void admit() {
+		List<FcpMessage> admittedRequests = new ArrayList<FcpMessage>();
+		synchronized (syncObject) {
+			while (!stopped && (queuedRequests > 0) && (inFlightRequests.size() < maxInFlight)) {
+				Tenant tenant = null;
+				Queue<FcpMessage> queue = null;
+				for (int priority = 0; (tenant == null) && (priority <= Priority.interactive.ordinal()); priority++) {
+					for (Tenant candidate : tenants.values()) {
+						Queue<FcpMessage> candidateQueue = candidate.queues[priority];
+						if (candidateQueue.isEmpty()) {
+							continue;
+						}
+						if ((tenant == null) || (candidate.pass < tenant.pass)) {
+							tenant = candidate;
+							queue = candidateQueue;
+						}
+					}
+				}
+				if (tenant == null) {
+					for (Tenant candidate : tenants.values()) {
+						if ((candidate.queuedRequests > 0) && ((tenant == null) || (candidate.pass < tenant.pass))) {
+							tenant = candidate;
+						}
+					}
+					queue = tenant.getFirstQueue();
+				}
+				FcpMessage request = queue.remove();
+				tenant.queuedRequests--;
+				queuedRequests--;
+				globalPass = tenant.pass;
+				tenant.pass += STRIDE / tenant.weight;
+				inFlightRequests.put(request.getField("Identifier"), System.nanoTime());
+				if (Boolean.parseBoolean(request.getField("DSonly"))) {
+					unsampledRequests.add(request.getField("Identifier"));
+				}
+				admittedRequests.add(request);
+			}
+		}
+		for (FcpMessage request : admittedRequests) {
+			try {
+				fcpClient.sendMessage(request);
+			} catch (IOException ioe1) {
+				logger.log(Level.WARNING, "Could not send request " + request.getField("Identifier") + "!", ioe1);
+				synchronized (syncObject) {
+					inFlightRequests.remove(request.getField("Identifier"));
+					unsampledRequests.remove(request.getField("Identifier"));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Marks the request with the given identifier as finished and admits the
+	 * next request.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @param successful
+	 *            {@code true} if the request succeeded, i.e. if its latency
+	 *            should be fed into the limiter
+	 */
+	private void requestFinished(String identifier, boolean successful) {
+		synchronized (syncObject) {
+			Long sendTime = inFlightRequests.remove(identifier);
+			if (sendTime == null) {
+				return;
+			}
+			boolean sampled = !unsampledRequests.remove(identifier);
+			if (successful && sampled && (limiter != null)) {
+				limiter.addSample(System.nanoTime() - sendTime, inFlightRequests.size() + 1);
+				maxInFlight = limiter.getLimit();
+			}
+		}
+		admit();
+	}
+
+	/**
+	 * A tenant with its request queues.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private static class Tenant {
+
+		/** The name of the tenant. */
+		final String name;
+
+		/** The request queues of the tenant, by priority ordinal. */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		final Queue<FcpMessage>[] queues = new Queue[Priority.values().length];
+
+		/** The weight of the tenant. */
+		int weight = 1;
+
+		/** The pass of the tenant; the tenant with the lowest pass goes next. */
+		long pass;
+
+		/** The number of queued requests of the tenant. */
+		int queuedRequests;
+
+		/**
+		 * Creates a new tenant.
+		 *
+		 * @param name
+		 *            The name of the tenant
+		 */
+		Tenant(String name) {
+			this.name = name;
+			for (int index = 0; index < queues.length; index++) {
+				queues[index] = new ArrayDeque<FcpMessage>();
+			}
+		}
+
+		/**
+		 * Returns the queue for the given priority. Requests with
+		 * {@link Priority#unknown} priority are queued with
+		 * {@link Priority#minimum} priority.
+		 *
+		 * @param priority
+		 *            The priority
+		 * @return The queue for the priority
+		 */
+		Queue<FcpMessage> getQueue(Priority priority) {
+			return queues[(priority == Priority.unknown) ? Priority.minimum.ordinal() : priority.ordinal()];
+		}
+
+		/**
+		 * Returns the queue with the most urgent priority that contains
+		 * requests.
+		 *
+		 * @return The first non-empty queue, or {@code null} if all queues
+		 *         are empty
+		 */
+		Queue<FcpMessage> getFirstQueue() {
+			for (Queue<FcpMessage> queue : queues) {
+				if (!queue.isEmpty()) {
+					return queue;
+				}
+			}
+			return null;
+		}
+
+	}
+
+	/**
+	 * Listener that frees the slots of finished requests.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private class CompletionListener extends FcpAdapter {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedDataFound(FcpConnection fcpConnection, DataFound dataFound) {
+			requestFinished(dataFound.getIdentifier(), true);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedAllData(FcpConnection fcpConnection, AllData allData) {
+			requestFinished(allData.getIdentifier(), true);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedGetFailed(FcpConnection fcpConnection, GetFailed getFailed) {
+			requestFinished(getFailed.getIdentifier(), false);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPutSuccessful(FcpConnection fcpConnection, PutSuccessful putSuccessful) {
+			requestFinished(putSuccessful.getIdentifier(), true);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPutFailed(FcpConnection fcpConnection, PutFailed putFailed) {
+			requestFinished(putFailed.getIdentifier(), false);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedIdentifierCollision(FcpConnection fcpConnection, IdentifierCollision identifierCollision) {
+			requestFinished(identifierCollision.getIdentifier(), false);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedProtocolError(FcpConnection fcpConnection, ProtocolError protocolError) {
+			if (protocolError.getIdentifier() != null) {
+				requestFinished(protocolError.getIdentifier(), false);
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPersistentRequestRemoved(FcpConnection fcpConnection, PersistentRequestRemoved persistentRequestRemoved) {
+			requestFinished(persistentRequestRemoved.getIdentifier(), false);
+		}
+
+	}
+
+}
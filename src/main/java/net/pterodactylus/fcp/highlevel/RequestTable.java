@@ -0,0 +1,888 @@
+/*
+ * jFCPlib - RequestTable.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.Priority;
+
+/**
+ * Compact, column-oriented store for the persistent requests of a node, meant
+ * for very large request queues. Every attribute of a request is stored in a
+ * primitive array indexed by the request’s row; content types and client
+ * tokens are dictionary-encoded, and identifiers are kept only once, in an
+ * open-addressing hash table that maps them to their rows.
+ * <p>
+ * Like {@link RequestMirror} the table is loaded once and then kept up-to-date
+ * from the events the node sends. Requests are returned as
+ * {@link RequestRow}s, read-only views of a single row that do not store any
+ * state themselves.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class RequestTable {
+
+	/** Flag for put requests. */
+	static final int FLAG_PUT = 1;
+
+	/** Flag for requests on the global queue. */
+	static final int FLAG_GLOBAL = 2;
+
+	/** Flag for complete requests. */
+	static final int FLAG_COMPLETE = 4;
+
+	/** Flag for failed requests. */
+	static final int FLAG_FAILED = 8;
+
+	/** Flag for fatally failed requests. */
+	static final int FLAG_FATAL = 16;
+
+	/** Flag for requests with a finalized number of blocks. */
+	static final int FLAG_FINALIZED_TOTAL = 32;
+
+	/** Marker for a deleted slot in the identifier hash table. */
+	private static final int DELETED = -1;
+
+	/** Cached values of {@link Priority}. */
+	private static final Priority[] PRIORITIES = Priority.values();
+
+	/** Object used for synchronization. */
+	private final Object syncObject = new Object();
+
+	/** The FCP client to use. */
+	private final FcpClient fcpClient;
+
+	/** The listener that applies the node’s events to this table. */
+	private final FcpListener eventListener = new TableEventListener();
+
+	/** Dictionary for content types. */
+	private final Dictionary contentTypes = new Dictionary();
+
+	/** Dictionary for client tokens. */
+	private final Dictionary clientTokens = new Dictionary();
+
+	/** The identifiers of the requests, {@code null} for unused rows. */
+	private String[] identifiers;
+
+	/** The flags of the requests. */
+	private byte[] flags;
+
+	/** The priorities of the requests. */
+	private byte[] priorities;
+
+	/** The encoded client tokens of the requests. */
+	private int[] clientTokenIds;
+
+	/** The encoded content types of the requests. */
+	private int[] contentTypeIds;
+
+	/** The data lengths of the requests. */
+	private long[] lengths;
+
+	/** The error codes of the requests. */
+	private int[] errorCodes;
+
+	/** The total numbers of blocks of the requests. */
+	private int[] totalBlocks;
+
+	/** The required numbers of blocks of the requests. */
+	private int[] requiredBlocks;
+
+	/** The succeeded numbers of blocks of the requests. */
+	private int[] succeededBlocks;
+
+	/** The failed numbers of blocks of the requests. */
+	private int[] failedBlocks;
+
+	/** The fatally failed numbers of blocks of the requests. */
+	private int[] fatallyFailedBlocks;
+
+	/** The number of rows that have been used so far. */
+	private int usedRows;
+
+	/** Rows that were freed and can be reused. */
+	private int[] freeRows = new int[16];
+
+	/** The number of rows in {@link #freeRows}. */
+	private int freeRowCount;
+
+	/** The number of stored requests. */
+	private int size;
+
+	/**
+	 * Open-addressing hash table mapping identifiers to rows; every slot is
+	 * either {@code 0} (empty), {@link #DELETED}, or the row plus one.
+	 */
+	private int[] slots = new int[32];
+
+	/** The number of slots that are not empty. */
+	private int occupiedSlots;
+
+	/** Whether the event listener is currently attached. */
+	private boolean attached;
+
+	/**
+	 * Creates a new request table.
+	 *
+	 * @param fcpClient
+	 *            The FCP client to mirror the requests of
+	 */
+	public RequestTable(FcpClient fcpClient) {
+		this(fcpClient, 1024);
+	}
+
+	/**
+	 * Creates a new request table.
+	 *
+	 * @param fcpClient
+	 *            The FCP client to mirror the requests of
+	 * @param initialCapacity
+	 *            The number of requests to reserve space for
+	 */
+	public RequestTable(FcpClient fcpClient, int initialCapacity) {
+		this.fcpClient = fcpClient;
+		resize(Math.max(16, initialCapacity));
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the number of requests in this table.
+	 *
+	 * @return The number of requests
+	 */
+	public int size() {
+		synchronized (syncObject) {
+			return size;
+		}
+	}
+
+	/**
+	 * Returns a view of the request with the given identifier.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @return A view of the request, or {@code null} if there is no request
+	 *         with the given identifier
+	 */
+	public RequestRow getRequest(String identifier) {
+		synchronized (syncObject) {
+			int row = findRow(identifier);
+			return (row < 0) ? null : createView(row);
+		}
+	}
+
+	/**
+	 * Returns views of all requests in this table. The views are created while
+	 * the returned iterable is iterated.
+	 *
+	 * @return Views of all requests
+	 */
+	public Iterable<RequestRow> getRequests() {
+		return new Iterable<RequestRow>() {
+
+			@Override
+			public Iterator<RequestRow> iterator() {
+				return new RowIterator();
+			}
+		};
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Attaches this table to the FCP client and loads all persistent requests
+	 * from the node. Afterwards the table is only updated from the events the
+	 * node sends.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws FcpException
+	 *             if an FCP error occurs
+	 */
+	public void load() throws IOException, FcpException {
+		synchronized (syncObject) {
+			if (!attached) {
+				fcpClient.addFcpListener(eventListener);
+				attached = true;
+			}
+		}
+		fcpClient.listPersistentRequests();
+	}
+
+	/**
+	 * Detaches this table from the FCP client. The table will not be updated
+	 * anymore but its current content is still available.
+	 */
+	public void detach() {
+		synchronized (syncObject) {
+			fcpClient.removeFcpListener(eventListener);
+			attached = false;
+		}
+	}
+
+	//
+	// ROW ACCESS (used by request views)
+	//
+
+	/**
+	 * Returns whether the given flag is set for the given row.
+	 *
+	 * @param row
+	 *            The row
+	 * @param identifier
+	 *            The identifier of the request the view was created for
+	 * @param flag
+	 *            The flag to check
+	 * @return {@code true} if the flag is set, {@code false} otherwise or if
+	 *         the request has been removed
+	 */
+	boolean hasFlag(int row, String identifier, int flag) {
+		synchronized (syncObject) {
+			return isCurrent(row, identifier) && ((flags[row] & flag) != 0);
+		}
+	}
+
+	/**
+	 * Returns the client token of the request in the given row.
+	 *
+	 * @param row
+	 *            The row
+	 * @param identifier
+	 *            The identifier of the request the view was created for
+	 * @return The client token
+	 */
+	String getClientToken(int row, String identifier) {
+		synchronized (syncObject) {
+			return isCurrent(row, identifier) ? clientTokens.decode(clientTokenIds[row]) : null;
+		}
+	}
+
+	/**
+	 * Returns the priority of the request in the given row.
+	 *
+	 * @param row
+	 *            The row
+	 * @param identifier
+	 *            The identifier of the request the view was created for
+	 * @return The priority
+	 */
+	Priority getPriority(int row, String identifier) {
+		synchronized (syncObject) {
+			return isCurrent(row, identifier) ? PRIORITIES[priorities[row]] : Priority.unknown;
+		}
+	}
+
+	/**
+	 * Returns the data length of the request in the given row.
+	 *
+	 * @param row
+	 *            The row
+	 * @param identifier
+	 *            The identifier of the request the view was created for
+	 * @return The data length
+	 */
+	long getLength(int row, String identifier) {
+		synchronized (syncObject) {
+			return isCurrent(row, identifier) ? lengths[row] : 0;
+		}
+	}
+
+	/**
+	 * Returns the content type of the request in the given row.
+	 *
+	 * @param row
+	 *            The row
+	 * @param identifier
+	 *            The identifier of the request the view was created for
+	 * @return The content type
+	 */
+	String getContentType(int row, String identifier) {
+		synchronized (syncObject) {
+			return isCurrent(row, identifier) ? contentTypes.decode(contentTypeIds[row]) : null;
+		}
+	}
+
+	/**
+	 * Returns the error code of the request in the given row.
+	 *
+	 * @param row
+	 *            The row
+	 * @param identifier
+	 *            The identifier of the request the view was created for
+	 * @return The error code
+	 */
+	int getErrorCode(int row, String identifier) {
+		synchronized (syncObject) {
+			return isCurrent(row, identifier) ? errorCodes[row] : 0;
+		}
+	}
+
+	/**
+	 * Returns the total number of blocks of the request in the given row.
+	 *
+	 * @param row
+	 *            The row
+	 * @param identifier
+	 *            The identifier of the request the view was created for
+	 * @return The total number of blocks
+	 */
+	int getTotalBlocks(int row, String identifier) {
+		synchronized (syncObject) {
+			return isCurrent(row, identifier) ? totalBlocks[row] : 0;
+		}
+	}
+
+	/**
+	 * Returns the number of required blocks of the request in the given row.
+	 *
+	 * @param row
+	 *            The row
+	 * @param identifier
+	 *            The identifier of the request the view was created for
+	 * @return The number of required blocks
+	 */
+	int getRequiredBlocks(int row, String identifier) {
+		synchronized (syncObject) {
+			return isCurrent(row, identifier) ? requiredBlocks[row] : 0;
+		}
+	}
+
+	/**
+	 * Returns the number of succeeded blocks of the request in the given row.
+	 *
+	 * @param row
+	 *            The row
+	 * @param identifier
+	 *            The identifier of the request the view was created for
+	 * @return The number of succeeded blocks
+	 */
+	int getSucceededBlocks(int row, String identifier) {
+		synchronized (syncObject) {
+			return isCurrent(row, identifier) ? succeededBlocks[row] : 0;
+		}
+	}
+
+	/**
+	 * Returns the number of failed blocks of the request in the given row.
+	 *
+	 * @param row
+	 *            The row
+	 * @param identifier
+	 *            The identifier of the request the view was created for
+	 * @return The number of failed blocks
+	 */
+	int getFailedBlocks(int row, String identifier) {
+		synchronized (syncObject) {
+			return isCurrent(row, identifier) ? failedBlocks[row] : 0;
+		}
+	}
+
+	/**
+	 * Returns the number of fatally failed blocks of the request in the given
+	 * row.
+	 *
+	 * @param row
+	 *            The row
+	 * @param identifier
+	 *            The identifier of the request the view was created for
+	 * @return The number of fatally failed blocks
+	 */
+	int getFatallyFailedBlocks(int row, String identifier) {
+		synchronized (syncObject) {
+			return isCurrent(row, identifier) ? fatallyFailedBlocks[row] : 0;
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Returns whether the given row still stores the request with the given
+	 * identifier. Rows of removed requests are reused, so views of removed
+	 * requests must not read them anymore. The caller has to hold the lock.
+	 *
+	 * @param row
+	 *            The row
+	 * @param identifier
+	 *            The identifier of the request
+	 * @return {@code true} if the row stores the request, {@code false}
+	 *         otherwise
+	 */
+	private boolean isCurrent(int row, String identifier) {
+		return (identifier != null) && identifier.equals(identifiers[row]);
+	}
+
+	/**
+	 * Sets or clears the given flag for the given row. The caller has to hold
+	 * the lock.
+	 *
+	 * @param row
+	 *            The row
+	 * @param flag
+	 *            The flag to change
+	 * @param set
+	 *            {@code true} to set the flag, {@code false} to clear it
+	 */
+	private void setFlag(int row, int flag, boolean set) {
+		flags[row] = (byte) (set ? (flags[row] | flag) : (flags[row] & ~flag));
+	}
+
+	/**
+	 * Creates a view of the given row.
+	 *
+	 * @param row
+	 *            The row
+	 * @return A view of the row
+	 */
+	private RequestRow createView(int row) {
+		return new RequestRow(this, row, identifiers[row]);
+	}
+
+	/**
+	 * Adds a new request or resets an existing request.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @param put
+	 *            {@code true} for a put request, {@code false} for a get
+	 *            request
+	 * @param clientToken
+	 *            The client token of the request
+	 * @param global
+	 *            {@code true} if the request is on the global queue
+	 * @param priority
+	 *            The priority of the request
+	 */
+	void add(String identifier, boolean put, String clientToken, boolean global, Priority priority) {
+		synchronized (syncObject) {
+			int row = findRow(identifier);
+			if (row < 0) {
+				row = allocateRow();
+				identifiers[row] = identifier;
+				insertSlot(identifier, row);
+				size++;
+			}
+			flags[row] = 0;
+			setFlag(row, FLAG_PUT, put);
+			setFlag(row, FLAG_GLOBAL, global);
+			priorities[row] = (byte) priority.ordinal();
+			clientTokenIds[row] = clientTokens.encode(clientToken);
+			contentTypeIds[row] = -1;
+			lengths[row] = 0;
+			errorCodes[row] = 0;
+			totalBlocks[row] = 0;
+			requiredBlocks[row] = 0;
+			succeededBlocks[row] = 0;
+			failedBlocks[row] = 0;
+			fatallyFailedBlocks[row] = 0;
+		}
+	}
+
+	/**
+	 * Removes the request with the given identifier.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 */
+	void remove(String identifier) {
+		synchronized (syncObject) {
+			int slot = findSlot(identifier);
+			if (slot < 0) {
+				return;
+			}
+			int row = slots[slot] - 1;
+			slots[slot] = DELETED;
+			identifiers[row] = null;
+			if (freeRowCount == freeRows.length) {
+				freeRows = Arrays.copyOf(freeRows, freeRows.length * 2);
+			}
+			freeRows[freeRowCount++] = row;
+			size--;
+		}
+	}
+
+	/**
+	 * Returns a row for a new request, growing the columns if necessary. The
+	 * caller has to hold the lock.
+	 *
+	 * @return The row for the new request
+	 */
+	private int allocateRow() {
+		if (freeRowCount > 0) {
+			return freeRows[--freeRowCount];
+		}
+		if (usedRows == identifiers.length) {
+			resize(identifiers.length * 2);
+		}
+		return usedRows++;
+	}
+
+	/**
+	 * Resizes all columns to the given capacity.
+	 *
+	 * @param capacity
+	 *            The new capacity
+	 */
+	private void resize(int capacity) {
+		if (identifiers == null) {
+			identifiers = new String[capacity];
+			flags = new byte[capacity];
+			priorities = new byte[capacity];
+			clientTokenIds = new int[capacity];
+			contentTypeIds = new int[capacity];
+			lengths = new long[capacity];
+			errorCodes = new int[capacity];
+			totalBlocks = new int[capacity];
+			requiredBlocks = new int[capacity];
+			succeededBlocks = new int[capacity];
+			failedBlocks = new int[capacity];
+			fatallyFailedBlocks = new int[capacity];
+			return;
+		}
+		identifiers = Arrays.copyOf(identifiers, capacity);
+		flags = Arrays.copyOf(flags, capacity);
+		priorities = Arrays.copyOf(priorities, capacity);
+		clientTokenIds = Arrays.copyOf(clientTokenIds, capacity);
+		contentTypeIds = Arrays.copyOf(contentTypeIds, capacity);
+		lengths = Arrays.copyOf(lengths, capacity);
+		errorCodes = Arrays.copyOf(errorCodes, capacity);
+		totalBlocks = Arrays.copyOf(totalBlocks, capacity);
+		requiredBlocks = Arrays.copyOf(requiredBlocks, capacity);
+		succeededBlocks = Arrays.copyOf(succeededBlocks, capacity);
+		failedBlocks = Arrays.copyOf(failedBlocks, capacity);
+		fatallyFailedBlocks = Arrays.copyOf(fatallyFailedBlocks, capacity);
+	}
+
+	/**
+	 * Returns the row of the request with the given identifier. The caller
+	 * has to hold the lock.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @return The row of the request, or {@code -1} if there is no such
+	 *         request
+	 */
+	private int findRow(String identifier) {
+		int slot = findSlot(identifier);
+		return (slot < 0) ? -1 : (slots[slot] - 1);
+	}
+
+	/**
+	 * Returns the hash table slot of the request with the given identifier.
+	 * The caller has to hold the lock.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @return The slot of the request, or {@code -1} if there is no such
+	 *         request
+	 */
+	private int findSlot(String identifier) {
+		if (identifier == null) {
+			return -1;
+		}
+		int mask = slots.length - 1;
+		for (int slot = hash(identifier) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+			if ((slots[slot] != DELETED) && identifier.equals(identifiers[slots[slot] - 1])) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Stores the given row in the hash table. The caller has to hold the lock.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @param row
+	 *            The row of the request
+	 */
+	private void insertSlot(String identifier, int row) {
+		if ((occupiedSlots + 1) * 2 > slots.length) {
+			/* the rehash already stores the row, it is in identifiers. */
+			rehash();
+			return;
+		}
+		int mask = slots.length - 1;
+		int slot = hash(identifier) & mask;
+		while ((slots[slot] != 0) && (slots[slot] != DELETED)) {
+			slot = (slot + 1) & mask;
+		}
+		if (slots[slot] == 0) {
+			occupiedSlots++;
+		}
+		slots[slot] = row + 1;
+	}
+
+	/**
+	 * Rebuilds the hash table, dropping all deleted slots and growing it if
+	 * necessary. The caller has to hold the lock.
+	 */
+	private void rehash() {
+		int capacity = slots.length;
+		while ((size + 1) * 2 > capacity) {
+			capacity *= 2;
+		}
+		slots = new int[capacity];
+		occupiedSlots = 0;
+		int mask = capacity - 1;
+		for (int row = 0; row < usedRows; row++) {
+			if (identifiers[row] == null) {
+				continue;
+			}
+			int slot = hash(identifiers[row]) & mask;
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = row + 1;
+			occupiedSlots++;
+		}
+	}
+
+	/**
+	 * Spreads the hash code of the given identifier.
+	 *
+	 * @param identifier
+	 *            The identifier
+	 * @return The hash of the identifier
+	 */
+	private static int hash(String identifier) {
+		int hash = identifier.hashCode();
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Dictionary that encodes strings as integers.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private static class Dictionary {
+
+		/** The strings, by code. */
+		private final List<String> values = new ArrayList<String>();
+
+		/** The codes, by string. */
+		private final Map<String, Integer> codes = new HashMap<String, Integer>();
+
+		/**
+		 * Returns the code for the given string, adding it to the dictionary
+		 * if necessary.
+		 *
+		 * @param value
+		 *            The string to encode
+		 * @return The code of the string, or {@code -1} if the string is
+		 *         {@code null}
+		 */
+		int encode(String value) {
+			if (value == null) {
+				return -1;
+			}
+			Integer code = codes.get(value);
+			if (code == null) {
+				code = values.size();
+				values.add(value);
+				codes.put(value, code);
+			}
+			return code;
+		}
+
+		/**
+		 * Returns the string with the given code.
+		 *
+		 * @param code
+		 *            The code of the string
+		 * @return The string, or {@code null} if the code is {@code -1}
+		 */
+		String decode(int code) {
+			return (code < 0) ? null : values.get(code);
+		}
+
+	}
+
+	/**
+	 * Iterator over all used rows that creates views while iterating.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private class RowIterator implements Iterator<RequestRow> {
+
+		/** The next row to check. */
+		private int nextRow;
+
+		/** The next view to return, or {@code null} if it has to be found. */
+		private RequestRow next;
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public boolean hasNext() {
+			synchronized (syncObject) {
+				while ((next == null) && (nextRow < usedRows)) {
+					int row = nextRow++;
+					if (identifiers[row] != null) {
+						next = createView(row);
+					}
+				}
+				return next != null;
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public RequestRow next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			RequestRow requestRow = next;
+			next = null;
+			return requestRow;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	/**
+	 * Listener that applies the events sent by the node to the table.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private class TableEventListener extends PersistentRequestAdapter {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		protected void requestReported(String identifier, boolean put, String clientToken, boolean global, Priority priority) {
+			add(identifier, put, clientToken, global, priority);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		protected void progressChanged(String identifier, int total, int required, int succeeded, int failed, int fatallyFailed, boolean finalizedTotal) {
+			synchronized (syncObject) {
+				int row = findRow(identifier);
+				if (row < 0) {
+					return;
+				}
+				totalBlocks[row] = total;
+				requiredBlocks[row] = required;
+				succeededBlocks[row] = succeeded;
+				failedBlocks[row] = failed;
+				fatallyFailedBlocks[row] = fatallyFailed;
+				setFlag(row, FLAG_FINALIZED_TOTAL, finalizedTotal);
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		protected void requestSucceeded(String identifier, boolean dataFound, long length, String contentType) {
+			synchronized (syncObject) {
+				int row = findRow(identifier);
+				if (row < 0) {
+					return;
+				}
+				setFlag(row, FLAG_COMPLETE, true);
+				if (dataFound) {
+					lengths[row] = length;
+					contentTypeIds[row] = contentTypes.encode(contentType);
+				}
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		protected void requestFailed(String identifier, boolean fatal, int errorCode) {
+			synchronized (syncObject) {
+				int row = findRow(identifier);
+				if (row < 0) {
+					return;
+				}
+				setFlag(row, FLAG_COMPLETE, true);
+				setFlag(row, FLAG_FAILED, true);
+				setFlag(row, FLAG_FATAL, fatal);
+				errorCodes[row] = errorCode;
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		protected void requestModified(String identifier, String clientToken, Priority priority) {
+			synchronized (syncObject) {
+				int row = findRow(identifier);
+				if (row < 0) {
+					return;
+				}
+				if (clientToken != null) {
+					clientTokenIds[row] = clientTokens.encode(clientToken);
+				}
+				if (priority != null) {
+					priorities[row] = (byte) priority.ordinal();
+				}
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		protected void requestRemoved(String identifier) {
+			remove(identifier);
+		}
+
+	}
+
+}
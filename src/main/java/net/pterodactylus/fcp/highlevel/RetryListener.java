@@ -0,0 +1,61 @@
+/*
+ * jFCPlib - RetryListener.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.util.EventListener;
+
+/**
+ * Listener for requests managed by a {@link RetryScheduler}.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public interface RetryListener extends EventListener {
+
+	/**
+	 * Notifies a listener that a request failed and will be sent again.
+	 * Persistent requests are sent again with a new identifier; the results
+	 * of the next attempt are reported for that identifier.
+	 *
+	 * @param identifier
+	 *            The identifier the request was submitted with
+	 * @param retryIdentifier
+	 *            The identifier of the next attempt
+	 * @param attempt
+	 *            The number of the next attempt (starting at {@code 2})
+	 * @param delay
+	 *            The delay until the next attempt (in milliseconds)
+	 */
+	public void retryScheduled(String identifier, String retryIdentifier, int attempt, long delay);
+
+	/**
+	 * Notifies a listener that a request failed and will not be sent again,
+	 * either because the failure was fatal, because the maximum number of
+	 * attempts for its URI was reached, or because the circuit for the
+	 * request’s key is open.
+	 *
+	 * @param identifier
+	 *            The identifier the request was submitted with
+	 * @param attempts
+	 *            The number of attempts that were made for the request
+	 * @param circuitOpen
+	 *            {@code true} if the request was abandoned because the
+	 *            circuit for its key is open, {@code false} otherwise
+	 */
+	public void requestAbandoned(String identifier, int attempts, boolean circuitOpen);
+
+}
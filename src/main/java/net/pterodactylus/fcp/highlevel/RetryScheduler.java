@@ -0,0 +1,700 @@
+/*
+ * jFCPlib - RetryScheduler.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.pterodactylus.fcp.AllData;
+import net.pterodactylus.fcp.DataFound;
+import net.pterodactylus.fcp.FcpAdapter;
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.FcpMessage;
+import net.pterodactylus.fcp.GetFailed;
+import net.pterodactylus.fcp.Persistence;
+import net.pterodactylus.fcp.PutFailed;
+import net.pterodactylus.fcp.PutSuccessful;
+import net.pterodactylus.fcp.RemovePersistentRequest;
+import net.pterodactylus.fcp.UploadFrom;
+
+/**
+ * Sends requests (e.g. {@link net.pterodactylus.fcp.ClientGet} or
+ * {@link net.pterodactylus.fcp.ClientPut} messages) and sends them again when
+ * they fail with a non-fatal error, instead of leaving the retry to the
+ * caller.
+ * <p>
+ * Retries are delayed with exponential backoff; the delay is doubled with
+ * every attempt, up to a maximum, and a random jitter of up to half the delay
+ * is subtracted so that requests that failed together do not return
+ * together. The number of attempts is capped per URI, so that submitting
+ * another request for the same URI does not start with a fresh budget; the
+ * count is reset when a request for the URI succeeds, or when no attempt was
+ * made for the URI for the maximum delay.
+ * <p>
+ * Failures are also counted per {@link #getCircuitKey(String) key}, i.e. per
+ * routing key of an SSK or USK. After a number of consecutive non-fatal
+ * failures for a key, its circuit opens: for a while, requests for the key are
+ * abandoned without being sent. After that, a single request is let through;
+ * if it succeeds, the circuit closes again, otherwise it stays open for
+ * another period. Closed circuits without a failure for that period, and
+ * open circuits that were not probed for another period, are forgotten.
+ * Requests that could not be sent to the node at all are retried, too, but
+ * their failure is a problem of the connection, not of the key, and does not
+ * count against its circuit.
+ * <p>
+ * Requests that upload their payload directly can not be sent again and are
+ * abandoned on their first failure, as are requests that failed because of a
+ * redirect. Persistent requests are removed from the node before they are
+ * sent again, and every retry is sent with a new identifier (see
+ * {@link RetryListener#retryScheduled(String, String, int, long)}) so that
+ * the removal of the previous attempt can not be mistaken for the removal of
+ * the new one.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class RetryScheduler {
+
+	/** The logger. */
+	private static final Logger logger = Logger.getLogger(RetryScheduler.class.getName());
+
+	/** Object used for synchronization. */
+	private final Object syncObject = new Object();
+
+	/** The FCP client to use. */
+	private final FcpClient fcpClient;
+
+	/** The executor to schedule retries on. */
+	private final ScheduledExecutorService executorService;
+
+	/** The random number generator for the jitter. */
+	private final Random random = new Random();
+
+	/** All managed requests, by the identifier of their current attempt. */
+	private final Map<String, RetryState> requests = new HashMap<String, RetryState>();
+
+	/** The attempts, by URI. */
+	private final Map<String, KeyAttempts> keyAttempts = new HashMap<String, KeyAttempts>();
+
+	/** The circuits, by key. */
+	private final Map<String, Circuit> circuits = new HashMap<String, Circuit>();
+
+	/** The listener for request results. */
+	private final FcpListener resultListener = new ResultListener();
+
+	/** The delay before the first retry (in milliseconds). */
+	private long initialDelay = 1000;
+
+	/** The maximum delay between two attempts (in milliseconds). */
+	private long maximumDelay = 300000;
+
+	/** The maximum number of attempts per request. */
+	private int maximumAttempts = 5;
+
+	/** The number of consecutive failures that opens a circuit. */
+	private int failureThreshold = 10;
+
+	/** The time a circuit stays open (in milliseconds). */
+	private long openDuration = 60000;
+
+	/** The time of the next removal of stale circuits and attempts. */
+	private long nextPrune;
+
+	/**
+	 * Creates a new retry scheduler.
+	 *
+	 * @param fcpClient
+	 *            The FCP client to send requests with
+	 * @param executorService
+	 *            The executor to schedule retries on
+	 */
+	public RetryScheduler(FcpClient fcpClient, ScheduledExecutorService executorService) {
+		this.fcpClient = fcpClient;
+		this.executorService = executorService;
+		fcpClient.addFcpListener(resultListener);
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Sets the backoff of retries. The default is an initial delay of one
+	 * second and a maximum delay of five minutes.
+	 *
+	 * @param initialDelay
+	 *            The delay before the first retry
+	 * @param maximumDelay
+	 *            The maximum delay between two attempts
+	 * @param timeUnit
+	 *            The unit of the delays
+	 */
+	public void setBackoff(long initialDelay, long maximumDelay, TimeUnit timeUnit) {
+		synchronized (syncObject) {
+			this.initialDelay = timeUnit.toMillis(initialDelay);
+			this.maximumDelay = timeUnit.toMillis(maximumDelay);
+		}
+	}
+
+	/**
+	 * Sets the maximum number of attempts per URI, including the first
+	 * attempt. The default is five attempts.
+	 *
+	 * @param maximumAttempts
+	 *            The maximum number of attempts
+	 */
+	public void setMaximumAttempts(int maximumAttempts) {
+		synchronized (syncObject) {
+			this.maximumAttempts = maximumAttempts;
+		}
+	}
+
+	/**
+	 * Sets the parameters of the circuits. The default is to open a circuit
+	 * after ten consecutive failures, for one minute.
+	 *
+	 * @param failureThreshold
+	 *            The number of consecutive failures that opens a circuit
+	 * @param openDuration
+	 *            The time a circuit stays open
+	 * @param timeUnit
+	 *            The unit of the time
+	 */
+	public void setCircuitBreaker(int failureThreshold, long openDuration, TimeUnit timeUnit) {
+		synchronized (syncObject) {
+			this.failureThreshold = failureThreshold;
+			this.openDuration = timeUnit.toMillis(openDuration);
+		}
+	}
+
+	/**
+	 * Returns whether the circuit for the given URI is currently open.
+	 *
+	 * @param uri
+	 *            The URI to check
+	 * @return {@code true} if requests for the URI are currently abandoned
+	 *         without being sent, {@code false} otherwise
+	 */
+	public boolean isCircuitOpen(String uri) {
+		synchronized (syncObject) {
+			Circuit circuit = circuits.get(getCircuitKey(uri));
+			return (circuit != null) && (circuit.openUntil > System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Returns the number of circuits that are currently tracked.
+	 *
+	 * @return The number of circuits
+	 */
+	public int getCircuitCount() {
+		synchronized (syncObject) {
+			return circuits.size();
+		}
+	}
+
+	/**
+	 * Returns the number of requests managed by this scheduler.
+	 *
+	 * @return The number of managed requests
+	 */
+	public int getRequestCount() {
+		synchronized (syncObject) {
+			return requests.size();
+		}
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Sends the given request and retries it until it succeeds, fails
+	 * fatally, or the maximum number of attempts for its URI is reached. The
+	 * identifier of the request is changed for every retry of a persistent
+	 * request.
+	 *
+	 * @param request
+	 *            The request to send (must contain an identifier and a URI)
+	 * @param retryListener
+	 *            The listener to notify about retries and abandoned requests
+	 */
+	public void submit(FcpMessage request, RetryListener retryListener) {
+		String identifier = request.getField("Identifier");
+		if ((identifier == null) || (request.getField("URI") == null)) {
+			throw new IllegalArgumentException("request must have an identifier and a URI");
+		}
+		String uri = request.getField("URI");
+		RetryState retryState;
+		synchronized (syncObject) {
+			long now = System.currentTimeMillis();
+			if (now >= nextPrune) {
+				prune(now);
+				nextPrune = now + Math.min(openDuration, maximumDelay);
+			}
+			KeyAttempts attempts = keyAttempts.get(uri);
+			if (attempts == null) {
+				attempts = new KeyAttempts();
+				keyAttempts.put(uri, attempts);
+			}
+			attempts.requests++;
+			retryState = new RetryState(request, getCircuitKey(uri), attempts, retryListener);
+			requests.put(identifier, retryState);
+		}
+		send(retryState);
+	}
+
+	/**
+	 * Detaches this scheduler from the FCP client. Scheduled retries are
+	 * still sent but their results are not tracked anymore.
+	 */
+	public void stop() {
+		fcpClient.removeFcpListener(resultListener);
+	}
+
+	//
+	// STATIC METHODS
+	//
+
+	/**
+	 * Returns the key whose circuit covers the given URI. This is the
+	 * {@link ShardRouter#getRoutingKey(String) routing key} of the URI, so
+	 * that all documents of an SSK or USK share a circuit.
+	 *
+	 * @param uri
+	 *            The URI
+	 * @return The circuit key of the URI
+	 */
+	public static String getCircuitKey(String uri) {
+		return ShardRouter.getRoutingKey(uri);
+	}
+
+	/**
+	 * Returns the delay before the given attempt, without jitter.
+	 *
+	 * @param attempt
+	 *            The number of the attempt (starting at {@code 2})
+	 * @param initialDelay
+	 *            The delay before the first retry
+	 * @param maximumDelay
+	 *            The maximum delay
+	 * @return The delay before the attempt
+	 */
+	static long getBackoffDelay(int attempt, long initialDelay, long maximumDelay) {
+		int shift = Math.min(attempt - 2, 62);
+		if ((shift < 0) || (initialDelay > (maximumDelay >> shift))) {
+			return maximumDelay;
+		}
+		return Math.min(maximumDelay, initialDelay << shift);
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Sends a request, unless its circuit is open or the maximum number of
+	 * attempts for its URI has been reached.
+	 *
+	 * @param retryState
+	 *            The state of the request
+	 */
+	private void send(RetryState retryState) {
+		boolean attemptsExhausted;
+		boolean circuitOpen = false;
+		synchronized (syncObject) {
+			attemptsExhausted = retryState.keyAttempts.count >= maximumAttempts;
+			if (!attemptsExhausted) {
+				Circuit circuit = getCircuit(retryState.circuitKey);
+				if (circuit.failures >= failureThreshold) {
+					circuitOpen = (circuit.openUntil > System.currentTimeMillis()) || circuit.probing;
+					if (!circuitOpen) {
+						circuit.probing = true;
+						retryState.probe = true;
+					}
+				}
+				if (!circuitOpen) {
+					retryState.attempts++;
+					retryState.keyAttempts.count++;
+					retryState.keyAttempts.lastAttempt = System.currentTimeMillis();
+				}
+			}
+		}
+		if (attemptsExhausted || circuitOpen) {
+			abandon(retryState, circuitOpen);
+			return;
+		}
+		try {
+			fcpClient.sendMessage(retryState.request);
+		} catch (IOException ioe1) {
+			logger.log(Level.WARNING, "Could not send request " + retryState.getIdentifier() + "!", ioe1);
+			requestFailed(retryState.getIdentifier(), true, false);
+		}
+	}
+
+	/**
+	 * Removes a request from the node and sends it again with the given
+	 * identifier.
+	 *
+	 * @param retryState
+	 *            The state of the request
+	 * @param retryIdentifier
+	 *            The identifier of the next attempt
+	 */
+	private void resend(RetryState retryState, String retryIdentifier) {
+		if (isPersistent(retryState.request)) {
+			RemovePersistentRequest removePersistentRequest = new RemovePersistentRequest(retryState.getIdentifier());
+			removePersistentRequest.setGlobal(Boolean.parseBoolean(retryState.request.getField("Global")));
+			try {
+				fcpClient.sendMessage(removePersistentRequest);
+			} catch (IOException ioe1) {
+				logger.log(Level.WARNING, "Could not remove request " + retryState.getIdentifier() + "!", ioe1);
+			}
+		}
+		synchronized (syncObject) {
+			if (requests.get(retryState.getIdentifier()) != retryState) {
+				return;
+			}
+			requests.remove(retryState.getIdentifier());
+			retryState.request.setField("Identifier", retryIdentifier);
+			requests.put(retryIdentifier, retryState);
+		}
+		send(retryState);
+	}
+
+	/**
+	 * Handles the success of a request.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 */
+	private void requestSucceeded(String identifier) {
+		synchronized (syncObject) {
+			RetryState retryState = requests.remove(identifier);
+			if (retryState == null) {
+				return;
+			}
+			retryState.keyAttempts.requests--;
+			if (keyAttempts.get(retryState.uri) == retryState.keyAttempts) {
+				keyAttempts.remove(retryState.uri);
+			}
+			/* a closed circuit without failures does not need to be kept. */
+			circuits.remove(retryState.circuitKey);
+		}
+	}
+
+	/**
+	 * Handles the failure of a request, scheduling a retry if possible.
+	 *
+	 * @param identifier
+	 *            The identifier of the request
+	 * @param retryable
+	 *            {@code true} if the failure was not fatal and sending the
+	 *            request again might succeed, {@code false} otherwise
+	 * @param keyFailure
+	 *            {@code true} if the node reported the failure and it counts
+	 *            against the circuit of the request’s key, {@code false} if
+	 *            the request could not be sent to the node at all
+	 */
+	private void requestFailed(String identifier, boolean retryable, boolean keyFailure) {
+		final RetryState retryState;
+		long delay = -1;
+		synchronized (syncObject) {
+			retryState = requests.get(identifier);
+			if (retryState == null) {
+				return;
+			}
+			if (retryState.probe) {
+				retryState.probe = false;
+				Circuit circuit = circuits.get(retryState.circuitKey);
+				if (circuit != null) {
+					circuit.probing = false;
+				}
+			}
+			if (retryable) {
+				if (keyFailure) {
+					Circuit circuit = getCircuit(retryState.circuitKey);
+					circuit.lastFailure = System.currentTimeMillis();
+					if (++circuit.failures >= failureThreshold) {
+						circuit.openUntil = circuit.lastFailure + openDuration;
+					}
+				}
+				if ((retryState.keyAttempts.count < maximumAttempts) && !String.valueOf(UploadFrom.direct).equals(retryState.request.getField("UploadFrom"))) {
+					delay = getBackoffDelay(retryState.keyAttempts.count + 1, initialDelay, maximumDelay);
+					delay -= (long) (random.nextDouble() * delay / 2);
+				}
+			}
+		}
+		if (delay < 0) {
+			abandon(retryState, false);
+			return;
+		}
+		final String retryIdentifier = isPersistent(retryState.request) ? (retryState.identifier + "-retry-" + (retryState.attempts + 1)) : identifier;
+		retryState.retryListener.retryScheduled(retryState.identifier, retryIdentifier, retryState.attempts + 1, delay);
+		executorService.schedule(new Runnable() {
+
+			@Override
+			@SuppressWarnings("synthetic-access")
+			public void run() {
+				resend(retryState, retryIdentifier);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops managing a request and notifies its listener.
+	 *
+	 * @param retryState
+	 *            The state of the request
+	 * @param circuitOpen
+	 *            {@code true} if the request is abandoned because its circuit
+	 *            is open, {@code false} otherwise
+	 */
+	private void abandon(RetryState retryState, boolean circuitOpen) {
+		synchronized (syncObject) {
+			if (requests.remove(retryState.getIdentifier()) != null) {
+				retryState.keyAttempts.requests--;
+			}
+		}
+		retryState.retryListener.requestAbandoned(retryState.identifier, retryState.attempts, circuitOpen);
+	}
+
+	/**
+	 * Returns the circuit for the given key, creating it if necessary.
+	 *
+	 * @param circuitKey
+	 *            The key of the circuit
+	 * @return The circuit
+	 */
+	private Circuit getCircuit(String circuitKey) {
+		Circuit circuit = circuits.get(circuitKey);
+		if (circuit == null) {
+			circuit = new Circuit();
+			circuits.put(circuitKey, circuit);
+		}
+		return circuit;
+	}
+
+	/**
+	 * Removes all closed circuits that had no failure for the time a circuit
+	 * stays open, all open circuits that were not probed for that time after
+	 * they could have been, and the attempts of all URIs without managed requests that had no
+	 * attempt for the maximum delay. Must be called with the lock on
+	 * {@link #syncObject} held.
+	 *
+	 * @param now
+	 *            The current time
+	 */
+	private void prune(long now) {
+		for (Iterator<Circuit> circuitIterator = circuits.values().iterator(); circuitIterator.hasNext();) {
+			Circuit circuit = circuitIterator.next();
+			if (circuit.probing) {
+				continue;
+			}
+			if ((circuit.failures < failureThreshold) ? ((now - circuit.lastFailure) >= openDuration) : ((now - circuit.openUntil) >= openDuration)) {
+				circuitIterator.remove();
+			}
+		}
+		for (Iterator<KeyAttempts> keyAttemptsIterator = keyAttempts.values().iterator(); keyAttemptsIterator.hasNext();) {
+			KeyAttempts attempts = keyAttemptsIterator.next();
+			if ((attempts.requests == 0) && ((now - attempts.lastAttempt) >= maximumDelay)) {
+				keyAttemptsIterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the given request is persistent.
+	 *
+	 * @param request
+	 *            The request
+	 * @return {@code true} if the request is persistent, {@code false}
+	 *         otherwise
+	 */
+	private static boolean isPersistent(FcpMessage request) {
+		String persistence = request.getField("Persistence");
+		return (persistence != null) && !persistence.equals(String.valueOf(Persistence.connection));
+	}
+
+	/**
+	 * The state of a managed request.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private static class RetryState {
+
+		/** The request. */
+		final FcpMessage request;
+
+		/** The identifier the request was submitted with. */
+		final String identifier;
+
+		/** The URI of the request. */
+		final String uri;
+
+		/** The key of the request’s circuit. */
+		final String circuitKey;
+
+		/** The attempts for the request’s URI. */
+		final KeyAttempts keyAttempts;
+
+		/** The listener to notify. */
+		final RetryListener retryListener;
+
+		/** The number of attempts made for this request so far. */
+		int attempts;
+
+		/**
+		 * Whether the current attempt is the single request let through the
+		 * open circuit of its key.
+		 */
+		boolean probe;
+
+		/**
+		 * Creates a new retry state.
+		 *
+		 * @param request
+		 *            The request
+		 * @param circuitKey
+		 *            The key of the request’s circuit
+		 * @param keyAttempts
+		 *            The attempts for the request’s URI
+		 * @param retryListener
+		 *            The listener to notify
+		 */
+		RetryState(FcpMessage request, String circuitKey, KeyAttempts keyAttempts, RetryListener retryListener) {
+			this.request = request;
+			this.identifier = request.getField("Identifier");
+			this.uri = request.getField("URI");
+			this.circuitKey = circuitKey;
+			this.keyAttempts = keyAttempts;
+			this.retryListener = retryListener;
+		}
+
+		/**
+		 * Returns the identifier of the current attempt of the request.
+		 *
+		 * @return The identifier of the current attempt
+		 */
+		String getIdentifier() {
+			return request.getField("Identifier");
+		}
+
+	}
+
+	/**
+	 * The attempts made for a URI.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private static class KeyAttempts {
+
+		/** The number of attempts. */
+		int count;
+
+		/** The time of the last attempt. */
+		long lastAttempt;
+
+		/** The number of managed requests for the URI. */
+		int requests;
+
+	}
+
+	/**
+	 * The circuit of a key.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private static class Circuit {
+
+		/** The number of consecutive failures. */
+		int failures;
+
+		/** The time of the last failure. */
+		long lastFailure;
+
+		/** The time until which the circuit is open. */
+		long openUntil;
+
+		/** Whether a single request is currently let through. */
+		boolean probing;
+
+	}
+
+	/**
+	 * Listener for the results of managed requests.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private class ResultListener extends FcpAdapter {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedDataFound(FcpConnection fcpConnection, DataFound dataFound) {
+			requestSucceeded(dataFound.getIdentifier());
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedAllData(FcpConnection fcpConnection, AllData allData) {
+			requestSucceeded(allData.getIdentifier());
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPutSuccessful(FcpConnection fcpConnection, PutSuccessful putSuccessful) {
+			requestSucceeded(putSuccessful.getIdentifier());
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedGetFailed(FcpConnection fcpConnection, GetFailed getFailed) {
+			requestFailed(getFailed.getIdentifier(), !getFailed.isFatal() && (getFailed.getRedirectURI() == null), true);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPutFailed(FcpConnection fcpConnection, PutFailed putFailed) {
+			requestFailed(putFailed.getIdentifier(), !putFailed.isFatal(), true);
+		}
+
+	}
+
+}
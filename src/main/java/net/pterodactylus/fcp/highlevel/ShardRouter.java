@@ -0,0 +1,253 @@
+/*
+ * jFCPlib - ShardRouter.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Routes requests to a fleet of nodes so that all requests for the same key
+ * go to the same node, which maximizes the locality of the nodes’ data
+ * stores. The {@link #getRoutingKey(String) routing key} of a URI is hashed
+ * onto a consistent-hash ring on which every node occupies a number of
+ * virtual positions; the request is routed to the node at the first position
+ * following the hash. Adding or removing a node therefore only moves the keys
+ * between the changed node and its neighbours on the ring.
+ * <p>
+ * The share of the hash ring owned by every node and the number of requests
+ * routed to every node can be retrieved to check the load distribution.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class ShardRouter {
+
+	/** Object used for synchronization. */
+	private final Object syncObject = new Object();
+
+	/** The number of positions of every node on the ring. */
+	private final int virtualNodes;
+
+	/** The nodes, by name. */
+	private final Map<String, FcpClient> nodes = new HashMap<String, FcpClient>();
+
+	/** The ring, mapping positions to node names. */
+	private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+	/** The number of routed requests, by node name. */
+	private final Map<String, Long> routedRequests = new HashMap<String, Long>();
+
+	/**
+	 * Creates a new shard router.
+	 *
+	 * @param virtualNodes
+	 *            The number of positions of every node on the ring
+	 */
+	public ShardRouter(int virtualNodes) {
+		if (virtualNodes < 1) {
+			throw new IllegalArgumentException("virtualNodes must be at least 1");
+		}
+		this.virtualNodes = virtualNodes;
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the name of the node the given URI is routed to.
+	 *
+	 * @param uri
+	 *            The URI to route
+	 * @return The name of the node, or {@code null} if there are no nodes
+	 */
+	public String getNodeName(String uri) {
+		long hash = hash(getRoutingKey(uri));
+		synchronized (syncObject) {
+			if (ring.isEmpty()) {
+				return null;
+			}
+			Entry<Long, String> position = ring.ceilingEntry(hash);
+			return (position == null) ? ring.firstEntry().getValue() : position.getValue();
+		}
+	}
+
+	/**
+	 * Returns the client of the node the given URI is routed to, and counts
+	 * the request for the node.
+	 *
+	 * @param uri
+	 *            The URI to route
+	 * @return The client of the node, or {@code null} if there are no nodes
+	 */
+	public FcpClient getFcpClient(String uri) {
+		String nodeName = getNodeName(uri);
+		synchronized (syncObject) {
+			if ((nodeName == null) || !nodes.containsKey(nodeName)) {
+				return null;
+			}
+			routedRequests.put(nodeName, routedRequests.get(nodeName) + 1);
+			return nodes.get(nodeName);
+		}
+	}
+
+	/**
+	 * Returns the share of the hash ring owned by every node. Without
+	 * changes to the set of nodes, the share of keys routed to a node
+	 * approaches its share of the ring.
+	 *
+	 * @return The share of the ring (between {@code 0} and {@code 1}), by
+	 *         node name
+	 */
+	public Map<String, Double> getRingShares() {
+		Map<String, Double> ringShares = new HashMap<String, Double>();
+		synchronized (syncObject) {
+			for (String nodeName : nodes.keySet()) {
+				ringShares.put(nodeName, 0.0);
+			}
+			Long previousPosition = ring.isEmpty() ? null : ring.lastKey();
+			for (Entry<Long, String> position : ring.entrySet()) {
+				/* unsigned distance from the previous position. */
+				double distance = (position.getKey() - previousPosition) / 18446744073709551616.0;
+				if (distance <= 0) {
+					distance += 1;
+				}
+				ringShares.put(position.getValue(), ringShares.get(position.getValue()) + distance);
+				previousPosition = position.getKey();
+			}
+		}
+		return ringShares;
+	}
+
+	/**
+	 * Returns the number of requests that were routed to every node.
+	 *
+	 * @return The number of routed requests, by node name
+	 */
+	public Map<String, Long> getRoutedRequests() {
+		synchronized (syncObject) {
+			return new HashMap<String, Long>(routedRequests);
+		}
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Adds a node to the ring. If a node with the same name already exists,
+	 * its client is replaced but its positions on the ring are kept.
+	 *
+	 * @param nodeName
+	 *            The name of the node (its positions on the ring depend only
+	 *            on the name)
+	 * @param fcpClient
+	 *            The client of the node
+	 */
+	public void addNode(String nodeName, FcpClient fcpClient) {
+		synchronized (syncObject) {
+			if (nodes.put(nodeName, fcpClient) != null) {
+				return;
+			}
+			routedRequests.put(nodeName, 0L);
+			for (int virtualNode = 0; virtualNode < virtualNodes; virtualNode++) {
+				ring.put(hash(nodeName + "#" + virtualNode), nodeName);
+			}
+		}
+	}
+
+	/**
+	 * Removes a node from the ring. Its keys are routed to the nodes following
+	 * its positions on the ring.
+	 *
+	 * @param nodeName
+	 *            The name of the node
+	 */
+	public void removeNode(String nodeName) {
+		synchronized (syncObject) {
+			if (nodes.remove(nodeName) == null) {
+				return;
+			}
+			routedRequests.remove(nodeName);
+			for (int virtualNode = 0; virtualNode < virtualNodes; virtualNode++) {
+				Long position = hash(nodeName + "#" + virtualNode);
+				if (nodeName.equals(ring.get(position))) {
+					ring.remove(position);
+				}
+			}
+		}
+	}
+
+	//
+	// STATIC METHODS
+	//
+
+	/**
+	 * Returns the routing portion of the given URI. For SSKs and USKs this is
+	 * the key type and the routing key, so that all documents and editions of
+	 * a site share a routing key; for all other URIs it is the part before the
+	 * first slash.
+	 *
+	 * @param uri
+	 *            The URI
+	 * @return The routing portion of the URI
+	 */
+	public static String getRoutingKey(String uri) {
+		String key = uri.startsWith("freenet:") ? uri.substring("freenet:".length()) : uri;
+		int slash = key.indexOf('/');
+		if (slash != -1) {
+			key = key.substring(0, slash);
+		}
+		if (key.startsWith("SSK@") || key.startsWith("USK@")) {
+			int comma = key.indexOf(',');
+			return "SSK@" + ((comma == -1) ? key.substring(4) : key.substring(4, comma));
+		}
+		return key;
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Hashes the given string onto the ring.
+	 *
+	 * @param value
+	 *            The string to hash
+	 * @return The position of the string on the ring
+	 */
+	private static long hash(String value) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+			long hash = 0;
+			for (int index = 0; index < 8; index++) {
+				hash = (hash << 8) | (digest[index] & 0xff);
+			}
+			return hash;
+		} catch (NoSuchAlgorithmException nsae1) {
+			throw new IllegalStateException("MD5 is not available!", nsae1);
+		} catch (UnsupportedEncodingException uee1) {
+			throw new IllegalStateException("UTF-8 is not available!", uee1);
+		}
+	}
+
+}
@@ -0,0 +1,622 @@
+/*
+ * jFCPlib - SiteInserter.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.pterodactylus.fcp.ClientPut;
+import net.pterodactylus.fcp.ClientPutComplexDir;
+import net.pterodactylus.fcp.FcpAdapter;
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.FcpUtils;
+import net.pterodactylus.fcp.FileEntry;
+import net.pterodactylus.fcp.Priority;
+import net.pterodactylus.fcp.PutFailed;
+import net.pterodactylus.fcp.PutSuccessful;
+import net.pterodactylus.fcp.UploadFrom;
+
+/**
+ * Inserts a directory as a freesite, uploading only the files that have
+ * changed since the previous insert. A local manifest records the path, size,
+ * modification time, SHA-256 hash, and CHK of every file of the last insert.
+ * A file whose size and modification time are unchanged is not read at all;
+ * a file whose content hash is unchanged is not uploaded again. All other
+ * files are inserted as single CHKs, and the site itself is then inserted as
+ * a “ClientPutComplexDir” that only contains redirects to the CHKs of its
+ * files, so its upload is small regardless of the size of the site.
+ * <p>
+ * If a {@link ContentIndex} is set, changed files whose content has already
+ * been inserted (by any site) are not uploaded again but redirected to the
+ * indexed URI, and the URIs of all uploaded files are added to the index.
+ * If a {@link CompressionProbe} is set, changed files that do not compress
+ * are inserted without letting the node try to compress them.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class SiteInserter {
+
+	/** The logger. */
+	private static final Logger logger = Logger.getLogger(SiteInserter.class.getName());
+
+	/** Object used for synchronization. */
+	private final Object syncObject = new Object();
+
+	/** The FCP client to use. */
+	private final FcpClient fcpClient;
+
+	/** The file that stores the manifest of the last insert. */
+	private final File manifestFile;
+
+	/** The maximum number of concurrent file inserts. */
+	private final int maxConcurrentInserts;
+
+	/** The priority of the inserts. */
+	private volatile Priority priority = Priority.bulkSplitfile;
+
+	/** The index of inserted content, or {@code null}. */
+	private volatile ContentIndex contentIndex;
+
+	/** The DDA manager of the FCP client, or {@code null}. */
+	private volatile DdaManager ddaManager;
+
+	/** The compression probe, or {@code null}. */
+	private volatile CompressionProbe compressionProbe;
+
+	/** The running file inserts, by identifier. */
+	private final Map<String, String> runningInserts = new HashMap<String, String>();
+
+	/** The finished file inserts, by path. */
+	private final Map<String, String> finishedInserts = new HashMap<String, String>();
+
+	/** The URI of the inserted site, once its insert has finished. */
+	private String siteUri;
+
+	/** The first failure of the current insert. */
+	private FcpException insertFailure;
+
+	/** The number of files uploaded by the last insert. */
+	private volatile int uploadedFiles;
+
+	/** The number of files reused by the last insert. */
+	private volatile int reusedFiles;
+
+	/**
+	 * Creates a new site inserter.
+	 *
+	 * @param fcpClient
+	 *            The FCP client to use
+	 * @param manifestFile
+	 *            The file that stores the manifest of the last insert
+	 * @param maxConcurrentInserts
+	 *            The maximum number of concurrent file inserts
+	 */
+	public SiteInserter(FcpClient fcpClient, File manifestFile, int maxConcurrentInserts) {
+		this.fcpClient = fcpClient;
+		this.manifestFile = manifestFile;
+		this.maxConcurrentInserts = Math.max(1, maxConcurrentInserts);
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Sets the priority of the inserts.
+	 *
+	 * @param priority
+	 *            The priority of the inserts
+	 */
+	public void setPriority(Priority priority) {
+		this.priority = priority;
+	}
+
+	/**
+	 * Sets the index of inserted content that is used to avoid uploading
+	 * identical content more than once.
+	 *
+	 * @param contentIndex
+	 *            The index of inserted content, or {@code null} to not use an
+	 *            index
+	 */
+	public void setContentIndex(ContentIndex contentIndex) {
+		this.contentIndex = contentIndex;
+	}
+
+	/**
+	 * Sets the DDA manager of the FCP client. Files in directories the node
+	 * is allowed to read are then read by the node from disk instead of being
+	 * sent over the connection.
+	 *
+	 * @param ddaManager
+	 *            The DDA manager of the FCP client, or {@code null} to always
+	 *            send the files to the node
+	 */
+	public void setDdaManager(DdaManager ddaManager) {
+		this.ddaManager = ddaManager;
+	}
+
+	/**
+	 * Sets the compression probe that finds the changed files that do not
+	 * compress. Note that files inserted without compression have different
+	 * CHKs than files the node has tried to compress.
+	 *
+	 * @param compressionProbe
+	 *            The compression probe, or {@code null} to let the node
+	 *            compress all files
+	 */
+	public void setCompressionProbe(CompressionProbe compressionProbe) {
+		this.compressionProbe = compressionProbe;
+	}
+
+	/**
+	 * Returns the number of files that were uploaded by the last insert.
+	 *
+	 * @return The number of uploaded files
+	 */
+	public int getUploadedFiles() {
+		return uploadedFiles;
+	}
+
+	/**
+	 * Returns the number of files whose CHK was reused by the last insert,
+	 * either from the manifest or from the content index.
+	 *
+	 * @return The number of reused files
+	 */
+	public int getReusedFiles() {
+		return reusedFiles;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Inserts the given directory to the given URI. Files that have changed
+	 * since the last insert are uploaded first; the manifest is updated with
+	 * their CHKs even if the site insert fails afterwards.
+	 *
+	 * @param directory
+	 *            The directory to insert
+	 * @param uri
+	 *            The URI to insert the site to
+	 * @param defaultName
+	 *            The name of the default file, or {@code null}
+	 * @return The URI of the inserted site
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws FcpException
+	 *             if an insert fails
+	 */
+	public String insert(File directory, String uri, String defaultName) throws IOException, FcpException {
+		Map<String, ManifestEntry> oldManifest = manifestFile.exists() ? loadManifest() : new HashMap<String, ManifestEntry>();
+		Map<String, File> files = new TreeMap<String, File>();
+		collectFiles(directory, "", files);
+		Map<String, ManifestEntry> manifest = new TreeMap<String, ManifestEntry>();
+		Map<String, File> changedFiles = new TreeMap<String, File>();
+		for (Entry<String, File> file : files.entrySet()) {
+			ManifestEntry oldEntry = oldManifest.get(file.getKey());
+			long size = file.getValue().length();
+			long modificationTime = file.getValue().lastModified();
+			if ((oldEntry != null) && (oldEntry.size == size) && (oldEntry.modificationTime == modificationTime)) {
+				manifest.put(file.getKey(), oldEntry);
+				continue;
+			}
+			String hash = ContentIndex.hash(file.getValue());
+			if ((oldEntry != null) && (oldEntry.size == size) && oldEntry.hash.equals(hash)) {
+				manifest.put(file.getKey(), new ManifestEntry(size, modificationTime, hash, oldEntry.chk));
+				continue;
+			}
+			manifest.put(file.getKey(), new ManifestEntry(size, modificationTime, hash, null));
+			changedFiles.put(file.getKey(), file.getValue());
+		}
+		reusedFiles = files.size() - changedFiles.size();
+		uploadedFiles = 0;
+		CompressionProbe compressionProbe = this.compressionProbe;
+		Set<String> incompressibleFiles = (compressionProbe != null) ? compressionProbe.findIncompressibleFiles(changedFiles) : Collections.<String> emptySet();
+		FcpListener insertListener = new InsertListener();
+		fcpClient.addFcpListener(insertListener);
+		try {
+			synchronized (syncObject) {
+				runningInserts.clear();
+				finishedInserts.clear();
+				insertFailure = null;
+				siteUri = null;
+			}
+			try {
+				insertFiles(changedFiles, manifest, incompressibleFiles);
+			} finally {
+				ContentIndex contentIndex = this.contentIndex;
+				synchronized (syncObject) {
+					for (Entry<String, String> finishedInsert : finishedInserts.entrySet()) {
+						ManifestEntry manifestEntry = manifest.get(finishedInsert.getKey());
+						manifestEntry.chk = finishedInsert.getValue();
+						if (contentIndex != null) {
+							contentIndex.putUri(manifestEntry.hash, createClientPut(files.get(finishedInsert.getKey()), null, UploadFrom.direct, incompressibleFiles.contains(finishedInsert.getKey())), manifestEntry.chk);
+						}
+					}
+					uploadedFiles = finishedInserts.size();
+				}
+				for (Iterator<ManifestEntry> manifestEntries = manifest.values().iterator(); manifestEntries.hasNext();) {
+					if (manifestEntries.next().chk == null) {
+						manifestEntries.remove();
+					}
+				}
+				saveManifest(manifest);
+			}
+			return insertSite(uri, defaultName, manifest);
+		} finally {
+			fcpClient.removeFcpListener(insertListener);
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Inserts the given files as CHKs, waiting for all inserts to finish.
+	 * Files whose content is found in the content index are not inserted but
+	 * use the indexed URI.
+	 *
+	 * @param files
+	 *            The files to insert, by path
+	 * @param manifest
+	 *            The manifest of the site
+	 * @param incompressibleFiles
+	 *            The paths of the files to insert without compression
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws FcpException
+	 *             if an insert fails
+	 */
+	private void insertFiles(Map<String, File> files, Map<String, ManifestEntry> manifest, Set<String> incompressibleFiles) throws IOException, FcpException {
+		ContentIndex contentIndex = this.contentIndex;
+		DdaManager ddaManager = this.ddaManager;
+		for (Entry<String, File> file : files.entrySet()) {
+			String identifier = FcpClient.createIdentifier("site-file");
+			boolean diskAccess = (ddaManager != null) && ddaManager.canRead(file.getValue().getAbsoluteFile().getParentFile());
+			ClientPut clientPut = createClientPut(file.getValue(), identifier, diskAccess ? UploadFrom.disk : UploadFrom.direct, incompressibleFiles.contains(file.getKey()));
+			if (contentIndex != null) {
+				String indexedUri = contentIndex.getUri(manifest.get(file.getKey()).hash, clientPut);
+				if (indexedUri != null) {
+					manifest.get(file.getKey()).chk = indexedUri;
+					reusedFiles++;
+					continue;
+				}
+			}
+			synchronized (syncObject) {
+				while ((runningInserts.size() >= maxConcurrentInserts) && (insertFailure == null)) {
+					waitForChange();
+				}
+				if (insertFailure != null) {
+					throw insertFailure;
+				}
+			}
+			synchronized (syncObject) {
+				runningInserts.put(identifier, file.getKey());
+			}
+			if (diskAccess) {
+				clientPut.setFilename(file.getValue().getAbsolutePath());
+				fcpClient.sendMessage(clientPut);
+				continue;
+			}
+			clientPut.setDataLength(file.getValue().length());
+			InputStream fileInputStream = new FileInputStream(file.getValue());
+			try {
+				clientPut.setPayloadInputStream(fileInputStream);
+				fcpClient.sendMessage(clientPut);
+			} finally {
+				FcpUtils.close(fileInputStream);
+			}
+		}
+		synchronized (syncObject) {
+			while (!runningInserts.isEmpty() && (insertFailure == null)) {
+				waitForChange();
+			}
+			if (insertFailure != null) {
+				throw insertFailure;
+			}
+		}
+	}
+
+	/**
+	 * Creates the message that inserts the given file as a CHK.
+	 *
+	 * @param file
+	 *            The file to insert
+	 * @param identifier
+	 *            The identifier of the insert
+	 * @param uploadFrom
+	 *            Where the node reads the file from
+	 * @param dontCompress
+	 *            {@code true} to insert the file without compression,
+	 *            {@code false} to let the node compress it
+	 * @return The message that inserts the file
+	 */
+	private ClientPut createClientPut(File file, String identifier, UploadFrom uploadFrom, boolean dontCompress) {
+		ClientPut clientPut = new ClientPut("CHK@", identifier, uploadFrom);
+		clientPut.setTargetFilename(file.getName());
+		if (dontCompress) {
+			clientPut.setDontCompress(true);
+		}
+		clientPut.setPriority(priority);
+		return clientPut;
+	}
+
+	/**
+	 * Inserts the site as a manifest of redirects to the CHKs of its files,
+	 * waiting for the insert to finish.
+	 *
+	 * @param uri
+	 *            The URI to insert the site to
+	 * @param defaultName
+	 *            The name of the default file, or {@code null}
+	 * @param manifest
+	 *            The manifest of the site
+	 * @return The URI of the inserted site
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws FcpException
+	 *             if the insert fails
+	 */
+	private String insertSite(String uri, String defaultName, Map<String, ManifestEntry> manifest) throws IOException, FcpException {
+		String identifier = FcpClient.createIdentifier("site");
+		ClientPutComplexDir clientPutComplexDir = new ClientPutComplexDir(identifier, uri);
+		clientPutComplexDir.setPriority(priority);
+		if (defaultName != null) {
+			clientPutComplexDir.setDefaultName(defaultName);
+		}
+		for (Entry<String, ManifestEntry> manifestEntry : manifest.entrySet()) {
+			clientPutComplexDir.addFileEntry(FileEntry.createRedirectFileEntry(manifestEntry.getKey(), manifestEntry.getValue().chk));
+		}
+		synchronized (syncObject) {
+			runningInserts.put(identifier, null);
+		}
+		fcpClient.sendMessage(clientPutComplexDir);
+		synchronized (syncObject) {
+			while ((siteUri == null) && (insertFailure == null)) {
+				waitForChange();
+			}
+			if (insertFailure != null) {
+				throw insertFailure;
+			}
+			return siteUri;
+		}
+	}
+
+	/**
+	 * Waits for a running insert to finish. This method has to be called
+	 * while holding the lock on {@link #syncObject}.
+	 */
+	private void waitForChange() {
+		try {
+			syncObject.wait();
+		} catch (InterruptedException ie1) {
+			/* ignore, the caller will loop. */
+		}
+	}
+
+	/**
+	 * Loads the manifest of the last insert.
+	 *
+	 * @return The manifest, by path
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private Map<String, ManifestEntry> loadManifest() throws IOException {
+		Map<String, ManifestEntry> manifest = new HashMap<String, ManifestEntry>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", 5);
+				if (fields.length < 5) {
+					continue;
+				}
+				try {
+					manifest.put(fields[4], new ManifestEntry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2], fields[3]));
+				} catch (NumberFormatException nfe1) {
+					logger.log(Level.WARNING, "Invalid manifest line: " + line);
+				}
+			}
+		} finally {
+			FcpUtils.close(reader);
+		}
+		return manifest;
+	}
+
+	/**
+	 * Saves the given manifest.
+	 *
+	 * @param manifest
+	 *            The manifest to save, by path
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private void saveManifest(Map<String, ManifestEntry> manifest) throws IOException {
+		File temporaryFile = new File(manifestFile.getPath() + ".tmp");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(temporaryFile), "UTF-8");
+		try {
+			for (Entry<String, ManifestEntry> manifestEntry : manifest.entrySet()) {
+				ManifestEntry entry = manifestEntry.getValue();
+				writer.write(entry.size + "\t" + entry.modificationTime + "\t" + entry.hash + "\t" + entry.chk + "\t" + manifestEntry.getKey() + "\n");
+			}
+		} finally {
+			FcpUtils.close(writer);
+		}
+		if (!temporaryFile.renameTo(manifestFile)) {
+			manifestFile.delete();
+			if (!temporaryFile.renameTo(manifestFile)) {
+				throw new IOException("Could not rename " + temporaryFile + " to " + manifestFile);
+			}
+		}
+	}
+
+	//
+	// STATIC METHODS
+	//
+
+	/**
+	 * Collects all files below the given directory.
+	 *
+	 * @param directory
+	 *            The directory to collect the files of
+	 * @param prefix
+	 *            The path of the directory within the site
+	 * @param files
+	 *            The collected files, by path
+	 * @throws IOException
+	 *             if the directory can not be read
+	 */
+	private static void collectFiles(File directory, String prefix, Map<String, File> files) throws IOException {
+		File[] directoryFiles = directory.listFiles();
+		if (directoryFiles == null) {
+			throw new IOException("Could not list " + directory);
+		}
+		Arrays.sort(directoryFiles);
+		for (File file : directoryFiles) {
+			if (file.isDirectory()) {
+				collectFiles(file, prefix + file.getName() + "/", files);
+			} else if (file.isFile()) {
+				files.put(prefix + file.getName(), file);
+			}
+		}
+	}
+
+	/**
+	 * The state of a single file of the last insert.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private static class ManifestEntry {
+
+		/** The size of the file. */
+		final long size;
+
+		/** The modification time of the file. */
+		final long modificationTime;
+
+		/** The SHA-256 hash of the file. */
+		final String hash;
+
+		/** The CHK of the file, or {@code null} if it is not inserted. */
+		String chk;
+
+		/**
+		 * Creates a new manifest entry.
+		 *
+		 * @param size
+		 *            The size of the file
+		 * @param modificationTime
+		 *            The modification time of the file
+		 * @param hash
+		 *            The SHA-256 hash of the file
+		 * @param chk
+		 *            The CHK of the file, or {@code null}
+		 */
+		ManifestEntry(long size, long modificationTime, String hash, String chk) {
+			this.size = size;
+			this.modificationTime = modificationTime;
+			this.hash = hash;
+			this.chk = chk;
+		}
+
+	}
+
+	/**
+	 * Listener for the results of the running inserts.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private class InsertListener extends FcpAdapter {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPutSuccessful(FcpConnection fcpConnection, PutSuccessful putSuccessful) {
+			synchronized (syncObject) {
+				if (!runningInserts.containsKey(putSuccessful.getIdentifier())) {
+					return;
+				}
+				String path = runningInserts.remove(putSuccessful.getIdentifier());
+				if (path == null) {
+					siteUri = putSuccessful.getURI();
+				} else {
+					finishedInserts.put(path, putSuccessful.getURI());
+				}
+				syncObject.notifyAll();
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedPutFailed(FcpConnection fcpConnection, PutFailed putFailed) {
+			synchronized (syncObject) {
+				if (!runningInserts.containsKey(putFailed.getIdentifier())) {
+					return;
+				}
+				String path = runningInserts.remove(putFailed.getIdentifier());
+				if (insertFailure == null) {
+					insertFailure = new FcpException("Could not insert " + ((path == null) ? "site" : path) + ": " + putFailed.getCodeDescription());
+				}
+				syncObject.notifyAll();
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void connectionClosed(FcpConnection fcpConnection, Throwable throwable) {
+			synchronized (syncObject) {
+				if (insertFailure == null) {
+					insertFailure = new FcpException("Connection closed", throwable);
+				}
+				syncObject.notifyAll();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,273 @@
+/*
+ * jFCPlib - TelemetrySampler.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.pterodactylus.fcp.NodeData;
+import net.pterodactylus.fcp.Peer;
+
+/**
+ * Samples the volatile statistics of the node and its peers at a fixed
+ * interval. Every numeric volatile field is parsed once when it is sampled
+ * and stored in a {@link TimeSeries} of fixed size, one per metric for the
+ * node and one per metric and peer, so the memory used by the sampler does
+ * not grow with its uptime. Series of peers that are no longer connected are
+ * dropped.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class TelemetrySampler {
+
+	/** The logger. */
+	private static final Logger logger = Logger.getLogger(TelemetrySampler.class.getName());
+
+	/** The prefix of volatile fields. */
+	private static final String VOLATILE_PREFIX = "volatile.";
+
+	/** Object used for synchronization. */
+	private final Object syncObject = new Object();
+
+	/** The FCP client to use. */
+	private final FcpClient fcpClient;
+
+	/** The executor to sample on. */
+	private final ScheduledExecutorService executorService;
+
+	/** The number of samples to keep per metric. */
+	private final int capacity;
+
+	/** Whether to sample peer statistics. */
+	private final boolean samplePeers;
+
+	/** The time series of the node, by metric. */
+	private final Map<String, TimeSeries> nodeSeries = new ConcurrentHashMap<String, TimeSeries>();
+
+	/** The time series of the peers, by peer identity and metric. */
+	private final Map<String, Map<String, TimeSeries>> peerSeries = new ConcurrentHashMap<String, Map<String, TimeSeries>>();
+
+	/** The sampling task, if it is running. */
+	private ScheduledFuture<?> samplingFuture;
+
+	/**
+	 * Creates a new telemetry sampler.
+	 *
+	 * @param fcpClient
+	 *            The FCP client to use
+	 * @param executorService
+	 *            The executor to sample on
+	 * @param capacity
+	 *            The number of samples to keep per metric
+	 * @param samplePeers
+	 *            {@code true} to also sample the volatile fields of all peers
+	 */
+	public TelemetrySampler(FcpClient fcpClient, ScheduledExecutorService executorService, int capacity, boolean samplePeers) {
+		this.fcpClient = fcpClient;
+		this.executorService = executorService;
+		this.capacity = capacity;
+		this.samplePeers = samplePeers;
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the names of all sampled node metrics.
+	 *
+	 * @return The names of the node metrics
+	 */
+	public Set<String> getNodeMetrics() {
+		return Collections.unmodifiableSet(nodeSeries.keySet());
+	}
+
+	/**
+	 * Returns the time series of the given node metric.
+	 *
+	 * @param metric
+	 *            The name of the metric, without the “volatile.” prefix
+	 * @return The time series of the metric, or {@code null} if the metric
+	 *         has not been sampled
+	 */
+	public TimeSeries getNodeSeries(String metric) {
+		return nodeSeries.get(metric);
+	}
+
+	/**
+	 * Returns the identities of all sampled peers.
+	 *
+	 * @return The identities of the sampled peers
+	 */
+	public Set<String> getPeerIdentities() {
+		return Collections.unmodifiableSet(peerSeries.keySet());
+	}
+
+	/**
+	 * Returns the names of all sampled metrics of the given peer.
+	 *
+	 * @param identity
+	 *            The identity of the peer
+	 * @return The names of the peer’s metrics
+	 */
+	public Set<String> getPeerMetrics(String identity) {
+		Map<String, TimeSeries> series = peerSeries.get(identity);
+		return (series == null) ? Collections.<String> emptySet() : Collections.unmodifiableSet(series.keySet());
+	}
+
+	/**
+	 * Returns the time series of the given peer metric.
+	 *
+	 * @param identity
+	 *            The identity of the peer
+	 * @param metric
+	 *            The name of the metric, without the “volatile.” prefix
+	 * @return The time series of the metric, or {@code null} if the metric
+	 *         has not been sampled
+	 */
+	public TimeSeries getPeerSeries(String identity, String metric) {
+		Map<String, TimeSeries> series = peerSeries.get(identity);
+		return (series == null) ? null : series.get(metric);
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Starts sampling at the given interval. A running sampling task is
+	 * stopped first.
+	 *
+	 * @param interval
+	 *            The interval between samples
+	 * @param timeUnit
+	 *            The unit of the interval
+	 */
+	public void start(long interval, TimeUnit timeUnit) {
+		synchronized (syncObject) {
+			stop();
+			samplingFuture = executorService.scheduleAtFixedRate(new Runnable() {
+
+				@Override
+				@SuppressWarnings("synthetic-access")
+				public void run() {
+					try {
+						sample();
+					} catch (IOException ioe1) {
+						logger.log(Level.WARNING, "Could not sample node statistics!", ioe1);
+					} catch (FcpException fe1) {
+						logger.log(Level.WARNING, "Could not sample node statistics!", fe1);
+					}
+				}
+			}, 0, interval, timeUnit);
+		}
+	}
+
+	/**
+	 * Stops sampling. If sampling is not running, this method does nothing.
+	 */
+	public void stop() {
+		synchronized (syncObject) {
+			if (samplingFuture != null) {
+				samplingFuture.cancel(false);
+				samplingFuture = null;
+			}
+		}
+	}
+
+	/**
+	 * Takes a single sample of the node’s and, if enabled, the peers’
+	 * volatile statistics.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws FcpException
+	 *             if an FCP error occurs
+	 */
+	public void sample() throws IOException, FcpException {
+		NodeData nodeData = fcpClient.getNodeInformation(false, false, true);
+		long now = System.currentTimeMillis();
+		if (nodeData != null) {
+			addSamples(nodeSeries, nodeData.getFields(), now);
+		}
+		if (!samplePeers) {
+			return;
+		}
+		Collection<Peer> peers = fcpClient.getPeers(false, true);
+		now = System.currentTimeMillis();
+		Set<String> identities = new HashSet<String>();
+		for (Peer peer : peers) {
+			String identity = peer.getIdentity();
+			identities.add(identity);
+			Map<String, TimeSeries> series = peerSeries.get(identity);
+			if (series == null) {
+				series = new ConcurrentHashMap<String, TimeSeries>();
+				peerSeries.put(identity, series);
+			}
+			addSamples(series, peer.getVolatileFields(), now);
+		}
+		peerSeries.keySet().retainAll(identities);
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Parses all numeric volatile fields and adds them to their time series.
+	 *
+	 * @param series
+	 *            The time series, by metric
+	 * @param fields
+	 *            The fields to sample
+	 * @param time
+	 *            The time of the sample
+	 */
+	private void addSamples(Map<String, TimeSeries> series, Map<String, String> fields, long time) {
+		for (Entry<String, String> field : fields.entrySet()) {
+			if (!field.getKey().startsWith(VOLATILE_PREFIX)) {
+				continue;
+			}
+			double value;
+			try {
+				value = Double.parseDouble(field.getValue());
+			} catch (NumberFormatException nfe1) {
+				continue;
+			}
+			String metric = field.getKey().substring(VOLATILE_PREFIX.length());
+			TimeSeries metricSeries = series.get(metric);
+			if (metricSeries == null) {
+				metricSeries = new TimeSeries(capacity);
+				series.put(metric, metricSeries);
+			}
+			metricSeries.add(time, value);
+		}
+	}
+
+}
@@ -0,0 +1,188 @@
+/*
+ * jFCPlib - TieredFetchStatistics.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statistics of the fetches made using
+ * {@link FcpClient#getURIFromDataStoreFirst(String, boolean)}. For both the
+ * data store tier and the network tier the number of fetches, the number of
+ * successful fetches, and the accumulated latency are recorded.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class TieredFetchStatistics {
+
+	/** The number of data store fetches. */
+	private long dataStoreFetches;
+
+	/** The number of successful data store fetches. */
+	private long dataStoreHits;
+
+	/** The accumulated latency of data store fetches (in nanoseconds). */
+	private long dataStoreLatency;
+
+	/** The number of network fetches. */
+	private long networkFetches;
+
+	/** The number of successful network fetches. */
+	private long networkHits;
+
+	/** The accumulated latency of network fetches (in nanoseconds). */
+	private long networkLatency;
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the number of fetches that were tried in the data store.
+	 *
+	 * @return The number of data store fetches
+	 */
+	public synchronized long getDataStoreFetches() {
+		return dataStoreFetches;
+	}
+
+	/**
+	 * Returns the number of fetches that were served from the data store.
+	 *
+	 * @return The number of data store hits
+	 */
+	public synchronized long getDataStoreHits() {
+		return dataStoreHits;
+	}
+
+	/**
+	 * Returns the ratio of fetches served from the data store to all fetches.
+	 *
+	 * @return The data store hit ratio, or {@link Double#NaN} if there were no
+	 *         fetches
+	 */
+	public synchronized double getDataStoreHitRatio() {
+		return (dataStoreFetches == 0) ? Double.NaN : ((double) dataStoreHits / dataStoreFetches);
+	}
+
+	/**
+	 * Returns the average latency of data store fetches.
+	 *
+	 * @param timeUnit
+	 *            The unit of the returned latency
+	 * @return The average latency, or {@link Double#NaN} if there were no
+	 *         data store fetches
+	 */
+	public synchronized double getAverageDataStoreLatency(TimeUnit timeUnit) {
+		return average(dataStoreLatency, dataStoreFetches, timeUnit);
+	}
+
+	/**
+	 * Returns the number of fetches that had to go to the network.
+	 *
+	 * @return The number of network fetches
+	 */
+	public synchronized long getNetworkFetches() {
+		return networkFetches;
+	}
+
+	/**
+	 * Returns the number of network fetches that were successful.
+	 *
+	 * @return The number of successful network fetches
+	 */
+	public synchronized long getNetworkHits() {
+		return networkHits;
+	}
+
+	/**
+	 * Returns the average latency of network fetches.
+	 *
+	 * @param timeUnit
+	 *            The unit of the returned latency
+	 * @return The average latency, or {@link Double#NaN} if there were no
+	 *         network fetches
+	 */
+	public synchronized double getAverageNetworkLatency(TimeUnit timeUnit) {
+		return average(networkLatency, networkFetches, timeUnit);
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Records a data store fetch.
+	 *
+	 * @param success
+	 *            {@code true} if the file was found, {@code false} otherwise
+	 * @param latency
+	 *            The latency of the fetch (in nanoseconds)
+	 */
+	synchronized void addDataStoreFetch(boolean success, long latency) {
+		dataStoreFetches++;
+		dataStoreHits += success ? 1 : 0;
+		dataStoreLatency += latency;
+	}
+
+	/**
+	 * Records a network fetch.
+	 *
+	 * @param success
+	 *            {@code true} if the file was found, {@code false} otherwise
+	 * @param latency
+	 *            The latency of the fetch (in nanoseconds)
+	 */
+	synchronized void addNetworkFetch(boolean success, long latency) {
+		networkFetches++;
+		networkHits += success ? 1 : 0;
+		networkLatency += latency;
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Returns the average of the given accumulated latency.
+	 *
+	 * @param latency
+	 *            The accumulated latency (in nanoseconds)
+	 * @param count
+	 *            The number of fetches
+	 * @param timeUnit
+	 *            The unit of the returned latency
+	 * @return The average latency, or {@link Double#NaN} if the count is
+	 *         {@code 0}
+	 */
+	private static double average(long latency, long count, TimeUnit timeUnit) {
+		return (count == 0) ? Double.NaN : ((double) latency / count / TimeUnit.NANOSECONDS.convert(1, timeUnit));
+	}
+
+	//
+	// OBJECT METHODS
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized String toString() {
+		return getClass().getName() + "[dataStoreFetches=" + dataStoreFetches + ",dataStoreHits=" + dataStoreHits + ",networkFetches=" + networkFetches + ",networkHits=" + networkHits + "]";
+	}
+
+}
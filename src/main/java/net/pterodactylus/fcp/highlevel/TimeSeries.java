@@ -0,0 +1,200 @@
+/*
+ * jFCPlib - TimeSeries.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+/**
+ * Fixed-size ring buffer of timestamped samples. Once the buffer is full, the
+ * oldest sample is overwritten by every new sample, so the memory used by a
+ * time series never grows. Samples have to be added in chronological order.
+ * <p>
+ * All aggregation methods take the start of a time window and only consider
+ * samples taken at or after that time; they return {@link Double#NaN} if
+ * there are no samples in the window.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class TimeSeries {
+
+	/** The timestamps of the samples. */
+	private final long[] times;
+
+	/** The values of the samples. */
+	private final double[] values;
+
+	/** The index the next sample will be written to. */
+	private int next;
+
+	/** The number of stored samples. */
+	private int size;
+
+	/**
+	 * Creates a new time series.
+	 *
+	 * @param capacity
+	 *            The maximum number of samples to store
+	 */
+	public TimeSeries(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be at least 1");
+		}
+		times = new long[capacity];
+		values = new double[capacity];
+	}
+
+	/**
+	 * Returns the maximum number of samples this time series can store.
+	 *
+	 * @return The capacity of this time series
+	 */
+	public int getCapacity() {
+		return times.length;
+	}
+
+	/**
+	 * Returns the number of samples stored in this time series.
+	 *
+	 * @return The number of samples
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Adds a sample, overwriting the oldest sample if the time series is full.
+	 *
+	 * @param time
+	 *            The time of the sample (in milliseconds)
+	 * @param value
+	 *            The value of the sample
+	 */
+	public synchronized void add(long time, double value) {
+		times[next] = time;
+		values[next] = value;
+		next = (next + 1) % times.length;
+		size = Math.min(size + 1, times.length);
+	}
+
+	/**
+	 * Returns the time of the latest sample.
+	 *
+	 * @return The time of the latest sample, or {@code -1} if there are no
+	 *         samples
+	 */
+	public synchronized long getLatestTime() {
+		return (size == 0) ? -1 : times[index(0)];
+	}
+
+	/**
+	 * Returns the value of the latest sample.
+	 *
+	 * @return The value of the latest sample, or {@link Double#NaN} if there
+	 *         are no samples
+	 */
+	public synchronized double getLatestValue() {
+		return (size == 0) ? Double.NaN : values[index(0)];
+	}
+
+	/**
+	 * Returns the smallest value in the given window.
+	 *
+	 * @param since
+	 *            The start of the window (in milliseconds)
+	 * @return The smallest value
+	 */
+	public synchronized double getMinimum(long since) {
+		double minimum = Double.NaN;
+		for (int age = 0; (age < size) && (times[index(age)] >= since); age++) {
+			double value = values[index(age)];
+			if (Double.isNaN(minimum) || (value < minimum)) {
+				minimum = value;
+			}
+		}
+		return minimum;
+	}
+
+	/**
+	 * Returns the largest value in the given window.
+	 *
+	 * @param since
+	 *            The start of the window (in milliseconds)
+	 * @return The largest value
+	 */
+	public synchronized double getMaximum(long since) {
+		double maximum = Double.NaN;
+		for (int age = 0; (age < size) && (times[index(age)] >= since); age++) {
+			double value = values[index(age)];
+			if (Double.isNaN(maximum) || (value > maximum)) {
+				maximum = value;
+			}
+		}
+		return maximum;
+	}
+
+	/**
+	 * Returns the average of the values in the given window.
+	 *
+	 * @param since
+	 *            The start of the window (in milliseconds)
+	 * @return The average value
+	 */
+	public synchronized double getAverage(long since) {
+		double sum = 0;
+		int count = 0;
+		for (int age = 0; (age < size) && (times[index(age)] >= since); age++) {
+			sum += values[index(age)];
+			count++;
+		}
+		return (count == 0) ? Double.NaN : (sum / count);
+	}
+
+	/**
+	 * Returns the rate of change per second between the oldest and the latest
+	 * sample in the given window, which is useful for counters.
+	 *
+	 * @param since
+	 *            The start of the window (in milliseconds)
+	 * @return The rate of change per second, or {@link Double#NaN} if there
+	 *         are less than two samples in the window
+	 */
+	public synchronized double getRate(long since) {
+		int oldest = -1;
+		for (int age = 0; (age < size) && (times[index(age)] >= since); age++) {
+			oldest = age;
+		}
+		if (oldest < 1) {
+			return Double.NaN;
+		}
+		long timeDifference = times[index(0)] - times[index(oldest)];
+		if (timeDifference <= 0) {
+			return Double.NaN;
+		}
+		return (values[index(0)] - values[index(oldest)]) * 1000 / timeDifference;
+	}
+
+	/**
+	 * Returns the buffer index of the sample with the given age.
+	 *
+	 * @param age
+	 *            The age of the sample ({@code 0} is the latest sample)
+	 * @return The index of the sample
+	 */
+	private int index(int age) {
+		return (next - 1 - age + times.length) % times.length;
+	}
+
+}
@@ -0,0 +1,394 @@
+/*
+ * jFCPlib - UskPrefetcher.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.pterodactylus.fcp.ClientGet;
+import net.pterodactylus.fcp.DataFound;
+import net.pterodactylus.fcp.FcpAdapter;
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.GetFailed;
+import net.pterodactylus.fcp.Priority;
+import net.pterodactylus.fcp.ReturnType;
+
+/**
+ * {@link UskSubscriptionListener} that fetches every new edition of a USK as
+ * soon as it is announced, without returning the data, so that the data is
+ * already in the node’s store when the consumer requests it. Add it to a
+ * {@link UskSubscriptionManager} alongside the consumer’s own listener.
+ * <p>
+ * At most a configurable number of prefetches runs per USK; if more editions
+ * are announced while all slots are taken, only the newest of them is
+ * prefetched once a slot becomes free. An edition whose prefetch can not be
+ * sent to the node waits, too, and is tried again when the next edition is
+ * announced or the next prefetch finishes. Editions are prefetched using
+ * their SSK form so that the node does not redirect a prefetch to a newer
+ * edition.
+ * Consumers should call {@link #isPrefetched(String)} before fetching an
+ * edition so that the hit rate of the prefetcher can be determined; only the
+ * newest prefetched editions, as many as prefetches may run per USK, are
+ * remembered.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class UskPrefetcher implements UskSubscriptionListener {
+
+	/** The logger. */
+	private static final Logger logger = Logger.getLogger(UskPrefetcher.class.getName());
+
+	/** Object used for synchronization. */
+	private final Object syncObject = new Object();
+
+	/** The FCP client to use. */
+	private final FcpClient fcpClient;
+
+	/** The priority of the prefetches. */
+	private final Priority priority;
+
+	/** Whether to set the real-time flag on prefetches. */
+	private final boolean realTime;
+
+	/** The maximum number of concurrent prefetches per USK. */
+	private final int maxConcurrentPrefetches;
+
+	/** The state of all USKs, by URI without edition. */
+	private final Map<String, UskState> uskStates = new HashMap<String, UskState>();
+
+	/** The USK states of all running prefetches, by identifier. */
+	private final Map<String, UskState> runningPrefetches = new HashMap<String, UskState>();
+
+	/** The listener for prefetch results. */
+	private final FcpListener prefetchListener = new PrefetchListener();
+
+	/** The number of editions that were prefetched when requested. */
+	private long hits;
+
+	/** The number of editions that were not prefetched when requested. */
+	private long misses;
+
+	/**
+	 * Creates a new prefetcher.
+	 *
+	 * @param fcpClient
+	 *            The FCP client to use
+	 * @param priority
+	 *            The priority of the prefetches
+	 * @param realTime
+	 *            {@code true} to set the real-time flag on prefetches,
+	 *            {@code false} to optimize them for bulk transfer
+	 * @param maxConcurrentPrefetches
+	 *            The maximum number of concurrent prefetches per USK
+	 */
+	public UskPrefetcher(FcpClient fcpClient, Priority priority, boolean realTime, int maxConcurrentPrefetches) {
+		if (maxConcurrentPrefetches < 1) {
+			throw new IllegalArgumentException("maxConcurrentPrefetches must be at least 1");
+		}
+		this.fcpClient = fcpClient;
+		this.priority = priority;
+		this.realTime = realTime;
+		this.maxConcurrentPrefetches = maxConcurrentPrefetches;
+		fcpClient.addFcpListener(prefetchListener);
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the number of requested editions that had been prefetched.
+	 *
+	 * @return The number of prefetch hits
+	 */
+	public long getHits() {
+		synchronized (syncObject) {
+			return hits;
+		}
+	}
+
+	/**
+	 * Returns the number of requested editions that had not been prefetched.
+	 *
+	 * @return The number of prefetch misses
+	 */
+	public long getMisses() {
+		synchronized (syncObject) {
+			return misses;
+		}
+	}
+
+	/**
+	 * Returns the ratio of prefetch hits to all requested editions.
+	 *
+	 * @return The hit rate, or {@link Double#NaN} if no edition has been
+	 *         requested yet
+	 */
+	public double getHitRate() {
+		synchronized (syncObject) {
+			return ((hits + misses) == 0) ? Double.NaN : ((double) hits / (hits + misses));
+		}
+	}
+
+	/**
+	 * Returns the number of prefetches that are currently running.
+	 *
+	 * @return The number of running prefetches
+	 */
+	public int getRunningPrefetches() {
+		synchronized (syncObject) {
+			return runningPrefetches.size();
+		}
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Returns whether the given edition of a USK has been prefetched
+	 * successfully, and records a hit or a miss. Prefetched editions up to
+	 * the given edition are forgotten afterwards.
+	 *
+	 * @param uri
+	 *            The URI of the USK, including the edition
+	 * @return {@code true} if the edition has been prefetched, {@code false}
+	 *         otherwise
+	 */
+	public boolean isPrefetched(String uri) {
+		long edition = UskSubscriptionManager.getEditionFromUri(uri);
+		synchronized (syncObject) {
+			UskState uskState = uskStates.get(UskSubscriptionManager.getBaseUri(uri));
+			boolean prefetched = (uskState != null) && uskState.prefetchedEditions.contains(edition);
+			if (uskState != null) {
+				uskState.prefetchedEditions.headSet(edition + 1).clear();
+			}
+			if (prefetched) {
+				hits++;
+			} else {
+				misses++;
+			}
+			return prefetched;
+		}
+	}
+
+	/**
+	 * Detaches this prefetcher from the FCP client. Running prefetches are
+	 * not cancelled.
+	 */
+	public void stop() {
+		fcpClient.removeFcpListener(prefetchListener);
+	}
+
+	//
+	// USKSUBSCRIPTIONLISTENER METHODS
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void editionFound(String uri, long edition) {
+		synchronized (syncObject) {
+			UskState uskState = uskStates.get(uri);
+			if (uskState == null) {
+				uskState = new UskState(uri);
+				uskStates.put(uri, uskState);
+			}
+			uskState.waitingEdition = Math.max(uskState.waitingEdition, edition);
+			if (uskState.runningPrefetches < maxConcurrentPrefetches) {
+				startWaitingPrefetch(uskState);
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void subscriptionFailed(String uri, int code, String description) {
+		/* no new editions will be announced. */
+	}
+
+	//
+	// STATIC METHODS
+	//
+
+	/**
+	 * Returns the SSK URI of the given edition of a USK, e.g.
+	 * “SSK@…/site-17” for “USK@…/site” and edition 17.
+	 *
+	 * @param uri
+	 *            The URI of the USK, without edition
+	 * @param edition
+	 *            The edition
+	 * @return The SSK URI of the edition
+	 */
+	static String getSskUri(String uri, long edition) {
+		String[] parts = uri.split("/", 2);
+		if ((parts.length < 2) || !parts[0].startsWith("USK@")) {
+			return uri + "/" + edition;
+		}
+		return "SSK" + parts[0].substring(3) + "/" + parts[1] + "-" + edition;
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Starts a prefetch for the edition waiting for a free slot, if there is
+	 * one. If the prefetch can not be started, the edition keeps waiting and
+	 * is prefetched once the next edition is announced or the next prefetch
+	 * finishes.
+	 *
+	 * @param uskState
+	 *            The state of the USK
+	 */
+	private void startWaitingPrefetch(UskState uskState) {
+		long waitingEdition = uskState.waitingEdition;
+		if (waitingEdition == -1) {
+			return;
+		}
+		uskState.waitingEdition = -1;
+		if (!startPrefetch(uskState, waitingEdition)) {
+			uskState.waitingEdition = Math.max(uskState.waitingEdition, waitingEdition);
+		}
+	}
+
+	/**
+	 * Starts a prefetch for the given edition.
+	 *
+	 * @param uskState
+	 *            The state of the USK
+	 * @param edition
+	 *            The edition to prefetch
+	 * @return {@code true} if the prefetch was started, {@code false} if it
+	 *         could not be sent to the node
+	 */
+	private boolean startPrefetch(UskState uskState, long edition) {
+		String identifier = FcpClient.createIdentifier("usk-prefetch");
+		ClientGet clientGet = new ClientGet(getSskUri(uskState.uri, edition), identifier, ReturnType.none);
+		clientGet.setPriority(priority);
+		clientGet.setRealTimeFlag(realTime);
+		try {
+			fcpClient.getConnection().sendMessage(clientGet);
+		} catch (IOException ioe1) {
+			logger.log(Level.WARNING, "Could not prefetch " + uskState.uri + "/" + edition + "!", ioe1);
+			return false;
+		}
+		uskState.runningPrefetches++;
+		uskState.editions.put(identifier, edition);
+		runningPrefetches.put(identifier, uskState);
+		return true;
+	}
+
+	/**
+	 * Handles the end of a prefetch.
+	 *
+	 * @param identifier
+	 *            The identifier of the prefetch
+	 * @param success
+	 *            {@code true} if the data was found, {@code false} otherwise
+	 */
+	private void prefetchFinished(String identifier, boolean success) {
+		synchronized (syncObject) {
+			UskState uskState = runningPrefetches.remove(identifier);
+			if (uskState == null) {
+				return;
+			}
+			uskState.runningPrefetches--;
+			long edition = uskState.editions.remove(identifier);
+			if (success) {
+				uskState.prefetchedEditions.add(edition);
+				while (uskState.prefetchedEditions.size() > maxConcurrentPrefetches) {
+					uskState.prefetchedEditions.remove(uskState.prefetchedEditions.first());
+				}
+			}
+			startWaitingPrefetch(uskState);
+		}
+	}
+
+	/**
+	 * The prefetch state of a single USK.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private static class UskState {
+
+		/** The URI of the USK, without edition. */
+		final String uri;
+
+		/** The editions of the running prefetches, by identifier. */
+		final Map<String, Long> editions = new HashMap<String, Long>();
+
+		/** The editions that have been prefetched successfully. */
+		final SortedSet<Long> prefetchedEditions = new TreeSet<Long>();
+
+		/** The number of running prefetches. */
+		int runningPrefetches;
+
+		/** The newest edition waiting for a free slot, or {@code -1}. */
+		long waitingEdition = -1;
+
+		/**
+		 * Creates a new USK state.
+		 *
+		 * @param uri
+		 *            The URI of the USK, without edition
+		 */
+		UskState(String uri) {
+			this.uri = uri;
+		}
+
+	}
+
+	/**
+	 * Listener for the results of prefetches.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private class PrefetchListener extends FcpAdapter {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedDataFound(FcpConnection fcpConnection, DataFound dataFound) {
+			prefetchFinished(dataFound.getIdentifier(), true);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedGetFailed(FcpConnection fcpConnection, GetFailed getFailed) {
+			prefetchFinished(getFailed.getIdentifier(), false);
+		}
+
+	}
+
+}
@@ -0,0 +1,55 @@
+/*
+ * jFCPlib - UskSubscriptionListener.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.util.EventListener;
+
+/**
+ * Listener for USK subscriptions managed by a {@link UskSubscriptionManager}.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public interface UskSubscriptionListener extends EventListener {
+
+	/**
+	 * Notifies a listener that a new edition of a subscribed USK was found.
+	 * If several editions were found in quick succession, only the latest of
+	 * them is reported.
+	 *
+	 * @param uri
+	 *            The URI of the USK, without edition
+	 * @param edition
+	 *            The latest known edition of the USK
+	 */
+	public void editionFound(String uri, long edition);
+
+	/**
+	 * Notifies a listener that the node refused to subscribe to a USK. The
+	 * listener is no longer subscribed to the USK and has to subscribe again
+	 * if it is still interested in it.
+	 *
+	 * @param uri
+	 *            The URI of the USK, without edition
+	 * @param code
+	 *            The code of the protocol error
+	 * @param description
+	 *            The description of the protocol error
+	 */
+	public void subscriptionFailed(String uri, int code, String description);
+
+}
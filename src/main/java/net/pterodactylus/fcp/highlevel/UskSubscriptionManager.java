@@ -0,0 +1,574 @@
+/*
+ * jFCPlib - UskSubscriptionManager.java - Copyright © 2009–2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.pterodactylus.fcp.FcpAdapter;
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.FcpUtils;
+import net.pterodactylus.fcp.ProtocolError;
+import net.pterodactylus.fcp.ReconnectListener;
+import net.pterodactylus.fcp.ReconnectingFcpConnection;
+import net.pterodactylus.fcp.SubscribeUSK;
+import net.pterodactylus.fcp.SubscribedUSKUpdate;
+import net.pterodactylus.fcp.UnsubscribeUSK;
+
+/**
+ * Manages USK subscriptions for any number of {@link UskSubscriptionListener
+ * listeners}. Every USK is only subscribed once, no matter how many
+ * listeners are interested in it, and the latest known edition of every USK is
+ * tracked. Updates can be coalesced so that listeners are notified at most
+ * once per USK and interval, with the latest edition found in that interval.
+ * <p>
+ * The known editions can be {@link #save(File) saved} and {@link #load(File)
+ * loaded} so that subscriptions made after a restart start searching at the
+ * last known edition.
+ * <p>
+ * If the node refuses a subscription, its listeners are notified and
+ * unsubscribed. If the FCP client uses a {@link ReconnectingFcpConnection},
+ * all subscriptions are sent again, starting at the latest known edition,
+ * once the connection has been restored.
+ *
+ * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+ */
+public class UskSubscriptionManager {
+
+	/** The logger. */
+	private static final Logger logger = Logger.getLogger(UskSubscriptionManager.class.getName());
+
+	/** Object used for synchronization. */
+	private final Object syncObject = new Object();
+
+	/** The FCP client to use. */
+	private final FcpClient fcpClient;
+
+	/** The executor to deliver coalesced updates on. */
+	private final ScheduledExecutorService executorService;
+
+	/** All known USKs, by URI without edition. */
+	private final Map<String, Subscription> subscriptions = new HashMap<String, Subscription>();
+
+	/** The active subscriptions, by identifier. */
+	private final Map<String, Subscription> subscriptionIdentifiers = new HashMap<String, Subscription>();
+
+	/** Subscriptions with updates that have not yet been delivered. */
+	private final Set<Subscription> pendingSubscriptions = new LinkedHashSet<Subscription>();
+
+	/** The listener for USK updates. */
+	private final UpdateListener updateListener = new UpdateListener();
+
+	/** The delivery task for coalesced updates, if coalescing is enabled. */
+	private ScheduledFuture<?> deliveryFuture;
+
+	/**
+	 * Creates a new USK subscription manager that notifies listeners about
+	 * every update immediately.
+	 *
+	 * @param fcpClient
+	 *            The FCP client to use
+	 */
+	public UskSubscriptionManager(FcpClient fcpClient) {
+		this(fcpClient, null, 0, null);
+	}
+
+	/**
+	 * Creates a new USK subscription manager.
+	 *
+	 * @param fcpClient
+	 *            The FCP client to use
+	 * @param executorService
+	 *            The executor to deliver coalesced updates on (may be
+	 *            {@code null} if the interval is {@code 0})
+	 * @param coalescingInterval
+	 *            The interval in which updates for the same USK are coalesced,
+	 *            or {@code 0} to deliver every update immediately
+	 * @param timeUnit
+	 *            The unit of the interval
+	 */
+	public UskSubscriptionManager(FcpClient fcpClient, ScheduledExecutorService executorService, long coalescingInterval, TimeUnit timeUnit) {
+		this.fcpClient = fcpClient;
+		this.executorService = executorService;
+		fcpClient.addFcpListener(updateListener);
+		if (fcpClient.getConnection() instanceof ReconnectingFcpConnection) {
+			((ReconnectingFcpConnection) fcpClient.getConnection()).addReconnectListener(updateListener);
+		}
+		if (coalescingInterval > 0) {
+			deliveryFuture = executorService.scheduleWithFixedDelay(new Runnable() {
+
+				@Override
+				@SuppressWarnings("synthetic-access")
+				public void run() {
+					deliverPendingUpdates();
+				}
+			}, coalescingInterval, coalescingInterval, timeUnit);
+		}
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the latest known edition of the given USK.
+	 *
+	 * @param uri
+	 *            The URI of the USK (with or without edition)
+	 * @return The latest known edition, or {@code -1} if no edition is known
+	 */
+	public long getEdition(String uri) {
+		synchronized (syncObject) {
+			Subscription subscription = subscriptions.get(getBaseUri(uri));
+			return (subscription == null) ? -1 : subscription.edition;
+		}
+	}
+
+	/**
+	 * Returns whether the given USK is currently subscribed.
+	 *
+	 * @param uri
+	 *            The URI of the USK (with or without edition)
+	 * @return {@code true} if the USK is subscribed, {@code false} otherwise
+	 */
+	public boolean isSubscribed(String uri) {
+		synchronized (syncObject) {
+			Subscription subscription = subscriptions.get(getBaseUri(uri));
+			return (subscription != null) && (subscription.identifier != null);
+		}
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Subscribes the given listener to the given USK. The USK is only
+	 * subscribed at the node if it is not already subscribed; the search
+	 * starts at the given edition or the latest known edition, whichever is
+	 * newer.
+	 *
+	 * @param uri
+	 *            The URI of the USK
+	 * @param uskSubscriptionListener
+	 *            The listener to notify about new editions
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void subscribe(String uri, UskSubscriptionListener uskSubscriptionListener) throws IOException {
+		String baseUri = getBaseUri(uri);
+		synchronized (syncObject) {
+			Subscription subscription = subscriptions.get(baseUri);
+			if (subscription == null) {
+				subscription = new Subscription(baseUri);
+				subscriptions.put(baseUri, subscription);
+			}
+			subscription.listeners.add(uskSubscriptionListener);
+			subscription.edition = Math.max(subscription.edition, getEditionFromUri(uri));
+			if (subscription.identifier != null) {
+				return;
+			}
+			subscription.identifier = FcpClient.createIdentifier("usk-subscription");
+			subscriptionIdentifiers.put(subscription.identifier, subscription);
+			try {
+				fcpClient.getConnection().sendMessage(new SubscribeUSK(baseUri + "/" + Math.max(0, subscription.edition), subscription.identifier));
+			} catch (IOException ioe1) {
+				subscriptionIdentifiers.remove(subscription.identifier);
+				subscription.identifier = null;
+				subscription.listeners.remove(uskSubscriptionListener);
+				throw ioe1;
+			}
+		}
+	}
+
+	/**
+	 * Unsubscribes the given listener from the given USK. If no other
+	 * listener is subscribed to the USK, it is unsubscribed at the node, too;
+	 * its latest known edition is retained.
+	 *
+	 * @param uri
+	 *            The URI of the USK
+	 * @param uskSubscriptionListener
+	 *            The listener to unsubscribe
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void unsubscribe(String uri, UskSubscriptionListener uskSubscriptionListener) throws IOException {
+		synchronized (syncObject) {
+			Subscription subscription = subscriptions.get(getBaseUri(uri));
+			if ((subscription == null) || (subscription.identifier == null)) {
+				return;
+			}
+			subscription.listeners.remove(uskSubscriptionListener);
+			if (!subscription.listeners.isEmpty()) {
+				return;
+			}
+			String identifier = subscription.identifier;
+			subscriptionIdentifiers.remove(identifier);
+			pendingSubscriptions.remove(subscription);
+			subscription.identifier = null;
+			fcpClient.getConnection().sendMessage(new UnsubscribeUSK(identifier));
+		}
+	}
+
+	/**
+	 * Stops delivering coalesced updates and detaches this manager from the
+	 * FCP client. Subscriptions at the node are not removed.
+	 */
+	public void stop() {
+		synchronized (syncObject) {
+			if (deliveryFuture != null) {
+				deliveryFuture.cancel(false);
+				deliveryFuture = null;
+			}
+			fcpClient.removeFcpListener(updateListener);
+			if (fcpClient.getConnection() instanceof ReconnectingFcpConnection) {
+				((ReconnectingFcpConnection) fcpClient.getConnection()).removeReconnectListener(updateListener);
+			}
+		}
+	}
+
+	/**
+	 * Saves the latest known editions of all USKs to the given file.
+	 *
+	 * @param file
+	 *            The file to save the editions to
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void save(File file) throws IOException {
+		Map<String, Long> editions = new HashMap<String, Long>();
+		synchronized (syncObject) {
+			for (Subscription subscription : subscriptions.values()) {
+				if (subscription.edition >= 0) {
+					editions.put(subscription.uri, subscription.edition);
+				}
+			}
+		}
+		File temporaryFile = new File(file.getPath() + ".tmp");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(temporaryFile), "UTF-8");
+		try {
+			for (Entry<String, Long> edition : editions.entrySet()) {
+				writer.write(edition.getValue() + "\t" + edition.getKey() + "\n");
+			}
+		} finally {
+			FcpUtils.close(writer);
+		}
+		if (!temporaryFile.renameTo(file)) {
+			file.delete();
+			if (!temporaryFile.renameTo(file)) {
+				throw new IOException("Could not rename " + temporaryFile + " to " + file);
+			}
+		}
+	}
+
+	/**
+	 * Loads the latest known editions of USKs from the given file. Editions
+	 * that are older than the editions already known are ignored.
+	 *
+	 * @param file
+	 *            The file to load the editions from
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void load(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab == -1) {
+					continue;
+				}
+				long edition;
+				try {
+					edition = Long.parseLong(line.substring(0, tab));
+				} catch (NumberFormatException nfe1) {
+					logger.log(Level.WARNING, "Invalid edition in line: " + line);
+					continue;
+				}
+				String uri = line.substring(tab + 1);
+				synchronized (syncObject) {
+					Subscription subscription = subscriptions.get(uri);
+					if (subscription == null) {
+						subscription = new Subscription(uri);
+						subscriptions.put(uri, subscription);
+					}
+					subscription.edition = Math.max(subscription.edition, edition);
+				}
+			}
+		} finally {
+			FcpUtils.close(reader);
+		}
+	}
+
+	//
+	// STATIC METHODS
+	//
+
+	/**
+	 * Returns the URI of the given USK without edition and path.
+	 *
+	 * @param uri
+	 *            The URI of the USK
+	 * @return The URI without edition
+	 */
+	public static String getBaseUri(String uri) {
+		String[] parts = stripPrefix(uri).split("/", 3);
+		if (parts.length < 2) {
+			return parts[0];
+		}
+		return parts[0] + "/" + parts[1];
+	}
+
+	/**
+	 * Returns the edition contained in the given USK.
+	 *
+	 * @param uri
+	 *            The URI of the USK
+	 * @return The edition of the URI, or {@code -1} if the URI does not
+	 *         contain a valid edition
+	 */
+	public static long getEditionFromUri(String uri) {
+		String[] parts = stripPrefix(uri).split("/", 4);
+		if (parts.length < 3) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(parts[2]);
+		} catch (NumberFormatException nfe1) {
+			return -1;
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Removes a “freenet:” prefix from the given URI.
+	 *
+	 * @param uri
+	 *            The URI
+	 * @return The URI without prefix
+	 */
+	private static String stripPrefix(String uri) {
+		return uri.startsWith("freenet:") ? uri.substring("freenet:".length()) : uri;
+	}
+
+	/**
+	 * Handles an update for a subscription.
+	 *
+	 * @param subscriptionUpdate
+	 *            The update
+	 */
+	private void handleUpdate(SubscribedUSKUpdate subscriptionUpdate) {
+		Subscription subscription;
+		synchronized (syncObject) {
+			subscription = subscriptionIdentifiers.get(subscriptionUpdate.getIdentifier());
+			if ((subscription == null) || (subscriptionUpdate.getEdition() <= subscription.edition)) {
+				return;
+			}
+			subscription.edition = subscriptionUpdate.getEdition();
+			if (deliveryFuture != null) {
+				pendingSubscriptions.add(subscription);
+				return;
+			}
+		}
+		deliver(subscription);
+	}
+
+	/**
+	 * Handles a protocol error. If the error refers to a subscription, the
+	 * subscription is dropped and its listeners are notified.
+	 *
+	 * @param protocolError
+	 *            The protocol error
+	 */
+	private void handleProtocolError(ProtocolError protocolError) {
+		Subscription subscription;
+		List<UskSubscriptionListener> listeners;
+		synchronized (syncObject) {
+			subscription = subscriptionIdentifiers.remove(protocolError.getIdentifier());
+			if (subscription == null) {
+				return;
+			}
+			pendingSubscriptions.remove(subscription);
+			subscription.identifier = null;
+			listeners = new ArrayList<UskSubscriptionListener>(subscription.listeners);
+			subscription.listeners.clear();
+		}
+		logger.log(Level.WARNING, "Could not subscribe to " + subscription.uri + ": " + protocolError.getCodeDescription());
+		for (UskSubscriptionListener uskSubscriptionListener : listeners) {
+			try {
+				uskSubscriptionListener.subscriptionFailed(subscription.uri, protocolError.getCode(), protocolError.getCodeDescription());
+			} catch (RuntimeException re1) {
+				logger.log(Level.WARNING, "Listener threw exception!", re1);
+			}
+		}
+	}
+
+	/**
+	 * Sends all active subscriptions to the node again, starting at the
+	 * latest known edition of every USK.
+	 */
+	private void resubscribe() {
+		synchronized (syncObject) {
+			for (Subscription subscription : subscriptionIdentifiers.values()) {
+				try {
+					fcpClient.getConnection().sendMessage(new SubscribeUSK(subscription.uri + "/" + Math.max(0, subscription.edition), subscription.identifier));
+				} catch (IOException ioe1) {
+					/* the connection will be restored again. */
+					logger.log(Level.WARNING, "Could not subscribe to " + subscription.uri + " again!", ioe1);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delivers the latest editions of all pending subscriptions.
+	 */
+	private void deliverPendingUpdates() {
+		List<Subscription> subscriptionsToDeliver;
+		synchronized (syncObject) {
+			subscriptionsToDeliver = new ArrayList<Subscription>(pendingSubscriptions);
+			pendingSubscriptions.clear();
+		}
+		for (Subscription subscription : subscriptionsToDeliver) {
+			deliver(subscription);
+		}
+	}
+
+	/**
+	 * Notifies all listeners of the given subscription about its latest
+	 * edition.
+	 *
+	 * @param subscription
+	 *            The subscription to deliver
+	 */
+	private void deliver(Subscription subscription) {
+		long edition;
+		synchronized (syncObject) {
+			edition = subscription.edition;
+		}
+		for (UskSubscriptionListener uskSubscriptionListener : subscription.listeners) {
+			try {
+				uskSubscriptionListener.editionFound(subscription.uri, edition);
+			} catch (RuntimeException re1) {
+				logger.log(Level.WARNING, "Listener threw exception!", re1);
+			}
+		}
+	}
+
+	/**
+	 * A single USK, whether it is currently subscribed or not.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private static class Subscription {
+
+		/** The URI of the USK, without edition. */
+		final String uri;
+
+		/** The listeners of the subscription. */
+		final List<UskSubscriptionListener> listeners = new CopyOnWriteArrayList<UskSubscriptionListener>();
+
+		/** The identifier of the subscription, if it is active. */
+		String identifier;
+
+		/** The latest known edition. */
+		long edition = -1;
+
+		/**
+		 * Creates a new subscription.
+		 *
+		 * @param uri
+		 *            The URI of the USK, without edition
+		 */
+		Subscription(String uri) {
+			this.uri = uri;
+		}
+
+	}
+
+	/**
+	 * Listener for subscription updates, refused subscriptions, and restored
+	 * connections.
+	 *
+	 * @author David ‘Bombe’ Roden &lt;bombe@freenetproject.org&gt;
+	 */
+	private class UpdateListener extends FcpAdapter implements ReconnectListener {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedSubscribedUSKUpdate(FcpConnection fcpConnection, SubscribedUSKUpdate subscribedUSKUpdate) {
+			handleUpdate(subscribedUSKUpdate);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void receivedProtocolError(FcpConnection fcpConnection, ProtocolError protocolError) {
+			handleProtocolError(protocolError);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void connectionInterrupted(FcpConnection fcpConnection, Throwable throwable) {
+			/* subscriptions are sent again once the connection is restored. */
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void connectionRestored(FcpConnection fcpConnection) {
+			resubscribe();
+		}
+
+	}
+
+}
@@ -0,0 +1,116 @@
+package net.pterodactylus.fcp;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link FcpConnection}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class FcpConnectionTest {
+
+	private final Map<String, String> payloads = new ConcurrentHashMap<String, String>();
+	private final CountDownLatch allDataLatch = new CountDownLatch(2);
+	private ServerSocket serverSocket;
+	private FcpConnection fcpConnection;
+	private Socket nodeSocket;
+	private File payloadFile;
+
+	@Before
+	public void setup() throws IOException {
+		serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		fcpConnection = new FcpConnection(InetAddress.getByName("127.0.0.1"), serverSocket.getLocalPort());
+		fcpConnection.addFcpListener(new FcpAdapter() {
+
+			@Override
+			public void receivedAllData(FcpConnection fcpConnection, AllData allData) {
+				try {
+					payloads.put(allData.getIdentifier(), readFully(allData.getPayloadInputStream()));
+				} catch (IOException ioe1) {
+					payloads.put(allData.getIdentifier(), ioe1.toString());
+				}
+				allDataLatch.countDown();
+			}
+		});
+		fcpConnection.connect();
+		nodeSocket = serverSocket.accept();
+		payloadFile = File.createTempFile("payload-", ".dat");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		fcpConnection.close();
+		nodeSocket.close();
+		serverSocket.close();
+		payloadFile.delete();
+	}
+
+	@Test
+	public void payloadIsWrittenToFileAndNextMessageIsReadNormally() throws Exception {
+		fcpConnection.setPayloadFile("get-1", payloadFile);
+		sendAllData("get-1", "first payload");
+		sendAllData("get-2", "second");
+		assertThat(allDataLatch.await(5, TimeUnit.SECONDS), is(true));
+		assertThat(payloads.get("get-1"), is(""));
+		assertThat(readFully(new FileInputStream(payloadFile)), is("first payload"));
+		assertThat(payloads.get("get-2"), is("second"));
+	}
+
+	@Test
+	public void payloadIsDrainedIfFileCanNotBeWritten() throws Exception {
+		fcpConnection.setPayloadFile("get-1", new File(payloadFile, "not-a-directory/file.dat"));
+		sendAllData("get-1", "first payload");
+		sendAllData("get-2", "second");
+		assertThat(allDataLatch.await(5, TimeUnit.SECONDS), is(true));
+		assertThat(payloads.get("get-2"), is("second"));
+	}
+
+	@Test
+	public void removedPayloadFileIsNotUsed() throws Exception {
+		fcpConnection.setPayloadFile("get-1", payloadFile);
+		fcpConnection.setPayloadFile("get-1", null);
+		sendAllData("get-1", "first payload");
+		sendAllData("get-2", "second");
+		assertThat(allDataLatch.await(5, TimeUnit.SECONDS), is(true));
+		assertThat(payloads.get("get-1"), is("first payload"));
+		assertThat(payloadFile.length(), is(0L));
+	}
+
+	private void sendAllData(String identifier, String payload) throws IOException {
+		byte[] payloadBytes = payload.getBytes("UTF-8");
+		OutputStream nodeOutputStream = nodeSocket.getOutputStream();
+		nodeOutputStream.write(("AllData\nIdentifier=" + identifier + "\nDataLength=" + payloadBytes.length + "\nData\n").getBytes("UTF-8"));
+		nodeOutputStream.write(payloadBytes);
+		nodeOutputStream.flush();
+	}
+
+	private static String readFully(InputStream inputStream) throws IOException {
+		try {
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			FcpUtils.copy(inputStream, outputStream);
+			return outputStream.toString("UTF-8");
+		} finally {
+			inputStream.close();
+		}
+	}
+
+}
@@ -0,0 +1,58 @@
+package net.pterodactylus.fcp;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ReadAheadInputStream}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class ReadAheadInputStreamTest {
+
+	private byte[] prepareArrayOfNBytes(int n, int seed) {
+		byte[] data = new byte[n];
+		for (int i = 0; i < n; ++i) {
+			data[i] = (byte) (i + seed);
+		}
+		return data;
+	}
+
+	@Test
+	public void streamsAreConcatenatedInOrder() throws IOException {
+		byte[] first = prepareArrayOfNBytes(10, 0);
+		byte[] second = prepareArrayOfNBytes(0, 0);
+		byte[] third = prepareArrayOfNBytes(25, 100);
+		ReadAheadInputStream readAheadInputStream = new ReadAheadInputStream(Arrays.<InputStream> asList(new ByteArrayInputStream(first), new ByteArrayInputStream(second), new ByteArrayInputStream(third)), 2, 8);
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		FcpUtils.copy(readAheadInputStream, result);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(first);
+		expected.write(third);
+		assertArrayEquals(expected.toByteArray(), result.toByteArray());
+		assertThat(readAheadInputStream.read(), is(-1));
+	}
+
+	@Test(expected = IOException.class)
+	public void exceptionOfSourceStreamIsThrown() throws IOException {
+		InputStream failingInputStream = new InputStream() {
+
+			@Override
+			public int read() throws IOException {
+				throw new IOException();
+			}
+		};
+		ReadAheadInputStream readAheadInputStream = new ReadAheadInputStream(Arrays.<InputStream> asList(new ByteArrayInputStream(new byte[5]), failingInputStream), 2, 8);
+		FcpUtils.copy(readAheadInputStream, new ByteArrayOutputStream());
+	}
+
+}
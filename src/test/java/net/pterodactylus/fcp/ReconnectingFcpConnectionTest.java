@@ -0,0 +1,201 @@
+package net.pterodactylus.fcp;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ReconnectingFcpConnection}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class ReconnectingFcpConnectionTest {
+
+	private final List<Runnable> scheduledReconnects = new ArrayList<Runnable>();
+	private final List<Long> reconnectDelays = new ArrayList<Long>();
+	private final List<String> events = new ArrayList<String>();
+	private final ScheduledThreadPoolExecutor executorService = new ScheduledThreadPoolExecutor(1) {
+
+		@Override
+		public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+			scheduledReconnects.add(command);
+			reconnectDelays.add(unit.toMillis(delay));
+			/* a future that never runs, the test runs the command itself. */
+			return super.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					/* do nothing. */
+				}
+			}, 1, TimeUnit.DAYS);
+		}
+	};
+	private ServerSocket serverSocket;
+	private ReconnectingFcpConnection fcpConnection;
+	private final List<Socket> nodeSockets = new ArrayList<Socket>();
+
+	@Before
+	public void setup() throws IOException {
+		serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		fcpConnection = new ReconnectingFcpConnection(InetAddress.getByName("127.0.0.1"), serverSocket.getLocalPort(), executorService, 100, 400, TimeUnit.MILLISECONDS, 5);
+		fcpConnection.addReconnectListener(new ReconnectListener() {
+
+			@Override
+			public void connectionInterrupted(FcpConnection fcpConnection, Throwable throwable) {
+				events.add("interrupted");
+			}
+
+			@Override
+			public void connectionRestored(FcpConnection fcpConnection) {
+				events.add("restored");
+			}
+		});
+		fcpConnection.addFcpListener(new FcpAdapter() {
+
+			@Override
+			public void connectionClosed(FcpConnection fcpConnection, Throwable throwable) {
+				events.add("closed");
+			}
+		});
+		fcpConnection.connect();
+		nodeSockets.add(serverSocket.accept());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		fcpConnection.close();
+		for (Socket nodeSocket : nodeSockets) {
+			nodeSocket.close();
+		}
+		serverSocket.close();
+		executorService.shutdownNow();
+	}
+
+	@Test
+	public void reconnectDelaysDoubleUpToTheMaximum() throws IOException {
+		serverSocket.close();
+		fcpConnection.handleDisconnect(null);
+		assertThat(events, contains("interrupted"));
+		runScheduledReconnects();
+		runScheduledReconnects();
+		runScheduledReconnects();
+		runScheduledReconnects();
+		assertThat(reconnectDelays, contains(100L, 200L, 400L, 400L, 400L));
+		assertThat(fcpConnection.isReconnecting(), is(true));
+		assertThat(events, contains("interrupted"));
+	}
+
+	@Test
+	public void listenersAreNotifiedAfterTheLastFailedAttempt() throws IOException {
+		serverSocket.close();
+		fcpConnection.handleDisconnect(null);
+		for (int attempt = 0; attempt < 5; attempt++) {
+			runScheduledReconnects();
+		}
+		assertThat(scheduledReconnects, empty());
+		assertThat(fcpConnection.isReconnecting(), is(false));
+		assertThat(events, contains("interrupted", "closed"));
+	}
+
+	@Test
+	public void closingTheConnectionCancelsTheReconnect() {
+		fcpConnection.handleDisconnect(null);
+		fcpConnection.close();
+		runScheduledReconnects();
+		assertThat(events, contains("interrupted", "closed"));
+	}
+
+	@Test
+	public void clientStateAndPersistentRequestsAreRestored() throws IOException {
+		fcpConnection.sendMessage(new ClientHello("test-client"));
+		fcpConnection.sendMessage(new WatchGlobal(false));
+		ClientGet persistentGet = new ClientGet("CHK@test", "get-1");
+		persistentGet.setPersistence(Persistence.forever);
+		fcpConnection.sendMessage(persistentGet);
+		fcpConnection.sendMessage(new ClientGet("CHK@test", "get-2"));
+		fcpConnection.handleDisconnect(null);
+		runScheduledReconnects();
+		BufferedReader nodeReader = new BufferedReader(new InputStreamReader(acceptReconnect().getInputStream(), "UTF-8"));
+		assertThat(readMessage(nodeReader), hasItem("ClientHello"));
+		assertThat(readMessage(nodeReader), hasItem("Enabled=false"));
+		List<String> getRequestStatus = readMessage(nodeReader);
+		assertThat(getRequestStatus.get(0), is("GetRequestStatus"));
+		assertThat(getRequestStatus, hasItem("Identifier=get-1"));
+		assertThat(events, contains("interrupted", "restored"));
+	}
+
+	@Test
+	public void watchedGlobalQueueIsListedInsteadOfSingleRequests() throws IOException {
+		fcpConnection.sendMessage(new ClientHello("test-client"));
+		fcpConnection.sendMessage(new WatchGlobal(true));
+		ClientGet persistentGet = new ClientGet("CHK@test", "get-1");
+		persistentGet.setPersistence(Persistence.forever);
+		fcpConnection.sendMessage(persistentGet);
+		fcpConnection.handleDisconnect(null);
+		runScheduledReconnects();
+		BufferedReader nodeReader = new BufferedReader(new InputStreamReader(acceptReconnect().getInputStream(), "UTF-8"));
+		readMessage(nodeReader);
+		readMessage(nodeReader);
+		assertThat(readMessage(nodeReader).get(0), is("ListPersistentRequests"));
+		fcpConnection.sendMessage(new ClientHello("marker"));
+		assertThat(readMessage(nodeReader).get(0), is("ClientHello"));
+	}
+
+	@Test
+	public void finishedPersistentRequestsAreNotRestored() throws IOException {
+		ClientGet persistentGet = new ClientGet("CHK@test", "get-1");
+		persistentGet.setPersistence(Persistence.forever);
+		fcpConnection.sendMessage(persistentGet);
+		FcpMessage getFailed = new FcpMessage("GetFailed");
+		getFailed.setField("Identifier", "get-1");
+		getFailed.setField("Code", "13");
+		fcpConnection.handleMessage(getFailed);
+		fcpConnection.handleDisconnect(null);
+		runScheduledReconnects();
+		BufferedReader nodeReader = new BufferedReader(new InputStreamReader(acceptReconnect().getInputStream(), "UTF-8"));
+		fcpConnection.sendMessage(new ClientHello("marker"));
+		assertThat(readMessage(nodeReader).get(0), is("ClientHello"));
+	}
+
+	private Socket acceptReconnect() throws IOException {
+		Socket nodeSocket = serverSocket.accept();
+		nodeSockets.add(nodeSocket);
+		return nodeSocket;
+	}
+
+	private void runScheduledReconnects() {
+		List<Runnable> reconnects = new ArrayList<Runnable>(scheduledReconnects);
+		scheduledReconnects.clear();
+		for (Runnable reconnect : reconnects) {
+			reconnect.run();
+		}
+	}
+
+	private static List<String> readMessage(BufferedReader nodeReader) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		String line;
+		while (((line = nodeReader.readLine()) != null) && !line.equals("EndMessage")) {
+			lines.add(line);
+		}
+		return lines;
+	}
+
+}
@@ -0,0 +1,99 @@
+package net.pterodactylus.fcp;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasItems;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link StreamingClientPutComplexDir}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class StreamingClientPutComplexDirTest extends AbstractFcpMessageTest {
+
+	private File directory;
+
+	@Before
+	public void setup() throws IOException {
+		directory = File.createTempFile("streaming-put", "");
+		directory.delete();
+		new File(directory, "a").mkdirs();
+		createFile("b.txt", "B");
+		createFile("a/c.txt", "CC");
+	}
+
+	@After
+	public void tearDown() {
+		new File(directory, "b.txt").delete();
+		new File(directory, "a/c.txt").delete();
+		new File(directory, "a").delete();
+		directory.delete();
+	}
+
+	@Test
+	public void directFilesAreWrittenInPathOrder() throws Exception {
+		List<String> lines = encodeMessage(new StreamingClientPutComplexDir("id", "CHK@", directory, UploadFrom.direct));
+		assertThat(lines.get(0), is("ClientPutComplexDir"));
+		assertThat(lines, hasItems("Identifier=id", "URI=CHK@", "Files.0.Name=a/c.txt", "Files.0.UploadFrom=direct", "Files.0.DataLength=2", "Files.1.Name=b.txt", "Files.1.DataLength=1"));
+		assertThat(lines.get(lines.size() - 2), is("Data"));
+		assertThat(lines.get(lines.size() - 1), is("CCB"));
+	}
+
+	@Test
+	public void diskFilesAreWrittenWithoutPayload() throws Exception {
+		List<String> lines = encodeMessage(new StreamingClientPutComplexDir("id", "CHK@", directory, UploadFrom.disk));
+		assertThat(lines, hasItems("Files.0.Name=a/c.txt", "Files.0.UploadFrom=disk", "Files.0.Filename=" + new File(directory, "a/c.txt").getAbsolutePath(), "Files.1.Name=b.txt"));
+		assertThat(lines.get(lines.size() - 1), is("EndMessage"));
+	}
+
+	@Test
+	public void fileChangedBetweenWalksIsPaddedToAnnouncedLength() throws Exception {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream() {
+
+			private boolean changed;
+
+			@Override
+			public synchronized void write(byte[] buffer, int offset, int length) {
+				super.write(buffer, offset, length);
+				if (!changed && toString().endsWith("Data\r\n")) {
+					changed = true;
+					try {
+						createFile("a/c.txt", "");
+					} catch (IOException ioe1) {
+						throw new RuntimeException(ioe1);
+					}
+				}
+			}
+		};
+		try {
+			new StreamingClientPutComplexDir("id", "CHK@", directory, UploadFrom.direct).write(outputStream);
+			fail();
+		} catch (StreamingClientPutComplexDir.ChangedFilesException cfe1) {
+			/* expected. */
+		}
+		String message = outputStream.toString("UTF-8");
+		assertThat(message.substring(message.indexOf("Data\r\n") + 6), is("\0\0B"));
+	}
+
+	private void createFile(String name, String content) throws IOException {
+		OutputStream fileOutputStream = new FileOutputStream(new File(directory, name));
+		try {
+			fileOutputStream.write(content.getBytes("UTF-8"));
+		} finally {
+			fileOutputStream.close();
+		}
+	}
+
+}
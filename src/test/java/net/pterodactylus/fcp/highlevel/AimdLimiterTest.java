@@ -0,0 +1,89 @@
+/*
+ * jFCPlib - AimdLimiterTest.java - Copyright © 2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link AimdLimiter}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class AimdLimiterTest {
+
+	private final AimdLimiter limiter = new AimdLimiter(4, 1, 100);
+
+	@Test
+	public void limitGrowsWhileLatencyIsStable() {
+		for (int sample = 0; sample < 40; sample++) {
+			limiter.addSample(100, limiter.getLimit());
+		}
+		assertThat(limiter.getLimit(), greaterThan(4));
+	}
+
+	@Test
+	public void limitDoesNotGrowWhenItIsNotUsed() {
+		for (int sample = 0; sample < 40; sample++) {
+			limiter.addSample(100, 1);
+		}
+		assertThat(limiter.getLimit(), is(4));
+	}
+
+	@Test
+	public void limitShrinksWhenLatencyRises() {
+		limiter.addSample(100, 4);
+		for (int sample = 0; sample < 10; sample++) {
+			limiter.addSample(1000, 4);
+		}
+		assertThat(limiter.getLimit(), lessThan(4));
+	}
+
+	@Test
+	public void limitDoesNotShrinkBelowMinimum() {
+		limiter.addSample(100, 4);
+		for (int sample = 0; sample < 200; sample++) {
+			limiter.addSample(100000, 4);
+		}
+		assertThat(limiter.getLimit(), is(1));
+	}
+
+	@Test
+	public void singleFastSampleIsForgotten() {
+		limiter.addSample(1, 4);
+		for (int sample = 0; sample < (4 * AimdLimiter.MINIMUM_WINDOW); sample++) {
+			limiter.addSample(1000, limiter.getLimit());
+		}
+		assertThat(limiter.getMinimumLatency(TimeUnit.NANOSECONDS), is(1000L));
+		assertThat(limiter.getLimit(), greaterThan(4));
+	}
+
+	@Test
+	public void latencyIsReportedInRequestedUnit() {
+		limiter.addSample(TimeUnit.MILLISECONDS.toNanos(20), 1);
+		assertThat(limiter.getAverageLatency(TimeUnit.MILLISECONDS), is(20.0));
+		assertThat(limiter.getMinimumLatency(TimeUnit.MILLISECONDS), is(20L));
+	}
+
+}
@@ -0,0 +1,205 @@
+/*
+ * jFCPlib - ChkCalculatorTest.java - Copyright © 2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.FcpMessage;
+import net.pterodactylus.fcp.PutFailed;
+import net.pterodactylus.fcp.PutSuccessful;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ChkCalculator}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class ChkCalculatorTest {
+
+	private final BlockingQueue<FcpMessage> pendingRequests = new LinkedBlockingQueue<FcpMessage>();
+	private final AtomicInteger requestsInFlight = new AtomicInteger();
+	private final AtomicInteger maximumRequestsInFlight = new AtomicInteger();
+	private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+	private final Map<String, File> files = new TreeMap<String, File>();
+	private volatile FcpListener fcpListener;
+	private File directory;
+	private Thread responderThread;
+	private ChkCalculator chkCalculator;
+
+	@Before
+	public void setup() throws IOException {
+		directory = File.createTempFile("chk-", "");
+		directory.delete();
+		directory.mkdirs();
+		FcpClient fcpClient = new FcpClient(new FcpConnection(InetAddress.getByName("127.0.0.1"))) {
+
+			@Override
+			public void addFcpListener(FcpListener fcpListener) {
+				ChkCalculatorTest.this.fcpListener = fcpListener;
+			}
+
+			@Override
+			public void removeFcpListener(FcpListener fcpListener) {
+				ChkCalculatorTest.this.fcpListener = null;
+			}
+
+			@Override
+			public void sendMessage(FcpMessage fcpMessage) {
+				int inFlight = requestsInFlight.incrementAndGet();
+				while (maximumRequestsInFlight.get() < inFlight) {
+					maximumRequestsInFlight.compareAndSet(maximumRequestsInFlight.get(), inFlight);
+				}
+				pendingRequests.add(fcpMessage);
+			}
+		};
+		responderThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						FcpMessage request = pendingRequests.take();
+						Thread.sleep(5);
+						requestsInFlight.decrementAndGet();
+						answer(request);
+					}
+				} catch (InterruptedException ie1) {
+					/* test is finished. */
+				}
+			}
+		});
+		responderThread.start();
+		chkCalculator = new ChkCalculator(fcpClient, 2);
+	}
+
+	@After
+	public void tearDown() {
+		responderThread.interrupt();
+		for (File file : files.values()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void requestsArePipelinedUpToTheLimit() throws Exception {
+		for (int index = 0; index < 8; index++) {
+			createFile("file-" + index + ".txt");
+		}
+		Map<String, String> chks = chkCalculator.calculateChks(files, createChkListener());
+		assertThat(chks.size(), is(8));
+		assertThat(chks.get("file-3.txt"), is("CHK@file-3.txt"));
+		assertThat(events.size(), is(8));
+		assertThat(maximumRequestsInFlight.get(), is(2));
+	}
+
+	@Test
+	public void failedFilesAreReportedAndLeftOut() throws Exception {
+		createFile("good.txt");
+		createFile("fail.txt");
+		Map<String, String> chks = chkCalculator.calculateChks(files, createChkListener());
+		assertThat(chks.keySet(), containsInAnyOrder("good.txt"));
+		assertThat(events, containsInAnyOrder("calculated good.txt CHK@good.txt", "failed fail.txt Too big"));
+	}
+
+	@Test
+	public void closedConnectionAbortsTheBatch() throws Exception {
+		for (int index = 0; index < 5; index++) {
+			createFile("file-" + index + ".txt");
+		}
+		createFile("close.txt");
+		try {
+			chkCalculator.calculateChks(files, createChkListener());
+			fail();
+		} catch (FcpException fe1) {
+			/* expected. */
+		}
+		assertThat(events.size(), lessThan(6));
+	}
+
+	private void answer(FcpMessage request) {
+		String targetFilename = request.getField("TargetFilename");
+		FcpListener fcpListener = this.fcpListener;
+		if (fcpListener == null) {
+			return;
+		}
+		if (targetFilename.equals("close.txt")) {
+			fcpListener.connectionClosed(null, null);
+			return;
+		}
+		FcpMessage response = new FcpMessage(targetFilename.equals("fail.txt") ? "PutFailed" : "PutSuccessful");
+		response.setField("Identifier", request.getField("Identifier"));
+		if (targetFilename.equals("fail.txt")) {
+			response.setField("CodeDescription", "Too big");
+			fcpListener.receivedPutFailed(null, new PutFailed(response));
+		} else {
+			response.setField("URI", "CHK@" + targetFilename);
+			fcpListener.receivedPutSuccessful(null, new PutSuccessful(response));
+		}
+	}
+
+	private ChkListener createChkListener() {
+		return new ChkListener() {
+
+			@Override
+			public void chkCalculated(String path, String chk) {
+				events.add("calculated " + path + " " + chk);
+			}
+
+			@Override
+			public void chkFailed(String path, String reason) {
+				events.add("failed " + path + " " + reason);
+			}
+		};
+	}
+
+	private void createFile(String name) throws IOException {
+		File file = new File(directory, name);
+		OutputStream fileOutputStream = new FileOutputStream(file);
+		try {
+			fileOutputStream.write(name.getBytes("UTF-8"));
+		} finally {
+			fileOutputStream.close();
+		}
+		files.put(name, file);
+	}
+
+}
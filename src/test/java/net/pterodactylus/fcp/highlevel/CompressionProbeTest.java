@@ -0,0 +1,100 @@
+/*
+ * jFCPlib - CompressionProbeTest.java - Copyright © 2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link CompressionProbe}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class CompressionProbeTest {
+
+	private ExecutorService executorService;
+	private File directory;
+
+	@Before
+	public void setup() throws IOException {
+		executorService = Executors.newFixedThreadPool(2);
+		directory = File.createTempFile("compression-probe", "");
+		directory.delete();
+		directory.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		executorService.shutdown();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void compressionIsLimitedToMaximumLength() throws IOException {
+		long[] lengths = CompressionProbe.compress(new ByteArrayInputStream(new byte[100000]), 50000);
+		assertThat(lengths[0], is(50000L));
+		assertThat(lengths[1], lessThan(1000L));
+	}
+
+	@Test
+	public void randomDataIsIncompressible() throws IOException {
+		Map<String, File> files = new HashMap<String, File>();
+		files.put("zeroes", createFile("zeroes", new byte[100000]));
+		byte[] randomData = new byte[100000];
+		new Random(1).nextBytes(randomData);
+		files.put("random", createFile("random", randomData));
+		CompressionProbe compressionProbe = new CompressionProbe(executorService);
+		assertThat(compressionProbe.findIncompressibleFiles(files), contains("random"));
+		assertThat(compressionProbe.getProbedFiles(), is(2L));
+		assertThat(compressionProbe.getIncompressibleFiles(), is(1L));
+		assertThat(compressionProbe.getCompressionRatio(), greaterThan(0.5));
+	}
+
+	private File createFile(String name, byte[] content) throws IOException {
+		File file = new File(directory, name);
+		OutputStream fileOutputStream = new FileOutputStream(file);
+		try {
+			fileOutputStream.write(content);
+		} finally {
+			fileOutputStream.close();
+		}
+		return file;
+	}
+
+}
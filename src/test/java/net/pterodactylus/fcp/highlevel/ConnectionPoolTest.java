@@ -0,0 +1,155 @@
+/*
+ * jFCPlib - ConnectionPoolTest.java - Copyright © 2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.pterodactylus.fcp.FcpMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ConnectionPool}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class ConnectionPoolTest {
+
+	private final List<Runnable> scheduledReconnects = Collections.synchronizedList(new ArrayList<Runnable>());
+	private final List<Socket> nodeSockets = Collections.synchronizedList(new ArrayList<Socket>());
+	private final ScheduledThreadPoolExecutor executorService = new ScheduledThreadPoolExecutor(1) {
+
+		@Override
+		public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+			scheduledReconnects.add(command);
+			return null;
+		}
+	};
+	private ServerSocket serverSocket;
+	private ConnectionPool connectionPool;
+
+	@Before
+	public void setup() throws IOException {
+		serverSocket = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+		connectionPool = new ConnectionPool("test", executorService, 1, TimeUnit.SECONDS);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		connectionPool.close();
+		for (Socket nodeSocket : nodeSockets) {
+			nodeSocket.close();
+		}
+		serverSocket.close();
+		executorService.shutdownNow();
+	}
+
+	@Test
+	public void failingConnectionDoesNotSkipTheRemainingConnections() throws Exception {
+		startNode(1);
+		try {
+			connectionPool.addNode(InetAddress.getByName("127.0.0.1"), serverSocket.getLocalPort(), 3);
+		} catch (IOException ioe1) {
+			/* the first connection is refused. */
+		} catch (FcpException fe1) {
+			/* the first connection is refused. */
+		}
+		assertThat(connectionPool.size(), is(3));
+		assertThat(scheduledReconnects.size(), is(1));
+		connectionPool.sendMessage(createMessage("ClientGet", "get-1"));
+		connectionPool.sendMessage(createMessage("ClientGet", "get-2"));
+		assertThat(connectionPool.getOutstandingRequests(), is(2));
+		assertThat(connectionPool.getFcpClient("get-1") != connectionPool.getFcpClient("get-2"), is(true));
+	}
+
+	@Test
+	public void everyFailedConnectionIsRetried() throws IOException {
+		int port = serverSocket.getLocalPort();
+		serverSocket.close();
+		try {
+			connectionPool.addNode(InetAddress.getByName("127.0.0.1"), port, 3);
+		} catch (IOException ioe1) {
+			/* expected, no node is running. */
+		} catch (FcpException fe1) {
+			/* expected, no node is running. */
+		}
+		assertThat(connectionPool.size(), is(3));
+		assertThat(scheduledReconnects.size(), is(3));
+		assertThat(connectionPool.getOutstandingRequests(), is(0));
+	}
+
+	@Test(expected = IOException.class)
+	public void messagesCanNotBeSentWithoutConnection() throws IOException {
+		connectionPool.sendMessage(createMessage("ClientGet", "get-1"));
+	}
+
+	private void startNode(final int refusedConnections) {
+		Thread nodeThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					for (int connection = 0; true; connection++) {
+						Socket nodeSocket = serverSocket.accept();
+						nodeSockets.add(nodeSocket);
+						if (connection < refusedConnections) {
+							nodeSocket.close();
+							continue;
+						}
+						BufferedReader nodeReader = new BufferedReader(new InputStreamReader(nodeSocket.getInputStream(), "UTF-8"));
+						String line;
+						while (((line = nodeReader.readLine()) != null) && !line.equals("EndMessage")) {
+							/* skip the “ClientHello” message. */
+						}
+						OutputStream nodeOutputStream = nodeSocket.getOutputStream();
+						nodeOutputStream.write("NodeHello\nNode=Fred\nEndMessage\n".getBytes("UTF-8"));
+						nodeOutputStream.flush();
+					}
+				} catch (IOException ioe1) {
+					/* server socket was closed. */
+				}
+			}
+		});
+		nodeThread.setDaemon(true);
+		nodeThread.start();
+	}
+
+	private static FcpMessage createMessage(String name, String identifier) {
+		FcpMessage fcpMessage = new FcpMessage(name);
+		fcpMessage.setField("Identifier", identifier);
+		return fcpMessage;
+	}
+
+}
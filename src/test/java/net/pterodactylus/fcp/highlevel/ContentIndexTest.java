@@ -0,0 +1,122 @@
+/*
+ * jFCPlib - ContentIndexTest.java - Copyright © 2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import net.pterodactylus.fcp.FcpMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ContentIndex}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class ContentIndexTest {
+
+	private File indexFile;
+
+	@Before
+	public void setup() throws IOException {
+		indexFile = File.createTempFile("content-index-", ".txt");
+		indexFile.delete();
+	}
+
+	@After
+	public void tearDown() {
+		indexFile.delete();
+	}
+
+	@Test
+	public void keyDependsOnFieldsThatChangeTheChk() {
+		String key = ContentIndex.getKey("hash", createInsert("a.txt", false));
+		assertThat(ContentIndex.getKey("hash", createInsert("a.txt", false)), is(key));
+		assertThat(ContentIndex.getKey("other-hash", createInsert("a.txt", false)), not(key));
+		assertThat(ContentIndex.getKey("hash", createInsert("b.txt", false)), not(key));
+		assertThat(ContentIndex.getKey("hash", createInsert("a.txt", true)), not(key));
+	}
+
+	@Test
+	public void keyDoesNotDependOnOtherFields() {
+		FcpMessage insert = createInsert("a.txt", false);
+		String key = ContentIndex.getKey("hash", insert);
+		insert.setField("Identifier", "other");
+		insert.setField("PriorityClass", "1");
+		assertThat(ContentIndex.getKey("hash", insert), is(key));
+	}
+
+	@Test
+	public void mappingsAreRestoredAndDeduplicatedWhenOpened() throws IOException {
+		ContentIndex contentIndex = new ContentIndex(indexFile);
+		contentIndex.open();
+		contentIndex.putUri("hash", createInsert("a.txt", false), "CHK@old");
+		contentIndex.putUri("hash", createInsert("a.txt", false), "CHK@new");
+		contentIndex.putUri("hash", createInsert("a.txt", false), "CHK@new");
+		contentIndex.putUri("hash", createInsert("b.txt", false), "CHK@b");
+		contentIndex.close();
+		assertThat(countLines(), is(3));
+		ContentIndex reopenedContentIndex = new ContentIndex(indexFile);
+		reopenedContentIndex.open();
+		try {
+			assertThat(countLines(), is(2));
+			assertThat(reopenedContentIndex.size(), is(2));
+			assertThat(reopenedContentIndex.getUri("hash", createInsert("a.txt", false)), is("CHK@new"));
+			assertThat(reopenedContentIndex.getUri("hash", createInsert("b.txt", false)), is("CHK@b"));
+			assertThat(reopenedContentIndex.getUri("hash", createInsert("c.txt", false)), nullValue());
+			assertThat(reopenedContentIndex.getHits(), is(2L));
+			assertThat(reopenedContentIndex.getMisses(), is(1L));
+		} finally {
+			reopenedContentIndex.close();
+		}
+	}
+
+	private FcpMessage createInsert(String targetFilename, boolean dontCompress) {
+		FcpMessage insert = new FcpMessage("ClientPut");
+		insert.setField("TargetFilename", targetFilename);
+		if (dontCompress) {
+			insert.setField("DontCompress", "true");
+		}
+		return insert;
+	}
+
+	private int countLines() throws IOException {
+		int lines = 0;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+		try {
+			while (reader.readLine() != null) {
+				lines++;
+			}
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+}
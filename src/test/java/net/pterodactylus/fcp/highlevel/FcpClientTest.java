@@ -0,0 +1,198 @@
+/*
+ * jFCPlib - FcpClientTest.java - Copyright © 2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import net.pterodactylus.fcp.ClientGet;
+import net.pterodactylus.fcp.ClientPut;
+import net.pterodactylus.fcp.ClientPutComplexDir;
+import net.pterodactylus.fcp.EndListPeers;
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.FcpMessage;
+import net.pterodactylus.fcp.FileEntry;
+import net.pterodactylus.fcp.Peer;
+import net.pterodactylus.fcp.Persistence;
+import net.pterodactylus.fcp.ReconnectListener;
+import net.pterodactylus.fcp.ReconnectingFcpConnection;
+import net.pterodactylus.fcp.ReturnType;
+import net.pterodactylus.fcp.StreamingClientPutComplexDir;
+import net.pterodactylus.fcp.UploadFrom;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link FcpClient}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class FcpClientTest {
+
+	private final File directory = new File(System.getProperty("java.io.tmpdir"));
+	private final List<FcpMessage> sentMessages = Collections.synchronizedList(new ArrayList<FcpMessage>());
+	private final Semaphore messagesSent = new Semaphore(0);
+	private volatile FcpListener fcpListener;
+	private volatile ReconnectListener reconnectListener;
+	private volatile Exception caughtException;
+
+	@Test
+	public void fileInDirectoryIsAccepted() throws IOException {
+		File canonicalDirectory = directory.getCanonicalFile();
+		assertThat(FcpClient.getFileInDirectory(canonicalDirectory, new File(directory, "DDACheck-1.tmp").getPath()), is(new File(canonicalDirectory, "DDACheck-1.tmp")));
+	}
+
+	@Test
+	public void filesOutsideOfDirectoryAreRejected() throws IOException {
+		File canonicalDirectory = directory.getCanonicalFile();
+		assertThat(FcpClient.getFileInDirectory(canonicalDirectory, new File(directory, "../DDACheck-1.tmp").getPath()), nullValue());
+		assertThat(FcpClient.getFileInDirectory(canonicalDirectory, new File(new File(directory, "sub"), "DDACheck-1.tmp").getPath()), nullValue());
+		assertThat(FcpClient.getFileInDirectory(canonicalDirectory, "/etc/passwd"), nullValue());
+		assertThat(FcpClient.getFileInDirectory(canonicalDirectory, null), nullValue());
+	}
+
+	@Test
+	public void largeDirectUploadsAndDirectDownloadsUseABulkLane() throws IOException {
+		FcpClient fcpClient = new FcpClient(InetAddress.getByName("127.0.0.1"), 9481, 2);
+		ClientPut clientPut = new ClientPut("CHK@", "put-1", UploadFrom.direct);
+		clientPut.setDataLength(1 << 20);
+		FcpConnection bulkConnection = fcpClient.selectConnection(clientPut);
+		assertThat(bulkConnection, not(fcpClient.getConnection()));
+		assertThat(fcpClient.selectConnection(new ClientGet("CHK@test", "get-1")), not(fcpClient.getConnection()));
+		assertThat(fcpClient.selectConnection(createMessage("ModifyPersistentRequest", "put-1")), is(bulkConnection));
+	}
+
+	@Test
+	public void smallAndPrivatePersistentRequestsUseTheControlConnection() throws IOException {
+		FcpClient fcpClient = new FcpClient(InetAddress.getByName("127.0.0.1"), 9481, 2);
+		assertThat(fcpClient.selectConnection(new ClientPut("CHK@", "put-1", UploadFrom.direct)), is(fcpClient.getConnection()));
+		ClientGet clientGet = new ClientGet("CHK@test", "get-1");
+		clientGet.setPersistence(Persistence.forever);
+		assertThat(fcpClient.selectConnection(clientGet), is(fcpClient.getConnection()));
+		assertThat(fcpClient.selectConnection(new FcpMessage("ListPersistentRequests")), is(fcpClient.getConnection()));
+	}
+
+	@Test
+	public void diskAccessRequestsUseTheControlConnection() throws IOException {
+		FcpClient fcpClient = new FcpClient(InetAddress.getByName("127.0.0.1"), 9481, 2);
+		ClientPut clientPut = new ClientPut("CHK@", "put-1", UploadFrom.disk);
+		clientPut.setDataLength(1 << 20);
+		assertThat(fcpClient.selectConnection(clientPut), is(fcpClient.getConnection()));
+		assertThat(fcpClient.selectConnection(new ClientGet("CHK@test", "get-1", ReturnType.disk)), is(fcpClient.getConnection()));
+		ClientPutComplexDir clientPutComplexDir = new ClientPutComplexDir("dir-1", "CHK@");
+		clientPutComplexDir.addFileEntry(FileEntry.createDiskFileEntry("index.html", "/tmp/index.html", null, 100));
+		assertThat(fcpClient.selectConnection(clientPutComplexDir), is(fcpClient.getConnection()));
+		assertThat(fcpClient.selectConnection(new StreamingClientPutComplexDir("dir-2", "CHK@", directory, UploadFrom.disk)), is(fcpClient.getConnection()));
+		assertThat(fcpClient.selectConnection(new StreamingClientPutComplexDir("dir-3", "CHK@", directory, UploadFrom.direct)), not(fcpClient.getConnection()));
+	}
+
+	@Test
+	public void modifyingCommandsFailWhenTheConnectionIsRestored() throws Exception {
+		final FcpClient fcpClient = createReconnectingClient();
+		FcpMessage peerMessage = new FcpMessage("Peer");
+		peerMessage.setField("identity", "peer-1");
+		final Peer peer = new Peer(peerMessage);
+		Thread removeThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					fcpClient.removePeer(peer);
+				} catch (Exception e1) {
+					caughtException = e1;
+				}
+			}
+		});
+		removeThread.start();
+		assertThat(messagesSent.tryAcquire(5, TimeUnit.SECONDS), is(true));
+		reconnectListener.connectionRestored(fcpClient.getConnection());
+		removeThread.join(5000);
+		assertThat(caughtException instanceof FcpException, is(true));
+		assertThat(sentMessages.size(), is(1));
+		assertThat(fcpClient.isConnected(), is(true));
+	}
+
+	@Test
+	public void readingCommandsAreSentAgainWhenTheConnectionIsRestored() throws Exception {
+		final FcpClient fcpClient = createReconnectingClient();
+		Thread listThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					fcpClient.getPeers(false, false);
+				} catch (Exception e1) {
+					caughtException = e1;
+				}
+			}
+		});
+		listThread.start();
+		assertThat(messagesSent.tryAcquire(5, TimeUnit.SECONDS), is(true));
+		reconnectListener.connectionRestored(fcpClient.getConnection());
+		assertThat(messagesSent.tryAcquire(5, TimeUnit.SECONDS), is(true));
+		assertThat(sentMessages.get(1).getName(), is("ListPeers"));
+		FcpMessage endListPeers = new FcpMessage("EndListPeers");
+		endListPeers.setField("Identifier", sentMessages.get(1).getField("Identifier"));
+		fcpListener.receivedEndListPeers(fcpClient.getConnection(), new EndListPeers(endListPeers));
+		listThread.join(5000);
+		assertThat(listThread.isAlive(), is(false));
+		assertThat(caughtException, nullValue());
+	}
+
+	private FcpClient createReconnectingClient() throws IOException {
+		ReconnectingFcpConnection fcpConnection = new ReconnectingFcpConnection(InetAddress.getByName("127.0.0.1"), 9481, null, 1, 1, TimeUnit.SECONDS, 1) {
+
+			@Override
+			public void addReconnectListener(ReconnectListener reconnectListener) {
+				FcpClientTest.this.reconnectListener = reconnectListener;
+			}
+		};
+		return new FcpClient(fcpConnection) {
+
+			@Override
+			public void addFcpListener(FcpListener fcpListener) {
+				FcpClientTest.this.fcpListener = fcpListener;
+			}
+
+			@Override
+			public void sendMessage(FcpMessage fcpMessage) {
+				sentMessages.add(fcpMessage);
+				messagesSent.release();
+			}
+		};
+	}
+
+	private static FcpMessage createMessage(String name, String identifier) {
+		FcpMessage fcpMessage = new FcpMessage(name);
+		fcpMessage.setField("Identifier", identifier);
+		return fcpMessage;
+	}
+
+}
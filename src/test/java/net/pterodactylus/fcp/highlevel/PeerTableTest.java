@@ -0,0 +1,151 @@
+/*
+ * jFCPlib - PeerTableTest.java - Copyright © 2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.FcpMessage;
+import net.pterodactylus.fcp.Peer;
+import net.pterodactylus.fcp.PeerRemoved;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link PeerTable}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class PeerTableTest {
+
+	private final List<Peer> listedPeers = new ArrayList<Peer>();
+	private final List<Object> eventsDuringListing = new ArrayList<Object>();
+	private FcpListener eventListener;
+	private PeerTable peerTable;
+
+	@Before
+	public void setup() throws IOException {
+		FcpClient fcpClient = new FcpClient(new FcpConnection(InetAddress.getByName("127.0.0.1"))) {
+
+			@Override
+			public void addFcpListener(FcpListener fcpListener) {
+				eventListener = fcpListener;
+			}
+
+			@Override
+			public Collection<Peer> getPeers(boolean withMetadata, boolean withVolatile) {
+				for (Peer peer : listedPeers) {
+					eventListener.receivedPeer(null, peer);
+				}
+				for (Object event : eventsDuringListing) {
+					if (event instanceof Peer) {
+						eventListener.receivedPeer(null, (Peer) event);
+					} else {
+						eventListener.receivedPeerRemoved(null, (PeerRemoved) event);
+					}
+				}
+				eventsDuringListing.clear();
+				return new ArrayList<Peer>(listedPeers);
+			}
+		};
+		peerTable = new PeerTable(fcpClient, null, false, false);
+	}
+
+	@Test
+	public void loadSortsPeersIntoCategories() throws IOException, FcpException {
+		listedPeers.add(createPeer("darknet-1", false, false));
+		listedPeers.add(createPeer("opennet-1", true, false));
+		listedPeers.add(createPeer("seed-1", true, true));
+		peerTable.load();
+		assertThat(peerTable.getPeers().size(), is(3));
+		assertThat(getIdentities(peerTable.getDarknetPeers()), contains("darknet-1"));
+		assertThat(getIdentities(peerTable.getOpennetPeers()), contains("opennet-1"));
+		assertThat(getIdentities(peerTable.getSeedPeers()), contains("seed-1"));
+	}
+
+	@Test
+	public void reloadRemovesPeersTheNodeDoesNotKnowAnymore() throws IOException, FcpException {
+		listedPeers.add(createPeer("peer-1", false, false));
+		listedPeers.add(createPeer("peer-2", false, false));
+		peerTable.load();
+		listedPeers.remove(1);
+		peerTable.load();
+		assertThat(getIdentities(peerTable.getPeers()), contains("peer-1"));
+		assertThat(getIdentities(peerTable.getDarknetPeers()), contains("peer-1"));
+	}
+
+	@Test
+	public void peerAddedDuringReloadIsNotRemoved() throws IOException, FcpException {
+		listedPeers.add(createPeer("peer-1", false, false));
+		peerTable.load();
+		eventsDuringListing.add(createPeer("peer-2", false, false));
+		peerTable.load();
+		assertThat(getIdentities(peerTable.getPeers()), containsInAnyOrder("peer-1", "peer-2"));
+	}
+
+	@Test
+	public void peerRemovedDuringReloadIsNotRestored() throws IOException, FcpException {
+		listedPeers.add(createPeer("peer-1", false, false));
+		listedPeers.add(createPeer("peer-2", false, false));
+		peerTable.load();
+		FcpMessage peerRemoved = new FcpMessage("PeerRemoved");
+		peerRemoved.setField("Identity", "peer-2");
+		eventsDuringListing.add(new PeerRemoved(peerRemoved));
+		peerTable.load();
+		assertThat(getIdentities(peerTable.getPeers()), contains("peer-1"));
+	}
+
+	@Test
+	public void peerChangedDuringReloadKeepsTheChange() throws IOException, FcpException {
+		listedPeers.add(createPeer("peer-1", false, false));
+		peerTable.load();
+		eventsDuringListing.add(createPeer("peer-1", true, false));
+		peerTable.load();
+		assertThat(getIdentities(peerTable.getOpennetPeers()), contains("peer-1"));
+		assertThat(peerTable.getDarknetPeers(), empty());
+	}
+
+	private static List<String> getIdentities(Collection<Peer> peers) {
+		List<String> identities = new ArrayList<String>();
+		for (Peer peer : peers) {
+			identities.add(peer.getIdentity());
+		}
+		return identities;
+	}
+
+	private static Peer createPeer(String identity, boolean opennet, boolean seed) {
+		FcpMessage peer = new FcpMessage("Peer");
+		peer.setField("identity", identity);
+		peer.setField("opennet", String.valueOf(opennet));
+		peer.setField("seed", String.valueOf(seed));
+		return new Peer(peer);
+	}
+
+}
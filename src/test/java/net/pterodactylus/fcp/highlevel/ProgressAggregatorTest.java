@@ -0,0 +1,148 @@
+/*
+ * jFCPlib - ProgressAggregatorTest.java - Copyright © 2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.pterodactylus.fcp.DataFound;
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.FcpMessage;
+import net.pterodactylus.fcp.PersistentRequestRemoved;
+import net.pterodactylus.fcp.PutFailed;
+import net.pterodactylus.fcp.SimpleProgress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ProgressAggregator}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class ProgressAggregatorTest {
+
+	private final List<String> events = new ArrayList<String>();
+	private final ScheduledThreadPoolExecutor executorService = new ScheduledThreadPoolExecutor(1) {
+
+		@Override
+		public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+			emitTask = command;
+			return super.schedule(command, 1, TimeUnit.DAYS);
+		}
+	};
+	private Runnable emitTask;
+	private FcpListener progressMessageListener;
+	private ProgressAggregator progressAggregator;
+
+	@Before
+	public void setup() throws IOException {
+		FcpClient fcpClient = new FcpClient(new FcpConnection(InetAddress.getByName("127.0.0.1"))) {
+
+			@Override
+			public void addFcpListener(FcpListener fcpListener) {
+				progressMessageListener = fcpListener;
+			}
+		};
+		progressAggregator = new ProgressAggregator(fcpClient, executorService);
+		progressAggregator.addProgressListener(new ProgressListener() {
+
+			@Override
+			public void progressUpdated(RequestProgress requestProgress) {
+				events.add(requestProgress.getIdentifier() + " " + requestProgress.getSucceeded() + "/" + requestProgress.getRequired());
+			}
+		});
+		progressAggregator.start(1, TimeUnit.SECONDS);
+	}
+
+	@After
+	public void tearDown() {
+		executorService.shutdownNow();
+	}
+
+	@Test
+	public void onlyTheLatestProgressIsEmittedPerInterval() {
+		progressMessageListener.receivedSimpleProgress(null, createProgress("get-1", 1, 10));
+		progressMessageListener.receivedSimpleProgress(null, createProgress("get-1", 3, 10));
+		emitTask.run();
+		emitTask.run();
+		assertThat(events, contains("get-1 3/10"));
+	}
+
+	@Test
+	public void pendingProgressIsEmittedWhenTheRequestSucceeds() {
+		progressMessageListener.receivedSimpleProgress(null, createProgress("get-1", 3, 10));
+		emitTask.run();
+		progressMessageListener.receivedSimpleProgress(null, createProgress("get-1", 10, 10));
+		progressMessageListener.receivedDataFound(null, new DataFound(createMessage("DataFound", "get-1")));
+		assertThat(events, contains("get-1 3/10", "get-1 10/10"));
+		assertThat(progressAggregator.size(), is(0));
+		emitTask.run();
+		assertThat(events.size(), is(2));
+	}
+
+	@Test
+	public void pendingProgressIsEmittedWhenTheRequestFails() {
+		progressMessageListener.receivedSimpleProgress(null, createProgress("put-1", 4, 10));
+		progressMessageListener.receivedPutFailed(null, new PutFailed(createMessage("PutFailed", "put-1")));
+		assertThat(events, contains("put-1 4/10"));
+	}
+
+	@Test
+	public void finishedRequestWithoutNewProgressEmitsNothing() {
+		progressMessageListener.receivedSimpleProgress(null, createProgress("get-1", 3, 10));
+		emitTask.run();
+		progressMessageListener.receivedDataFound(null, new DataFound(createMessage("DataFound", "get-1")));
+		assertThat(events, contains("get-1 3/10"));
+	}
+
+	@Test
+	public void progressOfRemovedRequestIsDiscarded() {
+		progressMessageListener.receivedSimpleProgress(null, createProgress("get-1", 3, 10));
+		progressMessageListener.receivedPersistentRequestRemoved(null, new PersistentRequestRemoved(createMessage("PersistentRequestRemoved", "get-1")));
+		emitTask.run();
+		assertThat(events, empty());
+	}
+
+	private static SimpleProgress createProgress(String identifier, int succeeded, int required) {
+		FcpMessage simpleProgress = createMessage("SimpleProgress", identifier);
+		simpleProgress.setField("Total", String.valueOf(required * 2));
+		simpleProgress.setField("Required", String.valueOf(required));
+		simpleProgress.setField("Succeeded", String.valueOf(succeeded));
+		return new SimpleProgress(simpleProgress);
+	}
+
+	private static FcpMessage createMessage(String name, String identifier) {
+		FcpMessage fcpMessage = new FcpMessage(name);
+		fcpMessage.setField("Identifier", identifier);
+		return fcpMessage;
+	}
+
+}
@@ -0,0 +1,144 @@
+/*
+ * jFCPlib - RequestJournalTest.java - Copyright © 2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link RequestJournal}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class RequestJournalTest {
+
+	private FcpClient fcpClient;
+	private File journalFile;
+	private RequestJournal requestJournal;
+
+	@Before
+	public void createJournal() throws IOException {
+		fcpClient = new FcpClient(InetAddress.getByName("127.0.0.1"));
+		journalFile = File.createTempFile("journal-", ".txt");
+		requestJournal = new RequestJournal(fcpClient, journalFile);
+	}
+
+	@After
+	public void deleteJournal() {
+		requestJournal.close();
+		journalFile.delete();
+	}
+
+	@Test
+	public void missingJournalIsCreatedEmpty() throws IOException {
+		journalFile.delete();
+		requestJournal.open();
+		assertThat(requestJournal.size(), is(0));
+		assertThat(journalFile.exists(), is(true));
+	}
+
+	@Test
+	public void journalIsReplayedOnOpen() throws IOException {
+		write("R\tget-1\tKSK@one\tToken\\twith tab\ttrue\ttrue\n"
+				+ "P\tget-1\t10\t5\t2\tfalse\n"
+				+ "P\tget-1\t10\t5\t4\ttrue\n"
+				+ "R\tput-1\tCHK@\t\tfalse\tfalse\n"
+				+ "F\tput-1\t10\n");
+		requestJournal.open();
+		assertThat(requestJournal.size(), is(2));
+		JournalEntry download = requestJournal.getEntry("get-1");
+		assertThat(download.getUri(), is("KSK@one"));
+		assertThat(download.getClientToken(), is("Token\twith tab"));
+		assertThat(download.isGlobal(), is(true));
+		assertThat(download.isDownload(), is(true));
+		assertThat(download.getSucceededBlocks(), is(4));
+		assertThat(download.isFinalizedTotal(), is(true));
+		assertThat(download.isComplete(), is(false));
+		JournalEntry upload = requestJournal.getEntry("put-1");
+		assertThat(upload.getClientToken(), nullValue());
+		assertThat(upload.isComplete(), is(true));
+		assertThat(upload.hasFailed(), is(true));
+		assertThat(upload.getErrorCode(), is(10));
+	}
+
+	@Test
+	public void removedRequestsAndPartialLinesAreDropped() throws IOException {
+		write("R\tget-1\tKSK@one\t\tfalse\ttrue\n"
+				+ "R\tget-2\tKSK@two\t\tfalse\ttrue\n"
+				+ "X\tget-1\n"
+				+ "P\tget-2\t10");
+		requestJournal.open();
+		assertThat(requestJournal.size(), is(1));
+		assertThat(requestJournal.getEntry("get-1"), nullValue());
+		assertThat(requestJournal.getEntry("get-2").getTotalBlocks(), is(0));
+	}
+
+	@Test
+	public void journalIsCompactedOnOpen() throws IOException {
+		write("R\tget-1\tKSK@one\t\tfalse\ttrue\n"
+				+ "P\tget-1\t10\t5\t2\tfalse\n"
+				+ "P\tget-1\t10\t5\t5\ttrue\n"
+				+ "C\tget-1\n"
+				+ "R\tget-2\tKSK@two\t\tfalse\ttrue\n"
+				+ "X\tget-2\n");
+		requestJournal.open();
+		assertThat(read(), is("R\tget-1\tKSK@one\t\tfalse\ttrue\n"
+				+ "P\tget-1\t10\t5\t5\ttrue\n"
+				+ "C\tget-1\n"));
+	}
+
+	private void write(String content) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(journalFile), "UTF-8");
+		try {
+			writer.write(content);
+		} finally {
+			writer.close();
+		}
+	}
+
+	private String read() throws IOException {
+		Reader reader = new InputStreamReader(new FileInputStream(journalFile), "UTF-8");
+		try {
+			StringBuilder content = new StringBuilder();
+			char[] buffer = new char[1024];
+			int read;
+			while ((read = reader.read(buffer)) != -1) {
+				content.append(buffer, 0, read);
+			}
+			return content.toString();
+		} finally {
+			reader.close();
+		}
+	}
+
+}
@@ -0,0 +1,211 @@
+/*
+ * jFCPlib - RequestMirrorTest.java - Copyright © 2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.FcpMessage;
+import net.pterodactylus.fcp.PersistentGet;
+import net.pterodactylus.fcp.PersistentPut;
+import net.pterodactylus.fcp.PersistentRequestRemoved;
+import net.pterodactylus.fcp.Priority;
+import net.pterodactylus.fcp.SimpleProgress;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link RequestMirror}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class RequestMirrorTest {
+
+	private final List<String> reportedGets = new ArrayList<String>();
+	private FcpListener eventListener;
+	private RequestMirror requestMirror;
+
+	@Before
+	public void setup() throws IOException {
+		FcpClient fcpClient = new FcpClient(new FcpConnection(InetAddress.getByName("127.0.0.1"))) {
+
+			@Override
+			public void addFcpListener(FcpListener fcpListener) {
+				eventListener = fcpListener;
+			}
+
+			@Override
+			void listPersistentRequests() {
+				for (String identifier : reportedGets) {
+					eventListener.receivedPersistentGet(null, createPersistentGet(identifier, Priority.bulkSplitfile));
+				}
+			}
+		};
+		requestMirror = new RequestMirror(fcpClient);
+	}
+
+	@Test
+	public void loadMirrorsReportedRequests() throws IOException, FcpException {
+		reportedGets.add("get-1");
+		reportedGets.add("get-2");
+		requestMirror.load();
+		eventListener.receivedPersistentPut(null, new PersistentPut(createMessage("PersistentPut", "put-1")));
+		assertThat(requestMirror.size(), is(3));
+		assertThat(requestMirror.getRequest("get-1"), instanceOf(GetRequest.class));
+		assertThat(requestMirror.getRequest("get-1").getPriority(), is(Priority.bulkSplitfile));
+		assertThat(requestMirror.getRequest("put-1"), instanceOf(PutRequest.class));
+	}
+
+	@Test
+	public void reloadRemovesRequestsThatAreNotReportedAnymore() throws IOException, FcpException {
+		reportedGets.add("get-1");
+		reportedGets.add("get-2");
+		requestMirror.load();
+		reportedGets.remove("get-1");
+		requestMirror.load();
+		assertThat(requestMirror.getRequest("get-1"), nullValue());
+		assertThat(requestMirror.getSnapshot().keySet(), containsInAnyOrder("get-2"));
+		assertThat(requestMirror.query().iterable().iterator().next().getIdentifier(), is("get-2"));
+	}
+
+	@Test
+	public void reportingARequestAgainKeepsItsProgress() throws IOException, FcpException {
+		reportedGets.add("get-1");
+		requestMirror.load();
+		eventListener.receivedSimpleProgress(null, createSimpleProgress("get-1", 10, 4));
+		eventListener.receivedPersistentGet(null, createPersistentGet("get-1", Priority.interactive));
+		Request request = requestMirror.getRequest("get-1");
+		assertThat(request.getSucceededBlocks(), is(4));
+		assertThat(request.getRequiredBlocks(), is(10));
+		assertThat(request.getPriority(), is(Priority.interactive));
+	}
+
+	@Test
+	public void snapshotIsReusedUntilTheMirrorChanges() throws IOException, FcpException {
+		reportedGets.add("get-1");
+		requestMirror.load();
+		Map<String, Request> snapshot = requestMirror.getSnapshot();
+		assertThat(requestMirror.getSnapshot(), sameInstance(snapshot));
+		eventListener.receivedSimpleProgress(null, createSimpleProgress("get-1", 10, 4));
+		assertThat(snapshot.get("get-1").getSucceededBlocks(), is(0));
+		assertThat(requestMirror.getSnapshot().get("get-1").getSucceededBlocks(), is(4));
+	}
+
+	@Test
+	public void snapshotsOfManyRequestsReflectChangesAndRemovals() throws IOException, FcpException {
+		for (int index = 0; index < 1000; index++) {
+			reportedGets.add("get-" + index);
+		}
+		requestMirror.load();
+		Map<String, Request> snapshot = requestMirror.getSnapshot();
+		assertThat(snapshot.size(), is(1000));
+		eventListener.receivedSimpleProgress(null, createSimpleProgress("get-17", 10, 7));
+		eventListener.receivedPersistentRequestRemoved(null, new PersistentRequestRemoved(createMessage("PersistentRequestRemoved", "get-18")));
+		Map<String, Request> newSnapshot = requestMirror.getSnapshot();
+		assertThat(newSnapshot.size(), is(999));
+		assertThat(newSnapshot.get("get-17").getSucceededBlocks(), is(7));
+		assertThat(newSnapshot.containsKey("get-18"), is(false));
+		assertThat(newSnapshot.get("get-19"), sameInstance(snapshot.get("get-19")));
+		assertThat(snapshot.containsKey("get-18"), is(true));
+		int iterated = 0;
+		for (Request request : requestMirror.getRequests()) {
+			assertThat(newSnapshot.get(request.getIdentifier()), sameInstance(request));
+			iterated++;
+		}
+		assertThat(iterated, is(999));
+	}
+
+	@Test
+	public void progressRangeOnlyReturnsRequestsWithinTheRange() throws IOException, FcpException {
+		loadRequestsWithProgress();
+		assertThat(getIdentifiers(requestMirror.query().progress(0.2, 0.8).iterable()), contains("get-1", "get-2", "get-3"));
+		assertThat(requestMirror.query().progress(0.2, 0.8).count(), is(3));
+		assertThat(requestMirror.query().progress(0.8, 0.2).count(), is(0));
+	}
+
+	@Test
+	public void slowestAndFastestRequestsRespectTheProgressRange() throws IOException, FcpException {
+		loadRequestsWithProgress();
+		assertThat(getIdentifiers(requestMirror.query().progress(0.1, 0.9).getSlowest(2)), contains("get-1", "get-2"));
+		assertThat(getIdentifiers(requestMirror.query().progress(0.1, 0.9).getFastest(2)), contains("get-3", "get-2"));
+		assertThat(getIdentifiers(requestMirror.query().progress(0.5, 1).getFastest(5)), contains("get-4", "get-3", "get-2"));
+	}
+
+	@Test
+	public void progressRangeIsCombinedWithOtherFilters() throws IOException, FcpException {
+		loadRequestsWithProgress();
+		eventListener.receivedPersistentGet(null, createPersistentGet("get-2", Priority.interactive));
+		assertThat(getIdentifiers(requestMirror.query().priority(Priority.bulkSplitfile).progress(0.2, 0.8).iterable()), contains("get-1", "get-3"));
+	}
+
+	private void loadRequestsWithProgress() throws IOException, FcpException {
+		for (int index = 0; index < 5; index++) {
+			reportedGets.add("get-" + index);
+		}
+		requestMirror.load();
+		int[] succeededBlocks = { 0, 2, 5, 8, 10 };
+		for (int index = 0; index < 5; index++) {
+			eventListener.receivedSimpleProgress(null, createSimpleProgress("get-" + index, 10, succeededBlocks[index]));
+		}
+	}
+
+	private static List<String> getIdentifiers(Iterable<Request> requests) {
+		List<String> identifiers = new ArrayList<String>();
+		for (Request request : requests) {
+			identifiers.add(request.getIdentifier());
+		}
+		return identifiers;
+	}
+
+	private static PersistentGet createPersistentGet(String identifier, Priority priority) {
+		FcpMessage persistentGet = createMessage("PersistentGet", identifier);
+		persistentGet.setField("PriorityClass", String.valueOf(priority.ordinal()));
+		return new PersistentGet(persistentGet);
+	}
+
+	private static SimpleProgress createSimpleProgress(String identifier, int required, int succeeded) {
+		FcpMessage simpleProgress = createMessage("SimpleProgress", identifier);
+		simpleProgress.setField("Total", String.valueOf(required));
+		simpleProgress.setField("Required", String.valueOf(required));
+		simpleProgress.setField("Succeeded", String.valueOf(succeeded));
+		simpleProgress.setField("Failed", "0");
+		simpleProgress.setField("FatallyFailed", "0");
+		return new SimpleProgress(simpleProgress);
+	}
+
+	private static FcpMessage createMessage(String name, String identifier) {
+		FcpMessage fcpMessage = new FcpMessage(name);
+		fcpMessage.setField("Identifier", identifier);
+		return fcpMessage;
+	}
+
+}
@@ -0,0 +1,140 @@
+/*
+ * jFCPlib - RequestSchedulerTest.java - Copyright © 2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.pterodactylus.fcp.DataFound;
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.FcpMessage;
+import net.pterodactylus.fcp.Priority;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link RequestScheduler}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class RequestSchedulerTest {
+
+	private final List<String> sentIdentifiers = new ArrayList<String>();
+	private FcpListener completionListener;
+	private RequestScheduler requestScheduler;
+
+	@Before
+	public void setup() throws IOException {
+		FcpClient fcpClient = new FcpClient(new FcpConnection(InetAddress.getByName("127.0.0.1"))) {
+
+			@Override
+			public void addFcpListener(FcpListener fcpListener) {
+				completionListener = fcpListener;
+			}
+
+			@Override
+			public void sendMessage(FcpMessage fcpMessage) {
+				sentIdentifiers.add(fcpMessage.getField("Identifier"));
+			}
+		};
+		requestScheduler = new RequestScheduler(fcpClient, 1);
+	}
+
+	@Test
+	public void interactiveRequestsGoBeforeRequestsOfOtherTenants() {
+		requestScheduler.submit("a", Priority.bulkSplitfile, createRequest("a-1"));
+		requestScheduler.submit("b", Priority.bulkSplitfile, createRequest("b-1"));
+		requestScheduler.submit("a", Priority.interactive, createRequest("a-2"));
+		finish("a-1");
+		assertThat(sentIdentifiers, contains("a-1", "a-2"));
+	}
+
+	@Test
+	public void tenantWithUrgentRequestsDoesNotStarveOtherTenants() {
+		for (int index = 1; index <= 4; index++) {
+			requestScheduler.submit("a", Priority.immediateSplitfile, createRequest("a-" + index));
+		}
+		requestScheduler.submit("b", Priority.bulkSplitfile, createRequest("b-1"));
+		requestScheduler.submit("b", Priority.bulkSplitfile, createRequest("b-2"));
+		finish("a-1");
+		finish(sentIdentifiers.get(1));
+		finish(sentIdentifiers.get(2));
+		assertThat(sentIdentifiers.subList(1, 4), containsInAnyOrder("b-1", "b-2", "a-2"));
+	}
+
+	@Test
+	public void requestsOfATenantAreAdmittedByPriority() {
+		requestScheduler.submit("a", Priority.minimum, createRequest("a-1"));
+		requestScheduler.submit("a", Priority.minimum, createRequest("a-2"));
+		requestScheduler.submit("a", Priority.update, createRequest("a-3"));
+		finish("a-1");
+		finish("a-3");
+		assertThat(sentIdentifiers, contains("a-1", "a-3", "a-2"));
+	}
+
+	@Test
+	public void weightsAreHonoured() {
+		requestScheduler.setWeight("a", 2);
+		requestScheduler.submit("c", Priority.bulkSplitfile, createRequest("c-1"));
+		for (int index = 1; index <= 4; index++) {
+			requestScheduler.submit("a", Priority.bulkSplitfile, createRequest("a-" + index));
+			requestScheduler.submit("b", Priority.bulkSplitfile, createRequest("b-" + index));
+		}
+		finish("c-1");
+		for (int index = 1; index < 6; index++) {
+			finish(sentIdentifiers.get(index));
+		}
+		int aRequests = 0;
+		for (String identifier : sentIdentifiers.subList(1, 7)) {
+			if (identifier.startsWith("a-")) {
+				aRequests++;
+			}
+		}
+		assertThat(aRequests, is(4));
+	}
+
+	@Test
+	public void requestsAreNotSentAfterStop() {
+		requestScheduler.submit("a", Priority.bulkSplitfile, createRequest("a-1"));
+		requestScheduler.submit("a", Priority.bulkSplitfile, createRequest("a-2"));
+		requestScheduler.stop();
+		finish("a-1");
+		requestScheduler.submit("a", Priority.bulkSplitfile, createRequest("a-3"));
+		assertThat(sentIdentifiers, contains("a-1"));
+	}
+
+	private void finish(String identifier) {
+		completionListener.receivedDataFound(null, new DataFound(createRequest(identifier)));
+	}
+
+	private static FcpMessage createRequest(String identifier) {
+		FcpMessage request = new FcpMessage("ClientGet");
+		request.setField("Identifier", identifier);
+		return request;
+	}
+
+}
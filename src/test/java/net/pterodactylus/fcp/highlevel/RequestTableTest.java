@@ -0,0 +1,114 @@
+/*
+ * jFCPlib - RequestTableTest.java - Copyright © 2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+import net.pterodactylus.fcp.Priority;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link RequestTable}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class RequestTableTest {
+
+	private final RequestTable requestTable = new RequestTable(null, 16);
+
+	@Test
+	public void requestsCanBeFoundAfterGrowingAndRemoving() {
+		for (int index = 0; index < 100; index++) {
+			requestTable.add("request-" + index, (index % 2) == 0, "token-" + index, false, Priority.bulkSplitfile);
+		}
+		for (int index = 0; index < 100; index += 3) {
+			requestTable.remove("request-" + index);
+		}
+		int count = 0;
+		for (int index = 0; index < 100; index++) {
+			RequestRow request = requestTable.getRequest("request-" + index);
+			if ((index % 3) == 0) {
+				assertThat(request, nullValue());
+			} else {
+				assertThat(request, notNullValue());
+				assertThat(request.getClientToken(), is("token-" + index));
+				count++;
+			}
+		}
+		assertThat(requestTable.size(), is(count));
+		int iterated = 0;
+		for (@SuppressWarnings("unused") RequestRow request : requestTable.getRequests()) {
+			iterated++;
+		}
+		assertThat(iterated, is(count));
+	}
+
+	@Test
+	public void reusedRowsAreNotFoundAfterRemoval() {
+		for (int index = 0; index < 1000; index++) {
+			requestTable.add("first-" + index, false, null, false, Priority.bulkSplitfile);
+		}
+		for (int index = 0; index < 1000; index++) {
+			requestTable.remove("first-" + index);
+		}
+		for (int index = 0; index < 1000; index++) {
+			requestTable.add("second-" + index, false, null, false, Priority.bulkSplitfile);
+		}
+		for (int index = 0; index < 1000; index++) {
+			requestTable.remove("second-" + index);
+		}
+		assertThat(requestTable.size(), is(0));
+		for (int index = 0; index < 1000; index++) {
+			assertThat(requestTable.getRequest("first-" + index), nullValue());
+			assertThat(requestTable.getRequest("second-" + index), nullValue());
+		}
+	}
+
+	@Test
+	public void removedRequestsCanBeAddedAgain() {
+		for (int index = 0; index < 40; index++) {
+			requestTable.add("request-" + index, false, null, false, Priority.bulkSplitfile);
+		}
+		for (int index = 0; index < 40; index++) {
+			requestTable.remove("request-" + index);
+		}
+		for (int index = 0; index < 40; index++) {
+			requestTable.add("request-" + index, true, null, false, Priority.bulkSplitfile);
+		}
+		assertThat(requestTable.size(), is(40));
+		for (int index = 0; index < 40; index++) {
+			assertThat(requestTable.getRequest("request-" + index).isPut(), is(true));
+		}
+	}
+
+	@Test
+	public void viewOfRemovedRequestDoesNotShowReusedRow() {
+		requestTable.add("first", false, "first-token", false, Priority.interactive);
+		RequestRow firstRequest = requestTable.getRequest("first");
+		requestTable.remove("first");
+		requestTable.add("second", false, "second-token", false, Priority.bulkSplitfile);
+		assertThat(firstRequest.getClientToken(), nullValue());
+		assertThat(firstRequest.getPriority(), is(Priority.unknown));
+		assertThat(requestTable.getRequest("second").getClientToken(), is("second-token"));
+	}
+
+}
@@ -0,0 +1,267 @@
+/*
+ * jFCPlib - RetrySchedulerTest.java - Copyright © 2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.pterodactylus.fcp.DataFound;
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.FcpMessage;
+import net.pterodactylus.fcp.GetFailed;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link RetryScheduler}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class RetrySchedulerTest {
+
+	private static final String URI = "SSK@routing,crypto,AQACAAE/site-1/index.html";
+
+	private final List<FcpMessage> sentMessages = new ArrayList<FcpMessage>();
+	private final List<Runnable> scheduledRetries = new ArrayList<Runnable>();
+	private final List<String> events = new ArrayList<String>();
+	private final ScheduledThreadPoolExecutor executorService = new ScheduledThreadPoolExecutor(1) {
+
+		@Override
+		public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+			scheduledRetries.add(command);
+			return null;
+		}
+	};
+	private final RetryListener retryListener = new RetryListener() {
+
+		@Override
+		public void retryScheduled(String identifier, String retryIdentifier, int attempt, long delay) {
+			events.add("retry " + identifier + " " + retryIdentifier + " " + attempt);
+		}
+
+		@Override
+		public void requestAbandoned(String identifier, int attempts, boolean circuitOpen) {
+			events.add("abandoned " + identifier + " " + attempts + " " + circuitOpen);
+		}
+	};
+	private FcpListener resultListener;
+	private boolean connectionBroken;
+	private RetryScheduler retryScheduler;
+
+	@Before
+	public void setup() throws IOException {
+		FcpClient fcpClient = new FcpClient(new FcpConnection(InetAddress.getByName("127.0.0.1"))) {
+
+			@Override
+			public void addFcpListener(FcpListener fcpListener) {
+				resultListener = fcpListener;
+			}
+
+			@Override
+			public void sendMessage(FcpMessage fcpMessage) throws IOException {
+				if (connectionBroken) {
+					throw new IOException("connection broken");
+				}
+				sentMessages.add(fcpMessage);
+			}
+		};
+		retryScheduler = new RetryScheduler(fcpClient, executorService);
+	}
+
+	@After
+	public void tearDown() {
+		executorService.shutdownNow();
+	}
+
+	@Test
+	public void nonFatalFailureIsRescheduled() {
+		retryScheduler.submit(createRequest("get-1", URI, null), retryListener);
+		resultListener.receivedGetFailed(null, createGetFailed("get-1", false));
+		assertThat(events, contains("retry get-1 get-1 2"));
+		runScheduledRetries();
+		assertThat(sentMessages.size(), is(2));
+		resultListener.receivedDataFound(null, new DataFound(createMessage("DataFound", "get-1")));
+		assertThat(retryScheduler.getRequestCount(), is(0));
+	}
+
+	@Test
+	public void persistentRequestIsResentWithNewIdentifier() {
+		retryScheduler.submit(createRequest("get-1", URI, "forever"), retryListener);
+		resultListener.receivedGetFailed(null, createGetFailed("get-1", false));
+		assertThat(events, contains("retry get-1 get-1-retry-2 2"));
+		runScheduledRetries();
+		assertThat(sentMessages.get(1).getName(), is("RemovePersistentRequest"));
+		assertThat(sentMessages.get(1).getField("Identifier"), is("get-1"));
+		assertThat(sentMessages.get(2).getField("Identifier"), is("get-1-retry-2"));
+		resultListener.receivedGetFailed(null, createGetFailed("get-1", false));
+		assertThat(events.size(), is(1));
+		resultListener.receivedDataFound(null, new DataFound(createMessage("DataFound", "get-1-retry-2")));
+		assertThat(retryScheduler.getRequestCount(), is(0));
+	}
+
+	@Test
+	public void fatalFailureIsSurfaced() {
+		retryScheduler.submit(createRequest("get-1", URI, null), retryListener);
+		resultListener.receivedGetFailed(null, createGetFailed("get-1", true));
+		assertThat(events, contains("abandoned get-1 1 false"));
+		assertThat(scheduledRetries, empty());
+		assertThat(retryScheduler.getRequestCount(), is(0));
+	}
+
+	@Test
+	public void attemptsAreCappedPerKey() {
+		retryScheduler.setMaximumAttempts(2);
+		retryScheduler.submit(createRequest("get-1", URI, null), retryListener);
+		resultListener.receivedGetFailed(null, createGetFailed("get-1", false));
+		runScheduledRetries();
+		resultListener.receivedGetFailed(null, createGetFailed("get-1", false));
+		retryScheduler.submit(createRequest("get-2", URI, null), retryListener);
+		assertThat(events, contains("retry get-1 get-1 2", "abandoned get-1 2 false", "abandoned get-2 0 false"));
+		assertThat(sentMessages.size(), is(2));
+	}
+
+	@Test
+	public void circuitOpensAndClosesAfterSuccessfulProbe() throws InterruptedException {
+		retryScheduler.setMaximumAttempts(1);
+		retryScheduler.setCircuitBreaker(2, 100, TimeUnit.MILLISECONDS);
+		retryScheduler.submit(createRequest("get-1", URI, null), retryListener);
+		resultListener.receivedGetFailed(null, createGetFailed("get-1", false));
+		retryScheduler.submit(createRequest("get-2", URI + "2", null), retryListener);
+		resultListener.receivedGetFailed(null, createGetFailed("get-2", false));
+		assertThat(retryScheduler.isCircuitOpen(URI), is(true));
+		retryScheduler.submit(createRequest("get-3", URI + "3", null), retryListener);
+		assertThat(events.get(events.size() - 1), is("abandoned get-3 0 true"));
+		Thread.sleep(120);
+		assertThat(retryScheduler.isCircuitOpen(URI), is(false));
+		retryScheduler.submit(createRequest("get-4", URI + "4", null), retryListener);
+		retryScheduler.submit(createRequest("get-5", URI + "5", null), retryListener);
+		assertThat(events.get(events.size() - 1), is("abandoned get-5 0 true"));
+		resultListener.receivedDataFound(null, new DataFound(createMessage("DataFound", "get-4")));
+		assertThat(retryScheduler.getCircuitCount(), is(0));
+		assertThat(sentMessages.size(), is(3));
+	}
+
+	@Test
+	public void onlyOneProbeIsLetThroughWhileItIsPending() throws InterruptedException {
+		retryScheduler.setMaximumAttempts(1);
+		retryScheduler.setCircuitBreaker(1, 50, TimeUnit.MILLISECONDS);
+		retryScheduler.submit(createRequest("get-1", URI, null), retryListener);
+		resultListener.receivedGetFailed(null, createGetFailed("get-1", false));
+		Thread.sleep(70);
+		retryScheduler.submit(createRequest("get-2", URI + "2", null), retryListener);
+		retryScheduler.submit(createRequest("get-3", URI + "3", null), retryListener);
+		retryScheduler.submit(createRequest("get-4", URI + "4", null), retryListener);
+		assertThat(events, contains("abandoned get-1 1 false", "abandoned get-3 0 true", "abandoned get-4 0 true"));
+		assertThat(sentMessages.size(), is(2));
+		resultListener.receivedGetFailed(null, createGetFailed("get-2", false));
+		assertThat(retryScheduler.isCircuitOpen(URI), is(true));
+	}
+
+	@Test
+	public void failureToSendDoesNotOpenTheCircuit() {
+		retryScheduler.setCircuitBreaker(1, 60, TimeUnit.SECONDS);
+		connectionBroken = true;
+		retryScheduler.submit(createRequest("get-1", URI, null), retryListener);
+		assertThat(events, contains("retry get-1 get-1 2"));
+		assertThat(retryScheduler.isCircuitOpen(URI), is(false));
+		connectionBroken = false;
+		runScheduledRetries();
+		assertThat(sentMessages.size(), is(1));
+	}
+
+	@Test
+	public void closedCircuitsAreForgotten() throws InterruptedException {
+		retryScheduler.setMaximumAttempts(1);
+		retryScheduler.setCircuitBreaker(10, 20, TimeUnit.MILLISECONDS);
+		retryScheduler.submit(createRequest("get-1", URI, null), retryListener);
+		resultListener.receivedGetFailed(null, createGetFailed("get-1", false));
+		Thread.sleep(40);
+		retryScheduler.submit(createRequest("get-2", "CHK@other,crypto,AAMC--8", null), retryListener);
+		assertThat(retryScheduler.getCircuitCount(), is(1));
+	}
+
+	@Test
+	public void documentsOfAnSskShareACircuit() {
+		assertThat(RetryScheduler.getCircuitKey("SSK@routing,crypto,AQACAAE/site-1/index.html"), is("SSK@routing"));
+		assertThat(RetryScheduler.getCircuitKey("freenet:SSK@routing,crypto,AQACAAE/other"), is("SSK@routing"));
+	}
+
+	@Test
+	public void editionsOfAUskShareACircuitWithTheSsk() {
+		assertThat(RetryScheduler.getCircuitKey("USK@routing,crypto,AQACAAE/site/17/"), is("SSK@routing"));
+	}
+
+	@Test
+	public void otherKeysUseThePartBeforeTheFirstSlash() {
+		assertThat(RetryScheduler.getCircuitKey("CHK@routing,crypto,AAMC--8/file.txt"), is("CHK@routing,crypto,AAMC--8"));
+		assertThat(RetryScheduler.getCircuitKey("KSK@test"), is("KSK@test"));
+	}
+
+	@Test
+	public void backoffDoublesUpToTheMaximum() {
+		assertThat(RetryScheduler.getBackoffDelay(2, 1000, 10000), is(1000L));
+		assertThat(RetryScheduler.getBackoffDelay(3, 1000, 10000), is(2000L));
+		assertThat(RetryScheduler.getBackoffDelay(5, 1000, 10000), is(8000L));
+		assertThat(RetryScheduler.getBackoffDelay(6, 1000, 10000), is(10000L));
+		assertThat(RetryScheduler.getBackoffDelay(100, 1000, 10000), is(10000L));
+	}
+
+	private void runScheduledRetries() {
+		List<Runnable> retries = new ArrayList<Runnable>(scheduledRetries);
+		scheduledRetries.clear();
+		for (Runnable retry : retries) {
+			retry.run();
+		}
+	}
+
+	private static FcpMessage createRequest(String identifier, String uri, String persistence) {
+		FcpMessage request = createMessage("ClientGet", identifier);
+		request.setField("URI", uri);
+		if (persistence != null) {
+			request.setField("Persistence", persistence);
+		}
+		return request;
+	}
+
+	private static GetFailed createGetFailed(String identifier, boolean fatal) {
+		FcpMessage getFailed = createMessage("GetFailed", identifier);
+		getFailed.setField("Code", fatal ? "20" : "13");
+		getFailed.setField("Fatal", String.valueOf(fatal));
+		return new GetFailed(getFailed);
+	}
+
+	private static FcpMessage createMessage(String name, String identifier) {
+		FcpMessage fcpMessage = new FcpMessage(name);
+		fcpMessage.setField("Identifier", identifier);
+		return fcpMessage;
+	}
+
+}
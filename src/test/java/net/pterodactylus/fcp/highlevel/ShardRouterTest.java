@@ -0,0 +1,97 @@
+/*
+ * jFCPlib - ShardRouterTest.java - Copyright © 2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ShardRouter}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class ShardRouterTest {
+
+	private final ShardRouter shardRouter = new ShardRouter(100);
+
+	@Test
+	public void emptyRouterDoesNotRoute() {
+		assertThat(shardRouter.getNodeName("KSK@test"), nullValue());
+		assertThat(shardRouter.getFcpClient("KSK@test"), nullValue());
+	}
+
+	@Test
+	public void allDocumentsOfASiteAreRoutedToTheSameNode() throws UnknownHostException {
+		addNodes(5);
+		String nodeName = shardRouter.getNodeName("USK@routing,crypto,AQACAAE/site/3/");
+		assertThat(shardRouter.getNodeName("SSK@routing,crypto,AQACAAE/site-4/index.html"), is(nodeName));
+		assertThat(shardRouter.getNodeName("freenet:USK@routing,crypto,AQACAAE/site/4/style.css"), is(nodeName));
+	}
+
+	@Test
+	public void requestsAreCountedForTheRoutedNode() throws UnknownHostException {
+		FcpClient fcpClient = new FcpClient(InetAddress.getByName("127.0.0.1"));
+		shardRouter.addNode("node", fcpClient);
+		assertThat(shardRouter.getFcpClient("KSK@test"), sameInstance(fcpClient));
+		assertThat(shardRouter.getRoutedRequests().get("node"), is(1L));
+	}
+
+	@Test
+	public void removingANodeOnlyMovesItsKeys() throws UnknownHostException {
+		addNodes(5);
+		Map<String, String> routes = new HashMap<String, String>();
+		for (int key = 0; key < 1000; key++) {
+			routes.put("KSK@" + key, shardRouter.getNodeName("KSK@" + key));
+		}
+		shardRouter.removeNode("node-2");
+		for (Map.Entry<String, String> route : routes.entrySet()) {
+			if (!route.getValue().equals("node-2")) {
+				assertThat(shardRouter.getNodeName(route.getKey()), is(route.getValue()));
+			}
+		}
+	}
+
+	@Test
+	public void ringSharesAddUpToOneAndAreBalanced() throws UnknownHostException {
+		addNodes(4);
+		double sum = 0;
+		for (double ringShare : shardRouter.getRingShares().values()) {
+			assertThat(Math.abs(ringShare - 0.25), lessThan(0.1));
+			sum += ringShare;
+		}
+		assertThat(sum, closeTo(1, 0.000001));
+	}
+
+	private void addNodes(int count) throws UnknownHostException {
+		for (int node = 0; node < count; node++) {
+			shardRouter.addNode("node-" + node, new FcpClient(InetAddress.getByName("127.0.0.1")));
+		}
+	}
+
+}
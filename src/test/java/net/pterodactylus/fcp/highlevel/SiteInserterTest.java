@@ -0,0 +1,228 @@
+/*
+ * jFCPlib - SiteInserterTest.java - Copyright © 2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.FcpMessage;
+import net.pterodactylus.fcp.PutFailed;
+import net.pterodactylus.fcp.PutSuccessful;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link SiteInserter}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class SiteInserterTest {
+
+	private final List<FcpMessage> sentMessages = new ArrayList<FcpMessage>();
+	private final Set<String> failingFiles = new HashSet<String>();
+	private File directory;
+	private File manifestFile;
+	private SiteInserter siteInserter;
+
+	@Before
+	public void setup() throws IOException {
+		directory = File.createTempFile("site-", "");
+		directory.delete();
+		new File(directory, "b").mkdirs();
+		manifestFile = File.createTempFile("manifest-", ".txt");
+		manifestFile.delete();
+		createFile("a.txt", "first");
+		createFile("b/c.txt", "second");
+		FcpClient fcpClient = new FcpClient(new FcpConnection(InetAddress.getByName("127.0.0.1"))) {
+
+			private FcpListener fcpListener;
+
+			@Override
+			public void addFcpListener(FcpListener fcpListener) {
+				this.fcpListener = fcpListener;
+			}
+
+			@Override
+			public void removeFcpListener(FcpListener fcpListener) {
+				this.fcpListener = null;
+			}
+
+			@Override
+			public void sendMessage(FcpMessage fcpMessage) {
+				sentMessages.add(fcpMessage);
+				String targetFilename = fcpMessage.getField("TargetFilename");
+				if (failingFiles.contains(targetFilename)) {
+					FcpMessage putFailed = createMessage("PutFailed", fcpMessage.getField("Identifier"));
+					putFailed.setField("CodeDescription", "Insert failed");
+					fcpListener.receivedPutFailed(null, new PutFailed(putFailed));
+					return;
+				}
+				FcpMessage putSuccessful = createMessage("PutSuccessful", fcpMessage.getField("Identifier"));
+				putSuccessful.setField("URI", (targetFilename != null) ? ("CHK@" + targetFilename + "-" + sentMessages.size()) : "USK@site/1");
+				fcpListener.receivedPutSuccessful(null, new PutSuccessful(putSuccessful));
+			}
+		};
+		siteInserter = new SiteInserter(fcpClient, manifestFile, 2);
+	}
+
+	@After
+	public void tearDown() {
+		new File(directory, "a.txt").delete();
+		new File(directory, "b/c.txt").delete();
+		new File(directory, "b").delete();
+		directory.delete();
+		manifestFile.delete();
+	}
+
+	@Test
+	public void manifestIsSavedAndReusedByTheNextInsert() throws Exception {
+		assertThat(siteInserter.insert(directory, "USK@site/0", "a.txt"), is("USK@site/1"));
+		assertThat(siteInserter.getUploadedFiles(), is(2));
+		List<String> manifestLines = readManifest();
+		assertThat(manifestLines.size(), is(2));
+		assertThat(manifestLines.get(0), containsString("\tCHK@a.txt-1\ta.txt"));
+		assertThat(manifestLines.get(1), containsString("\tCHK@c.txt-2\tb/c.txt"));
+		sentMessages.clear();
+		siteInserter.insert(directory, "USK@site/0", "a.txt");
+		assertThat(siteInserter.getUploadedFiles(), is(0));
+		assertThat(siteInserter.getReusedFiles(), is(2));
+		assertThat(sentMessages.size(), is(1));
+		FcpMessage site = sentMessages.get(0);
+		assertThat(site.getName(), is("ClientPutComplexDir"));
+		assertThat(site.getField("Files.0.Name"), is("a.txt"));
+		assertThat(site.getField("Files.0.TargetURI"), is("CHK@a.txt-1"));
+		assertThat(site.getField("Files.1.Name"), is("b/c.txt"));
+		assertThat(site.getField("Files.1.TargetURI"), is("CHK@c.txt-2"));
+		assertThat(site.getField("DefaultName"), is("a.txt"));
+	}
+
+	@Test
+	public void filesWithUnchangedSizeAndModificationTimeAreNotHashed() throws Exception {
+		siteInserter.insert(directory, "USK@site/0", null);
+		List<String> manifestLines = readManifest();
+		OutputStream manifestOutputStream = new FileOutputStream(manifestFile);
+		try {
+			for (String manifestLine : manifestLines) {
+				String[] fields = manifestLine.split("\t");
+				manifestOutputStream.write((fields[0] + "\t" + fields[1] + "\twrong-hash\t" + fields[3] + "\t" + fields[4] + "\n").getBytes("UTF-8"));
+			}
+		} finally {
+			manifestOutputStream.close();
+		}
+		sentMessages.clear();
+		siteInserter.insert(directory, "USK@site/0", null);
+		assertThat(siteInserter.getUploadedFiles(), is(0));
+		assertThat(sentMessages.size(), is(1));
+	}
+
+	@Test
+	public void touchedFilesWithUnchangedContentAreReusedByHash() throws Exception {
+		siteInserter.insert(directory, "USK@site/0", null);
+		File file = new File(directory, "a.txt");
+		file.setLastModified(file.lastModified() - 10000);
+		sentMessages.clear();
+		siteInserter.insert(directory, "USK@site/0", null);
+		assertThat(siteInserter.getUploadedFiles(), is(0));
+		assertThat(siteInserter.getReusedFiles(), is(2));
+		assertThat(readManifest().get(0), containsString(file.lastModified() + "\t"));
+	}
+
+	@Test
+	public void filesWithChangedContentAreUploadedAgain() throws Exception {
+		siteInserter.insert(directory, "USK@site/0", null);
+		File file = new File(directory, "a.txt");
+		long lastModified = file.lastModified();
+		createFile("a.txt", "frist");
+		file.setLastModified(lastModified - 10000);
+		sentMessages.clear();
+		siteInserter.insert(directory, "USK@site/0", null);
+		assertThat(siteInserter.getUploadedFiles(), is(1));
+		assertThat(siteInserter.getReusedFiles(), is(1));
+		assertThat(sentMessages.get(0).getField("TargetFilename"), is("a.txt"));
+	}
+
+	@Test
+	public void failedFileInsertIsThrownAndSuccessfulInsertsAreKept() throws Exception {
+		failingFiles.add("c.txt");
+		try {
+			siteInserter.insert(directory, "USK@site/0", null);
+			fail();
+		} catch (FcpException fe1) {
+			assertThat(fe1.getMessage(), containsString("b/c.txt"));
+		}
+		List<String> manifestLines = readManifest();
+		assertThat(manifestLines.size(), is(1));
+		assertThat(manifestLines.get(0), containsString("\ta.txt"));
+		List<String> messageNames = new ArrayList<String>();
+		for (FcpMessage sentMessage : sentMessages) {
+			messageNames.add(sentMessage.getName());
+		}
+		assertThat(messageNames, not(hasItem("ClientPutComplexDir")));
+	}
+
+	private void createFile(String name, String content) throws IOException {
+		OutputStream fileOutputStream = new FileOutputStream(new File(directory, name));
+		try {
+			fileOutputStream.write(content.getBytes("UTF-8"));
+		} finally {
+			fileOutputStream.close();
+		}
+	}
+
+	private List<String> readManifest() throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+	private static FcpMessage createMessage(String name, String identifier) {
+		FcpMessage fcpMessage = new FcpMessage(name);
+		fcpMessage.setField("Identifier", identifier);
+		return fcpMessage;
+	}
+
+}
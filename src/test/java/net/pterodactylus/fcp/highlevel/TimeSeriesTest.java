@@ -0,0 +1,72 @@
+/*
+ * jFCPlib - TimeSeriesTest.java - Copyright © 2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link TimeSeries}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class TimeSeriesTest {
+
+	private final TimeSeries timeSeries = new TimeSeries(4);
+
+	@Test
+	public void emptyTimeSeriesReturnsNaN() {
+		assertThat(Double.isNaN(timeSeries.getAverage(0)), is(true));
+		assertThat(Double.isNaN(timeSeries.getLatestValue()), is(true));
+		assertThat(timeSeries.getLatestTime(), is(-1L));
+	}
+
+	@Test
+	public void oldestSamplesAreOverwritten() {
+		for (int sample = 0; sample < 6; sample++) {
+			timeSeries.add(sample * 1000, sample);
+		}
+		assertThat(timeSeries.size(), is(4));
+		assertThat(timeSeries.getMinimum(0), is(2.0));
+		assertThat(timeSeries.getMaximum(0), is(5.0));
+		assertThat(timeSeries.getLatestTime(), is(5000L));
+	}
+
+	@Test
+	public void aggregatesOnlyConsiderSamplesInWindow() {
+		timeSeries.add(1000, 10);
+		timeSeries.add(2000, 20);
+		timeSeries.add(3000, 60);
+		assertThat(timeSeries.getAverage(2000), is(40.0));
+		assertThat(timeSeries.getMinimum(2000), is(20.0));
+		assertThat(timeSeries.getMaximum(1000), is(60.0));
+	}
+
+	@Test
+	public void rateIsCalculatedPerSecond() {
+		timeSeries.add(1000, 100);
+		timeSeries.add(3000, 300);
+		timeSeries.add(5000, 900);
+		assertThat(timeSeries.getRate(0), is(200.0));
+		assertThat(timeSeries.getRate(3000), is(300.0));
+		assertThat(Double.isNaN(timeSeries.getRate(4000)), is(true));
+	}
+
+}
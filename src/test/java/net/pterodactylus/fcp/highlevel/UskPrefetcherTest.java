@@ -0,0 +1,139 @@
+/*
+ * jFCPlib - UskPrefetcherTest.java - Copyright © 2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.pterodactylus.fcp.DataFound;
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.FcpMessage;
+import net.pterodactylus.fcp.GetFailed;
+import net.pterodactylus.fcp.Priority;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link UskPrefetcher}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class UskPrefetcherTest {
+
+	private static final String URI = "USK@routing,crypto,AQACAAE/site";
+
+	private final List<FcpMessage> sentMessages = new ArrayList<FcpMessage>();
+	private FcpListener prefetchListener;
+	private boolean connectionBroken;
+	private UskPrefetcher uskPrefetcher;
+
+	@Before
+	public void setup() throws IOException {
+		FcpConnection fcpConnection = new FcpConnection(InetAddress.getByName("127.0.0.1")) {
+
+			@Override
+			public void sendMessage(FcpMessage fcpMessage) throws IOException {
+				if (connectionBroken) {
+					throw new IOException("connection broken");
+				}
+				sentMessages.add(fcpMessage);
+			}
+		};
+		FcpClient fcpClient = new FcpClient(fcpConnection) {
+
+			@Override
+			public void addFcpListener(FcpListener fcpListener) {
+				prefetchListener = fcpListener;
+			}
+		};
+		uskPrefetcher = new UskPrefetcher(fcpClient, Priority.bulkSplitfile, false, 2);
+	}
+
+	@Test
+	public void onlyTheNewestWaitingEditionIsPrefetchedWhenASlotBecomesFree() {
+		uskPrefetcher.editionFound(URI, 1);
+		uskPrefetcher.editionFound(URI, 2);
+		uskPrefetcher.editionFound(URI, 3);
+		uskPrefetcher.editionFound(URI, 4);
+		assertThat(sentMessages.size(), is(2));
+		assertThat(uskPrefetcher.getRunningPrefetches(), is(2));
+		prefetchListener.receivedDataFound(null, createDataFound(0));
+		assertThat(sentMessages.size(), is(3));
+		assertThat(sentMessages.get(2).getField("URI"), is("SSK@routing,crypto,AQACAAE/site-4"));
+		assertThat(uskPrefetcher.getRunningPrefetches(), is(2));
+	}
+
+	@Test
+	public void waitingEditionIsKeptIfItsPrefetchCanNotBeSent() {
+		uskPrefetcher.editionFound(URI, 1);
+		uskPrefetcher.editionFound(URI, 2);
+		uskPrefetcher.editionFound(URI, 3);
+		connectionBroken = true;
+		prefetchListener.receivedDataFound(null, createDataFound(0));
+		assertThat(uskPrefetcher.getRunningPrefetches(), is(1));
+		connectionBroken = false;
+		prefetchListener.receivedDataFound(null, createDataFound(1));
+		assertThat(sentMessages.size(), is(3));
+		assertThat(sentMessages.get(2).getField("URI"), is("SSK@routing,crypto,AQACAAE/site-3"));
+	}
+
+	@Test
+	public void hitsAndMissesAreCounted() {
+		uskPrefetcher.editionFound(URI, 1);
+		uskPrefetcher.editionFound(URI, 2);
+		prefetchListener.receivedDataFound(null, createDataFound(0));
+		prefetchListener.receivedGetFailed(null, createGetFailed(1));
+		assertThat(uskPrefetcher.isPrefetched(URI + "/1/"), is(true));
+		assertThat(uskPrefetcher.isPrefetched(URI + "/1/"), is(false));
+		assertThat(uskPrefetcher.isPrefetched(URI + "/2/"), is(false));
+		assertThat(uskPrefetcher.getHits(), is(1L));
+		assertThat(uskPrefetcher.getMisses(), is(2L));
+		assertThat(uskPrefetcher.getHitRate(), is(1.0 / 3));
+	}
+
+	@Test
+	public void hitRateIsUnknownWithoutRequests() {
+		assertThat(Double.isNaN(uskPrefetcher.getHitRate()), is(true));
+	}
+
+	@Test
+	public void editionsArePrefetchedAsSsk() {
+		assertThat(UskPrefetcher.getSskUri("USK@routing,crypto,AQACAAE/site", 17), is("SSK@routing,crypto,AQACAAE/site-17"));
+	}
+
+	private DataFound createDataFound(int prefetch) {
+		FcpMessage dataFound = new FcpMessage("DataFound");
+		dataFound.setField("Identifier", sentMessages.get(prefetch).getField("Identifier"));
+		return new DataFound(dataFound);
+	}
+
+	private GetFailed createGetFailed(int prefetch) {
+		FcpMessage getFailed = new FcpMessage("GetFailed");
+		getFailed.setField("Identifier", sentMessages.get(prefetch).getField("Identifier"));
+		getFailed.setField("Code", "13");
+		return new GetFailed(getFailed);
+	}
+
+}
@@ -0,0 +1,152 @@
+/*
+ * jFCPlib - UskSubscriptionManagerTest.java - Copyright © 2016 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pterodactylus.fcp.highlevel;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.pterodactylus.fcp.FcpListener;
+import net.pterodactylus.fcp.FcpMessage;
+import net.pterodactylus.fcp.ProtocolError;
+import net.pterodactylus.fcp.ReconnectListener;
+import net.pterodactylus.fcp.ReconnectingFcpConnection;
+import net.pterodactylus.fcp.SubscribedUSKUpdate;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link UskSubscriptionManager}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class UskSubscriptionManagerTest {
+
+	private static final String URI = "USK@routing,crypto,AQACAAE/site";
+
+	private final List<FcpMessage> sentMessages = new ArrayList<FcpMessage>();
+	private final List<String> events = new ArrayList<String>();
+	private final UskSubscriptionListener uskSubscriptionListener = new UskSubscriptionListener() {
+
+		@Override
+		public void editionFound(String uri, long edition) {
+			events.add("found " + uri + " " + edition);
+		}
+
+		@Override
+		public void subscriptionFailed(String uri, int code, String description) {
+			events.add("failed " + uri + " " + code);
+		}
+	};
+	private ReconnectingFcpConnection fcpConnection;
+	private FcpListener fcpListener;
+	private ReconnectListener reconnectListener;
+	private UskSubscriptionManager uskSubscriptionManager;
+
+	@Before
+	public void setup() throws IOException {
+		fcpConnection = new ReconnectingFcpConnection(InetAddress.getByName("127.0.0.1"), 9481, null, 1, 1, TimeUnit.SECONDS, 1) {
+
+			@Override
+			public void addReconnectListener(ReconnectListener reconnectListener) {
+				UskSubscriptionManagerTest.this.reconnectListener = reconnectListener;
+			}
+
+			@Override
+			public void sendMessage(FcpMessage fcpMessage) {
+				sentMessages.add(fcpMessage);
+			}
+		};
+		FcpClient fcpClient = new FcpClient(fcpConnection) {
+
+			@Override
+			public void addFcpListener(FcpListener fcpListener) {
+				UskSubscriptionManagerTest.this.fcpListener = fcpListener;
+			}
+		};
+		uskSubscriptionManager = new UskSubscriptionManager(fcpClient);
+	}
+
+	@Test
+	public void uskIsOnlySubscribedOnce() throws IOException {
+		uskSubscriptionManager.subscribe(URI + "/3/", uskSubscriptionListener);
+		uskSubscriptionManager.subscribe(URI + "/5/", uskSubscriptionListener);
+		assertThat(sentMessages.size(), is(1));
+		assertThat(sentMessages.get(0).getField("URI"), is(URI + "/3"));
+		fcpListener.receivedSubscribedUSKUpdate(fcpConnection, createUpdate(sentMessages.get(0).getField("Identifier"), 7));
+		assertThat(events, contains("found " + URI + " 7", "found " + URI + " 7"));
+		assertThat(uskSubscriptionManager.getEdition(URI), is(7L));
+	}
+
+	@Test
+	public void refusedSubscriptionIsDroppedAndReported() throws IOException {
+		uskSubscriptionManager.subscribe(URI + "/3/", uskSubscriptionListener);
+		fcpListener.receivedProtocolError(fcpConnection, createProtocolError(sentMessages.get(0).getField("Identifier")));
+		assertThat(events, contains("failed " + URI + " 4"));
+		assertThat(uskSubscriptionManager.isSubscribed(URI), is(false));
+		uskSubscriptionManager.subscribe(URI + "/3/", uskSubscriptionListener);
+		assertThat(sentMessages.size(), is(2));
+		assertThat(uskSubscriptionManager.isSubscribed(URI), is(true));
+	}
+
+	@Test
+	public void protocolErrorsOfOtherRequestsAreIgnored() throws IOException {
+		uskSubscriptionManager.subscribe(URI + "/3/", uskSubscriptionListener);
+		fcpListener.receivedProtocolError(fcpConnection, createProtocolError("other-request"));
+		assertThat(events.isEmpty(), is(true));
+		assertThat(uskSubscriptionManager.isSubscribed(URI), is(true));
+	}
+
+	@Test
+	public void subscriptionsAreSentAgainAtTheLatestEditionAfterAReconnect() throws IOException {
+		uskSubscriptionManager.subscribe(URI + "/3/", uskSubscriptionListener);
+		uskSubscriptionManager.subscribe("USK@other,crypto,AQACAAE/site/1/", uskSubscriptionListener);
+		uskSubscriptionManager.unsubscribe("USK@other,crypto,AQACAAE/site", uskSubscriptionListener);
+		String identifier = sentMessages.get(0).getField("Identifier");
+		fcpListener.receivedSubscribedUSKUpdate(fcpConnection, createUpdate(identifier, 9));
+		sentMessages.clear();
+		reconnectListener.connectionRestored(fcpConnection);
+		assertThat(sentMessages.size(), is(1));
+		assertThat(sentMessages.get(0).getName(), is("SubscribeUSK"));
+		assertThat(sentMessages.get(0).getField("URI"), is(URI + "/9"));
+		assertThat(sentMessages.get(0).getField("Identifier"), is(identifier));
+	}
+
+	private static SubscribedUSKUpdate createUpdate(String identifier, int edition) {
+		FcpMessage update = new FcpMessage("SubscribedUSKUpdate");
+		update.setField("Identifier", identifier);
+		update.setField("Edition", String.valueOf(edition));
+		return new SubscribedUSKUpdate(update);
+	}
+
+	private static ProtocolError createProtocolError(String identifier) {
+		FcpMessage protocolError = new FcpMessage("ProtocolError");
+		protocolError.setField("Identifier", identifier);
+		protocolError.setField("Code", "4");
+		protocolError.setField("CodeDescription", "Error parsing freenet URI");
+		return new ProtocolError(protocolError);
+	}
+
+}